@@ -15,6 +15,7 @@ package org.activiti;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +23,8 @@ import java.util.Properties;
 
 import javax.sql.DataSource;
 
+import org.activiti.datasource.LazyTenantDataSource;
+import org.activiti.datasource.TenantDataSourcePoolManager;
 import org.activiti.engine.ActivitiException;
 import org.activiti.engine.ProcessEngine;
 import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
@@ -30,6 +33,10 @@ import org.activiti.engine.impl.interceptor.CommandInterceptor;
 import org.activiti.engine.impl.persistence.StrongUuidGenerator;
 import org.activiti.engine.impl.util.IoUtil;
 import org.activiti.impl.db.ExecuteSchemaOperationCommand;
+import org.activiti.impl.db.SchemaFingerprintStore;
+import org.activiti.impl.db.TenantSchemaOperation;
+import org.activiti.impl.db.TenantSchemaOperationExecutor;
+import org.activiti.impl.db.TenantSchemaOperationReport;
 import org.activiti.tenant.TenantInfoHolder;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.ibatis.mapping.Environment;
@@ -48,11 +55,23 @@ public class DeprecateMultiTenantProcessEngineConfiguration extends ProcessEngin
   
   protected String multiTenantDatabaseSchemaUpdate;
   
+  /** Number of threads used to create/validate the tenant schemas at boot */
+  protected int tenantSchemaOperationParallelism = 1;
+  
+  /** When set, schema validation is skipped for tenants that were validated recently for the same engine version */
+  protected SchemaFingerprintStore schemaFingerprintStore;
+  
   protected List<MultiTenantDataSourceConfiguration> dataSourceConfigurations;
   
   protected MultiTenantDbSqlSessionFactory multiTenantDbSqlSessionFactory;
 
   protected Map<String, DataSource> datasources = new HashMap<String, DataSource>();
+  
+  /** When set, tenant pools are only created on first use and closed again when idle */
+  protected TenantDataSourcePoolManager tenantDataSourcePoolManager;
+  
+  /** When false, the Mybatis configuration is parsed for every tenant, instead of once per database type */
+  protected boolean shareMybatisConfigurationPerDatabaseType = true;
 
   public DeprecateMultiTenantProcessEngineConfiguration() {
     // Using the UUID generator, as otherwise the ids are pulled from a global pool of ids, backed by
@@ -75,10 +94,17 @@ public class DeprecateMultiTenantProcessEngineConfiguration extends ProcessEngin
   protected void initDataSource() {
     // Getting the datasources from the config
     for(MultiTenantDataSourceConfiguration dataSourceConfig : dataSourceConfigurations) {
-      datasources.put(dataSourceConfig.getTenantId(), dataSourceConfig.getDataSource());
+      datasources.put(dataSourceConfig.getTenantId(), createTenantDataSource(dataSourceConfig));
     }
   }
   
+  protected DataSource createTenantDataSource(MultiTenantDataSourceConfiguration dataSourceConfig) {
+    if (tenantDataSourcePoolManager != null) {
+      return tenantDataSourcePoolManager.createDataSource(dataSourceConfig);
+    }
+    return dataSourceConfig.getDataSource();
+  }
+  
   @Override
   protected DbSqlSessionFactory createDbSqlSessionFactory() {
     multiTenantDbSqlSessionFactory = new MultiTenantDbSqlSessionFactory(tenantInfoHolder);
@@ -101,26 +127,44 @@ public class DeprecateMultiTenantProcessEngineConfiguration extends ProcessEngin
 
   protected void initSqlSessionFactoryForTenant(MultiTenantSqlSessionFactory multiTenantSqlSessionFactory, String tenantId) {
     logger.info("Initializing sql session factory for tenant " + tenantId);
-     
-    // This could be optimized by a hack: http://www.jorambarrez.be/blog/2014/08/22/seriously-reducing-memory/
-    // For each database type, the Mybatis configuration could be cached and reused.
-    // But not applied it, as it's a quite dirty bit of hacking with relfection.
+    
+    DataSource dataSource = datasources.get(tenantId);
+    
+    MultiTenantDataSourceConfiguration dataSourceConfiguration = null;
+    for (MultiTenantDataSourceConfiguration d : dataSourceConfigurations) {
+      if (d.getTenantId().equals(tenantId)) {
+        dataSourceConfiguration = d;
+        break;
+      }
+    }
+    
+    String databaseType = dataSourceConfiguration.getDatabaseType();
+    
+    if (!shareMybatisConfigurationPerDatabaseType) {
+      multiTenantSqlSessionFactory.addConfig(tenantId, parseMybatisConfiguration(databaseType, dataSource));
+      multiTenantSqlSessionFactory.addTenant(tenantId, databaseType, dataSource);
+      return;
+    }
+    
+    // The Mybatis configuration only depends on the database type: it is parsed once per type
+    // and shared by all tenants of that type. The datasource of the tenant is bound when opening a session.
+    // Check, parse and bind in one go: removing the last tenant of the type in between would drop the configuration.
+    synchronized (multiTenantSqlSessionFactory) {
+      if (!multiTenantSqlSessionFactory.hasDatabaseTypeConfig(databaseType)) {
+        multiTenantSqlSessionFactory.addDatabaseTypeConfig(databaseType, parseMybatisConfiguration(databaseType, dataSource));
+      }
+      multiTenantSqlSessionFactory.addTenant(tenantId, databaseType, dataSource);
+    }
+  }
+  
+  protected Configuration parseMybatisConfiguration(String databaseType, DataSource dataSource) {
+    logger.info("Parsing Mybatis configuration for database type " + databaseType);
     
     InputStream inputStream = null;
     try {
       inputStream = getMyBatisXmlConfigurationStream();
-      DataSource dataSource = datasources.get(tenantId);
-      
-      MultiTenantDataSourceConfiguration dataSourceConfiguration = null;
-      for (MultiTenantDataSourceConfiguration d : dataSourceConfigurations) {
-        if (d.getTenantId().equals(tenantId)) {
-          dataSourceConfiguration = d;
-          break;
-        }
-      }
-      
-      String databaseType = dataSourceConfiguration.getDatabaseType();
       
+      // The datasource of the environment is never used for opening sessions, see MultiTenantSqlSessionFactory
       Environment environment = new Environment("default", transactionFactory, dataSource);
       Reader reader = new InputStreamReader(inputStream);
       Properties properties = new Properties();
@@ -134,8 +178,7 @@ public class DeprecateMultiTenantProcessEngineConfiguration extends ProcessEngin
         properties.put("limitBeforeNativeQuery", ObjectUtils.toString(DbSqlSessionFactory.databaseSpecificLimitBeforeNativeQueryStatements.get(databaseType)));
       }
 
-      Configuration configuration = initMybatisConfiguration(environment, reader, properties);
-      multiTenantSqlSessionFactory.addConfig(tenantId, configuration);
+      return initMybatisConfiguration(environment, reader, properties);
       
     } catch (Exception e) {
       throw new ActivitiException("Error while building ibatis SqlSessionFactory: " + e.getMessage(), e);
@@ -154,18 +197,46 @@ public class DeprecateMultiTenantProcessEngineConfiguration extends ProcessEngin
     
     ProcessEngine processEngine = super.buildProcessEngine();
     
-    for (String tenantId : tenantInfoHolder.getAllTenants()) {
-      createTenantSchema(tenantId);
-    }
-    tenantInfoHolder.clearCurrentTenantId();
+    TenantSchemaOperationExecutor schemaOperationExecutor = new TenantSchemaOperationExecutor(tenantSchemaOperationParallelism);
+    TenantSchemaOperationReport report = schemaOperationExecutor.execute(new ArrayList<String>(tenantInfoHolder.getAllTenants()), new TenantSchemaOperation() {
+      public void execute(String tenantId) {
+        createTenantSchema(tenantId);
+      }
+    });
+    report.log(logger);
+    flushSchemaFingerprints();
+    report.throwIfFailed();
     
     return processEngine;
   }
 
   protected void createTenantSchema(String tenantId) {
+    String databaseIdentity = null;
+    if (schemaFingerprintStore != null && datasources.containsKey(tenantId)) {
+      databaseIdentity = SchemaFingerprintStore.getDatabaseIdentity(datasources.get(tenantId));
+    }
+    if (schemaFingerprintStore != null && schemaFingerprintStore.canSkip(tenantId, databaseIdentity, multiTenantDatabaseSchemaUpdate)) {
+      logger.info("database schema of tenant " + tenantId + " was validated recently, skipping validation");
+      return;
+    }
+    
     logger.info("creating/validating database schema for tenant " + tenantId);
     tenantInfoHolder.setCurrentTenantId(tenantId);
-    getCommandExecutor().execute(getSchemaCommandConfig(), new ExecuteSchemaOperationCommand(multiTenantDatabaseSchemaUpdate));
+    try {
+      getCommandExecutor().execute(getSchemaCommandConfig(), new ExecuteSchemaOperationCommand(multiTenantDatabaseSchemaUpdate));
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+    
+    if (schemaFingerprintStore != null) {
+      schemaFingerprintStore.recordValidated(tenantId, databaseIdentity);
+    }
+  }
+  
+  protected void flushSchemaFingerprints() {
+    if (schemaFingerprintStore != null) {
+      schemaFingerprintStore.flush();
+    }
   }
   
   public void addMultiTenantDataSourceConfiguration(MultiTenantDataSourceConfiguration dataSourceConfiguration) {
@@ -174,7 +245,7 @@ public class DeprecateMultiTenantProcessEngineConfiguration extends ProcessEngin
     
     // Add datasource
     dataSourceConfigurations.add(dataSourceConfiguration);
-    datasources.put(tenantId, dataSourceConfiguration.getDataSource());
+    datasources.put(tenantId, createTenantDataSource(dataSourceConfiguration));
     
     // Create session factory for tenant
     initSqlSessionFactoryForTenant((MultiTenantSqlSessionFactory) sqlSessionFactory, tenantId);
@@ -184,11 +255,41 @@ public class DeprecateMultiTenantProcessEngineConfiguration extends ProcessEngin
     
     // Init schema
     createTenantSchema(tenantId);
+    flushSchemaFingerprints();
+  }
+  
+  /**
+   * Counterpart of {@link #addMultiTenantDataSourceConfiguration(MultiTenantDataSourceConfiguration)}:
+   * unbinds the tenant from the session factories and closes its datasource.
+   */
+  public void removeMultiTenantDataSourceConfiguration(String tenantId) {
+    getMultiTenantSqlSessionFactory().removeTenant(tenantId);
+    multiTenantDbSqlSessionFactory.removeTenant(tenantId);
+    
+    for (MultiTenantDataSourceConfiguration dataSourceConfiguration : new ArrayList<MultiTenantDataSourceConfiguration>(dataSourceConfigurations)) {
+      if (dataSourceConfiguration.getTenantId().equals(tenantId)) {
+        dataSourceConfigurations.remove(dataSourceConfiguration);
+      }
+    }
+    
+    DataSource dataSource = datasources.remove(tenantId);
+    if (dataSource != null) {
+      LazyTenantDataSource.closeDataSource(dataSource);
+    }
+    
+    if (schemaFingerprintStore != null) {
+      schemaFingerprintStore.remove(tenantId);
+      flushSchemaFingerprints();
+    }
   }
   
   
   // Getters and Setters ////////////////////////////////////////////////////////////////////////
   
+  public MultiTenantSqlSessionFactory getMultiTenantSqlSessionFactory() {
+    return (MultiTenantSqlSessionFactory) sqlSessionFactory;
+  }
+  
   public List<MultiTenantDataSourceConfiguration> getDataSourceConfigurations() {
     return dataSourceConfigurations;
   }
@@ -205,4 +306,36 @@ public class DeprecateMultiTenantProcessEngineConfiguration extends ProcessEngin
     this.dataSourceConfigurations = dataSourceConfigurations;
   }
 
+  public SchemaFingerprintStore getSchemaFingerprintStore() {
+    return schemaFingerprintStore;
+  }
+
+  public void setSchemaFingerprintStore(SchemaFingerprintStore schemaFingerprintStore) {
+    this.schemaFingerprintStore = schemaFingerprintStore;
+  }
+
+  public int getTenantSchemaOperationParallelism() {
+    return tenantSchemaOperationParallelism;
+  }
+
+  public void setTenantSchemaOperationParallelism(int tenantSchemaOperationParallelism) {
+    this.tenantSchemaOperationParallelism = tenantSchemaOperationParallelism;
+  }
+
+  public TenantDataSourcePoolManager getTenantDataSourcePoolManager() {
+    return tenantDataSourcePoolManager;
+  }
+
+  public void setTenantDataSourcePoolManager(TenantDataSourcePoolManager tenantDataSourcePoolManager) {
+    this.tenantDataSourcePoolManager = tenantDataSourcePoolManager;
+  }
+
+  public boolean isShareMybatisConfigurationPerDatabaseType() {
+    return shareMybatisConfigurationPerDatabaseType;
+  }
+
+  public void setShareMybatisConfigurationPerDatabaseType(boolean shareMybatisConfigurationPerDatabaseType) {
+    this.shareMybatisConfigurationPerDatabaseType = shareMybatisConfigurationPerDatabaseType;
+  }
+
 }
@@ -68,6 +68,11 @@ public class DummyTenantInfoHolder implements TenantInfoHolder {
     updateUserMap();
   }
   
+  public void removeTenant(String tenantId) {
+    tenantToUserMapping.remove(tenantId);
+    updateUserMap();
+  }
+  
   public void addUser(String tenantId, String userId) {
     tenantToUserMapping.get(tenantId).add(userId);
     updateUserMap();
@@ -12,8 +12,8 @@
  */
 package org.activiti;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.activiti.engine.impl.db.DbSqlSessionFactory;
 import org.activiti.tenant.TenantInfoHolder;
@@ -25,7 +25,8 @@ public class MultiTenantDbSqlSessionFactory extends DbSqlSessionFactory {
   
   protected TenantInfoHolder tenantInfoHolder;
   
-  protected Map<String, String> tenantToDatabaseTypeMap = new HashMap<String, String>();
+  protected Map<String, String> tenantToDatabaseTypeMap = new ConcurrentHashMap<String, String>();
+  protected Map<String, String> tenantToDatabaseSchemaMap = new ConcurrentHashMap<String, String>();
   
   public MultiTenantDbSqlSessionFactory(TenantInfoHolder tenantInfoHolder) {
     this.tenantInfoHolder = tenantInfoHolder;
@@ -35,9 +36,31 @@ public class MultiTenantDbSqlSessionFactory extends DbSqlSessionFactory {
     tenantToDatabaseTypeMap.put(tenantId, databaseType);
   }
   
+  /**
+   * When all tenants live in a different schema of the same database, the table lookups
+   * done by the schema operations need to be restricted to the schema of the tenant.
+   */
+  public void addDatabaseSchema(String tenantId, String databaseSchema) {
+    tenantToDatabaseSchemaMap.put(tenantId, databaseSchema);
+  }
+  
+  public void removeTenant(String tenantId) {
+    tenantToDatabaseTypeMap.remove(tenantId);
+    tenantToDatabaseSchemaMap.remove(tenantId);
+  }
+  
   @Override
   public String getDatabaseType() {
-    return tenantToDatabaseTypeMap.get(tenantInfoHolder.getCurrentTenantId());
+    String tenantId = tenantInfoHolder.getCurrentTenantId();
+    String databaseType = tenantId != null ? tenantToDatabaseTypeMap.get(tenantId) : null;
+    return databaseType != null ? databaseType : super.getDatabaseType();
+  }
+  
+  @Override
+  public String getDatabaseSchema() {
+    String tenantId = tenantInfoHolder.getCurrentTenantId();
+    String databaseSchema = tenantId != null ? tenantToDatabaseSchemaMap.get(tenantId) : null;
+    return databaseSchema != null ? databaseSchema : super.getDatabaseSchema();
   }
 
 }
@@ -12,18 +12,39 @@
  */
 package org.activiti;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import javax.sql.DataSource;
 
+import org.activiti.datasource.LazyTenantDataSource;
 import org.activiti.datasource.TenantAwareDataSource;
+import org.activiti.datasource.TenantConnectionBudget;
+import org.activiti.datasource.TenantDataSourceRoute;
+import org.activiti.datasource.TenantSchemaDataSource;
+import org.activiti.engine.ActivitiException;
 import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.ProcessEngineLifecycleListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
 import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.db.DbSqlSessionFactory;
 import org.activiti.engine.impl.interceptor.CommandInterceptor;
 import org.activiti.engine.impl.persistence.StrongUuidGenerator;
 import org.activiti.impl.db.ExecuteSchemaOperationCommand;
+import org.activiti.impl.db.SchemaFingerprintStore;
+import org.activiti.impl.db.TenantSchemaCloner;
+import org.activiti.impl.db.TenantSchemaOperation;
+import org.activiti.impl.db.TenantSchemaOperationExecutor;
+import org.activiti.impl.db.TenantSchemaOperationReport;
+import org.activiti.impl.interceptor.ReadReplicaRoutingInterceptor;
+import org.activiti.impl.interceptor.TenantReadinessInterceptor;
 import org.activiti.multitenant.job.ExecutorPerTenantAsyncExecutor;
 import org.activiti.multitenant.job.TenantAwareAsyncExecutor;
 import org.activiti.multitenant.job.TenantAwareAsyncExecutorFactory;
+import org.activiti.multitenant.job.TenantJobCreatedListener;
 import org.activiti.tenant.TenantInfoHolder;
+import org.activiti.tenant.TenantReadinessRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,10 +55,41 @@ public class MultiTenantProcessEngineConfiguration extends ProcessEngineConfigur
   
   private static final Logger logger = LoggerFactory.getLogger(MultiTenantProcessEngineConfiguration.class);
   
+  public static final String TEMPLATE_TENANT_ID = "__activiti_template__";
+  
   protected TenantInfoHolder tenantInfoHolder;
   protected TenantAwareAsyncExecutorFactory tenantAwareAyncExecutorFactory;
+  protected MultiTenantDbSqlSessionFactory multiTenantDbSqlSessionFactory;
   protected boolean booted;
   
+  /** Number of threads used to create/validate the tenant schemas at boot */
+  protected int tenantSchemaOperationParallelism = 1;
+  
+  /** When set, schema validation is skipped for tenants that were validated recently for the same engine version */
+  protected SchemaFingerprintStore schemaFingerprintStore;
+  
+  /** 
+   * When true, buildProcessEngine() returns immediately and the tenant schemas are created/validated in the background.
+   * Each tenant becomes usable (and gets its async executor started) as soon as its own schema is ready.
+   */
+  protected boolean progressiveTenantActivation;
+  
+  /** How long a command for a tenant that isn't ready yet waits. Zero means failing immediately. */
+  protected long tenantActivationWaitTimeInMillis = 30000L;
+  
+  protected TenantReadinessRegistry tenantReadinessRegistry = new TenantReadinessRegistry();
+  
+  /** How long unregistering a tenant waits for the connections of the tenant to be returned before closing its pools. */
+  protected long tenantUnregistrationWaitTimeInMillis = 30000L;
+  
+  /** 
+   * When both are set, tenants registered after boot get their schema by cloning the schema of the template tenant,
+   * instead of executing the engine DDL (only when their database doesn't contain the engine tables yet).
+   */
+  protected DataSource templateTenantDataSource;
+  protected TenantSchemaCloner tenantSchemaCloner;
+  protected boolean templateExported;
+  
   public MultiTenantProcessEngineConfiguration(TenantInfoHolder tenantInfoHolder) {
     
     this.tenantInfoHolder = tenantInfoHolder;
@@ -50,13 +102,33 @@ public class MultiTenantProcessEngineConfiguration extends ProcessEngineConfigur
     this.idGenerator = new StrongUuidGenerator();
     
     this.dataSource = new TenantAwareDataSource(tenantInfoHolder);
+    
+    this.multiTenantDbSqlSessionFactory = new MultiTenantDbSqlSessionFactory(tenantInfoHolder);
   }
   
   public void registerTenant(String tenantId, DataSource dataSource) {
-    ((TenantAwareDataSource) super.getDataSource()).addDataSource(tenantId, dataSource);
+    registerTenant(tenantId, dataSource, null);
+  }
+  
+  /**
+   * Registers a tenant with a read replica: engine queries will be executed against the replica,
+   * everything else goes to the primary datasource.
+   */
+  public void registerTenant(String tenantId, DataSource dataSource, DataSource readReplicaDataSource) {
+    if (dataSource instanceof TenantSchemaDataSource) {
+      // All tenants share the same database: table lookups must be restricted to the schema of the tenant
+      multiTenantDbSqlSessionFactory.addDatabaseSchema(tenantId, ((TenantSchemaDataSource) dataSource).getSchema());
+    }
+    
+    ((TenantAwareDataSource) super.getDataSource()).addDataSource(tenantId, dataSource, readReplicaDataSource);
     
     if (booted) {
-      createTenantSchema(tenantId);
+      if (isTenantSchemaCloneable(dataSource)) {
+        cloneTenantSchema(tenantId, dataSource);
+      } else {
+        createTenantSchema(tenantId);
+      }
+      flushSchemaFingerprints();
       
       if (isAsyncExecutorEnabled()) {
         createTenantAsyncJobExecutor(tenantId);
@@ -64,6 +136,81 @@ public class MultiTenantProcessEngineConfiguration extends ProcessEngineConfigur
     }
   }
   
+  /**
+   * Registers a tenant of which the connection pool is created on first use and closed again when idle.
+   * See {@link TenantAwareDataSource#addLazyDataSource(Object, MultiTenantDataSourceConfiguration)}.
+   */
+  public void registerTenant(MultiTenantDataSourceConfiguration dataSourceConfiguration) {
+    String tenantId = dataSourceConfiguration.getTenantId();
+    registerTenant(tenantId, getTenantAwareDataSource().getPoolManager().createDataSource(dataSourceConfiguration));
+  }
+  
+  /**
+   * Removes a tenant from the running engine. The tenant is quiesced first: new commands for the tenant are refused,
+   * its job acquisition is stopped, its acquired jobs get time to finish (the ones that didn't start are unlocked)
+   * and the connections that are still checked out get time to be returned. Only then the routing, 
+   * the session factory bindings and the connection pools of the tenant (primary and read replica) are released.
+   * 
+   * The tenant must be removed from the {@link TenantInfoHolder} by the caller.
+   */
+  public void unregisterTenant(String tenantId) {
+    logger.info("unregistering tenant " + tenantId);
+    
+    // Before the executor is removed: no new jobs are created for the tenant while its jobs are drained
+    tenantReadinessRegistry.markInitializing(tenantId);
+    tenantReadinessRegistry.markFailed(tenantId, new ActivitiException("Tenant " + tenantId + " is being unregistered"));
+    
+    if (isAsyncExecutorEnabled() && asyncExecutor instanceof TenantAwareAsyncExecutor) {
+      ((TenantAwareAsyncExecutor) asyncExecutor).removeTenantAsyncExecutor(tenantId);
+    }
+    
+    TenantDataSourceRoute route = getTenantAwareDataSource().getRoutingTable().getRoute(tenantId);
+    if (route != null) {
+      awaitConnectionsReturned(tenantId, route.getDataSource());
+      awaitConnectionsReturned(tenantId, route.getReadReplicaDataSource());
+    }
+    
+    getTenantAwareDataSource().removeDataSource(tenantId);
+    multiTenantDbSqlSessionFactory.removeTenant(tenantId);
+    
+    if (schemaFingerprintStore != null) {
+      schemaFingerprintStore.remove(tenantId);
+      flushSchemaFingerprints();
+    }
+    
+    if (route != null) {
+      LazyTenantDataSource.closeDataSource(route.getDataSource());
+      if (route.getReadReplicaDataSource() != null) {
+        LazyTenantDataSource.closeDataSource(route.getReadReplicaDataSource());
+      }
+    }
+    
+    tenantReadinessRegistry.remove(tenantId);
+  }
+  
+  /**
+   * Only a {@link LazyTenantDataSource} knows its checked out connections: other pools are closed right away.
+   */
+  protected void awaitConnectionsReturned(String tenantId, DataSource dataSource) {
+    if (!(dataSource instanceof LazyTenantDataSource)) {
+      return;
+    }
+    
+    LazyTenantDataSource lazyTenantDataSource = (LazyTenantDataSource) dataSource;
+    long deadline = System.currentTimeMillis() + tenantUnregistrationWaitTimeInMillis;
+    while (lazyTenantDataSource.getActiveConnections() > 0 && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(100L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    if (lazyTenantDataSource.getActiveConnections() > 0) {
+      logger.warn(lazyTenantDataSource.getActiveConnections() + " connections of tenant " + tenantId + " were still in use when its pool was closed");
+    }
+  }
+  
   @Override
   protected void initAsyncExecutor() {
     
@@ -73,13 +220,23 @@ public class MultiTenantProcessEngineConfiguration extends ProcessEngineConfigur
     
     super.initAsyncExecutor();
     
-    if (asyncExecutor instanceof TenantAwareAsyncExecutor) {
+    if (asyncExecutor instanceof TenantAwareAsyncExecutor && !progressiveTenantActivation) {
       for (String tenantId : tenantInfoHolder.getAllTenants()) {
         ((TenantAwareAsyncExecutor) asyncExecutor).addTenantAsyncExecutor(tenantId, false); // false -> will be started later with all the other executors
       }
     }
   }
   
+  @Override
+  protected void initEventDispatcher() {
+    super.initEventDispatcher();
+    
+    // Lets the tenant aware async executors know which tenants are creating jobs
+    if (isAsyncExecutorEnabled()) {
+      eventDispatcher.addEventListener(new TenantJobCreatedListener(this, tenantInfoHolder), ActivitiEventType.ENTITY_CREATED);
+    }
+  }
+  
   @Override
   public ProcessEngine buildProcessEngine() {
     
@@ -92,17 +249,47 @@ public class MultiTenantProcessEngineConfiguration extends ProcessEngineConfigur
     boolean originalIsAutoActivateAsyncExecutor = this.asyncExecutorActivate;
     this.asyncExecutorActivate = false;
     
+    // The background threads of the datasource need to stop with the engine
+    final ProcessEngineLifecycleListener originalLifecycleListener = this.processEngineLifecycleListener;
+    this.processEngineLifecycleListener = new ProcessEngineLifecycleListener() {
+      
+      public void onProcessEngineBuilt(ProcessEngine processEngine) {
+        if (originalLifecycleListener != null) {
+          originalLifecycleListener.onProcessEngineBuilt(processEngine);
+        }
+      }
+      
+      public void onProcessEngineClosed(ProcessEngine processEngine) {
+        getTenantAwareDataSource().shutdownPoolManager();
+        if (originalLifecycleListener != null) {
+          originalLifecycleListener.onProcessEngineClosed(processEngine);
+        }
+      }
+      
+    };
+    
     ProcessEngine processEngine = super.buildProcessEngine();
+    this.processEngineLifecycleListener = originalLifecycleListener;
     
     // Reset to original values
     this.databaseSchemaUpdate = originalDatabaseSchemaUpdate;
     this.asyncExecutorActivate = originalIsAutoActivateAsyncExecutor;
     
-    // Create tenant schema
-    for (String tenantId : tenantInfoHolder.getAllTenants()) {
-      createTenantSchema(tenantId);
+    if (progressiveTenantActivation) {
+      booted = true;
+      
+      // Tenants are added to the async executor once their schema is ready
+      if (asyncExecutor != null && originalIsAutoActivateAsyncExecutor) {
+        asyncExecutor.start();
+      }
+      
+      activateTenantsInBackground(new ArrayList<String>(tenantInfoHolder.getAllTenants()));
+      return processEngine;
     }
     
+    // Create tenant schema
+    createTenantSchemas(new ArrayList<String>(tenantInfoHolder.getAllTenants()));
+    
     // Start async executor
     if (asyncExecutor != null && originalIsAutoActivateAsyncExecutor) {
       asyncExecutor.start();
@@ -112,22 +299,223 @@ public class MultiTenantProcessEngineConfiguration extends ProcessEngineConfigur
     return processEngine;
   }
 
+  protected void createTenantSchemas(Collection<String> tenantIds) {
+    TenantSchemaOperationExecutor schemaOperationExecutor = new TenantSchemaOperationExecutor(tenantSchemaOperationParallelism);
+    TenantSchemaOperationReport report = schemaOperationExecutor.execute(tenantIds, new TenantSchemaOperation() {
+      public void execute(String tenantId) {
+        createTenantSchema(tenantId);
+      }
+    });
+    report.log(logger);
+    flushSchemaFingerprints();
+    report.throwIfFailed();
+  }
+
+  protected void activateTenantsInBackground(final Collection<String> tenantIds) {
+    for (String tenantId : tenantIds) {
+      tenantReadinessRegistry.markInitializing(tenantId);
+    }
+    
+    Thread activationThread = new Thread(new Runnable() {
+      public void run() {
+        TenantSchemaOperationExecutor schemaOperationExecutor = new TenantSchemaOperationExecutor(tenantSchemaOperationParallelism);
+        TenantSchemaOperationReport report = schemaOperationExecutor.execute(tenantIds, new TenantSchemaOperation() {
+          public void execute(String tenantId) {
+            activateTenant(tenantId);
+          }
+        });
+        report.log(logger);
+        flushSchemaFingerprints();
+        for (String tenantId : report.getFailures().keySet()) {
+          logger.error("Tenant " + tenantId + " could not be activated", report.getFailures().get(tenantId));
+        }
+      }
+    }, "activiti-tenant-activation");
+    activationThread.setDaemon(true);
+    activationThread.start();
+  }
+  
+  protected void activateTenant(String tenantId) {
+    try {
+      createTenantSchema(tenantId);
+    } catch (RuntimeException e) {
+      tenantReadinessRegistry.markFailed(tenantId, e);
+      throw e;
+    }
+    
+    tenantReadinessRegistry.markReady(tenantId);
+    
+    if (isAsyncExecutorEnabled() && asyncExecutor instanceof TenantAwareAsyncExecutor) {
+      createTenantAsyncJobExecutor(tenantId);
+    }
+  }
+
   protected void createTenantSchema(String tenantId) {
+    String databaseIdentity = null;
+    if (schemaFingerprintStore != null) {
+      TenantDataSourceRoute route = getTenantAwareDataSource().getRoutingTable().getRoute(tenantId);
+      databaseIdentity = route != null ? SchemaFingerprintStore.getDatabaseIdentity(route.getDataSource()) : null;
+    }
+    if (schemaFingerprintStore != null && schemaFingerprintStore.canSkip(tenantId, databaseIdentity, databaseSchemaUpdate)) {
+      logger.info("database schema of tenant " + tenantId + " was validated recently, skipping validation");
+      return;
+    }
+    
     logger.info("creating/validating database schema for tenant " + tenantId);
     tenantInfoHolder.setCurrentTenantId(tenantId);
-    getCommandExecutor().execute(getSchemaCommandConfig(), new ExecuteSchemaOperationCommand(databaseSchemaUpdate));
-    tenantInfoHolder.clearCurrentTenantId();
+    try {
+      getCommandExecutor().execute(getSchemaCommandConfig(), new ExecuteSchemaOperationCommand(databaseSchemaUpdate));
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+    
+    if (schemaFingerprintStore != null) {
+      schemaFingerprintStore.recordValidated(tenantId, databaseIdentity);
+    }
+  }
+  
+  protected boolean isTenantSchemaCloneable(DataSource dataSource) {
+    if (tenantSchemaCloner == null || templateTenantDataSource == null) {
+      return false;
+    }
+    boolean schemaCreationAllowed = DB_SCHEMA_UPDATE_CREATE.equals(databaseSchemaUpdate)
+        || DB_SCHEMA_UPDATE_DROP_CREATE.equals(databaseSchemaUpdate)
+        || DB_SCHEMA_UPDATE_CREATE_DROP.equals(databaseSchemaUpdate)
+        || DB_SCHEMA_UPDATE_TRUE.equals(databaseSchemaUpdate);
+    return schemaCreationAllowed && !tenantSchemaCloner.isEngineSchemaPresent(dataSource);
+  }
+  
+  protected void cloneTenantSchema(String tenantId, DataSource dataSource) {
+    exportTemplateTenantSchema();
+    
+    logger.info("creating database schema for tenant " + tenantId + " from the template tenant");
+    tenantSchemaCloner.cloneInto(dataSource);
+    
+    if (schemaFingerprintStore != null) {
+      schemaFingerprintStore.recordValidated(tenantId, SchemaFingerprintStore.getDatabaseIdentity(dataSource));
+    }
+  }
+  
+  /**
+   * Creates the template schema (once) and exports it.
+   */
+  protected synchronized void exportTemplateTenantSchema() {
+    if (templateExported) {
+      return;
+    }
+    
+    logger.info("creating template tenant database schema");
+    TenantAwareDataSource tenantAwareDataSource = getTenantAwareDataSource();
+    tenantAwareDataSource.addDataSource(TEMPLATE_TENANT_ID, templateTenantDataSource);
+    tenantInfoHolder.setCurrentTenantId(TEMPLATE_TENANT_ID);
+    try {
+      getCommandExecutor().execute(getSchemaCommandConfig(), new ExecuteSchemaOperationCommand(DB_SCHEMA_UPDATE_DROP_CREATE));
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+      tenantAwareDataSource.removeDataSource(TEMPLATE_TENANT_ID);
+    }
+    
+    tenantSchemaCloner.exportTemplate(templateTenantDataSource);
+    templateExported = true;
+  }
+  
+  protected void flushSchemaFingerprints() {
+    if (schemaFingerprintStore != null) {
+      schemaFingerprintStore.flush();
+    }
   }
   
   protected void createTenantAsyncJobExecutor(String tenantId) {
     ((TenantAwareAsyncExecutor) asyncExecutor).addTenantAsyncExecutor(tenantId, isAsyncExecutorActivate() && booted);
   }
   
+  @Override
+  protected Collection<? extends CommandInterceptor> getDefaultCommandInterceptors() {
+    List<CommandInterceptor> interceptors = new ArrayList<CommandInterceptor>();
+    interceptors.add(new TenantReadinessInterceptor(tenantInfoHolder, tenantReadinessRegistry, tenantActivationWaitTimeInMillis));
+    interceptors.add(new ReadReplicaRoutingInterceptor(getTenantAwareDataSource()));
+    interceptors.addAll(super.getDefaultCommandInterceptors());
+    return interceptors;
+  }
+  
+  @Override
+  protected DbSqlSessionFactory createDbSqlSessionFactory() {
+    return multiTenantDbSqlSessionFactory;
+  }
+  
   @Override
   protected CommandInterceptor createTransactionInterceptor() {
     return null;
   }
 
+  public TenantAwareDataSource getTenantAwareDataSource() {
+    return (TenantAwareDataSource) super.getDataSource();
+  }
+  
+  public void setConnectionBudget(TenantConnectionBudget connectionBudget) {
+    getTenantAwareDataSource().setConnectionBudget(connectionBudget);
+  }
+
+  public SchemaFingerprintStore getSchemaFingerprintStore() {
+    return schemaFingerprintStore;
+  }
+
+  public void setSchemaFingerprintStore(SchemaFingerprintStore schemaFingerprintStore) {
+    this.schemaFingerprintStore = schemaFingerprintStore;
+  }
+
+  public int getTenantSchemaOperationParallelism() {
+    return tenantSchemaOperationParallelism;
+  }
+
+  public void setTenantSchemaOperationParallelism(int tenantSchemaOperationParallelism) {
+    this.tenantSchemaOperationParallelism = tenantSchemaOperationParallelism;
+  }
+
+  public DataSource getTemplateTenantDataSource() {
+    return templateTenantDataSource;
+  }
+
+  public void setTemplateTenantDataSource(DataSource templateTenantDataSource) {
+    this.templateTenantDataSource = templateTenantDataSource;
+  }
+
+  public TenantSchemaCloner getTenantSchemaCloner() {
+    return tenantSchemaCloner;
+  }
+
+  public void setTenantSchemaCloner(TenantSchemaCloner tenantSchemaCloner) {
+    this.tenantSchemaCloner = tenantSchemaCloner;
+  }
+
+  public boolean isProgressiveTenantActivation() {
+    return progressiveTenantActivation;
+  }
+
+  public void setProgressiveTenantActivation(boolean progressiveTenantActivation) {
+    this.progressiveTenantActivation = progressiveTenantActivation;
+  }
+
+  public long getTenantActivationWaitTimeInMillis() {
+    return tenantActivationWaitTimeInMillis;
+  }
+
+  public void setTenantActivationWaitTimeInMillis(long tenantActivationWaitTimeInMillis) {
+    this.tenantActivationWaitTimeInMillis = tenantActivationWaitTimeInMillis;
+  }
+
+  public long getTenantUnregistrationWaitTimeInMillis() {
+    return tenantUnregistrationWaitTimeInMillis;
+  }
+
+  public void setTenantUnregistrationWaitTimeInMillis(long tenantUnregistrationWaitTimeInMillis) {
+    this.tenantUnregistrationWaitTimeInMillis = tenantUnregistrationWaitTimeInMillis;
+  }
+
+  public TenantReadinessRegistry getTenantReadinessRegistry() {
+    return tenantReadinessRegistry;
+  }
+
   public TenantAwareAsyncExecutorFactory getTenantAwareAyncExecutorFactory() {
     return tenantAwareAyncExecutorFactory;
   }
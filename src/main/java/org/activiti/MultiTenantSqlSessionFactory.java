@@ -14,8 +14,11 @@ package org.activiti;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
 
 import org.activiti.tenant.TenantInfoHolder;
 import org.apache.ibatis.exceptions.ExceptionFactory;
@@ -33,14 +36,30 @@ import org.apache.ibatis.transaction.TransactionFactory;
 import org.apache.ibatis.transaction.managed.ManagedTransactionFactory;
 
 /**
+ * A parsed Mybatis {@link Configuration} (with all its mapped statements) is big, 
+ * but it only depends on the database type. So one {@link Configuration} is kept per database type 
+ * and the {@link DataSource} of the tenant is only bound when a session is opened.
+ * 
  * @author Joram Barrez
  */
 public class MultiTenantSqlSessionFactory implements SqlSessionFactory {
 
+  /** Key used for tenants without database type */
+  protected static final String DEFAULT_DATABASE_TYPE_KEY = "default";
+
   protected TenantInfoHolder tenantInfoHolder;
   
-  /** Maps {tenantId, Coniguration */
-  protected Map<String, Configuration> configMapping = new HashMap<String, Configuration>();
+  /** Maps {tenantId, Configuration}, for tenants that have a dedicated configuration */
+  protected Map<String, Configuration> configMapping = new ConcurrentHashMap<String, Configuration>();
+  
+  /** Maps {databaseType, Configuration} */
+  protected Map<String, Configuration> databaseTypeConfigMapping = new ConcurrentHashMap<String, Configuration>();
+  
+  /** Maps {tenantId, databaseType} */
+  protected Map<String, String> tenantToDatabaseTypeMapping = new ConcurrentHashMap<String, String>();
+  
+  /** Maps {tenantId, DataSource} */
+  protected Map<String, DataSource> tenantDataSources = new ConcurrentHashMap<String, DataSource>();
   
   public MultiTenantSqlSessionFactory(TenantInfoHolder tenantInfoHolder) {
     this.tenantInfoHolder = tenantInfoHolder;
@@ -50,8 +69,70 @@ public class MultiTenantSqlSessionFactory implements SqlSessionFactory {
     configMapping.put(tenantId, configuration);
   }
   
+  public synchronized void addDatabaseTypeConfig(String databaseType, Configuration configuration) {
+    databaseTypeConfigMapping.put(getDatabaseTypeKey(databaseType), configuration);
+  }
+  
+  public boolean hasDatabaseTypeConfig(String databaseType) {
+    return databaseTypeConfigMapping.containsKey(getDatabaseTypeKey(databaseType));
+  }
+  
+  /**
+   * Binds a tenant to the shared {@link Configuration} of its database type.
+   * 
+   * Synchronized with {@link #removeTenant(String)}, which drops the shared configuration with the last tenant of its type:
+   * hold the lock of this factory while checking for the configuration, adding it and binding the tenant.
+   */
+  public synchronized void addTenant(String tenantId, String databaseType, DataSource dataSource) {
+    tenantToDatabaseTypeMapping.put(tenantId, getDatabaseTypeKey(databaseType));
+    tenantDataSources.put(tenantId, dataSource);
+  }
+  
+  /**
+   * Unbinds the tenant. The shared {@link Configuration} of its database type is dropped when no other tenant uses it anymore.
+   */
+  public synchronized void removeTenant(String tenantId) {
+    configMapping.remove(tenantId);
+    tenantDataSources.remove(tenantId);
+    String databaseType = tenantToDatabaseTypeMapping.remove(tenantId);
+    if (databaseType != null && !tenantToDatabaseTypeMapping.containsValue(databaseType)) {
+      databaseTypeConfigMapping.remove(databaseType);
+    }
+  }
+  
+  protected String getDatabaseTypeKey(String databaseType) {
+    return databaseType != null ? databaseType : DEFAULT_DATABASE_TYPE_KEY;
+  }
+  
   public Configuration getConfiguration() {
-    return configMapping.get(tenantInfoHolder.getCurrentTenantId());
+    String tenantId = tenantInfoHolder.getCurrentTenantId();
+    if (tenantId == null) {
+      return null;
+    }
+    
+    Configuration configuration = configMapping.get(tenantId);
+    if (configuration == null) {
+      String databaseType = tenantToDatabaseTypeMapping.get(tenantId);
+      if (databaseType != null) {
+        configuration = databaseTypeConfigMapping.get(databaseType);
+      }
+    }
+    return configuration;
+  }
+  
+  protected DataSource getDataSource(Environment environment) {
+    String tenantId = tenantInfoHolder.getCurrentTenantId();
+    DataSource dataSource = tenantId != null ? tenantDataSources.get(tenantId) : null;
+    return dataSource != null ? dataSource : environment.getDataSource();
+  }
+  
+  /**
+   * Number of distinct {@link Configuration} instances kept by this factory.
+   */
+  public int getConfigurationCount() {
+    HashSet<Configuration> configurations = new HashSet<Configuration>(configMapping.values());
+    configurations.addAll(databaseTypeConfigMapping.values());
+    return configurations.size();
   }
 
   public SqlSession openSession() {
@@ -91,7 +172,7 @@ public class MultiTenantSqlSessionFactory implements SqlSessionFactory {
     try {
       final Environment environment = getConfiguration().getEnvironment();
       final TransactionFactory transactionFactory = getTransactionFactoryFromEnvironment(environment);
-      tx = transactionFactory.newTransaction(environment.getDataSource(), level, autoCommit);
+      tx = transactionFactory.newTransaction(getDataSource(environment), level, autoCommit);
       final Executor executor = getConfiguration().newExecutor(tx, execType, autoCommit);
       return new DefaultSqlSession(getConfiguration(), executor);
     } catch (Exception e) {
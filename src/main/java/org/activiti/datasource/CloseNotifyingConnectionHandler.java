@@ -0,0 +1,67 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Wraps a {@link Connection} such that a callback is executed (exactly once) when the connection is closed.
+ * Used to give back whatever was taken when the connection was handed out (eg. a slot of the connection budget).
+ * 
+ * @author Joram Barrez
+ */
+public class CloseNotifyingConnectionHandler implements InvocationHandler {
+  
+  protected final Connection connection;
+  protected final Runnable closeCallback;
+  protected final AtomicBoolean closed = new AtomicBoolean(false);
+  
+  public CloseNotifyingConnectionHandler(Connection connection, Runnable closeCallback) {
+    this.connection = connection;
+    this.closeCallback = closeCallback;
+  }
+  
+  public static Connection wrap(Connection connection, Runnable closeCallback) {
+    return (Connection) Proxy.newProxyInstance(CloseNotifyingConnectionHandler.class.getClassLoader(), 
+        new Class<?>[] { Connection.class }, new CloseNotifyingConnectionHandler(connection, closeCallback));
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if ("close".equals(method.getName()) && method.getParameterTypes().length == 0) {
+      try {
+        connection.close();
+      } finally {
+        if (closed.compareAndSet(false, true)) {
+          closeCallback.run();
+        }
+      }
+      return null;
+    }
+    
+    try {
+      return method.invoke(connection, args);
+    } catch (InvocationTargetException e) {
+      throw e.getTargetException();
+    }
+  }
+  
+  public Connection getConnection() {
+    return connection;
+  }
+
+}
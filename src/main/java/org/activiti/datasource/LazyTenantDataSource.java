@@ -0,0 +1,267 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.activiti.MultiTenantDataSourceConfiguration;
+import org.apache.ibatis.datasource.pooled.PooledDataSource;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link DataSource} for one tenant of which the actual pool is only created when the first connection is requested.
+ * When no connections are checked out, the pool can be closed again (see {@link TenantDataSourcePoolManager})
+ * and will be recreated on the next use.
+ * 
+ * @author Joram Barrez
+ */
+public class LazyTenantDataSource implements DataSource {
+  
+  private static final org.slf4j.Logger logger = LoggerFactory.getLogger(LazyTenantDataSource.class);
+  
+  protected static final int CLOSING = -1;
+  
+  protected MultiTenantDataSourceConfiguration dataSourceConfiguration;
+  protected TenantDataSourcePoolManager poolManager;
+  
+  protected volatile DataSource dataSource;
+  protected volatile long lastUsed;
+  protected volatile boolean closed;
+  
+  /** Applied to the pool when it's created, 0 means not limited (see {@link TenantPoolSizer}). */
+  protected int maxPoolSize;
+  protected int maxIdle;
+  
+  /** Number of checked out connections, or {@link #CLOSING} while the pool is being closed. */
+  protected final AtomicInteger activeConnections = new AtomicInteger();
+  
+  public LazyTenantDataSource(MultiTenantDataSourceConfiguration dataSourceConfiguration, TenantDataSourcePoolManager poolManager) {
+    this.dataSourceConfiguration = dataSourceConfiguration;
+    this.poolManager = poolManager;
+  }
+  
+  public Connection getConnection() throws SQLException {
+    return getConnection(null, null, false);
+  }
+
+  public Connection getConnection(String username, String password) throws SQLException {
+    return getConnection(username, password, true);
+  }
+  
+  protected Connection getConnection(String username, String password, boolean withCredentials) throws SQLException {
+    DataSource currentDataSource = retain();
+    Connection connection = null;
+    try {
+      connection = withCredentials ? currentDataSource.getConnection(username, password) : currentDataSource.getConnection();
+    } finally {
+      if (connection == null) {
+        activeConnections.decrementAndGet();
+      }
+    }
+    return CloseNotifyingConnectionHandler.wrap(connection, new Runnable() {
+      public void run() {
+        lastUsed = System.currentTimeMillis();
+        activeConnections.decrementAndGet();
+      }
+    });
+  }
+  
+  /**
+   * Registers a new checked out connection and returns the pool, creating it when needed.
+   */
+  protected DataSource retain() {
+    lastUsed = System.currentTimeMillis();
+    while (true) {
+      int count = activeConnections.get();
+      if (count == CLOSING) {
+        synchronized (this) {
+          // The pool is being closed while holding the lock: simply wait for it to finish and retry
+        }
+      } else if (activeConnections.compareAndSet(count, count + 1)) {
+        DataSource currentDataSource = dataSource;
+        if (currentDataSource != null) {
+          return currentDataSource;
+        }
+        return materialize();
+      }
+    }
+  }
+  
+  protected DataSource materialize() {
+    DataSource currentDataSource = null;
+    boolean created = false;
+    try {
+      synchronized (this) {
+        if (closed) {
+          throw new IllegalStateException("Connection pool of tenant " + dataSourceConfiguration.getTenantId() + " is closed");
+        }
+        currentDataSource = dataSource;
+        if (currentDataSource == null) {
+          logger.info("Materializing connection pool for tenant " + dataSourceConfiguration.getTenantId());
+          DataSource newDataSource = dataSourceConfiguration.getDataSource();
+          if (maxPoolSize > 0) {
+            TenantPoolSizer.limit(newDataSource, maxPoolSize, maxIdle);
+          }
+          dataSource = newDataSource;
+          currentDataSource = newDataSource;
+          created = true;
+        }
+      }
+    } finally {
+      if (currentDataSource == null) {
+        activeConnections.decrementAndGet(); // No pool to check out from: give back what retain() registered
+      }
+    }
+    
+    if (created) {
+      try {
+        poolManager.poolOpened(this);
+      } catch (RuntimeException e) {
+        // The pool itself is fine, only closing other pools failed
+        logger.warn("Could not evict connection pools after opening the pool of tenant " + dataSourceConfiguration.getTenantId(), e);
+      }
+    }
+    
+    // Not the field: a concurrent close can already have reset it. Checking out from a closed pool fails in getConnection.
+    return currentDataSource;
+  }
+  
+  /**
+   * Closes the underlying pool if no connections are checked out.
+   * 
+   * @return true if the pool was closed.
+   */
+  public boolean closeIfIdle() {
+    synchronized (this) {
+      if (dataSource == null || !activeConnections.compareAndSet(0, CLOSING)) {
+        return false;
+      }
+      try {
+        logger.info("Closing idle connection pool for tenant " + dataSourceConfiguration.getTenantId());
+        closeDataSource(dataSource);
+        dataSource = null;
+      } finally {
+        activeConnections.set(0);
+      }
+    }
+    poolManager.poolClosed(this);
+    return true;
+  }
+  
+  /**
+   * Closes the underlying pool for good, also when connections are still checked out. Used when the tenant is unregistered.
+   */
+  public void close() {
+    boolean wasOpen = false;
+    synchronized (this) {
+      closed = true;
+      if (dataSource != null) {
+        logger.info("Closing connection pool for tenant " + dataSourceConfiguration.getTenantId());
+        closeDataSource(dataSource);
+        dataSource = null;
+        wasOpen = true;
+      }
+    }
+    if (wasOpen) {
+      poolManager.poolClosed(this);
+    }
+  }
+  
+  public static void closeDataSource(DataSource dataSource) {
+    try {
+      if (dataSource instanceof LazyTenantDataSource) {
+        ((LazyTenantDataSource) dataSource).close();
+      } else if (dataSource instanceof PooledDataSource) {
+        ((PooledDataSource) dataSource).forceCloseAll();
+      } else if (dataSource instanceof Closeable) {
+        ((Closeable) dataSource).close();
+      }
+    } catch (Exception e) {
+      logger.warn("Could not close datasource " + dataSource, e);
+    }
+  }
+  
+  /**
+   * Limits the pool, now if it's open and otherwise when it's created.
+   */
+  public synchronized void setPoolLimits(int maxPoolSize, int maxIdle) {
+    this.maxPoolSize = maxPoolSize;
+    this.maxIdle = maxIdle;
+    if (dataSource != null) {
+      TenantPoolSizer.limit(dataSource, maxPoolSize, maxIdle);
+    }
+  }
+  
+  public boolean isMaterialized() {
+    return dataSource != null;
+  }
+  
+  public int getActiveConnections() {
+    return Math.max(0, activeConnections.get());
+  }
+  
+  public long getLastUsed() {
+    return lastUsed;
+  }
+  
+  public String getTenantId() {
+    return dataSourceConfiguration.getTenantId();
+  }
+  
+  public MultiTenantDataSourceConfiguration getDataSourceConfiguration() {
+    return dataSourceConfiguration;
+  }
+
+  public int getLoginTimeout() throws SQLException {
+    return 0; // Default
+  }
+  
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return (T) this;
+    }
+    throw new SQLException("Cannot unwrap " + getClass().getName() + " as an instance of " + iface.getName()); 
+  }
+
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this);
+  }
+  
+  // Unsupported //////////////////////////////////////////////////////////
+  
+  public PrintWriter getLogWriter() throws SQLException {
+    throw new UnsupportedOperationException();
+  }
+
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    throw new UnsupportedOperationException();
+  }
+  
+  public void setLoginTimeout(int seconds) throws SQLException {
+    throw new UnsupportedOperationException();
+  }
+
+}
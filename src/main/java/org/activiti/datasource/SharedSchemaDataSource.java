@@ -0,0 +1,193 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ProcessEngineConfiguration;
+
+/**
+ * One connection pool shared by all tenants, where each tenant lives in its own database schema.
+ * 
+ * Use {@link #forSchema(String)} to get the {@link DataSource} of a tenant and register that one
+ * (eg. with MultiTenantProcessEngineConfiguration#registerTenant(String, DataSource)).
+ * When a connection is checked out, its schema is switched to the one of the tenant. 
+ * The current schema of each pooled (physical) connection is remembered, so the switch
+ * is skipped when the connection is already on the right schema.
+ * 
+ * @author Joram Barrez
+ */
+public class SharedSchemaDataSource {
+  
+  protected static final Pattern VALID_SCHEMA_NAME = Pattern.compile("[A-Za-z0-9_]+");
+  
+  protected static Map<String, String> databaseSpecificSwitchStatements = new HashMap<String, String>();
+  protected static Map<String, String> databaseSpecificCreateStatements = new HashMap<String, String>();
+  
+  static {
+    databaseSpecificSwitchStatements.put(ProcessEngineConfiguration.DATABASE_TYPE_H2, "SET SCHEMA ");
+    databaseSpecificSwitchStatements.put(ProcessEngineConfiguration.DATABASE_TYPE_MYSQL, "USE ");
+    databaseSpecificSwitchStatements.put(ProcessEngineConfiguration.DATABASE_TYPE_POSTGRES, "SET search_path TO ");
+    databaseSpecificSwitchStatements.put(ProcessEngineConfiguration.DATABASE_TYPE_ORACLE, "ALTER SESSION SET CURRENT_SCHEMA = ");
+    
+    databaseSpecificCreateStatements.put(ProcessEngineConfiguration.DATABASE_TYPE_H2, "CREATE SCHEMA IF NOT EXISTS ");
+    databaseSpecificCreateStatements.put(ProcessEngineConfiguration.DATABASE_TYPE_MYSQL, "CREATE DATABASE IF NOT EXISTS ");
+    databaseSpecificCreateStatements.put(ProcessEngineConfiguration.DATABASE_TYPE_POSTGRES, "CREATE SCHEMA IF NOT EXISTS ");
+  }
+  
+  protected DataSource dataSource;
+  protected String databaseType;
+  protected String schemaSwitchStatement;
+  
+  /** Maps {physical connection, current schema}. Weak keys, as the pool decides when connections go away. */
+  protected Map<Connection, String> currentSchemas = Collections.synchronizedMap(new WeakHashMap<Connection, String>());
+  
+  protected final AtomicLong schemaSwitchCount = new AtomicLong();
+  protected final AtomicLong schemaAffinityHitCount = new AtomicLong();
+  
+  public SharedSchemaDataSource(DataSource dataSource, String databaseType) {
+    this.dataSource = dataSource;
+    this.databaseType = databaseType;
+    this.schemaSwitchStatement = databaseSpecificSwitchStatements.get(databaseType);
+    if (schemaSwitchStatement == null) {
+      throw new ActivitiException("Schema per tenant is not supported for database type " + databaseType);
+    }
+  }
+  
+  public TenantSchemaDataSource forSchema(String schema) {
+    validateSchemaName(schema);
+    return new TenantSchemaDataSource(this, schema);
+  }
+  
+  /**
+   * Creates the schema for a tenant, if the database supports doing this with a simple statement.
+   */
+  public void createSchema(String schema) throws SQLException {
+    validateSchemaName(schema);
+    String createStatement = databaseSpecificCreateStatements.get(databaseType);
+    if (createStatement == null) {
+      throw new ActivitiException("Creating schemas is not supported for database type " + databaseType);
+    }
+    Connection connection = dataSource.getConnection();
+    try {
+      executeStatement(connection, createStatement + schema);
+    } finally {
+      connection.close();
+    }
+  }
+  
+  protected Connection getConnection(String schema) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      switchSchema(connection, schema);
+    } catch (SQLException e) {
+      connection.close();
+      throw e;
+    } catch (RuntimeException e) {
+      connection.close();
+      throw e;
+    }
+    return connection;
+  }
+  
+  /**
+   * @return true if the schema was switched, false if the connection was already on the schema.
+   */
+  protected boolean switchSchema(Connection connection, String schema) throws SQLException {
+    Connection physicalConnection = getPhysicalConnection(connection);
+    if (schema.equals(currentSchemas.get(physicalConnection))) {
+      schemaAffinityHitCount.incrementAndGet();
+      return false;
+    }
+    
+    currentSchemas.remove(physicalConnection); // Unknown until the switch has succeeded
+    executeStatement(connection, schemaSwitchStatement + schema);
+    currentSchemas.put(physicalConnection, schema);
+    schemaSwitchCount.incrementAndGet();
+    return true;
+  }
+  
+  /**
+   * Pools typically hand out a new wrapper for every checkout, 
+   * so the schema must be tracked on the wrapped connection.
+   */
+  protected Connection getPhysicalConnection(Connection connection) {
+    try {
+      if (connection.isWrapperFor(Connection.class)) {
+        Connection physicalConnection = connection.unwrap(Connection.class);
+        if (physicalConnection != null) {
+          return physicalConnection;
+        }
+      }
+    } catch (SQLException e) {
+      // Not unwrappable: use the connection itself
+    } catch (AbstractMethodError e) {
+      // Pre JDBC 4 driver
+    }
+    return connection;
+  }
+  
+  protected void executeStatement(Connection connection, String sql) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute(sql);
+    } finally {
+      statement.close();
+    }
+  }
+  
+  protected void validateSchemaName(String schema) {
+    if (schema == null || !VALID_SCHEMA_NAME.matcher(schema).matches()) {
+      throw new ActivitiException("Invalid schema name: " + schema);
+    }
+  }
+  
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+  
+  public String getDatabaseType() {
+    return databaseType;
+  }
+
+  public String getSchemaSwitchStatement() {
+    return schemaSwitchStatement;
+  }
+
+  /**
+   * Statement to which the schema name is appended to switch a connection to that schema.
+   */
+  public void setSchemaSwitchStatement(String schemaSwitchStatement) {
+    this.schemaSwitchStatement = schemaSwitchStatement;
+  }
+  
+  public long getSchemaSwitchCount() {
+    return schemaSwitchCount.get();
+  }
+  
+  public long getSchemaAffinityHitCount() {
+    return schemaAffinityHitCount.get();
+  }
+
+}
@@ -17,52 +17,168 @@ import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
-import org.activiti.engine.ActivitiException;
+import org.activiti.MultiTenantDataSourceConfiguration;
 import org.activiti.tenant.TenantInfoHolder;
 
 /**
  * Heavily influenced by Spring's AbstractRoutingDataSource.
  * 
+ * The tenant to {@link DataSource} mapping is kept in an immutable {@link TenantRoutingTable}.
+ * Adding or removing a tenant swaps in a new table (copy-on-write), so that
+ * fetching a connection never blocks, even when tenants are registered while the engine is running.
+ * 
+ * A tenant can have a read replica. Connections are fetched from it when the current thread 
+ * is marked as read-only (see {@link #setCurrentReadOnly(boolean)}), which is typically done by
+ * the org.activiti.impl.interceptor.ReadReplicaRoutingInterceptor for queries.
+ * 
  * @author Joram Barrez
  */
 public class TenantAwareDataSource implements DataSource {
   
   protected TenantInfoHolder tenantInfoHolder;
-  protected Map<Object, DataSource> dataSources = new HashMap<Object, DataSource>();
+  
+  protected volatile TenantRoutingTable routingTable = TenantRoutingTable.EMPTY;
+  protected final Object routingTableLock = new Object(); // Only taken by writers
+  
+  protected final AtomicLong unknownTenantLookupCount = new AtomicLong();
+  
+  protected TenantConnectionBudget connectionBudget;
+  protected TenantDataSourcePoolManager poolManager;
+  
+  protected ThreadLocal<Boolean> currentReadOnly = new ThreadLocal<Boolean>();
   
   public TenantAwareDataSource(TenantInfoHolder tenantInfoHolder) {
     this.tenantInfoHolder = tenantInfoHolder;
   }
   
   public void addDataSource(Object key, DataSource dataSource) {
-    dataSources.put(key, dataSource);
+    addDataSource(key, dataSource, null);
+  }
+  
+  /**
+   * @param readReplicaDataSource Used for read-only work of the tenant. Can be null.
+   */
+  public void addDataSource(Object key, DataSource dataSource, DataSource readReplicaDataSource) {
+    synchronized (routingTableLock) {
+      routingTable = routingTable.withRoute(new TenantDataSourceRoute(key, dataSource, readReplicaDataSource));
+    }
+    if (connectionBudget != null) {
+      connectionBudget.addTenant(key);
+      limitPoolSizes(); // The reservation of the new tenant lowers what the others can check out
+    }
+  }
+  
+  /**
+   * Keeps the pools of all tenants within what the connection budget allows them to check out.
+   */
+  protected void limitPoolSizes() {
+    for (TenantDataSourceRoute route : routingTable.getRoutes().values()) {
+      limitPoolSize(route.getTenantId(), route.getDataSource());
+      limitPoolSize(route.getTenantId(), route.getReadReplicaDataSource());
+    }
+  }
+  
+  /**
+   * Keeps the pool of the tenant within what the connection budget allows it to check out.
+   */
+  protected void limitPoolSize(Object key, DataSource dataSource) {
+    if (dataSource != null) {
+      TenantPoolSizer.limit(dataSource, connectionBudget.getMaxConnections(key), connectionBudget.getGuaranteedConnections(key));
+    }
+  }
+  
+  /**
+   * Registers a tenant of which the connection pool is only created on first use,
+   * and closed again when it has been idle for a while (see {@link TenantDataSourcePoolManager}).
+   */
+  public LazyTenantDataSource addLazyDataSource(Object key, MultiTenantDataSourceConfiguration dataSourceConfiguration) {
+    LazyTenantDataSource lazyTenantDataSource = getPoolManager().createDataSource(dataSourceConfiguration);
+    addDataSource(key, lazyTenantDataSource);
+    return lazyTenantDataSource;
   }
   
   public void removeDataSource(Object key) {
-    dataSources.remove(key);
+    synchronized (routingTableLock) {
+      routingTable = routingTable.withoutRoute(key);
+    }
+    if (connectionBudget != null) {
+      connectionBudget.removeTenant(key);
+      limitPoolSizes();
+    }
   }
   
   public Connection getConnection() throws SQLException {
-    return getCurrentDataSource().getConnection();
+    return getConnection(null, null, false);
   }
 
   public Connection getConnection(String username, String password) throws SQLException {
-    return  getCurrentDataSource().getConnection(username, password);
+    return getConnection(username, password, true);
+  }
+  
+  protected Connection getConnection(String username, String password, boolean withCredentials) throws SQLException {
+    DataSource dataSource = getCurrentDataSource();
+    if (connectionBudget == null) {
+      return withCredentials ? dataSource.getConnection(username, password) : dataSource.getConnection();
+    }
+    
+    final TenantConnectionBudget budget = connectionBudget;
+    final String tenantId = tenantInfoHolder.getCurrentTenantId();
+    budget.acquire(tenantId);
+    Connection connection = null;
+    try {
+      connection = withCredentials ? dataSource.getConnection(username, password) : dataSource.getConnection();
+    } finally {
+      if (connection == null) {
+        budget.release(tenantId);
+      }
+    }
+    return CloseNotifyingConnectionHandler.wrap(connection, new Runnable() {
+      public void run() {
+        budget.release(tenantId);
+      }
+    });
   }
   
   protected DataSource getCurrentDataSource() {
     String tenantId = tenantInfoHolder.getCurrentTenantId();
-    DataSource dataSource = dataSources.get(tenantId);
-    if (dataSource == null) {
-      throw new ActivitiException("Could not find a dataSource for tenant " + tenantId);
+    TenantDataSourceRoute route = routingTable.getRoute(tenantId);
+    if (route == null) {
+      unknownTenantLookupCount.incrementAndGet();
+      throw new UnknownTenantException(tenantId);
     }
-    return dataSource;
+    
+    if (route.getReadReplicaDataSource() != null && Boolean.TRUE.equals(currentReadOnly.get())) {
+      route.recordReadReplicaHit();
+      return route.getReadReplicaDataSource();
+    }
+    
+    route.recordHit();
+    return route.getDataSource();
+  }
+  
+  /**
+   * Marks all connections fetched by the current thread as read-only work, 
+   * which means they can be fetched from the read replica of the tenant (if there is one).
+   */
+  public void setCurrentReadOnly(boolean readOnly) {
+    currentReadOnly.set(readOnly);
+  }
+  
+  /**
+   * Returns null when nothing was set for the current thread.
+   */
+  public Boolean getCurrentReadOnly() {
+    return currentReadOnly.get();
+  }
+  
+  public void clearCurrentReadOnly() {
+    currentReadOnly.remove();
   }
 
   public int getLoginTimeout() throws SQLException {
@@ -85,12 +201,73 @@ public class TenantAwareDataSource implements DataSource {
     return iface.isInstance(this);
   }
   
+  public long getHitCount(Object key) {
+    TenantDataSourceRoute route = routingTable.getRoute(key);
+    return route != null ? route.getHitCount() : 0L;
+  }
+  
+  public long getReadReplicaHitCount(Object key) {
+    TenantDataSourceRoute route = routingTable.getRoute(key);
+    return route != null ? route.getReadReplicaHitCount() : 0L;
+  }
+  
+  public long getUnknownTenantLookupCount() {
+    return unknownTenantLookupCount.get();
+  }
+  
+  public TenantConnectionBudget getConnectionBudget() {
+    return connectionBudget;
+  }
+  
+  /**
+   * Caps the total number of checked out connections over all tenants, and limits the tenant pools accordingly. 
+   * Tenants that are already registered are added to the budget.
+   */
+  public void setConnectionBudget(TenantConnectionBudget connectionBudget) {
+    this.connectionBudget = connectionBudget;
+    if (connectionBudget != null) {
+      for (Object tenantId : routingTable.getRoutes().keySet()) {
+        connectionBudget.addTenant(tenantId);
+      }
+      limitPoolSizes();
+    }
+  }
+  
+  public synchronized TenantDataSourcePoolManager getPoolManager() {
+    if (poolManager == null) {
+      poolManager = new TenantDataSourcePoolManager();
+    }
+    return poolManager;
+  }
+
+  public synchronized void setPoolManager(TenantDataSourcePoolManager poolManager) {
+    this.poolManager = poolManager;
+  }
+  
+  /**
+   * Stops the idle pool eviction of the pool manager, if there is one. Called when the engine is closed.
+   */
+  public synchronized void shutdownPoolManager() {
+    if (poolManager != null) {
+      poolManager.shutdown();
+    }
+  }
+  
+  public TenantRoutingTable getRoutingTable() {
+    return routingTable;
+  }
+  
+  /**
+   * Returns a read-only snapshot of the current mapping.
+   */
   public Map<Object, DataSource> getDataSources() {
-    return dataSources;
+    return routingTable.getDataSources();
   }
 
   public void setDataSources(Map<Object, DataSource> dataSources) {
-    this.dataSources = dataSources;
+    synchronized (routingTableLock) {
+      routingTable = TenantRoutingTable.fromDataSources(dataSources);
+    }
   }
   
   // Unsupported //////////////////////////////////////////////////////////
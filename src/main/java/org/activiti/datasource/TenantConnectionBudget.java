@@ -0,0 +1,308 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the total number of checked out connections over all tenant {@link javax.sql.DataSource}s
+ * of a {@link TenantAwareDataSource}.
+ * 
+ * The idle connections kept by the tenant pools are not counted. To keep the physical connections 
+ * within the budget too, the {@link TenantAwareDataSource} limits every tenant pool it knows (see {@link TenantPoolSizer}) 
+ * to {@link #getMaxConnections(Object)} connections, keeping no more than the guaranteed connections idle. 
+ * Connections above that are only closed after the idle timeout of the pool, so the total can briefly be higher.
+ * 
+ * Each tenant has a guaranteed minimum of connections that is always reserved for it.
+ * Everything above the sum of those minimums is shared: a busy tenant can borrow 
+ * the capacity quiet tenants aren't using, as long as the reservations of the other tenants can still be honoured.
+ * 
+ * When no capacity is available, the requesting thread waits (up to maxWaitTimeInMillis) until a connection is given back.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantConnectionBudget {
+  
+  protected int maxTotalConnections;
+  protected int defaultGuaranteedConnections;
+  protected long maxWaitTimeInMillis = 30000L;
+  
+  protected Map<Object, Integer> guaranteedConnections = new HashMap<Object, Integer>();
+  
+  protected final ReentrantLock lock = new ReentrantLock();
+  protected final Condition connectionReturned = lock.newCondition();
+  
+  // All below guarded by the lock
+  protected Map<Object, TenantBudget> tenantBudgets = new HashMap<Object, TenantBudget>();
+  protected int totalInUse;
+  protected int unusedReservations; // Sum over all tenants of max(0, guaranteed - inUse)
+  
+  public TenantConnectionBudget(int maxTotalConnections) {
+    this(maxTotalConnections, 0);
+  }
+  
+  public TenantConnectionBudget(int maxTotalConnections, int defaultGuaranteedConnections) {
+    this.maxTotalConnections = maxTotalConnections;
+    this.defaultGuaranteedConnections = defaultGuaranteedConnections;
+  }
+  
+  public void addTenant(Object tenantId) {
+    lock.lock();
+    try {
+      if (!tenantBudgets.containsKey(tenantId)) {
+        TenantBudget tenantBudget = new TenantBudget(getGuaranteedConnections(tenantId));
+        tenantBudgets.put(tenantId, tenantBudget);
+        unusedReservations += tenantBudget.unusedReservation();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  public void removeTenant(Object tenantId) {
+    lock.lock();
+    try {
+      TenantBudget tenantBudget = tenantBudgets.remove(tenantId);
+      if (tenantBudget != null) {
+        unusedReservations -= tenantBudget.unusedReservation();
+        totalInUse -= tenantBudget.inUse;
+        connectionReturned.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * Blocks until the tenant is allowed to open a connection. 
+   * Every successful call must be matched by a call to {@link #release(Object)}.
+   */
+  public void acquire(Object tenantId) throws SQLException {
+    lock.lock();
+    try {
+      TenantBudget tenantBudget = tenantBudgets.get(tenantId);
+      if (tenantBudget == null) {
+        addTenant(tenantId);
+        tenantBudget = tenantBudgets.get(tenantId);
+      }
+      
+      if (!canAcquire(tenantBudget)) {
+        long start = System.nanoTime();
+        long nanosLeft = TimeUnit.MILLISECONDS.toNanos(maxWaitTimeInMillis);
+        try {
+          while (!canAcquire(tenantBudget)) {
+            if (nanosLeft <= 0L) {
+              tenantBudget.timeoutCount++;
+              throw new SQLException("Could not obtain a connection for tenant " + tenantId 
+                  + " within " + maxWaitTimeInMillis + " ms: connection budget of " + maxTotalConnections + " connections exhausted");
+            }
+            nanosLeft = connectionReturned.awaitNanos(nanosLeft);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted while waiting for a connection for tenant " + tenantId, e);
+        } finally {
+          tenantBudget.recordWait(System.nanoTime() - start);
+        }
+      }
+      
+      unusedReservations -= tenantBudget.unusedReservation();
+      tenantBudget.inUse++;
+      unusedReservations += tenantBudget.unusedReservation();
+      totalInUse++;
+      
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  public void release(Object tenantId) {
+    lock.lock();
+    try {
+      TenantBudget tenantBudget = tenantBudgets.get(tenantId);
+      if (tenantBudget != null && tenantBudget.inUse > 0) {
+        unusedReservations -= tenantBudget.unusedReservation();
+        tenantBudget.inUse--;
+        unusedReservations += tenantBudget.unusedReservation();
+        totalInUse--;
+        connectionReturned.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  protected boolean canAcquire(TenantBudget tenantBudget) {
+    if (totalInUse >= maxTotalConnections) {
+      return false;
+    }
+    if (tenantBudget.inUse < tenantBudget.guaranteed) {
+      return true; // Taking from its own reservation
+    }
+    // Borrowing: whatever is left must still cover the reservations of the others
+    return totalInUse + unusedReservations < maxTotalConnections;
+  }
+  
+  public int getGuaranteedConnections(Object tenantId) {
+    lock.lock();
+    try {
+      Integer guaranteed = guaranteedConnections.get(tenantId);
+      return guaranteed != null ? guaranteed : defaultGuaranteedConnections;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  /**
+   * @return The most connections the tenant can ever check out: everything that isn't reserved for the other tenants.
+   */
+  public int getMaxConnections(Object tenantId) {
+    lock.lock();
+    try {
+      int reservedForOthers = 0;
+      for (Map.Entry<Object, TenantBudget> entry : tenantBudgets.entrySet()) {
+        if (!entry.getKey().equals(tenantId)) {
+          reservedForOthers += entry.getValue().guaranteed;
+        }
+      }
+      return Math.max(1, maxTotalConnections - reservedForOthers);
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  // Metrics //////////////////////////////////////////////////////////////
+  
+  public int getTotalInUse() {
+    lock.lock();
+    try {
+      return totalInUse;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  public int getInUse(Object tenantId) {
+    lock.lock();
+    try {
+      TenantBudget tenantBudget = tenantBudgets.get(tenantId);
+      return tenantBudget != null ? tenantBudget.inUse : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  public long getWaitCount(Object tenantId) {
+    lock.lock();
+    try {
+      TenantBudget tenantBudget = tenantBudgets.get(tenantId);
+      return tenantBudget != null ? tenantBudget.waitCount : 0L;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  public long getTotalWaitTimeInMillis(Object tenantId) {
+    lock.lock();
+    try {
+      TenantBudget tenantBudget = tenantBudgets.get(tenantId);
+      return tenantBudget != null ? TimeUnit.NANOSECONDS.toMillis(tenantBudget.totalWaitNanos) : 0L;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  public long getMaxWaitTimeInMillis(Object tenantId) {
+    lock.lock();
+    try {
+      TenantBudget tenantBudget = tenantBudgets.get(tenantId);
+      return tenantBudget != null ? TimeUnit.NANOSECONDS.toMillis(tenantBudget.maxWaitNanos) : 0L;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  public long getTimeoutCount(Object tenantId) {
+    lock.lock();
+    try {
+      TenantBudget tenantBudget = tenantBudgets.get(tenantId);
+      return tenantBudget != null ? tenantBudget.timeoutCount : 0L;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  // Getters and Setters //////////////////////////////////////////////////
+  
+  public int getMaxTotalConnections() {
+    return maxTotalConnections;
+  }
+  
+  public int getDefaultGuaranteedConnections() {
+    return defaultGuaranteedConnections;
+  }
+  
+  /**
+   * Must be called before the tenant is added.
+   */
+  public void setGuaranteedConnections(Object tenantId, int guaranteed) {
+    lock.lock();
+    try {
+      guaranteedConnections.put(tenantId, guaranteed);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMaxWaitTimeInMillis() {
+    return maxWaitTimeInMillis;
+  }
+
+  public void setMaxWaitTimeInMillis(long maxWaitTimeInMillis) {
+    this.maxWaitTimeInMillis = maxWaitTimeInMillis;
+  }
+  
+  protected static class TenantBudget {
+    
+    protected final int guaranteed;
+    protected int inUse;
+    
+    protected long waitCount;
+    protected long totalWaitNanos;
+    protected long maxWaitNanos;
+    protected long timeoutCount;
+    
+    public TenantBudget(int guaranteed) {
+      this.guaranteed = guaranteed;
+    }
+    
+    public int unusedReservation() {
+      return Math.max(0, guaranteed - inUse);
+    }
+    
+    public void recordWait(long nanos) {
+      waitCount++;
+      totalWaitNanos += nanos;
+      if (nanos > maxWaitNanos) {
+        maxWaitNanos = nanos;
+      }
+    }
+    
+  }
+
+}
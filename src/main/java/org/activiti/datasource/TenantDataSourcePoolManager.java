@@ -0,0 +1,160 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.MultiTenantDataSourceConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the materialized pools of {@link LazyTenantDataSource}s.
+ * 
+ * Pools that haven't been used for maxIdleTimeInMillis are closed by a background thread.
+ * When more than maxOpenPools are open, the least recently used idle pools are closed.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantDataSourcePoolManager {
+  
+  private static final Logger logger = LoggerFactory.getLogger(TenantDataSourcePoolManager.class);
+  
+  protected int maxOpenPools = Integer.MAX_VALUE;
+  protected long maxIdleTimeInMillis = 30 * 60 * 1000L;
+  protected long evictionIntervalInMillis = 60 * 1000L;
+  
+  protected Set<LazyTenantDataSource> openPools = Collections.newSetFromMap(new ConcurrentHashMap<LazyTenantDataSource, Boolean>());
+  
+  protected ScheduledExecutorService evictionExecutor;
+  
+  public LazyTenantDataSource createDataSource(MultiTenantDataSourceConfiguration dataSourceConfiguration) {
+    startEviction();
+    return new LazyTenantDataSource(dataSourceConfiguration, this);
+  }
+  
+  protected synchronized void startEviction() {
+    if (evictionExecutor == null) {
+      evictionExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "activiti-tenant-pool-eviction");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          evictIdlePools();
+        }
+      }, evictionIntervalInMillis, evictionIntervalInMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+  
+  public synchronized void shutdown() {
+    if (evictionExecutor != null) {
+      evictionExecutor.shutdownNow();
+      evictionExecutor = null;
+    }
+  }
+  
+  protected void poolOpened(LazyTenantDataSource dataSource) {
+    openPools.add(dataSource);
+    if (openPools.size() > maxOpenPools) {
+      evictLeastRecentlyUsed(dataSource);
+    }
+  }
+  
+  protected void poolClosed(LazyTenantDataSource dataSource) {
+    openPools.remove(dataSource);
+  }
+  
+  public void evictIdlePools() {
+    long idleSince = System.currentTimeMillis() - maxIdleTimeInMillis;
+    for (LazyTenantDataSource dataSource : new ArrayList<LazyTenantDataSource>(openPools)) {
+      if (dataSource.getLastUsed() < idleSince) {
+        dataSource.closeIfIdle();
+      }
+    }
+  }
+  
+  protected void evictLeastRecentlyUsed(LazyTenantDataSource justOpened) {
+    // Sort on a snapshot: the last used time changes while sorting, which would break the contract of the comparator
+    final Map<LazyTenantDataSource, Long> lastUsed = new HashMap<LazyTenantDataSource, Long>();
+    for (LazyTenantDataSource dataSource : openPools) {
+      if (dataSource != justOpened) {
+        lastUsed.put(dataSource, dataSource.getLastUsed());
+      }
+    }
+    List<LazyTenantDataSource> candidates = new ArrayList<LazyTenantDataSource>(lastUsed.keySet());
+    Collections.sort(candidates, new Comparator<LazyTenantDataSource>() {
+      public int compare(LazyTenantDataSource d1, LazyTenantDataSource d2) {
+        return lastUsed.get(d1).compareTo(lastUsed.get(d2));
+      }
+    });
+    
+    for (LazyTenantDataSource candidate : candidates) {
+      if (openPools.size() <= maxOpenPools) {
+        return;
+      }
+      candidate.closeIfIdle();
+    }
+    
+    if (openPools.size() > maxOpenPools) {
+      logger.warn("Could not close enough tenant connection pools: " + openPools.size() 
+          + " pools are open and in use (max is " + maxOpenPools + ")");
+    }
+  }
+  
+  public int getOpenPoolCount() {
+    return openPools.size();
+  }
+
+  public int getMaxOpenPools() {
+    return maxOpenPools;
+  }
+
+  public void setMaxOpenPools(int maxOpenPools) {
+    this.maxOpenPools = maxOpenPools;
+  }
+
+  public long getMaxIdleTimeInMillis() {
+    return maxIdleTimeInMillis;
+  }
+
+  public void setMaxIdleTimeInMillis(long maxIdleTimeInMillis) {
+    this.maxIdleTimeInMillis = maxIdleTimeInMillis;
+  }
+
+  public long getEvictionIntervalInMillis() {
+    return evictionIntervalInMillis;
+  }
+
+  /**
+   * Must be set before the first lazy datasource is created.
+   */
+  public void setEvictionIntervalInMillis(long evictionIntervalInMillis) {
+    this.evictionIntervalInMillis = evictionIntervalInMillis;
+  }
+  
+}
@@ -0,0 +1,74 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+/**
+ * One entry of the {@link TenantRoutingTable}: the {@link DataSource} of a tenant
+ * (and optionally a read replica of it), together with the number of times it was looked up.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantDataSourceRoute {
+  
+  protected final Object tenantId;
+  protected final DataSource dataSource;
+  protected final DataSource readReplicaDataSource;
+  protected final AtomicLong hitCount = new AtomicLong();
+  protected final AtomicLong readReplicaHitCount = new AtomicLong();
+  
+  public TenantDataSourceRoute(Object tenantId, DataSource dataSource) {
+    this(tenantId, dataSource, null);
+  }
+  
+  public TenantDataSourceRoute(Object tenantId, DataSource dataSource, DataSource readReplicaDataSource) {
+    this.tenantId = tenantId;
+    this.dataSource = dataSource;
+    this.readReplicaDataSource = readReplicaDataSource;
+  }
+  
+  public void recordHit() {
+    hitCount.incrementAndGet();
+  }
+  
+  public void recordReadReplicaHit() {
+    readReplicaHitCount.incrementAndGet();
+  }
+  
+  public Object getTenantId() {
+    return tenantId;
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+  
+  /**
+   * Returns null if the tenant has no read replica.
+   */
+  public DataSource getReadReplicaDataSource() {
+    return readReplicaDataSource;
+  }
+  
+  public long getHitCount() {
+    return hitCount.get();
+  }
+  
+  public long getReadReplicaHitCount() {
+    return readReplicaHitCount.get();
+  }
+
+}
@@ -0,0 +1,65 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import javax.sql.DataSource;
+
+import org.apache.ibatis.datasource.pooled.PooledDataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Limits the size of the connection pool behind a tenant {@link DataSource}, so the physical connections 
+ * it keeps open stay within what the {@link TenantConnectionBudget} allows the tenant to check out.
+ * 
+ * Knows HikariCP, MyBatis' {@link PooledDataSource} and {@link LazyTenantDataSource} (applied when its pool is created).
+ * Other datasources are left untouched.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantPoolSizer {
+  
+  /**
+   * Lowers the maximum pool size to maxPoolSize and the idle connections kept open to maxIdle. Never raises them.
+   * 
+   * @return False if the datasource isn't known and can't be limited.
+   */
+  public static boolean limit(DataSource dataSource, int maxPoolSize, int maxIdle) {
+    if (dataSource instanceof LazyTenantDataSource) {
+      ((LazyTenantDataSource) dataSource).setPoolLimits(maxPoolSize, maxIdle);
+      return true;
+      
+    } else if (dataSource instanceof HikariDataSource) {
+      HikariDataSource hikariDataSource = (HikariDataSource) dataSource;
+      if (hikariDataSource.getMaximumPoolSize() > maxPoolSize) {
+        hikariDataSource.setMaximumPoolSize(maxPoolSize);
+      }
+      if (hikariDataSource.getMinimumIdle() > maxIdle) {
+        hikariDataSource.setMinimumIdle(maxIdle); // Connections above it are closed after the idle timeout
+      }
+      return true;
+      
+    } else if (dataSource instanceof PooledDataSource) {
+      PooledDataSource pooledDataSource = (PooledDataSource) dataSource;
+      if (pooledDataSource.getPoolMaximumActiveConnections() > maxPoolSize) {
+        pooledDataSource.setPoolMaximumActiveConnections(maxPoolSize);
+      }
+      if (pooledDataSource.getPoolMaximumIdleConnections() > maxIdle) {
+        pooledDataSource.setPoolMaximumIdleConnections(maxIdle);
+      }
+      return true;
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,85 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+/**
+ * Immutable snapshot of the tenant to {@link DataSource} mapping.
+ * 
+ * Changes never touch an existing table: a copy is made and swapped in by the {@link TenantAwareDataSource}.
+ * This way, lookups (which happen on every connection fetch) never need to lock and never see a half-updated map.
+ * 
+ * @author Joram Barrez
+ */
+public final class TenantRoutingTable {
+  
+  public static final TenantRoutingTable EMPTY = new TenantRoutingTable(new HashMap<Object, TenantDataSourceRoute>());
+  
+  private final Map<Object, TenantDataSourceRoute> routes;
+  
+  private TenantRoutingTable(Map<Object, TenantDataSourceRoute> routes) {
+    this.routes = routes;
+  }
+  
+  /**
+   * Returns null when no route exists for the given tenant.
+   */
+  public TenantDataSourceRoute getRoute(Object tenantId) {
+    return routes.get(tenantId);
+  }
+  
+  public TenantRoutingTable withRoute(TenantDataSourceRoute route) {
+    Map<Object, TenantDataSourceRoute> copy = new HashMap<Object, TenantDataSourceRoute>(routes);
+    copy.put(route.getTenantId(), route);
+    return new TenantRoutingTable(copy);
+  }
+  
+  public TenantRoutingTable withoutRoute(Object tenantId) {
+    if (!routes.containsKey(tenantId)) {
+      return this;
+    }
+    Map<Object, TenantDataSourceRoute> copy = new HashMap<Object, TenantDataSourceRoute>(routes);
+    copy.remove(tenantId);
+    return new TenantRoutingTable(copy);
+  }
+  
+  public static TenantRoutingTable fromDataSources(Map<Object, DataSource> dataSources) {
+    Map<Object, TenantDataSourceRoute> routes = new HashMap<Object, TenantDataSourceRoute>();
+    for (Object tenantId : dataSources.keySet()) {
+      routes.put(tenantId, new TenantDataSourceRoute(tenantId, dataSources.get(tenantId)));
+    }
+    return new TenantRoutingTable(routes);
+  }
+  
+  public Map<Object, DataSource> getDataSources() {
+    Map<Object, DataSource> dataSources = new HashMap<Object, DataSource>();
+    for (TenantDataSourceRoute route : routes.values()) {
+      dataSources.put(route.getTenantId(), route.getDataSource());
+    }
+    return Collections.unmodifiableMap(dataSources);
+  }
+  
+  public Map<Object, TenantDataSourceRoute> getRoutes() {
+    return Collections.unmodifiableMap(routes);
+  }
+  
+  public int size() {
+    return routes.size();
+  }
+
+}
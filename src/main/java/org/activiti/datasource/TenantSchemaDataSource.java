@@ -0,0 +1,89 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * The {@link DataSource} of one tenant on a {@link SharedSchemaDataSource}: 
+ * hands out connections of the shared pool, switched to the schema of the tenant.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantSchemaDataSource implements DataSource {
+  
+  protected SharedSchemaDataSource sharedSchemaDataSource;
+  protected String schema;
+  
+  public TenantSchemaDataSource(SharedSchemaDataSource sharedSchemaDataSource, String schema) {
+    this.sharedSchemaDataSource = sharedSchemaDataSource;
+    this.schema = schema;
+  }
+
+  public Connection getConnection() throws SQLException {
+    return sharedSchemaDataSource.getConnection(schema);
+  }
+
+  public Connection getConnection(String username, String password) throws SQLException {
+    throw new SQLFeatureNotSupportedException("Connections of a shared schema pool are always fetched with the pool credentials");
+  }
+  
+  public String getSchema() {
+    return schema;
+  }
+  
+  public SharedSchemaDataSource getSharedSchemaDataSource() {
+    return sharedSchemaDataSource;
+  }
+
+  public int getLoginTimeout() throws SQLException {
+    return 0; // Default
+  }
+  
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return (T) this;
+    }
+    throw new SQLException("Cannot unwrap " + getClass().getName() + " as an instance of " + iface.getName()); 
+  }
+
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this);
+  }
+  
+  // Unsupported //////////////////////////////////////////////////////////
+  
+  public PrintWriter getLogWriter() throws SQLException {
+    throw new UnsupportedOperationException();
+  }
+
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    throw new UnsupportedOperationException();
+  }
+  
+  public void setLoginTimeout(int seconds) throws SQLException {
+    throw new UnsupportedOperationException();
+  }
+
+}
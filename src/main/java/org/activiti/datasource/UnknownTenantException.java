@@ -0,0 +1,50 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import org.activiti.engine.ActivitiException;
+
+/**
+ * Thrown when no {@link javax.sql.DataSource} is registered for the current tenant.
+ * 
+ * A misrouted request should be cheap: the message is only built when asked for
+ * and no stacktrace is filled in (the caller stacktrace of a routing miss is not interesting anyway).
+ * 
+ * @author Joram Barrez
+ */
+public class UnknownTenantException extends ActivitiException {
+
+  private static final long serialVersionUID = 1L;
+  
+  protected Object tenantId;
+  
+  public UnknownTenantException(Object tenantId) {
+    super((String) null);
+    this.tenantId = tenantId;
+  }
+  
+  @Override
+  public String getMessage() {
+    return "Could not find a dataSource for tenant " + tenantId;
+  }
+  
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+  
+  public Object getTenantId() {
+    return tenantId;
+  }
+
+}
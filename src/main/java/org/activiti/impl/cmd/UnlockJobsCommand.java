@@ -0,0 +1,51 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.cmd;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+
+/**
+ * Removes the lock of jobs that were acquired but won't be executed by this node,
+ * so they can be acquired again without waiting for the lock to expire.
+ * 
+ * @author Joram Barrez
+ */
+public class UnlockJobsCommand implements Command<Void> {
+  
+  protected Collection<String> jobIds;
+  
+  public UnlockJobsCommand(String jobId) {
+    this(Collections.singletonList(jobId));
+  }
+  
+  public UnlockJobsCommand(Collection<String> jobIds) {
+    this.jobIds = jobIds;
+  }
+  
+  public Void execute(CommandContext commandContext) {
+    for (String jobId : jobIds) {
+      JobEntity job = commandContext.getJobEntityManager().findJobById(jobId);
+      if (job != null) {
+        job.setLockOwner(null);
+        job.setLockExpirationTime(null);
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,118 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.activiti.engine.ActivitiException;
+
+/**
+ * {@link TenantSchemaCloner} for H2: the template is exported with SCRIPT and imported with RUNSCRIPT.
+ * 
+ * @author Joram Barrez
+ */
+public class H2ScriptTenantSchemaCloner implements TenantSchemaCloner {
+  
+  protected static final String ENGINE_PROPERTY_TABLE = "ACT_GE_PROPERTY";
+  
+  protected File scriptFile;
+  
+  public void exportTemplate(DataSource templateDataSource) {
+    try {
+      if (scriptFile == null) {
+        scriptFile = File.createTempFile("activiti-tenant-template", ".sql");
+        scriptFile.deleteOnExit();
+      }
+      execute(templateDataSource, "SCRIPT TO '" + getScriptPath() + "'");
+    } catch (IOException e) {
+      throw new ActivitiException("Could not create template script file", e);
+    }
+  }
+
+  public void cloneInto(DataSource tenantDataSource) {
+    if (scriptFile == null) {
+      throw new ActivitiException("No template was exported yet");
+    }
+    execute(tenantDataSource, "RUNSCRIPT FROM '" + getScriptPath() + "'");
+  }
+  
+  public boolean isEngineSchemaPresent(DataSource tenantDataSource) {
+    Connection connection = null;
+    try {
+      connection = tenantDataSource.getConnection();
+      ResultSet resultSet = connection.getMetaData().getTables(null, null, ENGINE_PROPERTY_TABLE, null);
+      try {
+        return resultSet.next();
+      } finally {
+        resultSet.close();
+      }
+    } catch (SQLException e) {
+      throw new ActivitiException("Could not check for engine tables", e);
+    } finally {
+      close(connection);
+    }
+  }
+  
+  protected void execute(DataSource dataSource, String sql) {
+    Connection connection = null;
+    try {
+      connection = dataSource.getConnection();
+      Statement statement = connection.createStatement();
+      try {
+        statement.execute(sql);
+      } finally {
+        statement.close();
+      }
+      if (!connection.getAutoCommit()) {
+        connection.commit();
+      }
+    } catch (SQLException e) {
+      throw new ActivitiException("Error while executing " + sql, e);
+    } finally {
+      close(connection);
+    }
+  }
+  
+  protected String getScriptPath() {
+    return scriptFile.getAbsolutePath().replace("\\", "/").replace("'", "''");
+  }
+  
+  protected void close(Connection connection) {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // ignore
+      }
+    }
+  }
+
+  public File getScriptFile() {
+    return scriptFile;
+  }
+
+  /**
+   * Location of the exported template. By default a temporary file is used.
+   */
+  public void setScriptFile(File scriptFile) {
+    this.scriptFile = scriptFile;
+  }
+
+}
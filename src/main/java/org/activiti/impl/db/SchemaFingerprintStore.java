@@ -0,0 +1,219 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sql.DataSource;
+
+import org.activiti.datasource.TenantSchemaDataSource;
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.activiti.engine.impl.util.IoUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local file that remembers, for each tenant, which engine schema version was last validated, on which database and when.
+ * The database is identified by the url, user, catalog and schema of a connection (see {@link #getDatabaseIdentity(DataSource)}), 
+ * so pointing a tenant to another database triggers a new validation.
+ * 
+ * When the schema of a tenant was validated (or updated) recently for the current engine version,
+ * there's no need to check it again at boot. Schema creation (create, drop-create, create-drop) is never skipped.
+ * 
+ * @author Joram Barrez
+ */
+public class SchemaFingerprintStore {
+  
+  private static final Logger logger = LoggerFactory.getLogger(SchemaFingerprintStore.class);
+  
+  protected static final String SEPARATOR = "|";
+  
+  protected File file;
+  protected long maxAgeInMillis = 24 * 60 * 60 * 1000L;
+  
+  protected Map<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+  protected volatile boolean dirty;
+  
+  public SchemaFingerprintStore(File file) {
+    this.file = file;
+    load();
+  }
+  
+  /**
+   * @param databaseIdentity See {@link #getDatabaseIdentity(DataSource)}. Never skipped when null.
+   * @return true if the schema operation for the tenant can be skipped.
+   */
+  public boolean canSkip(String tenantId, String databaseIdentity, String schemaOperation) {
+    if (!ProcessEngineConfiguration.DB_SCHEMA_UPDATE_FALSE.equals(schemaOperation)
+        && !ProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE.equals(schemaOperation)) {
+      return false;
+    }
+    
+    String fingerprint = fingerprints.get(tenantId);
+    if (fingerprint == null || databaseIdentity == null) {
+      return false;
+    }
+    
+    // Version and timestamp never contain the separator, the identity (eg. an url) might
+    int versionEndIndex = fingerprint.indexOf(SEPARATOR);
+    int timestampStartIndex = fingerprint.lastIndexOf(SEPARATOR);
+    if (versionEndIndex < 0 || versionEndIndex == timestampStartIndex) {
+      return false;
+    }
+    
+    String version = fingerprint.substring(0, versionEndIndex);
+    String identity = fingerprint.substring(versionEndIndex + 1, timestampStartIndex);
+    long validatedAt;
+    try {
+      validatedAt = Long.parseLong(fingerprint.substring(timestampStartIndex + 1));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    return ProcessEngine.VERSION.equals(version) && databaseIdentity.equals(identity)
+        && System.currentTimeMillis() - validatedAt < maxAgeInMillis;
+  }
+  
+  /**
+   * Remembers that the schema of the tenant on the given database matches the current engine version. Call {@link #flush()} to persist.
+   */
+  public void recordValidated(String tenantId, String databaseIdentity) {
+    if (databaseIdentity == null) {
+      remove(tenantId);
+      return;
+    }
+    fingerprints.put(tenantId, ProcessEngine.VERSION + SEPARATOR + databaseIdentity + SEPARATOR + System.currentTimeMillis());
+    dirty = true;
+  }
+  
+  /**
+   * Identifies the database a datasource points to: url, user, catalog and schema of one of its connections.
+   * 
+   * @return null when no connection could be fetched.
+   */
+  public static String getDatabaseIdentity(DataSource dataSource) {
+    try {
+      Connection connection = dataSource.getConnection();
+      try {
+        DatabaseMetaData metaData = connection.getMetaData();
+        String schema = dataSource instanceof TenantSchemaDataSource 
+            ? ((TenantSchemaDataSource) dataSource).getSchema() : getSchema(connection); // Not all drivers support getSchema()
+        return metaData.getURL() + ";user=" + metaData.getUserName() + ";catalog=" + connection.getCatalog() + ";schema=" + schema;
+      } finally {
+        connection.close();
+      }
+    } catch (SQLException e) {
+      logger.warn("Could not determine the database of " + dataSource + ", its schema will be validated", e);
+      return null;
+    }
+  }
+  
+  protected static String getSchema(Connection connection) {
+    try {
+      return connection.getSchema();
+    } catch (SQLException e) {
+      return null;
+    } catch (AbstractMethodError e) {
+      return null; // Pre JDBC 4.1 driver
+    }
+  }
+  
+  public void remove(String tenantId) {
+    if (fingerprints.remove(tenantId) != null) {
+      dirty = true;
+    }
+  }
+  
+  protected synchronized void load() {
+    if (!file.exists()) {
+      return;
+    }
+    InputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(file);
+      Properties properties = new Properties();
+      properties.load(inputStream);
+      for (String tenantId : properties.stringPropertyNames()) {
+        fingerprints.put(tenantId, properties.getProperty(tenantId));
+      }
+    } catch (Exception e) {
+      // Not fatal: all tenants will simply be validated again
+      logger.warn("Could not read schema fingerprints from " + file + ", all tenant schemas will be validated", e);
+      fingerprints.clear();
+    } finally {
+      IoUtil.closeSilently(inputStream);
+    }
+  }
+  
+  /**
+   * Writes the fingerprints to the file, if anything changed. 
+   * A temporary file is written first, so a crash never leaves a half written store behind.
+   */
+  public synchronized void flush() {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+    
+    Properties properties = new Properties();
+    properties.putAll(fingerprints);
+    
+    File tempFile = new File(file.getPath() + ".tmp");
+    OutputStream outputStream = null;
+    try {
+      if (file.getAbsoluteFile().getParentFile() != null) {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+      }
+      outputStream = new FileOutputStream(tempFile);
+      properties.store(outputStream, "Activiti tenant schema fingerprints");
+      outputStream.close();
+      outputStream = null;
+      
+      if (!tempFile.renameTo(file)) {
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+          throw new ActivitiException("Could not rename " + tempFile + " to " + file);
+        }
+      }
+    } catch (Exception e) {
+      dirty = true;
+      logger.warn("Could not write schema fingerprints to " + file, e);
+    } finally {
+      IoUtil.closeSilently(outputStream);
+    }
+  }
+  
+  public File getFile() {
+    return file;
+  }
+
+  public long getMaxAgeInMillis() {
+    return maxAgeInMillis;
+  }
+
+  public void setMaxAgeInMillis(long maxAgeInMillis) {
+    this.maxAgeInMillis = maxAgeInMillis;
+  }
+  
+}
@@ -0,0 +1,40 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.db;
+
+import javax.sql.DataSource;
+
+/**
+ * Creates the engine schema of a new tenant by copying the schema of a template tenant,
+ * using a database-native export/import, instead of executing all the engine DDL again.
+ * 
+ * @author Joram Barrez
+ */
+public interface TenantSchemaCloner {
+  
+  /**
+   * Exports the (freshly created) schema of the template tenant. Called once, before any clone.
+   */
+  void exportTemplate(DataSource templateDataSource);
+  
+  /**
+   * Imports the exported template schema in the database of a new tenant.
+   */
+  void cloneInto(DataSource tenantDataSource);
+  
+  /**
+   * Cloning is only possible into a database that doesn't have the engine tables yet.
+   */
+  boolean isEngineSchemaPresent(DataSource tenantDataSource);
+
+}
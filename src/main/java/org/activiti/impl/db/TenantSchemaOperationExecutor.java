@@ -0,0 +1,107 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.engine.ActivitiException;
+
+/**
+ * Executes a {@link TenantSchemaOperation} for a set of tenants, using a number of threads (the parallelism).
+ * With a parallelism of 1, all tenants are handled one after another on the calling thread.
+ * 
+ * Failures don't stop the other tenants: they are collected in the {@link TenantSchemaOperationReport}.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantSchemaOperationExecutor {
+  
+  protected int parallelism;
+  
+  public TenantSchemaOperationExecutor(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+  }
+  
+  public TenantSchemaOperationReport execute(Collection<String> tenantIds, final TenantSchemaOperation operation) {
+    final TenantSchemaOperationReport report = new TenantSchemaOperationReport();
+    long start = System.currentTimeMillis();
+    
+    if (parallelism == 1 || tenantIds.size() <= 1) {
+      for (String tenantId : tenantIds) {
+        executeForTenant(tenantId, operation, report);
+      }
+      
+    } else {
+      ExecutorService executorService = Executors.newFixedThreadPool(Math.min(parallelism, tenantIds.size()), createThreadFactory());
+      try {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final String tenantId : tenantIds) {
+          futures.add(executorService.submit(new Runnable() {
+            public void run() {
+              executeForTenant(tenantId, operation, report);
+            }
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ActivitiException("Interrupted while executing tenant schema operations", e);
+      } catch (Exception e) {
+        throw new ActivitiException("Error while executing tenant schema operations", e);
+      } finally {
+        executorService.shutdownNow();
+      }
+    }
+    
+    report.setTotalDuration(System.currentTimeMillis() - start);
+    return report;
+  }
+  
+  protected void executeForTenant(String tenantId, TenantSchemaOperation operation, TenantSchemaOperationReport report) {
+    long start = System.currentTimeMillis();
+    Throwable failure = null;
+    try {
+      operation.execute(tenantId);
+    } catch (Throwable t) {
+      failure = t;
+    }
+    report.addResult(tenantId, System.currentTimeMillis() - start, failure);
+  }
+  
+  protected ThreadFactory createThreadFactory() {
+    return new ThreadFactory() {
+      
+      protected final AtomicInteger counter = new AtomicInteger();
+      
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "activiti-tenant-schema-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+  
+  public int getParallelism() {
+    return parallelism;
+  }
+
+}
@@ -0,0 +1,94 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.ActivitiException;
+import org.slf4j.Logger;
+
+/**
+ * Timings and failures of a schema operation executed for a set of tenants.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantSchemaOperationReport {
+  
+  protected static final int SLOWEST_TENANTS_TO_LOG = 10;
+  
+  protected Map<String, Long> durations = new LinkedHashMap<String, Long>();
+  protected Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+  protected long totalDuration;
+  
+  public synchronized void addResult(String tenantId, long duration, Throwable failure) {
+    durations.put(tenantId, duration);
+    if (failure != null) {
+      failures.put(tenantId, failure);
+    }
+  }
+  
+  public synchronized void log(Logger logger) {
+    logger.info("Schema operation executed for " + durations.size() + " tenants in " + totalDuration + " ms (" + failures.size() + " failed)");
+    
+    List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(durations.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+        return e2.getValue().compareTo(e1.getValue());
+      }
+    });
+    
+    for (int i = 0; i < entries.size(); i++) {
+      Map.Entry<String, Long> entry = entries.get(i);
+      String message = "Schema operation for tenant " + entry.getKey() + " took " + entry.getValue() + " ms" 
+          + (failures.containsKey(entry.getKey()) ? " (failed)" : "");
+      if (i < SLOWEST_TENANTS_TO_LOG) {
+        logger.info(message);
+      } else {
+        logger.debug(message);
+      }
+    }
+  }
+  
+  /**
+   * Throws an exception listing all failed tenants (with the first failure as cause), if any.
+   */
+  public synchronized void throwIfFailed() {
+    if (!failures.isEmpty()) {
+      Map.Entry<String, Throwable> firstFailure = failures.entrySet().iterator().next();
+      throw new ActivitiException("Schema operation failed for tenants " + failures.keySet() 
+          + ". First failure (tenant " + firstFailure.getKey() + "): " + firstFailure.getValue().getMessage(), firstFailure.getValue());
+    }
+  }
+  
+  public synchronized Map<String, Long> getDurations() {
+    return new LinkedHashMap<String, Long>(durations);
+  }
+  
+  public synchronized Map<String, Throwable> getFailures() {
+    return new LinkedHashMap<String, Throwable>(failures);
+  }
+
+  public synchronized long getTotalDuration() {
+    return totalDuration;
+  }
+
+  public synchronized void setTotalDuration(long totalDuration) {
+    this.totalDuration = totalDuration;
+  }
+  
+}
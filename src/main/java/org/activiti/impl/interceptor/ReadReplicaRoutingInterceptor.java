@@ -0,0 +1,94 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.interceptor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.activiti.datasource.TenantAwareDataSource;
+import org.activiti.engine.impl.AbstractQuery;
+import org.activiti.engine.impl.JobQueryImpl;
+import org.activiti.engine.impl.interceptor.AbstractCommandInterceptor;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandConfig;
+
+/**
+ * Routes read-only commands (all engine queries, and any command class added to readOnlyCommandClasses)
+ * to the read replica of the current tenant, see {@link TenantAwareDataSource}.
+ * 
+ * Queries of the classes in primaryQueryClasses always stay on the primary. By default these are the job queries: 
+ * the async executor uses them to decide what to acquire and when, which must not be based on lagging data.
+ * 
+ * Only the outermost command decides: nested commands reuse the connection of the outer command, 
+ * so anything executed from within a command that writes stays on the primary.
+ * 
+ * Note that replicas typically lag a bit behind: a query right after a write might not see that write yet.
+ * 
+ * @author Joram Barrez
+ */
+public class ReadReplicaRoutingInterceptor extends AbstractCommandInterceptor {
+  
+  protected TenantAwareDataSource tenantAwareDataSource;
+  protected Set<Class<?>> readOnlyCommandClasses = new HashSet<Class<?>>();
+  protected Set<Class<?>> primaryQueryClasses = new HashSet<Class<?>>();
+  
+  public ReadReplicaRoutingInterceptor(TenantAwareDataSource tenantAwareDataSource) {
+    this.tenantAwareDataSource = tenantAwareDataSource;
+    this.primaryQueryClasses.add(JobQueryImpl.class);
+  }
+
+  public <T> T execute(CommandConfig config, Command<T> command) {
+    if (tenantAwareDataSource.getCurrentReadOnly() != null) {
+      return next.execute(config, command); // Nested command: the outermost one has decided already
+    }
+    
+    tenantAwareDataSource.setCurrentReadOnly(isReadOnly(command));
+    try {
+      return next.execute(config, command);
+    } finally {
+      tenantAwareDataSource.clearCurrentReadOnly();
+    }
+  }
+  
+  protected boolean isReadOnly(Command<?> command) {
+    if (readOnlyCommandClasses.contains(command.getClass())) {
+      return true;
+    }
+    if (!(command instanceof AbstractQuery)) {
+      return false;
+    }
+    for (Class<?> primaryQueryClass : primaryQueryClasses) {
+      if (primaryQueryClass.isInstance(command)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public Set<Class<?>> getReadOnlyCommandClasses() {
+    return readOnlyCommandClasses;
+  }
+
+  public void setReadOnlyCommandClasses(Set<Class<?>> readOnlyCommandClasses) {
+    this.readOnlyCommandClasses = readOnlyCommandClasses;
+  }
+  
+  public Set<Class<?>> getPrimaryQueryClasses() {
+    return primaryQueryClasses;
+  }
+
+  public void setPrimaryQueryClasses(Set<Class<?>> primaryQueryClasses) {
+    this.primaryQueryClasses = primaryQueryClasses;
+  }
+  
+}
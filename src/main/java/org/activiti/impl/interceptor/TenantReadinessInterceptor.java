@@ -0,0 +1,50 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.interceptor;
+
+import org.activiti.engine.impl.interceptor.AbstractCommandInterceptor;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandConfig;
+import org.activiti.impl.cmd.UnlockJobsCommand;
+import org.activiti.impl.db.ExecuteSchemaOperationCommand;
+import org.activiti.tenant.TenantInfoHolder;
+import org.activiti.tenant.TenantReadinessRegistry;
+
+/**
+ * Makes sure no commands are executed for a tenant of which the database schema is still being initialized:
+ * either waits for the tenant to become ready (up to waitTimeInMillis) or fails immediately (wait time of 0).
+ * 
+ * The schema operation itself is let through, as is unlocking the jobs of a tenant that is being unregistered.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantReadinessInterceptor extends AbstractCommandInterceptor {
+  
+  protected TenantInfoHolder tenantInfoHolder;
+  protected TenantReadinessRegistry tenantReadinessRegistry;
+  protected long waitTimeInMillis;
+  
+  public TenantReadinessInterceptor(TenantInfoHolder tenantInfoHolder, TenantReadinessRegistry tenantReadinessRegistry, long waitTimeInMillis) {
+    this.tenantInfoHolder = tenantInfoHolder;
+    this.tenantReadinessRegistry = tenantReadinessRegistry;
+    this.waitTimeInMillis = waitTimeInMillis;
+  }
+
+  public <T> T execute(CommandConfig config, Command<T> command) {
+    if (!(command instanceof ExecuteSchemaOperationCommand) && !(command instanceof UnlockJobsCommand)) {
+      tenantReadinessRegistry.awaitReady(tenantInfoHolder.getCurrentTenantId(), waitTimeInMillis);
+    }
+    return next.execute(config, command);
+  }
+
+}
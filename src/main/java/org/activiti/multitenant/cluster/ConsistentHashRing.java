@@ -0,0 +1,77 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.cluster;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.activiti.engine.ActivitiException;
+
+/**
+ * Immutable consistent hash ring of engine nodes. Every node is placed on the ring a number of times (the virtual nodes),
+ * so the keys are spread evenly and only the keys of a node that joins or leaves move to another node.
+ * 
+ * @author Joram Barrez
+ */
+public class ConsistentHashRing {
+
+  protected final Set<String> nodeIds;
+  protected final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+  public ConsistentHashRing(Collection<String> nodeIds, int virtualNodeCount) {
+    this.nodeIds = Collections.unmodifiableSet(new TreeSet<String>(nodeIds));
+    for (String nodeId : this.nodeIds) {
+      for (int i = 0; i < virtualNodeCount; i++) {
+        ring.put(hash(nodeId + "#" + i), nodeId);
+      }
+    }
+  }
+
+  /**
+   * @return The node owning the key, or null if the ring has no nodes.
+   */
+  public String getNode(String key) {
+    if (ring.isEmpty()) {
+      return null;
+    }
+    Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  public Set<String> getNodeIds() {
+    return nodeIds;
+  }
+
+  protected static long hash(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = (hash << 8) | (digest[i] & 0xFF);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new ActivitiException("MD5 not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new ActivitiException("UTF-8 not available", e);
+    }
+  }
+
+}
@@ -0,0 +1,261 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.activiti.multitenant.job.TenantAwareAsyncExecutor;
+import org.activiti.tenant.TenantInfoHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Assigns every tenant to one engine node of the cluster, so only that node acquires the jobs of the tenant.
+ * Without it, every node polls the database of every tenant and the nodes collide on the same jobs.
+ * 
+ * The tenants are spread over the live nodes of the {@link TenantNodeMembership} with a {@link ConsistentHashRing}.
+ * A background thread writes the heartbeat of this node and rebuilds the ring when a node joined or left.
+ * Tenants that this node gains are acquired right away; tenants it loses are skipped from the next acquisition on.
+ * Jobs already locked by a node stay with that node, so a rebalance never makes two nodes execute the same job.
+ * 
+ * When this node can't write its heartbeat for longer than the node expiry, the other nodes consider it gone and take
+ * over its tenants. From then on, this node doesn't treat any tenant as assigned until its heartbeat is written again.
+ * 
+ * The node id must be unique in the cluster: several engines in one JVM each need their own node id.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantNodeAssignment implements Runnable {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantNodeAssignment.class);
+
+  protected String nodeId;
+  protected TenantNodeMembership membership;
+  protected TenantInfoHolder tenantInfoHolder;
+  protected TenantAwareAsyncExecutor asyncExecutor;
+
+  protected long heartbeatIntervalInMillis = 10000L;
+  
+  /** A node without a heartbeat for this long is considered gone and its tenants are rebalanced. */
+  protected long nodeExpiryInMillis = 30000L;
+  protected int virtualNodeCount = 100;
+
+  protected volatile ConsistentHashRing ring;
+  protected volatile long lastHeartbeatTime;
+  protected Thread heartbeatThread;
+  protected final Object monitor = new Object();
+  protected volatile boolean isStopped = true;
+
+  public TenantNodeAssignment(String nodeId, DataSource membershipDataSource, TenantInfoHolder tenantInfoHolder) {
+    this(nodeId, new TenantNodeMembership(membershipDataSource), tenantInfoHolder);
+  }
+
+  public TenantNodeAssignment(String nodeId, TenantNodeMembership membership, TenantInfoHolder tenantInfoHolder) {
+    this.nodeId = nodeId;
+    this.membership = membership;
+    this.tenantInfoHolder = tenantInfoHolder;
+    this.ring = new ConsistentHashRing(Collections.singleton(nodeId), virtualNodeCount); // Until the other nodes are known
+  }
+
+  /**
+   * Joins the cluster: the first heartbeat and rebalance happen before this method returns.
+   */
+  public synchronized void start() {
+    if (!isStopped) {
+      return;
+    }
+    
+    membership.createTableIfMissing();
+    isStopped = false;
+    refresh();
+    
+    heartbeatThread = new Thread(this, "activiti-node-assignment-" + nodeId);
+    heartbeatThread.setDaemon(true);
+    heartbeatThread.start();
+  }
+
+  /**
+   * Leaves the cluster, so the other nodes take over the tenants of this node at their next heartbeat.
+   */
+  public synchronized void stop() {
+    if (isStopped) {
+      return;
+    }
+    
+    synchronized (monitor) {
+      isStopped = true;
+      monitor.notifyAll();
+    }
+    try {
+      heartbeatThread.join(heartbeatIntervalInMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    heartbeatThread = null;
+    
+    try {
+      membership.leave(nodeId);
+    } catch (Exception e) {
+      logger.warn("Could not remove node " + nodeId + " from the cluster, its tenants are taken over once its heartbeat expires", e);
+    }
+  }
+
+  public void run() {
+    while (!isStopped) {
+      synchronized (monitor) {
+        try {
+          if (!isStopped) {
+            monitor.wait(heartbeatIntervalInMillis);
+          }
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      if (!isStopped) {
+        refresh();
+      }
+    }
+  }
+
+  /**
+   * Writes the heartbeat of this node and rebalances the tenants when the live nodes changed.
+   * When the membership table can't be reached, the current assignment is kept until the heartbeat of this node expires.
+   */
+  public synchronized void refresh() {
+    long now = System.currentTimeMillis();
+    boolean wasExpired = isHeartbeatExpired(now);
+    Set<String> liveNodeIds;
+    try {
+      membership.heartbeat(nodeId, now);
+      liveNodeIds = new HashSet<String>(membership.getLiveNodeIds(now - nodeExpiryInMillis));
+    } catch (Exception e) {
+      if (wasExpired) {
+        logger.warn("Could not refresh the cluster membership of node " + nodeId + ", its heartbeat expired: no tenants are assigned to it", e);
+      } else {
+        logger.warn("Could not refresh the cluster membership of node " + nodeId + ", keeping the current tenant assignment until its heartbeat expires", e);
+      }
+      return;
+    }
+    lastHeartbeatTime = now;
+    liveNodeIds.add(nodeId);
+    
+    ConsistentHashRing previousRing = ring;
+    if (liveNodeIds.equals(previousRing.getNodeIds()) && !wasExpired) {
+      return;
+    }
+    
+    // After an expired heartbeat, all tenants of this node count as gained: their jobs weren't acquired in the meantime
+    ring = new ConsistentHashRing(liveNodeIds, virtualNodeCount);
+    List<String> gainedTenantIds = new ArrayList<String>();
+    for (String tenantId : tenantInfoHolder.getAllTenants()) {
+      if (nodeId.equals(ring.getNode(tenantId)) && (wasExpired || !nodeId.equals(previousRing.getNode(tenantId)))) {
+        gainedTenantIds.add(tenantId);
+      }
+    }
+    logger.info("Nodes in the cluster changed to {}, node {} took over tenants {}", ring.getNodeIds(), nodeId, gainedTenantIds);
+    
+    if (asyncExecutor != null) {
+      for (String tenantId : gainedTenantIds) {
+        asyncExecutor.scheduleAsyncJobAcquisition(tenantId, now);
+        asyncExecutor.scheduleTimerJobAcquisition(tenantId, now);
+      }
+    }
+  }
+
+  /**
+   * @return True when the last heartbeat written by this node is older than the node expiry, or no heartbeat was written yet.
+   */
+  public boolean isHeartbeatExpired(long now) {
+    return now - lastHeartbeatTime > nodeExpiryInMillis;
+  }
+
+  /**
+   * @return True when the jobs of the tenant are acquired by this node.
+   *         Always false while the heartbeat of this node is expired, as the other nodes took over its tenants.
+   */
+  public boolean isAssigned(String tenantId) {
+    return !isHeartbeatExpired(System.currentTimeMillis()) && nodeId.equals(ring.getNode(tenantId));
+  }
+
+  public List<String> getAssignedTenantIds() {
+    List<String> tenantIds = new ArrayList<String>();
+    for (String tenantId : tenantInfoHolder.getAllTenants()) {
+      if (isAssigned(tenantId)) {
+        tenantIds.add(tenantId);
+      }
+    }
+    return tenantIds;
+  }
+
+  public Set<String> getNodeIds() {
+    return ring.getNodeIds();
+  }
+
+  public long getLastHeartbeatTime() {
+    return lastHeartbeatTime;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public TenantNodeMembership getMembership() {
+    return membership;
+  }
+
+  public TenantAwareAsyncExecutor getAsyncExecutor() {
+    return asyncExecutor;
+  }
+
+  /**
+   * The executor of which the job acquisition is woken up for the tenants this node takes over. Set by the executor itself.
+   */
+  public void setAsyncExecutor(TenantAwareAsyncExecutor asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+  }
+
+  public long getHeartbeatIntervalInMillis() {
+    return heartbeatIntervalInMillis;
+  }
+
+  public void setHeartbeatIntervalInMillis(long heartbeatIntervalInMillis) {
+    this.heartbeatIntervalInMillis = heartbeatIntervalInMillis;
+  }
+
+  public long getNodeExpiryInMillis() {
+    return nodeExpiryInMillis;
+  }
+
+  public void setNodeExpiryInMillis(long nodeExpiryInMillis) {
+    this.nodeExpiryInMillis = nodeExpiryInMillis;
+  }
+
+  public int getVirtualNodeCount() {
+    return virtualNodeCount;
+  }
+
+  /**
+   * Must be set before the assignment is started.
+   */
+  public void setVirtualNodeCount(int virtualNodeCount) {
+    this.virtualNodeCount = virtualNodeCount;
+    this.ring = new ConsistentHashRing(ring.getNodeIds(), virtualNodeCount);
+  }
+
+}
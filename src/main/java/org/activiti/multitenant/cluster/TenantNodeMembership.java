@@ -0,0 +1,191 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.cluster;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.activiti.engine.ActivitiException;
+
+/**
+ * The engine nodes of a cluster, kept in a table of a database shared by all nodes (not in a tenant database).
+ * Every node writes its heartbeat time in the table; a node is alive as long as its heartbeat is recent.
+ * 
+ * The heartbeat times are written and compared with the clock of the nodes, so the node clocks need to be roughly in sync.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantNodeMembership {
+
+  public static final String TABLE_NAME = "ACT_MT_NODE";
+
+  protected DataSource dataSource;
+
+  public TenantNodeMembership(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * Creates the membership table, unless it exists already. Nodes starting at the same time may both try to create it:
+   * the node that loses the race ignores the failure once it sees the table.
+   */
+  public void createTableIfMissing() {
+    Connection connection = null;
+    try {
+      connection = dataSource.getConnection();
+      if (!tableExists(connection)) {
+        Statement statement = connection.createStatement();
+        try {
+          statement.execute("create table " + TABLE_NAME + " (NODE_ID_ varchar(255) not null, HEARTBEAT_TIME_ bigint not null, primary key (NODE_ID_))");
+          commit(connection);
+        } catch (SQLException e) {
+          rollback(connection); // PostgreSQL refuses any statement in a failed transaction
+          if (!tableExists(connection)) {
+            throw e;
+          }
+        } finally {
+          statement.close();
+        }
+      }
+    } catch (SQLException e) {
+      throw new ActivitiException("Could not create table " + TABLE_NAME, e);
+    } finally {
+      close(connection);
+    }
+  }
+
+  public void heartbeat(String nodeId, long time) {
+    Connection connection = null;
+    try {
+      connection = dataSource.getConnection();
+      int updatedRows = executeUpdate(connection, "update " + TABLE_NAME + " set HEARTBEAT_TIME_ = ? where NODE_ID_ = ?", time, nodeId);
+      if (updatedRows == 0) {
+        executeUpdate(connection, "insert into " + TABLE_NAME + " (NODE_ID_, HEARTBEAT_TIME_) values (?, ?)", nodeId, time);
+      }
+      commit(connection);
+    } catch (SQLException e) {
+      throw new ActivitiException("Could not write the heartbeat of node " + nodeId, e);
+    } finally {
+      close(connection);
+    }
+  }
+
+  public void leave(String nodeId) {
+    Connection connection = null;
+    try {
+      connection = dataSource.getConnection();
+      executeUpdate(connection, "delete from " + TABLE_NAME + " where NODE_ID_ = ?", nodeId);
+      commit(connection);
+    } catch (SQLException e) {
+      throw new ActivitiException("Could not remove node " + nodeId, e);
+    } finally {
+      close(connection);
+    }
+  }
+
+  /**
+   * @return The nodes with a heartbeat at or after the given time.
+   */
+  public List<String> getLiveNodeIds(long heartbeatSince) {
+    Connection connection = null;
+    try {
+      connection = dataSource.getConnection();
+      PreparedStatement statement = connection.prepareStatement("select NODE_ID_ from " + TABLE_NAME + " where HEARTBEAT_TIME_ >= ?");
+      try {
+        statement.setLong(1, heartbeatSince);
+        ResultSet resultSet = statement.executeQuery();
+        List<String> nodeIds = new ArrayList<String>();
+        while (resultSet.next()) {
+          nodeIds.add(resultSet.getString(1));
+        }
+        resultSet.close();
+        return nodeIds;
+      } finally {
+        statement.close();
+      }
+    } catch (SQLException e) {
+      throw new ActivitiException("Could not read the live nodes", e);
+    } finally {
+      close(connection);
+    }
+  }
+
+  /**
+   * Databases store unquoted names in upper case (Oracle, H2), lower case (PostgreSQL) or as written (MySQL on Linux): all are checked.
+   */
+  protected boolean tableExists(Connection connection) throws SQLException {
+    DatabaseMetaData metaData = connection.getMetaData();
+    for (String tableName : new String[] { TABLE_NAME, TABLE_NAME.toLowerCase() }) {
+      ResultSet resultSet = metaData.getTables(null, null, tableName, null);
+      try {
+        if (resultSet.next()) {
+          return true;
+        }
+      } finally {
+        resultSet.close();
+      }
+    }
+    return false;
+  }
+
+  protected int executeUpdate(Connection connection, String sql, Object... parameters) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(sql);
+    try {
+      for (int i = 0; i < parameters.length; i++) {
+        statement.setObject(i + 1, parameters[i]);
+      }
+      return statement.executeUpdate();
+    } finally {
+      statement.close();
+    }
+  }
+
+  protected void commit(Connection connection) throws SQLException {
+    if (!connection.getAutoCommit()) {
+      connection.commit();
+    }
+  }
+
+  protected void rollback(Connection connection) {
+    try {
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+      }
+    } catch (SQLException e) {
+      // ignore
+    }
+  }
+
+  protected void close(Connection connection) {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // ignore
+      }
+    }
+  }
+
+  public DataSource getDataSource() {
+    return dataSource;
+  }
+
+}
@@ -13,13 +13,21 @@
 
 package org.activiti.multitenant.job;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import javax.sql.DataSource;
 
 import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
 import org.activiti.engine.impl.asyncexecutor.DefaultAsyncJobExecutor;
 import org.activiti.engine.impl.interceptor.CommandExecutor;
 import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.impl.persistence.entity.TimerEntity;
+import org.activiti.multitenant.cluster.TenantNodeAssignment;
 import org.activiti.tenant.TenantInfoHolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +36,9 @@ import org.slf4j.LoggerFactory;
  * An {@link AsyncExecutor} that has one {@link AsyncExecutor} per tenant.
  * So each tenant has its own acquiring threads and it's own threadpool for executing jobs.
  * 
+ * With a {@link TenantExecutorActivator}, the executor of a tenant is only created and started 
+ * when the tenant has jobs, and stopped again when the tenant is idle.
+ * 
  * @author Joram Barrez
  */
 public class ExecutorPerTenantAsyncExecutor implements TenantAwareAsyncExecutor {
@@ -37,7 +48,55 @@ public class ExecutorPerTenantAsyncExecutor implements TenantAwareAsyncExecutor
   protected TenantInfoHolder tenantInfoHolder;
   protected TenantAwareAsyncExecutorFactory tenantAwareAyncExecutorFactory;
   
-  protected Map<String, AsyncExecutor> tenantExecutors = new HashMap<String, AsyncExecutor>();
+  protected Set<String> registeredTenantIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  protected Map<String, AsyncExecutor> tenantExecutors = new ConcurrentHashMap<String, AsyncExecutor>();
+  
+  /** The acquisition runnables of the tenant executors, also of those created by a {@link TenantAwareAsyncExecutorFactory}. */
+  protected Map<String, TenantAwareAcquireAsyncJobsDueRunnable> asyncJobAcquisitionRunnables 
+    = new ConcurrentHashMap<String, TenantAwareAcquireAsyncJobsDueRunnable>();
+  protected Map<String, TenantAwareAcquireTimerJobsRunnable> timerJobAcquisitionRunnables 
+    = new ConcurrentHashMap<String, TenantAwareAcquireTimerJobsRunnable>();
+  
+  /** When set, tenant executors are only running while their tenant has jobs. */
+  protected TenantExecutorActivator executorActivator;
+  protected final Object activationLock = new Object();
+  
+  protected TenantJobExecutionMode jobExecutionMode = TenantJobExecutionMode.THREAD_POOL;
+  
+  /** In {@link TenantJobExecutionMode#THREAD_PER_JOB}: the concurrent jobs over all tenants and per tenant. */
+  protected int maxConcurrentJobs = 100;
+  protected int maxConcurrentJobsPerTenant = 10;
+  protected Semaphore globalJobPermits;
+  
+  /** In {@link TenantJobExecutionMode#WORK_STEALING}: the threads of every tenant that never execute jobs of other tenants. */
+  protected int reservedThreadsPerTenant = 1;
+  protected Map<String, Integer> tenantReservedThreads = new ConcurrentHashMap<String, Integer>();
+  protected TenantWorkStealingPool workStealingPool;
+  
+  /** When set, the thread pools of the tenants grow and shrink with their load. */
+  protected TenantThreadPoolAutoscaler threadPoolAutoscaler;
+  
+  /** When set, near-due timers of all tenants trigger the timer acquisition of their tenant at their due time. */
+  protected TenantTimerWheel timerWheel;
+  
+  /** When set, the timer acquisition of every tenant sleeps until the next timer of the tenant is due. */
+  protected TenantTimerDueIndex timerDueIndex;
+  
+  /** Maximum wait time between acquisitions of a tenant whose acquisitions come back empty. 0 means no back-off. */
+  protected long maxAcquisitionBackoffInMillis;
+  
+  /** When set, the job metrics of every tenant are kept and exposed as MBean. */
+  protected TenantJobMetricsRegistry metricsRegistry;
+  
+  /** When larger than 0, every tenant executor gets an overflow buffer of this size for rejected jobs. */
+  protected int overflowBufferSizePerTenant;
+  
+  /** When set, the tenants are spread over the nodes of the cluster and only the tenants of this node are acquired. */
+  protected TenantNodeAssignment nodeAssignment;
+  
+  /** Time all tenant executors get together to finish their jobs on shutdown. */
+  protected long shutdownTimeoutInMillis = 60000L;
+  protected TenantShutdownReport lastShutdownReport;
   
   protected CommandExecutor commandExecutor;
   protected boolean active;
@@ -53,19 +112,47 @@ public class ExecutorPerTenantAsyncExecutor implements TenantAwareAsyncExecutor
   }
 
   public void addTenantAsyncExecutor(String tenantId, boolean startExecutor) {
+    registeredTenantIds.add(tenantId);
+    if (executorActivator == null) {
+      createTenantExecutor(tenantId, startExecutor);
+    }
+  }
+  
+  protected AsyncExecutor createTenantExecutor(String tenantId, boolean startExecutor) {
     AsyncExecutor tenantExecutor = null;
     
     if (tenantAwareAyncExecutorFactory == null) {
-      tenantExecutor = new DefaultAsyncJobExecutor();
+      tenantExecutor = createTenantAwareDefaultAsyncJobExecutor();
+      if (jobExecutionMode == TenantJobExecutionMode.WORK_STEALING) {
+        Integer reservedThreads = tenantReservedThreads.get(tenantId);
+        ((TenantAwareDefaultAsyncJobExecutor) tenantExecutor).joinWorkStealingPool(getWorkStealingPool(), tenantId, 
+            reservedThreads != null ? reservedThreads : reservedThreadsPerTenant);
+      }
     } else {
       tenantExecutor = tenantAwareAyncExecutorFactory.createAsyncExecutor(tenantId);
     }
     
     if (tenantExecutor instanceof DefaultAsyncJobExecutor) {
       DefaultAsyncJobExecutor defaultAsyncJobExecutor = (DefaultAsyncJobExecutor) tenantExecutor;
-      defaultAsyncJobExecutor.setAsyncJobsDueRunnable(new TenantAwareAcquireAsyncJobsDueRunnable(defaultAsyncJobExecutor, tenantInfoHolder, tenantId));
-      defaultAsyncJobExecutor.setTimerJobRunnable(new TenantAwareAcquireTimerJobsRunnable(defaultAsyncJobExecutor, tenantInfoHolder, tenantId));
-      defaultAsyncJobExecutor.setExecuteAsyncRunnableFactory(new TenantAwareExecuteAsyncRunnableFactory(tenantInfoHolder, tenantId));
+      TenantJobMetrics metrics = metricsRegistry != null ? metricsRegistry.registerTenant(tenantId) : null;
+      
+      TenantAwareAcquireAsyncJobsDueRunnable asyncJobsRunnable = new TenantAwareAcquireAsyncJobsDueRunnable(defaultAsyncJobExecutor, tenantInfoHolder, tenantId);
+      asyncJobsRunnable.setMaxBackoffInMillis(maxAcquisitionBackoffInMillis);
+      asyncJobsRunnable.setMetrics(metrics);
+      asyncJobsRunnable.setNodeAssignment(nodeAssignment);
+      asyncJobAcquisitionRunnables.put(tenantId, asyncJobsRunnable);
+      defaultAsyncJobExecutor.setAsyncJobsDueRunnable(asyncJobsRunnable);
+      
+      TenantAwareAcquireTimerJobsRunnable timerRunnable = new TenantAwareAcquireTimerJobsRunnable(defaultAsyncJobExecutor, tenantInfoHolder, tenantId);
+      timerRunnable.setMaxBackoffInMillis(maxAcquisitionBackoffInMillis);
+      timerRunnable.setTimerWheel(timerWheel);
+      timerRunnable.setTimerDueIndex(timerDueIndex);
+      timerRunnable.setMetrics(metrics);
+      timerRunnable.setNodeAssignment(nodeAssignment);
+      timerJobAcquisitionRunnables.put(tenantId, timerRunnable);
+      defaultAsyncJobExecutor.setTimerJobRunnable(timerRunnable);
+      
+      defaultAsyncJobExecutor.setExecuteAsyncRunnableFactory(new TenantAwareExecuteAsyncRunnableFactory(tenantInfoHolder, tenantId, metrics));
     }
     
     tenantExecutor.setCommandExecutor(commandExecutor); // Needs to be done for job executors created after boot. Doesn't hurt on boot.
@@ -75,14 +162,228 @@ public class ExecutorPerTenantAsyncExecutor implements TenantAwareAsyncExecutor
     if (startExecutor) {
       tenantExecutor.start();
     }
+    return tenantExecutor;
+  }
+  
+  /**
+   * Creates and starts the executor of the tenant, if it's not running yet. Only needed with a {@link TenantExecutorActivator}:
+   * happens automatically when the tenant creates or executes a job in this engine.
+   * 
+   * @return The executor of the tenant, or null if the tenant isn't registered.
+   */
+  public AsyncExecutor activateTenant(String tenantId) {
+    if (executorActivator != null && registeredTenantIds.contains(tenantId)) {
+      executorActivator.activity(tenantId); // Before the lookup, see deactivateIdleTenant()
+    }
+    AsyncExecutor tenantExecutor = tenantExecutors.get(tenantId);
+    if (tenantExecutor == null && registeredTenantIds.contains(tenantId)) {
+      synchronized (activationLock) {
+        tenantExecutor = tenantExecutors.get(tenantId);
+        if (tenantExecutor == null && registeredTenantIds.contains(tenantId)) { // Could have been removed in the meantime
+          logger.info("Activating async executor of tenant {}", tenantId);
+          tenantExecutor = createTenantExecutor(tenantId, active);
+        }
+      }
+    }
+    return tenantExecutor;
+  }
+  
+  /**
+   * The registration is removed and the executor taken out under the activation lock: 
+   * an activation of the tenant at the same time either happened before, and its executor is stopped here,
+   * or sees the tenant is no longer registered.
+   */
+  public void removeTenantAsyncExecutor(String tenantId) {
+    AsyncExecutor tenantExecutor;
+    synchronized (activationLock) {
+      registeredTenantIds.remove(tenantId);
+      tenantExecutor = removeTenantExecutor(tenantId);
+    }
+    if (executorActivator != null) {
+      executorActivator.removeTenant(tenantId);
+    }
+    
+    stopTenantExecutor(tenantId, tenantExecutor);
+    if (metricsRegistry != null) {
+      metricsRegistry.unregisterTenant(tenantId);
+    }
+  }
+  
+  /**
+   * Stops the executor of the tenant and waits (bounded) for its acquired jobs to finish. The tenant stays registered:
+   * with a {@link TenantExecutorActivator}, its executor is started again when the tenant has jobs.
+   */
+  public void deactivateTenant(String tenantId) {
+    AsyncExecutor tenantExecutor;
+    synchronized (activationLock) {
+      tenantExecutor = removeTenantExecutor(tenantId);
+    }
+    stopTenantExecutor(tenantId, tenantExecutor);
+  }
+  
+  /**
+   * Must be called holding the activation lock. The executor is stopped afterwards, outside the lock.
+   */
+  protected AsyncExecutor removeTenantExecutor(String tenantId) {
+    asyncJobAcquisitionRunnables.remove(tenantId);
+    timerJobAcquisitionRunnables.remove(tenantId);
+    return tenantExecutors.remove(tenantId);
+  }
+  
+  /**
+   * Deactivates the tenant, unless the {@link TenantExecutorActivator} saw activity of the tenant at or after the given time.
+   * The activity is checked after the executor is taken out: a job created at the same time either got the executor before, 
+   * and then its activity is seen here, or finds no executor and activates a new one once this method released the lock.
+   * 
+   * @return True when the executor of the tenant was stopped.
+   */
+  public boolean deactivateIdleTenant(String tenantId, long idleSince) {
+    AsyncExecutor tenantExecutor;
+    synchronized (activationLock) {
+      tenantExecutor = tenantExecutors.remove(tenantId);
+      if (tenantExecutor == null) {
+        return false;
+      }
+      if (executorActivator != null && executorActivator.hasActivitySince(tenantId, idleSince)) {
+        tenantExecutors.put(tenantId, tenantExecutor); // A job was handed to it in the meantime
+        return false;
+      }
+      asyncJobAcquisitionRunnables.remove(tenantId);
+      timerJobAcquisitionRunnables.remove(tenantId);
+    }
+    stopTenantExecutor(tenantId, tenantExecutor);
+    return true;
+  }
+  
+  protected void stopTenantExecutor(String tenantId, AsyncExecutor tenantExecutor) {
+    if (tenantExecutor == null) {
+      return;
+    }
+    
+    if (tenantExecutor instanceof TenantAwareDefaultAsyncJobExecutor) {
+      TenantAwareDefaultAsyncJobExecutor defaultAsyncJobExecutor = (TenantAwareDefaultAsyncJobExecutor) tenantExecutor;
+      TenantShutdownReport report = new TenantShutdownReport(System.currentTimeMillis() + shutdownTimeoutInMillis);
+      defaultAsyncJobExecutor.beginShutdown(report);
+      if (!defaultAsyncJobExecutor.awaitShutdown()) {
+        report.timedOut(tenantId);
+      }
+      report.finished();
+      logger.info("Stopped async executor of tenant {}: {}", tenantId, report);
+    } else {
+      tenantExecutor.shutdown();
+    }
+    
+    if (timerWheel != null) {
+      timerWheel.removeTenant(tenantId);
+    }
+    if (timerDueIndex != null) {
+      timerDueIndex.removeTenant(tenantId);
+    }
+  }
+  
+  protected TenantAwareDefaultAsyncJobExecutor createTenantAwareDefaultAsyncJobExecutor() {
+    TenantAwareDefaultAsyncJobExecutor tenantExecutor = new TenantAwareDefaultAsyncJobExecutor(tenantInfoHolder);
+    tenantExecutor.setJobExecutionMode(jobExecutionMode);
+    tenantExecutor.setTimerWheel(timerWheel);
+    tenantExecutor.setTimerDueIndex(timerDueIndex);
+    if (overflowBufferSizePerTenant > 0) {
+      tenantExecutor.enableOverflowBuffer(overflowBufferSizePerTenant);
+    }
+    if (jobExecutionMode == TenantJobExecutionMode.THREAD_PER_JOB) {
+      synchronized (this) {
+        if (globalJobPermits == null) {
+          globalJobPermits = new Semaphore(maxConcurrentJobs);
+        }
+      }
+      tenantExecutor.setGlobalJobPermits(globalJobPermits);
+      tenantExecutor.setDefaultTenantMaxConcurrency(maxConcurrentJobsPerTenant);
+      tenantExecutor.setMaxPoolSize(maxConcurrentJobsPerTenant);
+    }
+    if (threadPoolAutoscaler != null) {
+      // Starts without threads, the autoscaler adds them when jobs are queued
+      tenantExecutor.setCorePoolSize(0);
+      tenantExecutor.setMaxPoolSize(1);
+    }
+    return tenantExecutor;
+  }
+  
+  public void jobCreated(String tenantId, JobEntity job) {
+    AsyncExecutor tenantExecutor = executorActivator != null ? activateTenant(tenantId) : tenantExecutors.get(tenantId);
+    if (tenantExecutor instanceof TenantAwareDefaultAsyncJobExecutor) {
+      ((TenantAwareDefaultAsyncJobExecutor) tenantExecutor).jobCreated(tenantId, job);
+      
+    } else {
+      // Executor of a factory: the tenant is no longer idle, its acquisitions back off from the start again
+      TenantAwareAcquireAsyncJobsDueRunnable asyncJobsRunnable = asyncJobAcquisitionRunnables.get(tenantId);
+      if (asyncJobsRunnable != null) {
+        asyncJobsRunnable.resetBackoff();
+      }
+      TenantAwareAcquireTimerJobsRunnable timerRunnable = timerJobAcquisitionRunnables.get(tenantId);
+      if (timerRunnable != null) {
+        timerRunnable.resetBackoff();
+      }
+    }
+  }
+  
+  public void jobCommitted(String tenantId, JobEntity job) {
+    AsyncExecutor tenantExecutor = executorActivator != null ? activateTenant(tenantId) : tenantExecutors.get(tenantId);
+    if (tenantExecutor instanceof TenantAwareDefaultAsyncJobExecutor) {
+      ((TenantAwareDefaultAsyncJobExecutor) tenantExecutor).jobCommitted(tenantId, job);
+      
+    } else {
+      // Executor of a factory: no in-memory hand-over, but due jobs still wake up the acquisition
+      long now = System.currentTimeMillis();
+      if (job instanceof TimerEntity) {
+        if (job.getDuedate() == null || job.getDuedate().getTime() <= now) {
+          scheduleTimerJobAcquisition(tenantId, now);
+        }
+      } else if (job.getLockOwner() == null) {
+        scheduleAsyncJobAcquisition(tenantId, now);
+      }
+    }
+  }
+  
+  public void scheduleAsyncJobAcquisition(String tenantId, long time) {
+    AsyncExecutor tenantExecutor = tenantExecutors.get(tenantId);
+    if (tenantExecutor instanceof TenantAwareDefaultAsyncJobExecutor) {
+      ((TenantAwareDefaultAsyncJobExecutor) tenantExecutor).scheduleAsyncJobAcquisition(tenantId, time);
+    } else {
+      TenantAwareAcquireAsyncJobsDueRunnable asyncJobsRunnable = asyncJobAcquisitionRunnables.get(tenantId);
+      if (asyncJobsRunnable != null) {
+        asyncJobsRunnable.scheduleAcquisition(time);
+      }
+    }
+  }
+  
+  public void scheduleTimerJobAcquisition(String tenantId, long time) {
+    AsyncExecutor tenantExecutor = tenantExecutors.get(tenantId);
+    if (tenantExecutor instanceof TenantAwareDefaultAsyncJobExecutor) {
+      ((TenantAwareDefaultAsyncJobExecutor) tenantExecutor).scheduleTimerJobAcquisition(tenantId, time);
+    } else {
+      TenantAwareAcquireTimerJobsRunnable timerRunnable = timerJobAcquisitionRunnables.get(tenantId);
+      if (timerRunnable != null) {
+        timerRunnable.scheduleAcquisition(time);
+      }
+    }
   }
   
   protected AsyncExecutor determineAsyncExecutor() {
-    return tenantExecutors.get(tenantInfoHolder.getCurrentTenantId());
+    String tenantId = tenantInfoHolder.getCurrentTenantId();
+    if (tenantId == null) {
+      return null;
+    }
+    // Asked while the tenant creates or executes a job: activates the tenant
+    return executorActivator != null ? activateTenant(tenantId) : tenantExecutors.get(tenantId);
   }
 
   public void executeAsyncJob(JobEntity job) {
-    determineAsyncExecutor().executeAsyncJob(job);
+    AsyncExecutor asyncExecutor = determineAsyncExecutor();
+    if (asyncExecutor == null) {
+      // Tenant executor not (yet) there: the job will be picked up by the acquisition once it is
+      logger.warn("No async executor for tenant " + tenantInfoHolder.getCurrentTenantId() + ", job " + job.getId() + " will be acquired later");
+      return;
+    }
+    asyncExecutor.executeAsyncJob(job);
   }
 
   public void setCommandExecutor(CommandExecutor commandExecutor) {
@@ -97,6 +398,232 @@ public class ExecutorPerTenantAsyncExecutor implements TenantAwareAsyncExecutor
     throw new UnsupportedOperationException(); 
   }
 
+  /**
+   * @return The executors of the active tenants. Without a {@link TenantExecutorActivator}, all registered tenants are active.
+   */
+  public Map<String, AsyncExecutor> getTenantExecutors() {
+    return tenantExecutors;
+  }
+  
+  public Set<String> getRegisteredTenantIds() {
+    return registeredTenantIds;
+  }
+  
+  public TenantExecutorActivator getExecutorActivator() {
+    return executorActivator;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setExecutorActivator(TenantExecutorActivator executorActivator) {
+    this.executorActivator = executorActivator;
+  }
+  
+  /**
+   * Convenience method: lazy activation with the default settings of the {@link TenantExecutorActivator}. Must be called before tenants are added.
+   */
+  public void enableLazyActivation() {
+    setExecutorActivator(new TenantExecutorActivator(this));
+  }
+  
+  public TenantThreadPoolAutoscaler getThreadPoolAutoscaler() {
+    return threadPoolAutoscaler;
+  }
+
+  /**
+   * Must be set before tenants are added. Only applies to tenant executors in {@link TenantJobExecutionMode#THREAD_POOL} 
+   * that are not created by a {@link TenantAwareAsyncExecutorFactory}.
+   */
+  public void setThreadPoolAutoscaler(TenantThreadPoolAutoscaler threadPoolAutoscaler) {
+    this.threadPoolAutoscaler = threadPoolAutoscaler;
+  }
+  
+  /**
+   * Convenience method: autoscaling with the default settings of the {@link TenantThreadPoolAutoscaler}.
+   */
+  public void enableThreadPoolAutoscaling() {
+    setThreadPoolAutoscaler(new TenantThreadPoolAutoscaler(this));
+  }
+  
+  public TenantTimerWheel getTimerWheel() {
+    return timerWheel;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setTimerWheel(TenantTimerWheel timerWheel) {
+    this.timerWheel = timerWheel;
+  }
+  
+  /**
+   * Convenience method: a {@link TenantTimerWheel} with default settings. Must be called before tenants are added.
+   */
+  public void enableTimerWheel() {
+    setTimerWheel(new TenantTimerWheel(this));
+  }
+  
+  public long getShutdownTimeoutInMillis() {
+    return shutdownTimeoutInMillis;
+  }
+
+  public void setShutdownTimeoutInMillis(long shutdownTimeoutInMillis) {
+    this.shutdownTimeoutInMillis = shutdownTimeoutInMillis;
+  }
+  
+  /**
+   * @return The report of the last shutdown, or null if the executor wasn't shut down yet.
+   */
+  public TenantShutdownReport getLastShutdownReport() {
+    return lastShutdownReport;
+  }
+  
+  public TenantJobMetricsRegistry getMetricsRegistry() {
+    return metricsRegistry;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setMetricsRegistry(TenantJobMetricsRegistry metricsRegistry) {
+    this.metricsRegistry = metricsRegistry;
+  }
+  
+  /**
+   * Convenience method: keeps the job metrics of all tenants, registered as MBeans under the given name. 
+   * Must be called before tenants are added.
+   */
+  public void enableMetrics(String name) {
+    setMetricsRegistry(new TenantJobMetricsRegistry(name));
+  }
+  
+  public int getOverflowBufferSizePerTenant() {
+    return overflowBufferSizePerTenant;
+  }
+
+  /**
+   * Must be set before tenants are added. Only applies to tenant executors that are not created by a {@link TenantAwareAsyncExecutorFactory}.
+   */
+  public void setOverflowBufferSizePerTenant(int overflowBufferSizePerTenant) {
+    this.overflowBufferSizePerTenant = overflowBufferSizePerTenant;
+  }
+  
+  public TenantNodeAssignment getNodeAssignment() {
+    return nodeAssignment;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setNodeAssignment(TenantNodeAssignment nodeAssignment) {
+    this.nodeAssignment = nodeAssignment;
+    if (nodeAssignment != null) {
+      nodeAssignment.setAsyncExecutor(this);
+    }
+  }
+  
+  /**
+   * Convenience method: spreads the tenants over the engine nodes registered in the membership table of the given datasource.
+   * The node id must be unique in the cluster. Must be called before tenants are added.
+   */
+  public void enableNodeAssignment(String nodeId, DataSource membershipDataSource) {
+    setNodeAssignment(new TenantNodeAssignment(nodeId, membershipDataSource, tenantInfoHolder));
+  }
+  
+  public TenantTimerDueIndex getTimerDueIndex() {
+    return timerDueIndex;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setTimerDueIndex(TenantTimerDueIndex timerDueIndex) {
+    this.timerDueIndex = timerDueIndex;
+  }
+  
+  /**
+   * Convenience method: a {@link TenantTimerDueIndex} with default settings. Must be called before tenants are added.
+   */
+  public void enableTimerDueIndex() {
+    setTimerDueIndex(new TenantTimerDueIndex());
+  }
+  
+  public TenantJobExecutionMode getJobExecutionMode() {
+    return jobExecutionMode;
+  }
+
+  /**
+   * Must be set before tenants are added. Only applies to tenant executors that are not created by a {@link TenantAwareAsyncExecutorFactory}.
+   */
+  public void setJobExecutionMode(TenantJobExecutionMode jobExecutionMode) {
+    this.jobExecutionMode = jobExecutionMode;
+  }
+  
+  public synchronized TenantWorkStealingPool getWorkStealingPool() {
+    if (workStealingPool == null) {
+      workStealingPool = new TenantWorkStealingPool();
+    }
+    return workStealingPool;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setWorkStealingPool(TenantWorkStealingPool workStealingPool) {
+    this.workStealingPool = workStealingPool;
+  }
+  
+  public int getReservedThreadsPerTenant() {
+    return reservedThreadsPerTenant;
+  }
+
+  /**
+   * Threads of every tenant that are kept for its own jobs in {@link TenantJobExecutionMode#WORK_STEALING}. Defaults to 1. 
+   * Must be set before tenants are added.
+   */
+  public void setReservedThreadsPerTenant(int reservedThreadsPerTenant) {
+    this.reservedThreadsPerTenant = reservedThreadsPerTenant;
+  }
+  
+  /**
+   * Overrides the reserved threads for one tenant. Must be set before the tenant is added.
+   */
+  public void setTenantReservedThreads(String tenantId, int reservedThreads) {
+    tenantReservedThreads.put(tenantId, reservedThreads);
+  }
+  
+  public Map<String, Integer> getTenantReservedThreads() {
+    return tenantReservedThreads;
+  }
+  
+  public int getMaxConcurrentJobs() {
+    return maxConcurrentJobs;
+  }
+
+  public void setMaxConcurrentJobs(int maxConcurrentJobs) {
+    this.maxConcurrentJobs = maxConcurrentJobs;
+  }
+
+  public int getMaxConcurrentJobsPerTenant() {
+    return maxConcurrentJobsPerTenant;
+  }
+
+  public void setMaxConcurrentJobsPerTenant(int maxConcurrentJobsPerTenant) {
+    this.maxConcurrentJobsPerTenant = maxConcurrentJobsPerTenant;
+  }
+
+  public long getMaxAcquisitionBackoffInMillis() {
+    return maxAcquisitionBackoffInMillis;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setMaxAcquisitionBackoffInMillis(long maxAcquisitionBackoffInMillis) {
+    this.maxAcquisitionBackoffInMillis = maxAcquisitionBackoffInMillis;
+  }
+
   public boolean isAutoActivate() {
     return autoActivate;
   }
@@ -110,16 +637,93 @@ public class ExecutorPerTenantAsyncExecutor implements TenantAwareAsyncExecutor
   }
 
   public void start() {
+    if (nodeAssignment != null) {
+      nodeAssignment.start();
+    }
     for (AsyncExecutor asyncExecutor : tenantExecutors.values()) {
       asyncExecutor.start();
     }
+    if (threadPoolAutoscaler != null) {
+      threadPoolAutoscaler.start();
+    }
+    if (timerWheel != null) {
+      timerWheel.start();
+    }
     active = true;
+    if (executorActivator != null) {
+      executorActivator.start();
+    }
   }
 
+  /**
+   * Signals all tenant executors at once and lets them drain their jobs in parallel, 
+   * no longer than the shutdown timeout in total. See {@link #getLastShutdownReport()} for the outcome per tenant.
+   */
   public synchronized void shutdown() {
+    if (executorActivator != null) {
+      executorActivator.stop();
+    }
+    if (threadPoolAutoscaler != null) {
+      threadPoolAutoscaler.stop();
+    }
+    if (timerWheel != null) {
+      timerWheel.stop();
+    }
+    if (nodeAssignment != null) {
+      nodeAssignment.stop(); // The other nodes take over the tenants of this node
+    }
+    
+    TenantShutdownReport report = new TenantShutdownReport(System.currentTimeMillis() + shutdownTimeoutInMillis);
+    logger.info("Shutting down the async executors of {} tenants", tenantExecutors.size());
+    
+    // Signal all tenants first. Executors that can't shut down in two phases are shut down on a thread of their own.
+    Map<String, Thread> shutdownThreads = new HashMap<String, Thread>();
+    for (String tenantId : tenantExecutors.keySet()) {
+      final AsyncExecutor tenantExecutor = tenantExecutors.get(tenantId);
+      if (tenantExecutor instanceof TenantAwareDefaultAsyncJobExecutor) {
+        ((TenantAwareDefaultAsyncJobExecutor) tenantExecutor).beginShutdown(report);
+      } else {
+        Thread thread = new Thread(new Runnable() {
+          public void run() {
+            tenantExecutor.shutdown();
+          }
+        }, "activiti-shutdown-" + tenantId);
+        thread.setDaemon(true);
+        thread.start();
+        shutdownThreads.put(tenantId, thread);
+      }
+    }
+    
+    // The tenants are draining in parallel now: waiting for them one after the other ends at the deadline at the latest
     for (String tenantId : tenantExecutors.keySet()) {
-      logger.info("Shutting down async executor for tenant " + tenantId);
-      tenantExecutors.get(tenantId).shutdown();
+      AsyncExecutor tenantExecutor = tenantExecutors.get(tenantId);
+      if (tenantExecutor instanceof TenantAwareDefaultAsyncJobExecutor) {
+        if (!((TenantAwareDefaultAsyncJobExecutor) tenantExecutor).awaitShutdown()) {
+          report.timedOut(tenantId);
+        }
+      }
+    }
+    for (String tenantId : shutdownThreads.keySet()) {
+      Thread thread = shutdownThreads.get(tenantId);
+      long millisToWait = report.getDeadline() - System.currentTimeMillis();
+      try {
+        if (millisToWait > 0) {
+          thread.join(millisToWait);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (thread.isAlive()) {
+        report.timedOut(tenantId);
+      }
+    }
+    
+    report.finished();
+    lastShutdownReport = report;
+    logger.info("{}", report);
+    
+    if (metricsRegistry != null) {
+      metricsRegistry.unregisterAll();
     }
     active = false;
   }
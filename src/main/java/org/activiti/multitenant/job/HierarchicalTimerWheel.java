@@ -0,0 +1,177 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel: {@link #LEVELS} wheels of {@link #WHEEL_SIZE} slots, a slot of level n covering 64^n ticks.
+ * Adding a timer and advancing one tick are O(1) (a timer cascades to a lower level at most {@link #LEVELS} - 1 times),
+ * independent of the number of timers.
+ * 
+ * Timers are identified by key, adding a key twice keeps the last due time.
+ * Not thread safe: callers synchronize.
+ * 
+ * @author Joram Barrez
+ */
+public class HierarchicalTimerWheel {
+
+  public static final int WHEEL_SIZE = 64;
+  public static final int LEVELS = 4;
+
+  protected static final int BITS_PER_LEVEL = 6;
+  protected static final int SLOT_MASK = WHEEL_SIZE - 1;
+
+  protected long startTime;
+  protected long tickInMillis;
+  protected long currentTick;
+
+  protected List<List<Entry>> slots = new ArrayList<List<Entry>>(LEVELS * WHEEL_SIZE);
+  protected Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  public HierarchicalTimerWheel(long startTime, long tickInMillis) {
+    this.startTime = startTime;
+    this.tickInMillis = tickInMillis;
+    for (int i = 0; i < LEVELS * WHEEL_SIZE; i++) {
+      slots.add(new ArrayList<Entry>());
+    }
+  }
+
+  /**
+   * @return False if the due time is beyond the range of the wheel (64^4 ticks) and the timer wasn't added.
+   */
+  public boolean add(String key, long dueTime) {
+    long tick = Math.max((dueTime - startTime + tickInMillis - 1) / tickInMillis, currentTick + 1); // Overdue: next tick
+    if (tick - currentTick >= (1L << (BITS_PER_LEVEL * LEVELS))) {
+      return false;
+    }
+
+    Entry existing = entries.remove(key);
+    if (existing != null) {
+      existing.cancelled = true;
+    }
+
+    Entry entry = new Entry(key, dueTime, tick);
+    entries.put(key, entry);
+    place(entry);
+    return true;
+  }
+
+  public void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      entry.cancelled = true;
+    }
+  }
+
+  protected void place(Entry entry) {
+    long delta = entry.tick - currentTick;
+    for (int level = 0; level < LEVELS; level++) {
+      if (delta < (1L << (BITS_PER_LEVEL * (level + 1)))) {
+        int slot = (int) ((entry.tick >> (BITS_PER_LEVEL * level)) & SLOT_MASK);
+        slots.get(level * WHEEL_SIZE + slot).add(entry);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Advances the wheel up to the given time.
+   *
+   * @return The keys of the timers that are due.
+   */
+  public List<String> advance(long now) {
+    List<String> dueKeys = Collections.emptyList();
+    long targetTick = (now - startTime) / tickInMillis;
+
+    while (currentTick < targetTick && !entries.isEmpty()) {
+      currentTick++;
+
+      // Move the timers of the higher levels down when their slot is reached
+      for (int level = 1; level < LEVELS; level++) {
+        if ((currentTick & ((1L << (BITS_PER_LEVEL * level)) - 1)) != 0) {
+          break;
+        }
+        int slot = (int) ((currentTick >> (BITS_PER_LEVEL * level)) & SLOT_MASK);
+        List<Entry> cascading = slots.get(level * WHEEL_SIZE + slot);
+        if (!cascading.isEmpty()) {
+          List<Entry> toPlace = new ArrayList<Entry>(cascading);
+          cascading.clear();
+          for (Entry entry : toPlace) {
+            if (!entry.cancelled) {
+              place(entry);
+            }
+          }
+        }
+      }
+
+      List<Entry> expiring = slots.get((int) (currentTick & SLOT_MASK));
+      if (!expiring.isEmpty()) {
+        for (Entry entry : expiring) {
+          if (!entry.cancelled) {
+            entries.remove(entry.key);
+            if (dueKeys.isEmpty()) {
+              dueKeys = new ArrayList<String>();
+            }
+            dueKeys.add(entry.key);
+          }
+        }
+        expiring.clear();
+      }
+    }
+
+    if (entries.isEmpty() && currentTick < targetTick) {
+      currentTick = targetTick; // Nothing in the wheel, skip the empty ticks at once
+      clearCancelledEntries();
+    }
+    return dueKeys;
+  }
+
+  protected void clearCancelledEntries() {
+    for (List<Entry> slot : slots) {
+      slot.clear();
+    }
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  public long getTickInMillis() {
+    return tickInMillis;
+  }
+
+  protected static class Entry {
+
+    protected final String key;
+    protected final long dueTime;
+    protected final long tick;
+    protected boolean cancelled;
+
+    public Entry(String key, long dueTime, long tick) {
+      this.key = key;
+      this.dueTime = dueTime;
+      this.tick = tick;
+    }
+
+  }
+
+}
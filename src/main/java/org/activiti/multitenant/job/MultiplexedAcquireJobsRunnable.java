@@ -0,0 +1,201 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.engine.ActivitiOptimisticLockingException;
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.multitenant.cluster.TenantNodeAssignment;
+import org.activiti.tenant.TenantInfoHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Acquires async jobs and timers for all tenants, instead of for one tenant like the
+ * {@link TenantAwareAcquireAsyncJobsDueRunnable} and {@link TenantAwareAcquireTimerJobsRunnable}.
+ * 
+ * Each pass takes the tenant that is due first from the {@link TenantAcquisitionScheduler},
+ * does the acquisition with that tenant set as current tenant and puts it back in the scheduler.
+ * Multiple of these runnables can share one scheduler.
+ * With a {@link TenantNodeAssignment}, tenants assigned to other nodes are skipped.
+ * 
+ * @author Joram Barrez
+ */
+public class MultiplexedAcquireJobsRunnable implements Runnable {
+  
+  private static final Logger logger = LoggerFactory.getLogger(MultiplexedAcquireJobsRunnable.class);
+  
+  protected AsyncExecutor asyncExecutor;
+  protected TenantInfoHolder tenantInfoHolder;
+  protected TenantAcquisitionScheduler scheduler;
+  protected TenantJobAcquirer jobAcquirer;
+  
+  protected volatile boolean isInterrupted;
+  
+  /** Maximum wait time between acquisitions for a tenant whose acquisitions come back empty. */
+  protected long maxBackoffInMillis;
+  
+  /** When set, the timers due within its lookahead window are added to it after each timer acquisition. */
+  protected TenantTimerWheel timerWheel;
+  
+  /** When set, the timers of a tenant are acquired again when its next timer is due, instead of after the default wait time. */
+  protected TenantTimerDueIndex timerDueIndex;
+  
+  protected TenantJobMetricsRegistry metricsRegistry;
+  
+  protected TenantNodeAssignment nodeAssignment;
+  
+  /** How long a pass waits for a tenant to become due, before checking again if it was stopped. */
+  protected long pollTimeoutInMillis = 1000L;
+  
+  public MultiplexedAcquireJobsRunnable(AsyncExecutor asyncExecutor, TenantInfoHolder tenantInfoHolder, TenantAcquisitionScheduler scheduler) {
+    this.asyncExecutor = asyncExecutor;
+    this.tenantInfoHolder = tenantInfoHolder;
+    this.scheduler = scheduler;
+    this.jobAcquirer = new TenantJobAcquirer(asyncExecutor);
+  }
+
+  public void run() {
+    logger.info("{} starting to acquire jobs", Thread.currentThread().getName());
+    
+    while (!isInterrupted) {
+      TenantAcquisitionState state = null;
+      try {
+        state = scheduler.poll(pollTimeoutInMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        logger.info("Multiplexed job acquisition interrupted");
+        break;
+      }
+      
+      if (state == null) {
+        continue;
+      }
+      
+      tenantInfoHolder.setCurrentTenantId(state.getTenantId());
+      try {
+        acquireJobs(state);
+      } finally {
+        tenantInfoHolder.clearCurrentTenantId();
+        scheduler.reschedule(state);
+      }
+    }
+    
+    logger.info("{} stopped acquiring jobs", Thread.currentThread().getName());
+  }
+  
+  protected void acquireJobs(TenantAcquisitionState state) {
+    long now = System.currentTimeMillis();
+    if (nodeAssignment != null && !nodeAssignment.isAssigned(state.getTenantId())) {
+      // Another node acquires the jobs of the tenant. Woken up when this node takes the tenant over.
+      state.scheduleAsyncJobAcquisition(now + nodeAssignment.getHeartbeatIntervalInMillis());
+      state.scheduleTimerJobAcquisition(now + nodeAssignment.getHeartbeatIntervalInMillis());
+      return;
+    }
+    
+    TenantJobMetrics metrics = metricsRegistry != null ? metricsRegistry.getMetrics(state.getTenantId()) : null;
+    
+    if (state.isAsyncJobAcquisitionDue(now)) {
+      try {
+        int nrOfJobs = jobAcquirer.acquireAsyncJobs(metrics);
+        state.asyncJobsAcquired(nrOfJobs, asyncExecutor.getMaxAsyncJobsDuePerAcquisition(), 
+            asyncExecutor.getDefaultAsyncJobAcquireWaitTimeInMillis(), maxBackoffInMillis, System.currentTimeMillis());
+      } catch (ActivitiOptimisticLockingException e) {
+        // Another node acquired the same jobs: there's probably more, try again right away
+        logger.debug("Optimistic locking exception during async job acquisition for tenant {}", state.getTenantId());
+        state.scheduleAsyncJobAcquisition(System.currentTimeMillis());
+      } catch (Throwable e) {
+        logger.error("Exception during async job acquisition for tenant " + state.getTenantId(), e);
+        state.scheduleAsyncJobAcquisition(System.currentTimeMillis() + asyncExecutor.getDefaultAsyncJobAcquireWaitTimeInMillis());
+      }
+    }
+    
+    if (state.isTimerJobAcquisitionDue(now)) {
+      try {
+        int nrOfJobs = jobAcquirer.acquireTimerJobs(metrics);
+        long waitTime = asyncExecutor.getDefaultTimerJobAcquireWaitTimeInMillis();
+        long maxBackoff = maxBackoffInMillis;
+        if (timerDueIndex != null) {
+          waitTime = timerDueIndex.refresh(state.getTenantId(), jobAcquirer);
+          maxBackoff = 0L; // The wait time is known, no need to guess
+        }
+        if (timerWheel != null) {
+          long lookaheadWaitTime = timerWheel.lookahead(state.getTenantId(), jobAcquirer);
+          waitTime = timerDueIndex != null ? Math.min(waitTime, lookaheadWaitTime) : lookaheadWaitTime;
+          maxBackoff = 0L;
+        }
+        state.timerJobsAcquired(nrOfJobs, asyncExecutor.getMaxTimerJobsPerAcquisition(), 
+            waitTime, maxBackoff, System.currentTimeMillis());
+      } catch (ActivitiOptimisticLockingException e) {
+        logger.debug("Optimistic locking exception during timer acquisition for tenant {}", state.getTenantId());
+        state.scheduleTimerJobAcquisition(System.currentTimeMillis());
+      } catch (Throwable e) {
+        logger.error("Exception during timer acquisition for tenant " + state.getTenantId(), e);
+        state.scheduleTimerJobAcquisition(System.currentTimeMillis() + asyncExecutor.getDefaultTimerJobAcquireWaitTimeInMillis());
+      }
+    }
+  }
+  
+  public void stop() {
+    isInterrupted = true;
+  }
+  
+  public TenantNodeAssignment getNodeAssignment() {
+    return nodeAssignment;
+  }
+
+  public void setNodeAssignment(TenantNodeAssignment nodeAssignment) {
+    this.nodeAssignment = nodeAssignment;
+  }
+  
+  public TenantJobMetricsRegistry getMetricsRegistry() {
+    return metricsRegistry;
+  }
+
+  public void setMetricsRegistry(TenantJobMetricsRegistry metricsRegistry) {
+    this.metricsRegistry = metricsRegistry;
+  }
+  
+  public TenantTimerDueIndex getTimerDueIndex() {
+    return timerDueIndex;
+  }
+
+  public void setTimerDueIndex(TenantTimerDueIndex timerDueIndex) {
+    this.timerDueIndex = timerDueIndex;
+  }
+
+  public TenantTimerWheel getTimerWheel() {
+    return timerWheel;
+  }
+
+  public void setTimerWheel(TenantTimerWheel timerWheel) {
+    this.timerWheel = timerWheel;
+  }
+  
+  public long getMaxBackoffInMillis() {
+    return maxBackoffInMillis;
+  }
+
+  public void setMaxBackoffInMillis(long maxBackoffInMillis) {
+    this.maxBackoffInMillis = maxBackoffInMillis;
+  }
+  
+  public long getPollTimeoutInMillis() {
+    return pollTimeoutInMillis;
+  }
+
+  public void setPollTimeoutInMillis(long pollTimeoutInMillis) {
+    this.pollTimeoutInMillis = pollTimeoutInMillis;
+  }
+
+}
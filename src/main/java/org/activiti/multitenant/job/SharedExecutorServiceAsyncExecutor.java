@@ -12,15 +12,20 @@
  */
 package org.activiti.multitenant.job;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
+import javax.sql.DataSource;
+
 import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
-import org.activiti.engine.impl.asyncexecutor.DefaultAsyncJobExecutor;
 import org.activiti.engine.impl.asyncexecutor.ExecuteAsyncRunnableFactory;
 import org.activiti.engine.impl.interceptor.CommandExecutor;
 import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.multitenant.cluster.TenantNodeAssignment;
 import org.activiti.tenant.TenantInfoHolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,24 +35,45 @@ import org.slf4j.LoggerFactory;
  * For each tenant, there will be acquire threads, but only one {@link ExecutorService} will be used
  * once the jobs are acquired.
  * 
+ * When the acquisition thread count is set, the per-tenant acquire threads are replaced by that many 
+ * threads which acquire jobs for all tenants (see {@link MultiplexedAcquireJobsRunnable}).
+ * 
+ * With {@link TenantJobExecutionMode#TENANT_FAIR_QUEUE}, the acquired jobs are queued per tenant
+ * so that one tenant with many jobs can't starve the others (see {@link TenantFairExecutorService}).
+ * With {@link TenantJobExecutionMode#THREAD_PER_JOB}, the max pool size limits the concurrent jobs over all tenants.
+ * With a {@link TenantNodeAssignment}, only the jobs of the tenants assigned to this node are acquired.
+ * 
  * @author Joram Barrez
  */
-public class SharedExecutorServiceAsyncExecutor extends DefaultAsyncJobExecutor implements TenantAwareAsyncExecutor {
+public class SharedExecutorServiceAsyncExecutor extends TenantAwareDefaultAsyncJobExecutor implements TenantAwareAsyncExecutor {
   
   private static final Logger logger = LoggerFactory.getLogger(SharedExecutorServiceAsyncExecutor.class);
   
-  protected TenantInfoHolder tenantInfoHolder;
-  
-  protected Map<String, Thread> timerJobAcquisitionThreads = new HashMap<String, Thread>();
+  protected Map<String, Thread> timerJobAcquisitionThreads = new ConcurrentHashMap<String, Thread>();
   protected Map<String, TenantAwareAcquireTimerJobsRunnable> timerJobAcquisitionRunnables 
-    = new HashMap<String, TenantAwareAcquireTimerJobsRunnable>();
+    = new ConcurrentHashMap<String, TenantAwareAcquireTimerJobsRunnable>();
   
-  protected Map<String, Thread> asyncJobAcquisitionThreads = new HashMap<String, Thread>();
+  protected Map<String, Thread> asyncJobAcquisitionThreads = new ConcurrentHashMap<String, Thread>();
   protected Map<String, TenantAwareAcquireAsyncJobsDueRunnable> asyncJobAcquisitionRunnables 
-    = new HashMap<String, TenantAwareAcquireAsyncJobsDueRunnable>();
+    = new ConcurrentHashMap<String, TenantAwareAcquireAsyncJobsDueRunnable>();
+  
+  /** Number of threads acquiring jobs for all tenants. 0 means two acquire threads per tenant. */
+  protected int acquisitionThreadCount;
+  protected TenantAcquisitionScheduler acquisitionScheduler = new TenantAcquisitionScheduler();
+  protected List<MultiplexedAcquireJobsRunnable> multiplexedAcquisitionRunnables = new ArrayList<MultiplexedAcquireJobsRunnable>();
+  protected List<Thread> multiplexedAcquisitionThreads = new ArrayList<Thread>();
+  
+  /** Maximum wait time between acquisitions of a tenant whose acquisitions come back empty. 0 means no back-off. */
+  protected long maxAcquisitionBackoffInMillis;
+  
+  /** When set, the job metrics of every tenant are kept and exposed as MBean. */
+  protected TenantJobMetricsRegistry metricsRegistry;
+  
+  /** When set, the tenants are spread over the nodes of the cluster and only the tenants of this node are acquired. */
+  protected TenantNodeAssignment nodeAssignment;
   
   public SharedExecutorServiceAsyncExecutor(TenantInfoHolder tenantInfoHolder) {
-    this.tenantInfoHolder = tenantInfoHolder;
+    super(tenantInfoHolder);
     
     setExecuteAsyncRunnableFactory(new ExecuteAsyncRunnableFactory() {
       
@@ -56,9 +82,10 @@ public class SharedExecutorServiceAsyncExecutor extends DefaultAsyncJobExecutor
         // Here, the runnable will be created by for example the acquire thread, which has already set the current id.
         // But it will be executed later on, by the executorService and thus we need to set it explicitely again then
         
+        String tenantId = SharedExecutorServiceAsyncExecutor.this.tenantInfoHolder.getCurrentTenantId();
         return new TenantAwareExecuteAsyncRunnable(jobEntity, commandExecutor, 
-            SharedExecutorServiceAsyncExecutor.this.tenantInfoHolder, 
-            SharedExecutorServiceAsyncExecutor.this.tenantInfoHolder.getCurrentTenantId());
+            SharedExecutorServiceAsyncExecutor.this.tenantInfoHolder, tenantId,
+            metricsRegistry != null ? metricsRegistry.getMetrics(tenantId) : null);
       }
       
     });
@@ -66,11 +93,27 @@ public class SharedExecutorServiceAsyncExecutor extends DefaultAsyncJobExecutor
 
   public void addTenantAsyncExecutor(String tenantId, boolean startExecutor) {
     
+    TenantJobMetrics metrics = metricsRegistry != null ? metricsRegistry.registerTenant(tenantId) : null;
+    
+    if (isMultiplexedAcquisition()) {
+      // Picked up by the multiplexed acquisition threads, which are started with the executor
+      acquisitionScheduler.addTenant(tenantId);
+      return;
+    }
+    
     TenantAwareAcquireTimerJobsRunnable timerRunnable = new TenantAwareAcquireTimerJobsRunnable(this, tenantInfoHolder, tenantId);
+    timerRunnable.setMaxBackoffInMillis(maxAcquisitionBackoffInMillis);
+    timerRunnable.setTimerWheel(timerWheel);
+    timerRunnable.setTimerDueIndex(timerDueIndex);
+    timerRunnable.setMetrics(metrics);
+    timerRunnable.setNodeAssignment(nodeAssignment);
     timerJobAcquisitionRunnables.put(tenantId, timerRunnable);
     timerJobAcquisitionThreads.put(tenantId, new Thread(timerRunnable));
     
     TenantAwareAcquireAsyncJobsDueRunnable asyncJobsRunnable = new TenantAwareAcquireAsyncJobsDueRunnable(this, tenantInfoHolder, tenantId);
+    asyncJobsRunnable.setMaxBackoffInMillis(maxAcquisitionBackoffInMillis);
+    asyncJobsRunnable.setMetrics(metrics);
+    asyncJobsRunnable.setNodeAssignment(nodeAssignment);
     asyncJobAcquisitionRunnables.put(tenantId, asyncJobsRunnable);
     asyncJobAcquisitionThreads.put(tenantId, new Thread(asyncJobsRunnable));
     
@@ -80,8 +123,136 @@ public class SharedExecutorServiceAsyncExecutor extends DefaultAsyncJobExecutor
     }
   }
   
+  /**
+   * Stops the acquisition of the tenant, takes its queued jobs out of the shared executor service and unlocks them.
+   * Then waits, no longer than the shutdown wait time, for the executing jobs of the tenant to finish. 
+   * Those can only be waited for when their count is known: with job metrics or when the executor service counts them per tenant
+   * (all modes except {@link TenantJobExecutionMode#THREAD_PER_JOB}).
+   */
+  public void removeTenantAsyncExecutor(String tenantId) {
+    long deadline = System.currentTimeMillis() + secondsToWaitOnShutdown * 1000L;
+    
+    if (isMultiplexedAcquisition()) {
+      acquisitionScheduler.removeTenant(tenantId);
+    } else {
+      TenantAwareAcquireTimerJobsRunnable timerRunnable = timerJobAcquisitionRunnables.remove(tenantId);
+      TenantAwareAcquireAsyncJobsDueRunnable asyncJobsRunnable = asyncJobAcquisitionRunnables.remove(tenantId);
+      if (timerRunnable != null) {
+        timerRunnable.stop();
+      }
+      if (asyncJobsRunnable != null) {
+        asyncJobsRunnable.stop();
+      }
+      joinUntil(timerJobAcquisitionThreads.remove(tenantId), deadline);
+      joinUntil(asyncJobAcquisitionThreads.remove(tenantId), deadline);
+    }
+    
+    if (timerWheel != null) {
+      timerWheel.removeTenant(tenantId);
+    }
+    if (timerDueIndex != null) {
+      timerDueIndex.removeTenant(tenantId);
+    }
+    if (overflowBuffer != null) {
+      overflowBuffer.releaseTenant(tenantId);
+    }
+    
+    // Queued jobs would otherwise be executed after the tenant is gone
+    List<Runnable> queuedJobs = removeQueuedJobs(tenantId);
+    if (!queuedJobs.isEmpty()) {
+      unlockJobs(queuedJobs, null);
+    }
+    
+    int inFlightJobs = getInFlightJobCount(tenantId);
+    if (inFlightJobs < 0) {
+      logger.warn("The executing jobs of tenant {} can't be counted without job metrics, they aren't waited for", tenantId);
+    }
+    while (inFlightJobs > 0 && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(100L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      inFlightJobs = getInFlightJobCount(tenantId);
+    }
+    if (inFlightJobs > 0) {
+      logger.warn("{} jobs of tenant {} were still queued or executing when it was removed", inFlightJobs, tenantId);
+    }
+    
+    if (metricsRegistry != null) {
+      metricsRegistry.unregisterTenant(tenantId);
+    }
+  }
+  
+  /**
+   * @return The queued and executing jobs of the tenant, or -1 when unknown.
+   */
+  protected int getInFlightJobCount(String tenantId) {
+    TenantJobMetrics metrics = metricsRegistry != null ? metricsRegistry.getMetrics(tenantId) : null;
+    if (metrics != null) {
+      return metrics.getQueueDepth() + metrics.getRunningJobCount();
+    }
+    TenantFairExecutorService fairExecutorService = getTenantFairExecutorService();
+    if (fairExecutorService != null) {
+      return fairExecutorService.getQueueDepth(tenantId) + fairExecutorService.getRunningCount(tenantId);
+    }
+    if (executorService instanceof TenantThreadPoolExecutor) {
+      TenantThreadPoolExecutor threadPool = (TenantThreadPoolExecutor) executorService;
+      return threadPool.getQueuedCount(tenantId) + threadPool.getRunningCount(tenantId);
+    }
+    return -1;
+  }
+  
+  protected List<Runnable> removeQueuedJobs(String tenantId) {
+    if (executorService instanceof TenantThreadPoolExecutor) {
+      return ((TenantThreadPoolExecutor) executorService).removeQueuedJobs(tenantId);
+    } else if (executorService instanceof TenantFairExecutorService) {
+      return ((TenantFairExecutorService) executorService).removeQueuedJobs(tenantId);
+    } else if (executorService instanceof TenantThreadPerJobExecutorService) {
+      return ((TenantThreadPerJobExecutorService) executorService).removeQueuedJobs(tenantId);
+    }
+    return Collections.emptyList();
+  }
+  
+  @Override
+  public void scheduleAsyncJobAcquisition(String tenantId, long time) {
+    if (isMultiplexedAcquisition()) {
+      acquisitionScheduler.resetBackoff(tenantId, time);
+    } else {
+      TenantAwareAcquireAsyncJobsDueRunnable asyncJobsRunnable = asyncJobAcquisitionRunnables.get(tenantId);
+      if (asyncJobsRunnable != null) {
+        asyncJobsRunnable.scheduleAcquisition(time);
+      }
+    }
+  }
+  
+  @Override
+  public void scheduleTimerJobAcquisition(String tenantId, long time) {
+    if (isMultiplexedAcquisition()) {
+      acquisitionScheduler.resetBackoff(tenantId, time);
+    } else {
+      TenantAwareAcquireTimerJobsRunnable timerRunnable = timerJobAcquisitionRunnables.get(tenantId);
+      if (timerRunnable != null) {
+        timerRunnable.scheduleAcquisition(time);
+      }
+    }
+  }
+  
   @Override
   protected void startJobAcquisitionThread() {
+    if (nodeAssignment != null) {
+      nodeAssignment.start();
+    }
+    if (timerWheel != null) {
+      timerWheel.start();
+    }
+    
+    if (isMultiplexedAcquisition()) {
+      startMultiplexedJobAcquisition();
+      return;
+    }
+    
     for (String tenantId : timerJobAcquisitionThreads.keySet()) {
       startTimerJobAcquisitionForTenant(tenantId);
     }
@@ -91,6 +262,21 @@ public class SharedExecutorServiceAsyncExecutor extends DefaultAsyncJobExecutor
     }
   }
 
+  protected void startMultiplexedJobAcquisition() {
+    for (int i = 0; i < acquisitionThreadCount; i++) {
+      MultiplexedAcquireJobsRunnable runnable = new MultiplexedAcquireJobsRunnable(this, tenantInfoHolder, acquisitionScheduler);
+      runnable.setMaxBackoffInMillis(maxAcquisitionBackoffInMillis);
+      runnable.setTimerWheel(timerWheel);
+      runnable.setTimerDueIndex(timerDueIndex);
+      runnable.setMetricsRegistry(metricsRegistry);
+      runnable.setNodeAssignment(nodeAssignment);
+      Thread thread = new Thread(runnable, "activiti-multiplexed-acquisition-" + i);
+      multiplexedAcquisitionRunnables.add(runnable);
+      multiplexedAcquisitionThreads.add(thread);
+      thread.start();
+    }
+  }
+
   protected  void startTimerJobAcquisitionForTenant(String tenantId) {
     timerJobAcquisitionThreads.get(tenantId).start();
   }
@@ -101,33 +287,144 @@ public class SharedExecutorServiceAsyncExecutor extends DefaultAsyncJobExecutor
   
   @Override
   protected void stopJobAcquisitionThread() {
-    
-    // Runnables
-    for (String tenantId : timerJobAcquisitionRunnables.keySet()) {
-      timerJobAcquisitionRunnables.get(tenantId).stop();
+    signalJobAcquisitionStop();
+    awaitJobAcquisitionStop(System.currentTimeMillis() + secondsToWaitOnShutdown * 1000L);
+  }
+  
+  /**
+   * Signals all acquisition threads at once, so they stop in parallel.
+   */
+  @Override
+  protected void signalJobAcquisitionStop() {
+    if (timerWheel != null) {
+      timerWheel.stop();
     }
-    
-    for (String tenantId : asyncJobAcquisitionRunnables.keySet()) {
-      asyncJobAcquisitionRunnables.get(tenantId).stop();
+    if (nodeAssignment != null) {
+      nodeAssignment.stop(); // The other nodes take over the tenants of this node
     }
     
-    // Threads
-    for (String tenantId : timerJobAcquisitionThreads.keySet()) {
-      try {
-        timerJobAcquisitionThreads.get(tenantId).join();
-      } catch (InterruptedException e) {
-        logger.warn("Interrupted while waiting for the timer job acquisition thread to terminate", e);
-      }
+    for (MultiplexedAcquireJobsRunnable runnable : multiplexedAcquisitionRunnables) {
+      runnable.stop();
+    }
+    for (TenantAwareAcquireTimerJobsRunnable runnable : timerJobAcquisitionRunnables.values()) {
+      runnable.stop();
+    }
+    for (TenantAwareAcquireAsyncJobsDueRunnable runnable : asyncJobAcquisitionRunnables.values()) {
+      runnable.stop();
+    }
+  }
+  
+  @Override
+  protected void awaitJobAcquisitionStop(long deadline) {
+    for (Thread thread : multiplexedAcquisitionThreads) {
+      joinUntil(thread, deadline);
     }
+    multiplexedAcquisitionRunnables.clear();
+    multiplexedAcquisitionThreads.clear();
     
-    for (String tenantId : asyncJobAcquisitionThreads.keySet()) {
-      try {
-        asyncJobAcquisitionThreads.get(tenantId).join();
-      } catch (InterruptedException e) {
-        logger.warn("Interrupted while waiting for the timer job acquisition thread to terminate", e);
-      }
+    for (Thread thread : timerJobAcquisitionThreads.values()) {
+      joinUntil(thread, deadline);
+    }
+    for (Thread thread : asyncJobAcquisitionThreads.values()) {
+      joinUntil(thread, deadline);
+    }
+  }
+  
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    if (metricsRegistry != null) {
+      metricsRegistry.unregisterAll();
+    }
+  }
+  
+  public boolean isMultiplexedAcquisition() {
+    return acquisitionThreadCount > 0;
+  }
+
+  public int getAcquisitionThreadCount() {
+    return acquisitionThreadCount;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setAcquisitionThreadCount(int acquisitionThreadCount) {
+    this.acquisitionThreadCount = acquisitionThreadCount;
+  }
+
+  public TenantAcquisitionScheduler getAcquisitionScheduler() {
+    return acquisitionScheduler;
+  }
+  
+  /**
+   * Convenience method: a {@link TenantTimerWheel} with default settings. Must be called before tenants are added.
+   */
+  public void enableTimerWheel() {
+    setTimerWheel(new TenantTimerWheel(this));
+  }
+  
+  /**
+   * Convenience method: a {@link TenantTimerDueIndex} with default settings. Must be called before tenants are added.
+   */
+  public void enableTimerDueIndex() {
+    setTimerDueIndex(new TenantTimerDueIndex());
+  }
+  
+  /**
+   * Convenience method: keeps the job metrics of all tenants, registered as MBeans under the given name. 
+   * Must be called before tenants are added.
+   */
+  public void enableMetrics(String name) {
+    setMetricsRegistry(new TenantJobMetricsRegistry(name));
+  }
+  
+  /**
+   * Convenience method: spreads the tenants over the engine nodes registered in the membership table of the given datasource.
+   * The node id must be unique in the cluster. Must be called before tenants are added.
+   */
+  public void enableNodeAssignment(String nodeId, DataSource membershipDataSource) {
+    setNodeAssignment(new TenantNodeAssignment(nodeId, membershipDataSource, tenantInfoHolder));
+  }
+  
+  public TenantNodeAssignment getNodeAssignment() {
+    return nodeAssignment;
+  }
 
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setNodeAssignment(TenantNodeAssignment nodeAssignment) {
+    this.nodeAssignment = nodeAssignment;
+    if (nodeAssignment != null) {
+      nodeAssignment.setAsyncExecutor(this);
     }
   }
+  
+  public TenantJobMetricsRegistry getMetricsRegistry() {
+    return metricsRegistry;
+  }
+
+  public void setMetricsRegistry(TenantJobMetricsRegistry metricsRegistry) {
+    this.metricsRegistry = metricsRegistry;
+  }
+  
+  public long getMaxAcquisitionBackoffInMillis() {
+    return maxAcquisitionBackoffInMillis;
+  }
+
+  /**
+   * Must be set before tenants are added.
+   */
+  public void setMaxAcquisitionBackoffInMillis(long maxAcquisitionBackoffInMillis) {
+    this.maxAcquisitionBackoffInMillis = maxAcquisitionBackoffInMillis;
+  }
+  
+  /**
+   * @return The fair executor service, with the per-tenant queue metrics, or null when not running in {@link TenantJobExecutionMode#TENANT_FAIR_QUEUE}.
+   */
+  public TenantFairExecutorService getTenantFairExecutorService() {
+    return executorService instanceof TenantFairExecutorService ? (TenantFairExecutorService) executorService : null;
+  }
 
 }
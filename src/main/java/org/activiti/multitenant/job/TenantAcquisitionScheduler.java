@@ -0,0 +1,122 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders all tenants by the time their next job acquisition is due.
+ * 
+ * Acquisition threads {@link #poll(long, TimeUnit)} the tenant that is due first, acquire its jobs and {@link #reschedule(TenantAcquisitionState)} it.
+ * A tenant is either queued or being handled by exactly one thread, never both.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantAcquisitionScheduler {
+  
+  protected DelayQueue<TenantAcquisitionState> queue = new DelayQueue<TenantAcquisitionState>();
+  protected Map<String, TenantAcquisitionState> states = new ConcurrentHashMap<String, TenantAcquisitionState>();
+  
+  public synchronized TenantAcquisitionState addTenant(String tenantId) {
+    TenantAcquisitionState state = states.get(tenantId);
+    if (state == null) {
+      state = new TenantAcquisitionState(tenantId);
+      states.put(tenantId, state);
+      state.queued = true;
+      queue.offer(state);
+    }
+    return state;
+  }
+  
+  public synchronized void removeTenant(String tenantId) {
+    TenantAcquisitionState state = states.remove(tenantId);
+    if (state != null) {
+      state.removed = true;
+      if (state.queued) {
+        queue.remove(state);
+        state.queued = false;
+      }
+    }
+  }
+  
+  /**
+   * Waits at most the given time for the acquisition of a tenant to become due.
+   * 
+   * @return The tenant that is due or null if none became due in time.
+   */
+  public TenantAcquisitionState poll(long timeout, TimeUnit unit) throws InterruptedException {
+    TenantAcquisitionState state = queue.poll(timeout, unit);
+    if (state != null) {
+      synchronized (this) {
+        if (state.removed) {
+          return null;
+        }
+        state.queued = false;
+      }
+    }
+    return state;
+  }
+  
+  /**
+   * Puts the tenant back in the queue, according to its (updated) acquisition times.
+   */
+  public synchronized void reschedule(TenantAcquisitionState state) {
+    if (state.removed || state.queued) {
+      return;
+    }
+    if (state.requestedAcquisitionTime != Long.MAX_VALUE) {
+      state.resetBackoff(state.requestedAcquisitionTime);
+      state.requestedAcquisitionTime = Long.MAX_VALUE;
+    }
+    state.queued = true;
+    queue.offer(state);
+  }
+  
+  /**
+   * Resets the back-off of the tenant and makes sure its acquisition happens no later than the given time.
+   */
+  public synchronized void resetBackoff(String tenantId, long acquisitionTime) {
+    TenantAcquisitionState state = states.get(tenantId);
+    if (state == null) {
+      return;
+    }
+    
+    if (state.queued && queue.remove(state)) {
+      state.resetBackoff(acquisitionTime);
+      queue.offer(state);
+    } else if (acquisitionTime < state.requestedAcquisitionTime) {
+      // Being handled right now: applied when rescheduled
+      state.requestedAcquisitionTime = acquisitionTime;
+    }
+  }
+  
+  /**
+   * Makes the acquisition of the tenant due immediately.
+   */
+  public void wakeUp(String tenantId) {
+    resetBackoff(tenantId, System.currentTimeMillis());
+  }
+  
+  public TenantAcquisitionState getState(String tenantId) {
+    return states.get(tenantId);
+  }
+  
+  public Collection<TenantAcquisitionState> getStates() {
+    return states.values();
+  }
+
+}
@@ -0,0 +1,138 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers for one tenant when its async jobs and timers are due to be acquired next.
+ * 
+ * When a maximum back-off is given, every acquisition that comes back empty doubles the wait time
+ * (starting from the default wait time) up to that maximum. A full batch means acquiring again immediately.
+ * 
+ * The times must only be changed while the state is not queued in a {@link TenantAcquisitionScheduler}
+ * (its position in the queue depends on them).
+ * 
+ * @author Joram Barrez
+ */
+public class TenantAcquisitionState implements Delayed {
+  
+  protected final String tenantId;
+  
+  protected volatile long nextAsyncJobAcquisitionTime;
+  protected volatile long nextTimerJobAcquisitionTime;
+  
+  protected int emptyAsyncJobAcquisitionCount;
+  protected int emptyTimerJobAcquisitionCount;
+  
+  // Guarded by the scheduler
+  protected boolean queued;
+  protected long requestedAcquisitionTime = Long.MAX_VALUE;
+  protected boolean removed;
+  
+  public TenantAcquisitionState(String tenantId) {
+    this.tenantId = tenantId;
+  }
+  
+  public boolean isAsyncJobAcquisitionDue(long now) {
+    return nextAsyncJobAcquisitionTime <= now;
+  }
+  
+  public boolean isTimerJobAcquisitionDue(long now) {
+    return nextTimerJobAcquisitionTime <= now;
+  }
+  
+  public void asyncJobsAcquired(int nrOfJobs, int maxJobsPerAcquisition, long waitTimeInMillis, long maxBackoffInMillis, long now) {
+    emptyAsyncJobAcquisitionCount = nrOfJobs == 0 ? emptyAsyncJobAcquisitionCount + 1 : 0;
+    nextAsyncJobAcquisitionTime = now + determineWaitTime(nrOfJobs, maxJobsPerAcquisition, 
+        emptyAsyncJobAcquisitionCount, waitTimeInMillis, maxBackoffInMillis);
+  }
+  
+  public void timerJobsAcquired(int nrOfJobs, int maxJobsPerAcquisition, long waitTimeInMillis, long maxBackoffInMillis, long now) {
+    emptyTimerJobAcquisitionCount = nrOfJobs == 0 ? emptyTimerJobAcquisitionCount + 1 : 0;
+    nextTimerJobAcquisitionTime = now + determineWaitTime(nrOfJobs, maxJobsPerAcquisition, 
+        emptyTimerJobAcquisitionCount, waitTimeInMillis, maxBackoffInMillis);
+  }
+  
+  protected long determineWaitTime(int nrOfJobs, int maxJobsPerAcquisition, int emptyAcquisitionCount, long waitTimeInMillis, long maxBackoffInMillis) {
+    if (nrOfJobs >= maxJobsPerAcquisition) {
+      return 0L; // Probably more jobs waiting
+    }
+    if (nrOfJobs > 0 || maxBackoffInMillis <= waitTimeInMillis) {
+      return waitTimeInMillis;
+    }
+    
+    long backoff = waitTimeInMillis << Math.min(emptyAcquisitionCount - 1, 30);
+    return backoff > 0 && backoff < maxBackoffInMillis ? backoff : maxBackoffInMillis;
+  }
+  
+  /**
+   * Forgets about previous empty acquisitions and makes sure both acquisitions happen no later than the given time.
+   */
+  public void resetBackoff(long acquisitionTime) {
+    emptyAsyncJobAcquisitionCount = 0;
+    emptyTimerJobAcquisitionCount = 0;
+    if (acquisitionTime < nextAsyncJobAcquisitionTime) {
+      nextAsyncJobAcquisitionTime = acquisitionTime;
+    }
+    if (acquisitionTime < nextTimerJobAcquisitionTime) {
+      nextTimerJobAcquisitionTime = acquisitionTime;
+    }
+  }
+  
+  public void scheduleAsyncJobAcquisition(long time) {
+    nextAsyncJobAcquisitionTime = time;
+  }
+  
+  public void scheduleTimerJobAcquisition(long time) {
+    nextTimerJobAcquisitionTime = time;
+  }
+  
+  public long getNextAcquisitionTime() {
+    return Math.min(nextAsyncJobAcquisitionTime, nextTimerJobAcquisitionTime);
+  }
+  
+  public long getDelay(TimeUnit unit) {
+    return unit.convert(getNextAcquisitionTime() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  public int compareTo(Delayed other) {
+    if (other == this) {
+      return 0;
+    }
+    long difference = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+  }
+  
+  public String getTenantId() {
+    return tenantId;
+  }
+
+  public long getNextAsyncJobAcquisitionTime() {
+    return nextAsyncJobAcquisitionTime;
+  }
+
+  public long getNextTimerJobAcquisitionTime() {
+    return nextTimerJobAcquisitionTime;
+  }
+  
+  public int getEmptyAsyncJobAcquisitionCount() {
+    return emptyAsyncJobAcquisitionCount;
+  }
+
+  public int getEmptyTimerJobAcquisitionCount() {
+    return emptyTimerJobAcquisitionCount;
+  }
+  
+}
@@ -12,22 +12,47 @@
  */
 package org.activiti.multitenant.job;
 
+import org.activiti.engine.ActivitiOptimisticLockingException;
 import org.activiti.engine.impl.asyncexecutor.AcquireAsyncJobsDueRunnable;
 import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.multitenant.cluster.TenantNodeAssignment;
 import org.activiti.tenant.TenantInfoHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Acquires the async jobs of one tenant.
+ * 
+ * When a maximum back-off is set, the wait time between acquisitions grows
+ * for as long as the acquisitions of the tenant come back empty (see {@link TenantAcquisitionState}).
+ * 
+ * With a {@link TenantNodeAssignment}, the jobs are only acquired while the tenant is assigned to this node.
+ * 
  * @author Joram Barrez
  */
 public class TenantAwareAcquireAsyncJobsDueRunnable extends AcquireAsyncJobsDueRunnable {
+  
+  private static final Logger logger = LoggerFactory.getLogger(TenantAwareAcquireAsyncJobsDueRunnable.class);
 
   protected TenantInfoHolder tenantInfoHolder;
   protected String tenantId;
   
+  protected TenantJobAcquirer jobAcquirer;
+  protected TenantAcquisitionState acquisitionState;
+  protected long maxBackoffInMillis;
+  protected TenantJobMetrics metrics;
+  protected TenantNodeAssignment nodeAssignment;
+  
+  protected final Object monitor = new Object();
+  protected volatile boolean isStopped;
+  protected long requestedAcquisitionTime = Long.MAX_VALUE; // Guarded by the monitor
+  
   public TenantAwareAcquireAsyncJobsDueRunnable(AsyncExecutor asyncExecutor, TenantInfoHolder tenantInfoHolder, String tenantId) {
     super(asyncExecutor);
     this.tenantInfoHolder = tenantInfoHolder;
     this.tenantId = tenantId;
+    this.jobAcquirer = new TenantJobAcquirer(asyncExecutor);
+    this.acquisitionState = new TenantAcquisitionState(tenantId);
   }
   
   protected ExecutorPerTenantAsyncExecutor getTenantAwareAsyncExecutor() {
@@ -35,10 +60,122 @@ public class TenantAwareAcquireAsyncJobsDueRunnable extends AcquireAsyncJobsDueR
   }
   
   @Override
-  public synchronized void run() {
+  public void run() {
+    logger.info("Starting to acquire async jobs for tenant {}", tenantId);
+    
     tenantInfoHolder.setCurrentTenantId(tenantId);
-    super.run();
-    tenantInfoHolder.clearCurrentTenantId();
+    try {
+      while (!isStopped) {
+        acquireJobs();
+        waitForNextAcquisition();
+      }
+    } catch (InterruptedException e) {
+      logger.info("Async job acquisition for tenant {} interrupted", tenantId);
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+    
+    logger.info("Stopped acquiring async jobs for tenant {}", tenantId);
+  }
+  
+  protected void acquireJobs() {
+    if (nodeAssignment != null && !nodeAssignment.isAssigned(tenantId)) {
+      // Another node acquires the jobs of the tenant. Woken up when this node takes the tenant over.
+      synchronized (monitor) {
+        acquisitionState.scheduleAsyncJobAcquisition(System.currentTimeMillis() + nodeAssignment.getHeartbeatIntervalInMillis());
+      }
+      return;
+    }
+    
+    synchronized (monitor) {
+      requestedAcquisitionTime = Long.MAX_VALUE; // Requests from now on aren't covered by this acquisition
+    }
+    
+    try {
+      int nrOfJobs = jobAcquirer.acquireAsyncJobs(metrics);
+      synchronized (monitor) {
+        acquisitionState.asyncJobsAcquired(nrOfJobs, asyncExecutor.getMaxAsyncJobsDuePerAcquisition(),
+            asyncExecutor.getDefaultAsyncJobAcquireWaitTimeInMillis(), maxBackoffInMillis, System.currentTimeMillis());
+        if (requestedAcquisitionTime != Long.MAX_VALUE) {
+          // Scheduled while acquiring (e.g. a job was created): not to be overwritten by the computed time
+          acquisitionState.resetBackoff(requestedAcquisitionTime);
+        }
+      }
+    } catch (ActivitiOptimisticLockingException e) {
+      logger.debug("Optimistic locking exception during async job acquisition for tenant {}", tenantId);
+      synchronized (monitor) {
+        acquisitionState.scheduleAsyncJobAcquisition(System.currentTimeMillis());
+      }
+    } catch (Throwable e) {
+      logger.error("Exception during async job acquisition for tenant " + tenantId, e);
+      synchronized (monitor) {
+        acquisitionState.scheduleAsyncJobAcquisition(System.currentTimeMillis() + asyncExecutor.getDefaultAsyncJobAcquireWaitTimeInMillis());
+      }
+    }
+  }
+  
+  protected void waitForNextAcquisition() throws InterruptedException {
+    synchronized (monitor) {
+      long millisToWait = acquisitionState.getNextAsyncJobAcquisitionTime() - System.currentTimeMillis();
+      while (!isStopped && millisToWait > 0) {
+        monitor.wait(millisToWait);
+        millisToWait = acquisitionState.getNextAsyncJobAcquisitionTime() - System.currentTimeMillis();
+      }
+    }
+  }
+  
+  /**
+   * Forgets about previous empty acquisitions: the next acquisition happens at the latest after the default wait time.
+   */
+  public void resetBackoff() {
+    scheduleAcquisition(System.currentTimeMillis() + asyncExecutor.getDefaultAsyncJobAcquireWaitTimeInMillis());
+  }
+  
+  /**
+   * Resets the back-off and makes sure the next acquisition happens no later than the given time.
+   */
+  public void scheduleAcquisition(long time) {
+    synchronized (monitor) {
+      requestedAcquisitionTime = Math.min(requestedAcquisitionTime, time);
+      acquisitionState.resetBackoff(time);
+      monitor.notifyAll();
+    }
+  }
+  
+  @Override
+  public void stop() {
+    synchronized (monitor) {
+      isStopped = true;
+      monitor.notifyAll();
+    }
+  }
+  
+  public TenantAcquisitionState getAcquisitionState() {
+    return acquisitionState;
+  }
+
+  public TenantJobMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void setMetrics(TenantJobMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public TenantNodeAssignment getNodeAssignment() {
+    return nodeAssignment;
+  }
+
+  public void setNodeAssignment(TenantNodeAssignment nodeAssignment) {
+    this.nodeAssignment = nodeAssignment;
+  }
+
+  public long getMaxBackoffInMillis() {
+    return maxBackoffInMillis;
+  }
+
+  public void setMaxBackoffInMillis(long maxBackoffInMillis) {
+    this.maxBackoffInMillis = maxBackoffInMillis;
   }
 
 }
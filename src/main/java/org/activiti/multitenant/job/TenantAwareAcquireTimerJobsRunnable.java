@@ -12,22 +12,52 @@
  */
 package org.activiti.multitenant.job;
 
+import org.activiti.engine.ActivitiOptimisticLockingException;
 import org.activiti.engine.impl.asyncexecutor.AcquireTimerJobsRunnable;
 import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.multitenant.cluster.TenantNodeAssignment;
 import org.activiti.tenant.TenantInfoHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * Acquires the timers of one tenant.
+ * 
+ * When a maximum back-off is set, the wait time between acquisitions grows
+ * for as long as the acquisitions of the tenant come back empty (see {@link TenantAcquisitionState}).
+ * 
+ * With a {@link TenantTimerWheel}, the timers due within the lookahead window are read after each acquisition
+ * and the next acquisition only happens after that window, unless the wheel triggers it earlier.
+ * With a {@link TenantTimerDueIndex}, the next acquisition happens when the next timer of the tenant is due.
+ * With a {@link TenantNodeAssignment}, the timers are only acquired while the tenant is assigned to this node.
+ * 
  * @author Joram Barrez
  */
 public class TenantAwareAcquireTimerJobsRunnable extends AcquireTimerJobsRunnable {
+  
+  private static final Logger logger = LoggerFactory.getLogger(TenantAwareAcquireTimerJobsRunnable.class);
 
   protected TenantInfoHolder tenantInfoHolder;
   protected String tenantId;
   
+  protected TenantJobAcquirer jobAcquirer;
+  protected TenantAcquisitionState acquisitionState;
+  protected long maxBackoffInMillis;
+  protected TenantJobMetrics metrics;
+  protected TenantTimerWheel timerWheel;
+  protected TenantTimerDueIndex timerDueIndex;
+  protected TenantNodeAssignment nodeAssignment;
+  
+  protected final Object monitor = new Object();
+  protected volatile boolean isStopped;
+  protected long requestedAcquisitionTime = Long.MAX_VALUE; // Guarded by the monitor
+  
   public TenantAwareAcquireTimerJobsRunnable(AsyncExecutor asyncExecutor, TenantInfoHolder tenantInfoHolder, String tenantId) {
     super(asyncExecutor);
     this.tenantInfoHolder = tenantInfoHolder;
     this.tenantId = tenantId;
+    this.jobAcquirer = new TenantJobAcquirer(asyncExecutor);
+    this.acquisitionState = new TenantAcquisitionState(tenantId);
   }
   
   protected ExecutorPerTenantAsyncExecutor getTenantAwareAsyncExecutor() {
@@ -35,10 +65,149 @@ public class TenantAwareAcquireTimerJobsRunnable extends AcquireTimerJobsRunnabl
   }
   
   @Override
-  public synchronized void run() {
+  public void run() {
+    logger.info("Starting to acquire timers for tenant {}", tenantId);
+    
     tenantInfoHolder.setCurrentTenantId(tenantId);
-    super.run();
-    tenantInfoHolder.clearCurrentTenantId();
+    try {
+      while (!isStopped) {
+        acquireJobs();
+        waitForNextAcquisition();
+      }
+    } catch (InterruptedException e) {
+      logger.info("Timer acquisition for tenant {} interrupted", tenantId);
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+    
+    logger.info("Stopped acquiring timers for tenant {}", tenantId);
+  }
+  
+  protected void acquireJobs() {
+    if (nodeAssignment != null && !nodeAssignment.isAssigned(tenantId)) {
+      // Another node acquires the timers of the tenant. Woken up when this node takes the tenant over.
+      synchronized (monitor) {
+        acquisitionState.scheduleTimerJobAcquisition(System.currentTimeMillis() + nodeAssignment.getHeartbeatIntervalInMillis());
+      }
+      return;
+    }
+    
+    synchronized (monitor) {
+      requestedAcquisitionTime = Long.MAX_VALUE; // Requests from now on aren't covered by this acquisition
+    }
+    
+    try {
+      int nrOfJobs = jobAcquirer.acquireTimerJobs(metrics);
+      long waitTime = asyncExecutor.getDefaultTimerJobAcquireWaitTimeInMillis();
+      long maxBackoff = maxBackoffInMillis;
+      if (timerDueIndex != null) {
+        waitTime = timerDueIndex.refresh(tenantId, jobAcquirer);
+        maxBackoff = 0L; // The wait time is known, no need to guess
+      }
+      if (timerWheel != null) {
+        long lookaheadWaitTime = timerWheel.lookahead(tenantId, jobAcquirer);
+        waitTime = timerDueIndex != null ? Math.min(waitTime, lookaheadWaitTime) : lookaheadWaitTime;
+        maxBackoff = 0L;
+      }
+      synchronized (monitor) {
+        acquisitionState.timerJobsAcquired(nrOfJobs, asyncExecutor.getMaxTimerJobsPerAcquisition(),
+            waitTime, maxBackoff, System.currentTimeMillis());
+        if (requestedAcquisitionTime != Long.MAX_VALUE) {
+          // Scheduled while acquiring (e.g. a timer was created): not to be overwritten by the computed time
+          acquisitionState.resetBackoff(requestedAcquisitionTime);
+        }
+      }
+    } catch (ActivitiOptimisticLockingException e) {
+      logger.debug("Optimistic locking exception during timer acquisition for tenant {}", tenantId);
+      synchronized (monitor) {
+        acquisitionState.scheduleTimerJobAcquisition(System.currentTimeMillis());
+      }
+    } catch (Throwable e) {
+      logger.error("Exception during timer acquisition for tenant " + tenantId, e);
+      synchronized (monitor) {
+        acquisitionState.scheduleTimerJobAcquisition(System.currentTimeMillis() + asyncExecutor.getDefaultTimerJobAcquireWaitTimeInMillis());
+      }
+    }
+  }
+  
+  protected void waitForNextAcquisition() throws InterruptedException {
+    synchronized (monitor) {
+      long millisToWait = acquisitionState.getNextTimerJobAcquisitionTime() - System.currentTimeMillis();
+      while (!isStopped && millisToWait > 0) {
+        monitor.wait(millisToWait);
+        millisToWait = acquisitionState.getNextTimerJobAcquisitionTime() - System.currentTimeMillis();
+      }
+    }
+  }
+  
+  /**
+   * Forgets about previous empty acquisitions: the next acquisition happens at the latest after the default wait time.
+   */
+  public void resetBackoff() {
+    scheduleAcquisition(System.currentTimeMillis() + asyncExecutor.getDefaultTimerJobAcquireWaitTimeInMillis());
+  }
+  
+  /**
+   * Resets the back-off and makes sure the next acquisition happens no later than the given time.
+   */
+  public void scheduleAcquisition(long time) {
+    synchronized (monitor) {
+      requestedAcquisitionTime = Math.min(requestedAcquisitionTime, time);
+      acquisitionState.resetBackoff(time);
+      monitor.notifyAll();
+    }
+  }
+  
+  @Override
+  public void stop() {
+    synchronized (monitor) {
+      isStopped = true;
+      monitor.notifyAll();
+    }
+  }
+  
+  public TenantAcquisitionState getAcquisitionState() {
+    return acquisitionState;
+  }
+
+  public TenantTimerDueIndex getTimerDueIndex() {
+    return timerDueIndex;
+  }
+
+  public void setTimerDueIndex(TenantTimerDueIndex timerDueIndex) {
+    this.timerDueIndex = timerDueIndex;
+  }
+
+  public TenantTimerWheel getTimerWheel() {
+    return timerWheel;
+  }
+
+  public void setTimerWheel(TenantTimerWheel timerWheel) {
+    this.timerWheel = timerWheel;
+  }
+
+  public TenantNodeAssignment getNodeAssignment() {
+    return nodeAssignment;
+  }
+
+  public void setNodeAssignment(TenantNodeAssignment nodeAssignment) {
+    this.nodeAssignment = nodeAssignment;
+  }
+
+  public TenantJobMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void setMetrics(TenantJobMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public long getMaxBackoffInMillis() {
+    return maxBackoffInMillis;
+  }
+
+  public void setMaxBackoffInMillis(long maxBackoffInMillis) {
+    this.maxBackoffInMillis = maxBackoffInMillis;
   }
 
 }
@@ -14,6 +14,7 @@
 package org.activiti.multitenant.job;
 
 import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
 
 /**
  * @author Joram Barrez
@@ -21,5 +22,31 @@ import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
 public interface TenantAwareAsyncExecutor extends AsyncExecutor {
   
   void addTenantAsyncExecutor(String tenantId, boolean startExecutor);
+  
+  /**
+   * Stops the job acquisition of the tenant and waits (bounded) for its acquired jobs to finish.
+   * Jobs that didn't start are unlocked, so they are acquired again when the tenant is added back.
+   */
+  void removeTenantAsyncExecutor(String tenantId);
+  
+  /**
+   * Called when a job is created for the given tenant (the transaction creating it is not yet committed).
+   */
+  void jobCreated(String tenantId, JobEntity job);
+  
+  /**
+   * Called when the transaction that created the job for the given tenant is committed.
+   */
+  void jobCommitted(String tenantId, JobEntity job);
+  
+  /**
+   * Makes sure the async jobs of the tenant are acquired no later than the given time.
+   */
+  void scheduleAsyncJobAcquisition(String tenantId, long time);
+  
+  /**
+   * Makes sure the timers of the tenant are acquired no later than the given time.
+   */
+  void scheduleTimerJobAcquisition(String tenantId, long time);
 
 }
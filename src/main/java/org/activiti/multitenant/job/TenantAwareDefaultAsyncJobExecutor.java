@@ -0,0 +1,553 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.impl.asyncexecutor.DefaultAsyncJobExecutor;
+import org.activiti.engine.impl.interceptor.CommandConfig;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.impl.persistence.entity.TimerEntity;
+import org.activiti.impl.cmd.UnlockJobsCommand;
+import org.activiti.tenant.TenantInfoHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link DefaultAsyncJobExecutor} that knows for which tenant it executes jobs.
+ * 
+ * When a job is rejected because the queue is full, the job is unlocked and the acquisition
+ * of the tenant is scheduled shortly after, instead of leaving the job until its lock expires.
+ * With a {@link TenantOverflowBuffer}, rejected jobs are first buffered per tenant and handed back as capacity frees up.
+ * Jobs that are committed without being handed over in-memory (see {@link #jobCommitted(String, JobEntity)}) 
+ * wake up the acquisition of the tenant immediately.
+ * 
+ * The {@link TenantJobExecutionMode} determines the {@link ExecutorService} that is created when it's not set explicitly.
+ * 
+ * Shutting down happens in two phases (see {@link #beginShutdown(TenantShutdownReport)} and {@link #awaitShutdown()}), 
+ * bounded by a deadline: jobs that didn't start by then are unlocked for re-acquisition.
+ * 
+ * Used for the executors created by the {@link ExecutorPerTenantAsyncExecutor} (one tenant)
+ * and as base for the {@link SharedExecutorServiceAsyncExecutor} (all tenants).
+ * 
+ * @author Joram Barrez
+ */
+public class TenantAwareDefaultAsyncJobExecutor extends DefaultAsyncJobExecutor {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantAwareDefaultAsyncJobExecutor.class);
+  
+  /** 
+   * Jobs are handed over after the commit of the creating command, whose context is still open: 
+   * reusing it would mean the unlock is never flushed.
+   */
+  protected static final CommandConfig UNLOCK_COMMAND_CONFIG = new CommandConfig().transactionRequiresNew();
+  
+  protected static final AtomicInteger threadCounter = new AtomicInteger();
+
+  protected TenantInfoHolder tenantInfoHolder;
+
+  protected TenantJobExecutionMode jobExecutionMode = TenantJobExecutionMode.THREAD_POOL;
+  protected Map<String, Integer> tenantWeights = new ConcurrentHashMap<String, Integer>();
+  protected Map<String, Integer> tenantMaxConcurrency = new ConcurrentHashMap<String, Integer>();
+  protected int defaultTenantMaxConcurrency;
+  
+  /** Limits the concurrent jobs in {@link TenantJobExecutionMode#THREAD_PER_JOB}. Can be shared between executors. Defaults to the max pool size. */
+  protected Semaphore globalJobPermits;
+  
+  /** In {@link TenantJobExecutionMode#WORK_STEALING}: the pool shared with the executors of the other tenants. */
+  protected TenantWorkStealingPool workStealingPool;
+  protected String workStealingTenantId;
+  protected int reservedThreadCount;
+  
+  /** When set, timers committed in this engine that are due soon are added to it. */
+  protected TenantTimerWheel timerWheel;
+  
+  /** When set, timers committed in this engine that are due before the next known timer of their tenant wake up the timer acquisition. */
+  protected TenantTimerDueIndex timerDueIndex;
+  
+  /** Time after which the acquisition of a tenant is retried when one of its jobs was rejected. */
+  protected long rejectedJobReacquireDelayInMillis = 1000L;
+  
+  /** When set, rejected jobs wait in it for capacity instead of being unlocked. */
+  protected TenantOverflowBuffer overflowBuffer;
+  
+  protected volatile TenantShutdownReport shutdownReport;
+  protected TenantShutdownReport lastShutdownReport;
+
+  public TenantAwareDefaultAsyncJobExecutor(TenantInfoHolder tenantInfoHolder) {
+    this.tenantInfoHolder = tenantInfoHolder;
+  }
+
+  @Override
+  protected void startExecutingAsyncJobs() {
+    if (executorService == null) {
+      executorService = createExecutorService();
+    }
+    super.startExecutingAsyncJobs();
+    if (overflowBuffer != null) {
+      overflowBuffer.start();
+    }
+  }
+  
+  protected ExecutorService createExecutorService() {
+    switch (jobExecutionMode) {
+      case TENANT_FAIR_QUEUE:
+        return new TenantFairExecutorService(maxPoolSize, queueSize, tenantWeights, tenantMaxConcurrency);
+      case THREAD_PER_JOB:
+        if (globalJobPermits == null) {
+          globalJobPermits = new Semaphore(maxPoolSize);
+        }
+        return new TenantThreadPerJobExecutorService(globalJobPermits, maxPoolSize + queueSize, tenantMaxConcurrency, defaultTenantMaxConcurrency);
+      case WORK_STEALING:
+        if (workStealingPool == null) {
+          throw new ActivitiException("Work stealing needs a TenantWorkStealingPool, see joinWorkStealingPool()");
+        }
+        return workStealingPool.createExecutorService(workStealingTenantId, maxPoolSize, queueSize, reservedThreadCount);
+      default:
+        if (threadPoolQueue == null) {
+          threadPoolQueue = new ArrayBlockingQueue<Runnable>(queueSize);
+        }
+        return new TenantThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveTime, TimeUnit.MILLISECONDS, threadPoolQueue, createThreadFactory());
+    }
+  }
+  
+  /**
+   * Names the pool threads like the {@link DefaultAsyncJobExecutor} does.
+   */
+  protected ThreadFactory createThreadFactory() {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, "activiti-async-job-executor-thread-" + threadCounter.incrementAndGet());
+      }
+    };
+  }
+  
+  @Override
+  public void executeAsyncJob(JobEntity job) {
+    if (!isActive() || executorService == null) {
+      super.executeAsyncJob(job); // Queued until started
+      return;
+    }
+
+    Runnable runnable = createRunnableForJob(job);
+    TenantJobMetrics metrics = runnable instanceof TenantAwareExecuteAsyncRunnable ? ((TenantAwareExecuteAsyncRunnable) runnable).getMetrics() : null;
+    if (metrics != null) {
+      metrics.jobQueued(); // Before handing it over, the job can start right away
+    }
+    
+    if (overflowBuffer != null && overflowBuffer.hasBufferedJobs(getTenantId(runnable))) {
+      // Behind the jobs of the tenant that are already waiting for capacity, to keep them in order
+      overflow(job, runnable, metrics);
+      return;
+    }
+    
+    try {
+      executorService.execute(runnable);
+    } catch (RejectedExecutionException e) {
+      overflow(job, runnable, metrics);
+    }
+  }
+  
+  protected void overflow(JobEntity job, Runnable runnable, TenantJobMetrics metrics) {
+    if (overflowBuffer != null && overflowBuffer.offer(getTenantId(runnable), job, runnable)) {
+      return;
+    }
+    
+    // No buffer, or the buffer of the tenant is full
+    if (metrics != null) {
+      metrics.jobRejected();
+    }
+    jobRejected(job, runnable);
+  }
+  
+  protected String getTenantId(Runnable runnable) {
+    return runnable instanceof TenantAwareRunnable ? ((TenantAwareRunnable) runnable).getTenantId() : tenantInfoHolder.getCurrentTenantId();
+  }
+
+  /**
+   * The engine hands new async jobs over in-memory by locking them in the creating transaction
+   * and executing them after commit. Jobs that weren't locked (hand-over disabled or not possible) 
+   * and timers that are already due are picked up by waking up the acquisition of the tenant.
+   */
+  public void jobCommitted(String tenantId, JobEntity job) {
+    long now = System.currentTimeMillis();
+    if (job instanceof TimerEntity) {
+      if (job.getDuedate() == null || job.getDuedate().getTime() <= now) {
+        scheduleTimerJobAcquisition(tenantId, now);
+      } else {
+        if (timerDueIndex != null && timerDueIndex.timerCreated(tenantId, job.getDuedate().getTime())) {
+          scheduleTimerJobAcquisition(tenantId, job.getDuedate().getTime()); // Sooner than the acquisition planned to wake up
+        }
+        if (timerWheel != null) {
+          timerWheel.addTimer(tenantId, job.getId(), job.getDuedate());
+        }
+      }
+    } else if (job.getLockOwner() == null) {
+      scheduleAsyncJobAcquisition(tenantId, now);
+    }
+  }
+  
+  /**
+   * A job created in-process means the tenant is no longer idle: resets the acquisition back-off of the tenant.
+   */
+  public void jobCreated(String tenantId, JobEntity job) {
+    long now = System.currentTimeMillis();
+    if (job instanceof TimerEntity) {
+      scheduleTimerJobAcquisition(tenantId, now + getDefaultTimerJobAcquireWaitTimeInMillis());
+    } else {
+      scheduleAsyncJobAcquisition(tenantId, now + getDefaultAsyncJobAcquireWaitTimeInMillis());
+    }
+  }
+
+  protected void jobRejected(JobEntity job, Runnable runnable) {
+    String tenantId = getTenantId(runnable);
+    logger.debug("Job {} of tenant {} rejected, unlocking it", job.getId(), tenantId);
+
+    unlockJob(job);
+    TenantShutdownReport report = shutdownReport;
+    if (report != null) {
+      report.jobUnlocked(tenantId, job.getId()); // Acquired while shutting down
+    }
+    scheduleAsyncJobAcquisition(tenantId, System.currentTimeMillis() + rejectedJobReacquireDelayInMillis);
+  }
+
+  protected void unlockJob(JobEntity job) {
+    try {
+      commandExecutor.execute(UNLOCK_COMMAND_CONFIG, new UnlockJobsCommand(job.getId()));
+    } catch (Exception e) {
+      logger.warn("Could not unlock job " + job.getId() + ", it will be acquired again when its lock expires", e);
+    }
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    if (!isActive) {
+      return;
+    }
+    
+    TenantShutdownReport report = new TenantShutdownReport(System.currentTimeMillis() + secondsToWaitOnShutdown * 1000L);
+    beginShutdown(report);
+    if (!awaitShutdown()) {
+      report.timedOut(null);
+    }
+    report.finished();
+    logger.info("{}", report);
+  }
+  
+  /**
+   * First phase of the shutdown: signals the job acquisition to stop and the executor service to finish its jobs, without waiting.
+   * This way, an executor for many tenants can signal all of them before waiting for any.
+   */
+  public void beginShutdown(TenantShutdownReport report) {
+    if (!isActive) {
+      return;
+    }
+    
+    this.shutdownReport = report;
+    signalJobAcquisitionStop();
+    if (overflowBuffer != null) {
+      overflowBuffer.signalStop();
+    }
+    if (executorService != null) {
+      executorService.shutdown();
+    }
+  }
+  
+  /**
+   * Second phase of the shutdown: waits, no longer than the deadline of the report, for the acquisition to stop and the jobs to finish.
+   * The jobs in the overflow buffer are unlocked right away. Jobs that haven't started by the deadline are unlocked as well, 
+   * so they can be acquired again, and the executing jobs are interrupted.
+   * 
+   * @return False if jobs were still executing at the deadline.
+   */
+  public synchronized boolean awaitShutdown() {
+    if (!isActive || shutdownReport == null) {
+      return true;
+    }
+    
+    TenantShutdownReport report = shutdownReport;
+    awaitJobAcquisitionStop(report.getDeadline());
+    if (overflowBuffer != null) {
+      overflowBuffer.awaitStop(report.getDeadline());
+      overflowBuffer.releaseAll();
+    }
+    
+    boolean terminated = true;
+    if (executorService != null) {
+      try {
+        terminated = executorService.awaitTermination(Math.max(0L, report.getDeadline() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while waiting for the jobs to finish");
+        Thread.currentThread().interrupt();
+        terminated = false;
+      }
+      
+      if (!terminated) {
+        unlockJobs(executorService.shutdownNow(), report);
+        terminated = executorService.isTerminated();
+      }
+      executorService = null;
+    }
+    
+    timerJobRunnable = null;
+    asyncJobsDueRunnable = null;
+    shutdownReport = null;
+    lastShutdownReport = report;
+    isActive = false;
+    return terminated;
+  }
+  
+  protected void signalJobAcquisitionStop() {
+    if (timerJobRunnable != null) {
+      timerJobRunnable.stop();
+    }
+    if (asyncJobsDueRunnable != null) {
+      asyncJobsDueRunnable.stop();
+    }
+  }
+  
+  protected void awaitJobAcquisitionStop(long deadline) {
+    joinUntil(timerJobAcquisitionThread, deadline);
+    joinUntil(asyncJobAcquisitionThread, deadline);
+  }
+  
+  protected void joinUntil(Thread thread, long deadline) {
+    if (thread == null) {
+      return;
+    }
+    
+    long millisToWait = deadline - System.currentTimeMillis();
+    if (millisToWait > 0) {
+      try {
+        thread.join(millisToWait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (thread.isAlive()) {
+      logger.warn("Thread {} didn't stop before the shutdown deadline", thread.getName());
+    }
+  }
+  
+  /**
+   * Unlocks the jobs of runnables that were never started, per tenant, with that tenant as current tenant.
+   * They're no longer queued, so they're taken out of the queue depth of their tenant.
+   * 
+   * @param report The shutdown report in which the unlocked jobs are recorded. Can be null.
+   */
+  protected void unlockJobs(List<Runnable> runnables, TenantShutdownReport report) {
+    Map<String, List<String>> jobIdsPerTenant = new HashMap<String, List<String>>();
+    for (Runnable runnable : runnables) {
+      if (runnable instanceof TenantAwareExecuteAsyncRunnable) {
+        TenantAwareExecuteAsyncRunnable executeRunnable = (TenantAwareExecuteAsyncRunnable) runnable;
+        if (executeRunnable.getMetrics() != null) {
+          executeRunnable.getMetrics().jobDrained();
+        }
+        List<String> jobIds = jobIdsPerTenant.get(executeRunnable.getTenantId());
+        if (jobIds == null) {
+          jobIds = new ArrayList<String>();
+          jobIdsPerTenant.put(executeRunnable.getTenantId(), jobIds);
+        }
+        jobIds.add(executeRunnable.getJob().getId());
+      }
+    }
+    
+    unlockJobIds(jobIdsPerTenant, report);
+  }
+  
+  /**
+   * Unlocks the jobs with one command per tenant, with that tenant as current tenant.
+   * 
+   * @param report The shutdown report in which the unlocked jobs are recorded. Can be null.
+   */
+  protected void unlockJobIds(Map<String, List<String>> jobIdsPerTenant, TenantShutdownReport report) {
+    for (String tenantId : jobIdsPerTenant.keySet()) {
+      List<String> jobIds = jobIdsPerTenant.get(tenantId);
+      tenantInfoHolder.setCurrentTenantId(tenantId);
+      try {
+        commandExecutor.execute(UNLOCK_COMMAND_CONFIG, new UnlockJobsCommand(jobIds));
+        if (report != null) {
+          for (String jobId : jobIds) {
+            report.jobUnlocked(tenantId, jobId);
+          }
+        }
+      } catch (Exception e) {
+        logger.warn("Could not unlock the jobs " + jobIds + " of tenant " + tenantId + ", they will be acquired again when their lock expires", e);
+      } finally {
+        tenantInfoHolder.clearCurrentTenantId();
+      }
+    }
+  }
+
+  /**
+   * Makes sure the async jobs of the tenant are acquired no later than the given time.
+   */
+  public void scheduleAsyncJobAcquisition(String tenantId, long time) {
+    if (asyncJobsDueRunnable instanceof TenantAwareAcquireAsyncJobsDueRunnable) {
+      ((TenantAwareAcquireAsyncJobsDueRunnable) asyncJobsDueRunnable).scheduleAcquisition(time);
+    }
+  }
+
+  /**
+   * Makes sure the timers of the tenant are acquired no later than the given time.
+   */
+  public void scheduleTimerJobAcquisition(String tenantId, long time) {
+    if (timerJobRunnable instanceof TenantAwareAcquireTimerJobsRunnable) {
+      ((TenantAwareAcquireTimerJobsRunnable) timerJobRunnable).scheduleAcquisition(time);
+    }
+  }
+
+  public ExecutorService getExecutorService() {
+    return executorService;
+  }
+
+  public void setExecutorService(ExecutorService executorService) {
+    this.executorService = executorService;
+  }
+  
+  public TenantJobExecutionMode getJobExecutionMode() {
+    return jobExecutionMode;
+  }
+
+  /**
+   * Must be set before the executor is started.
+   */
+  public void setJobExecutionMode(TenantJobExecutionMode jobExecutionMode) {
+    this.jobExecutionMode = jobExecutionMode;
+  }
+  
+  /**
+   * Number of jobs a tenant can start per turn, when using {@link TenantJobExecutionMode#TENANT_FAIR_QUEUE}. Defaults to 1.
+   */
+  public void setTenantWeight(String tenantId, int weight) {
+    tenantWeights.put(tenantId, weight);
+  }
+  
+  /**
+   * Maximum number of concurrently executing jobs for a tenant, 
+   * when using {@link TenantJobExecutionMode#TENANT_FAIR_QUEUE} or {@link TenantJobExecutionMode#THREAD_PER_JOB}.
+   */
+  public void setTenantMaxConcurrency(String tenantId, int maxConcurrency) {
+    tenantMaxConcurrency.put(tenantId, maxConcurrency);
+  }
+  
+  public Map<String, Integer> getTenantWeights() {
+    return tenantWeights;
+  }
+
+  public Map<String, Integer> getTenantMaxConcurrency() {
+    return tenantMaxConcurrency;
+  }
+  
+  public int getDefaultTenantMaxConcurrency() {
+    return defaultTenantMaxConcurrency;
+  }
+
+  /**
+   * Maximum number of concurrently executing jobs for tenants without specific limit, 
+   * when using {@link TenantJobExecutionMode#THREAD_PER_JOB}. 0 (default) means no limit per tenant.
+   */
+  public void setDefaultTenantMaxConcurrency(int defaultTenantMaxConcurrency) {
+    this.defaultTenantMaxConcurrency = defaultTenantMaxConcurrency;
+  }
+
+  /**
+   * Executes the jobs of the tenant in {@link TenantJobExecutionMode#WORK_STEALING}: the threads of this executor 
+   * help out the other tenants of the pool, except for the reserved threads. Must be called before starting.
+   */
+  public void joinWorkStealingPool(TenantWorkStealingPool workStealingPool, String tenantId, int reservedThreadCount) {
+    this.workStealingPool = workStealingPool;
+    this.workStealingTenantId = tenantId;
+    this.reservedThreadCount = reservedThreadCount;
+  }
+  
+  public TenantWorkStealingPool getWorkStealingPool() {
+    return workStealingPool;
+  }
+
+  public Semaphore getGlobalJobPermits() {
+    return globalJobPermits;
+  }
+
+  public void setGlobalJobPermits(Semaphore globalJobPermits) {
+    this.globalJobPermits = globalJobPermits;
+  }
+
+  public TenantTimerWheel getTimerWheel() {
+    return timerWheel;
+  }
+
+  public void setTimerWheel(TenantTimerWheel timerWheel) {
+    this.timerWheel = timerWheel;
+  }
+
+  public TenantTimerDueIndex getTimerDueIndex() {
+    return timerDueIndex;
+  }
+
+  public void setTimerDueIndex(TenantTimerDueIndex timerDueIndex) {
+    this.timerDueIndex = timerDueIndex;
+  }
+
+  public TenantOverflowBuffer getOverflowBuffer() {
+    return overflowBuffer;
+  }
+
+  /**
+   * Must be set before the executor is started.
+   */
+  public void setOverflowBuffer(TenantOverflowBuffer overflowBuffer) {
+    this.overflowBuffer = overflowBuffer;
+  }
+  
+  /**
+   * Convenience method: an overflow buffer holding at most the given number of rejected jobs per tenant. Must be called before the executor is started.
+   */
+  public void enableOverflowBuffer(int maxJobsPerTenant) {
+    TenantOverflowBuffer overflowBuffer = new TenantOverflowBuffer(this);
+    overflowBuffer.setMaxJobsPerTenant(maxJobsPerTenant);
+    setOverflowBuffer(overflowBuffer);
+  }
+
+  /**
+   * @return The report of the last shutdown, or null if the executor wasn't shut down yet.
+   */
+  public TenantShutdownReport getLastShutdownReport() {
+    return lastShutdownReport;
+  }
+
+  public TenantInfoHolder getTenantInfoHolder() {
+    return tenantInfoHolder;
+  }
+
+  public long getRejectedJobReacquireDelayInMillis() {
+    return rejectedJobReacquireDelayInMillis;
+  }
+
+  public void setRejectedJobReacquireDelayInMillis(long rejectedJobReacquireDelayInMillis) {
+    this.rejectedJobReacquireDelayInMillis = rejectedJobReacquireDelayInMillis;
+  }
+
+}
@@ -19,24 +19,75 @@ import org.activiti.engine.impl.persistence.entity.JobEntity;
 import org.activiti.tenant.TenantInfoHolder;
 
 /**
+ * Executes a job with its tenant set as current tenant.
+ * 
+ * When {@link TenantJobMetrics} are given, the queue wait time, execution time and failures of the job are recorded in them.
+ * 
  * @author Joram Barrez
  */
-public class TenantAwareExecuteAsyncRunnable extends ExecuteAsyncRunnable {
+public class TenantAwareExecuteAsyncRunnable extends ExecuteAsyncRunnable implements TenantAwareRunnable {
   
   protected TenantInfoHolder tenantInfoHolder;
   protected String tenantId;
+  protected long createTime = System.currentTimeMillis();
+  protected TenantJobMetrics metrics;
   
   public TenantAwareExecuteAsyncRunnable(JobEntity job, CommandExecutor commandExecutor, TenantInfoHolder tenantInfoHolder, String tenantId) {
+    this(job, commandExecutor, tenantInfoHolder, tenantId, null);
+  }
+  
+  public TenantAwareExecuteAsyncRunnable(JobEntity job, CommandExecutor commandExecutor, TenantInfoHolder tenantInfoHolder, 
+      String tenantId, TenantJobMetrics metrics) {
     super(job, commandExecutor);
     this.tenantInfoHolder = tenantInfoHolder;
     this.tenantId = tenantId;
+    this.metrics = metrics;
   }
 
   @Override
   public void run() {
+    long start = 0L;
+    if (metrics != null) {
+      metrics.jobStarted(System.currentTimeMillis() - createTime);
+      start = System.nanoTime();
+    }
+    
     tenantInfoHolder.setCurrentTenantId(tenantId);
-    super.run();
-    tenantInfoHolder.clearCurrentTenantId();
+    try {
+      super.run();
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId(); // Threads can be reused (pools) or not (thread per job), don't leak the tenant either way
+      if (metrics != null) {
+        metrics.jobFinished(System.nanoTime() - start);
+      }
+    }
+  }
+  
+  @Override
+  protected void handleFailedJob(Throwable exception) {
+    if (metrics != null) {
+      metrics.jobFailed();
+    }
+    super.handleFailedJob(exception);
+  }
+  
+  public String getTenantId() {
+    return tenantId;
+  }
+  
+  /**
+   * The runnable is created right before it is handed to the executor service: this is the time it got queued.
+   */
+  public long getCreateTime() {
+    return createTime;
+  }
+  
+  public JobEntity getJob() {
+    return job;
+  }
+  
+  public TenantJobMetrics getMetrics() {
+    return metrics;
   }
 
 }
@@ -25,14 +25,20 @@ public class TenantAwareExecuteAsyncRunnableFactory implements ExecuteAsyncRunna
   
   protected TenantInfoHolder tenantInfoHolder;
   protected String tenantId;
+  protected TenantJobMetrics metrics;
   
   public TenantAwareExecuteAsyncRunnableFactory(TenantInfoHolder tenantInfoHolder, String tenantId) {
+    this(tenantInfoHolder, tenantId, null);
+  }
+  
+  public TenantAwareExecuteAsyncRunnableFactory(TenantInfoHolder tenantInfoHolder, String tenantId, TenantJobMetrics metrics) {
     this.tenantInfoHolder = tenantInfoHolder;
     this.tenantId = tenantId;
+    this.metrics = metrics;
   }
 
   public Runnable createExecuteAsyncRunnable(JobEntity jobEntity, CommandExecutor commandExecutor) {
-    return new TenantAwareExecuteAsyncRunnable(jobEntity, commandExecutor, tenantInfoHolder, tenantId);
+    return new TenantAwareExecuteAsyncRunnable(jobEntity, commandExecutor, tenantInfoHolder, tenantId, metrics);
   }
 
 }
@@ -0,0 +1,222 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.engine.impl.JobQueryImpl;
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.multitenant.cluster.TenantNodeAssignment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts the executor of a tenant of an {@link ExecutorPerTenantAsyncExecutor} only when the tenant has jobs,
+ * and stops it again when the tenant has been idle for a long time. This way, the threads and memory of the
+ * tenant executors follow the active tenants instead of the registered ones.
+ * 
+ * A tenant is activated when it creates a job in this engine (see {@link ExecutorPerTenantAsyncExecutor#activateTenant(String)}),
+ * or when the periodic probe finds jobs that are executable or become due before the next probe, created by another engine.
+ * The probe is two queries returning at most one row per inactive tenant.
+ * 
+ * An active tenant is deactivated when no job was created or executed for the idle timeout,
+ * its executor has no queued or running jobs and the probe finds no pending jobs.
+ * A job created while the tenant is deactivated keeps the executor running, or activates a new one.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantExecutorActivator {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantExecutorActivator.class);
+
+  protected ExecutorPerTenantAsyncExecutor asyncExecutor;
+
+  protected long probeIntervalInMillis = 30000L;
+  protected long idleTimeoutInMillis = 10L * 60L * 1000L;
+
+  protected Map<String, Long> lastActivityTimes = new ConcurrentHashMap<String, Long>();
+  protected ScheduledExecutorService scheduler;
+
+  public TenantExecutorActivator(ExecutorPerTenantAsyncExecutor asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+  }
+
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "activiti-tenant-executor-activator");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          check();
+        } catch (Throwable e) {
+          logger.warn("Exception while activating/deactivating tenant executors", e);
+        }
+      }
+    }, 0L, probeIntervalInMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Called for every job the tenant creates or executes in this engine.
+   */
+  public void activity(String tenantId) {
+    lastActivityTimes.put(tenantId, System.currentTimeMillis());
+  }
+
+  /**
+   * @return True when the tenant created or executed a job in this engine at or after the given time.
+   */
+  public boolean hasActivitySince(String tenantId, long time) {
+    Long lastActivityTime = lastActivityTimes.get(tenantId);
+    return lastActivityTime != null && lastActivityTime >= time;
+  }
+
+  public void removeTenant(String tenantId) {
+    lastActivityTimes.remove(tenantId);
+  }
+
+  public void check() {
+    long now = System.currentTimeMillis();
+    for (String tenantId : new ArrayList<String>(asyncExecutor.getRegisteredTenantIds())) {
+      if (!asyncExecutor.getTenantExecutors().containsKey(tenantId)) {
+        if (isAssignedToOtherNode(tenantId)) {
+          continue; // The jobs of the tenant are acquired by another node
+        }
+        if (hasPendingJobs(tenantId, now)) {
+          logger.debug("Tenant {} has pending jobs, activating its executor", tenantId);
+          asyncExecutor.activateTenant(tenantId);
+        }
+      } else if (isIdle(tenantId, now) && asyncExecutor.deactivateIdleTenant(tenantId, now)) {
+        logger.info("Tenant {} was idle, deactivated its executor", tenantId);
+      }
+    }
+  }
+
+  protected boolean isIdle(String tenantId, long now) {
+    Long lastActivityTime = lastActivityTimes.get(tenantId);
+    if (lastActivityTime != null && now - lastActivityTime < idleTimeoutInMillis) {
+      return false;
+    }
+    if (isBusy(tenantId) || hasPendingJobs(tenantId, now)) {
+      activity(tenantId); // Jobs acquired from the database count as activity too
+      return false;
+    }
+    return true;
+  }
+
+  protected boolean isAssignedToOtherNode(String tenantId) {
+    TenantNodeAssignment nodeAssignment = asyncExecutor.getNodeAssignment();
+    return nodeAssignment != null && !nodeAssignment.isAssigned(tenantId);
+  }
+
+  /**
+   * @return True when the executor of the tenant has queued or running jobs, as far as can be told from its executor service.
+   */
+  protected boolean isBusy(String tenantId) {
+    AsyncExecutor tenantExecutor = asyncExecutor.getTenantExecutors().get(tenantId);
+    if (!(tenantExecutor instanceof TenantAwareDefaultAsyncJobExecutor)) {
+      return tenantExecutor != null; // Unknown executor: never deactivated
+    }
+    TenantAwareDefaultAsyncJobExecutor defaultAsyncJobExecutor = (TenantAwareDefaultAsyncJobExecutor) tenantExecutor;
+    
+    if (defaultAsyncJobExecutor.getOverflowBuffer() != null && defaultAsyncJobExecutor.getOverflowBuffer().getTotalDepth() > 0) {
+      return true;
+    }
+    
+    TenantJobMetricsRegistry metricsRegistry = asyncExecutor.getMetricsRegistry();
+    TenantJobMetrics metrics = metricsRegistry != null ? metricsRegistry.getMetrics(tenantId) : null;
+    if (metrics != null) {
+      return metrics.getQueueDepth() > 0 || metrics.getRunningJobCount() > 0;
+    }
+    
+    ExecutorService executorService = defaultAsyncJobExecutor.getExecutorService();
+    if (executorService instanceof ThreadPoolExecutor) {
+      ThreadPoolExecutor threadPool = (ThreadPoolExecutor) executorService;
+      return threadPool.getActiveCount() > 0 || !threadPool.getQueue().isEmpty();
+    }
+    if (executorService instanceof TenantFairExecutorService) {
+      TenantFairExecutorService fairExecutorService = (TenantFairExecutorService) executorService;
+      return fairExecutorService.getQueuedCount() > 0 || fairExecutorService.getRunningCount(tenantId) > 0;
+    }
+    if (executorService instanceof TenantWorkStealingExecutorService) {
+      TenantWorkStealingExecutorService workStealingExecutorService = (TenantWorkStealingExecutorService) executorService;
+      return workStealingExecutorService.getQueueSize() > 0 || workStealingExecutorService.getRunningCount() > 0;
+    }
+    return false;
+  }
+
+  /**
+   * @return True when the tenant has executable jobs, or timers with retries left that are due before the next probe.
+   *         Locked timers don't count: they are already being executed, by this or another engine.
+   */
+  protected boolean hasPendingJobs(String tenantId, long now) {
+    asyncExecutor.tenantInfoHolder.setCurrentTenantId(tenantId);
+    try {
+      if (!new JobQueryImpl(asyncExecutor.commandExecutor).executable().listPage(0, 1).isEmpty()) {
+        return true;
+      }
+      return !new JobQueryImpl(asyncExecutor.commandExecutor)
+        .timers()
+        .withRetriesLeft()
+        .unlocked()
+        .duedateLowerThan(new Date(now + probeIntervalInMillis))
+        .listPage(0, 1).isEmpty();
+    } catch (Exception e) {
+      logger.warn("Could not probe the jobs of tenant " + tenantId, e);
+      return false;
+    } finally {
+      asyncExecutor.tenantInfoHolder.clearCurrentTenantId();
+    }
+  }
+
+  public long getProbeIntervalInMillis() {
+    return probeIntervalInMillis;
+  }
+
+  public void setProbeIntervalInMillis(long probeIntervalInMillis) {
+    this.probeIntervalInMillis = probeIntervalInMillis;
+  }
+
+  public long getIdleTimeoutInMillis() {
+    return idleTimeoutInMillis;
+  }
+
+  public void setIdleTimeoutInMillis(long idleTimeoutInMillis) {
+    this.idleTimeoutInMillis = idleTimeoutInMillis;
+  }
+
+}
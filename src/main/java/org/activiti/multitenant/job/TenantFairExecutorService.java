@@ -0,0 +1,436 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link java.util.concurrent.ExecutorService} with a queue per tenant, served with deficit round-robin:
+ * each turn, a tenant can start as many jobs as its weight, after which the next tenant with queued jobs gets its turn.
+ * A tenant that queues a lot of jobs thus only delays its own jobs, not those of the other tenants.
+ * 
+ * A tenant can also be capped to a maximum number of concurrently executing jobs.
+ * 
+ * Runnables that are not a {@link TenantAwareRunnable} are queued under a null tenant.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantFairExecutorService extends AbstractExecutorService {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantFairExecutorService.class);
+
+  protected int queueCapacity;
+  protected int defaultWeight = 1;
+  protected Map<String, Integer> tenantWeights;
+  protected Map<String, Integer> tenantMaxConcurrency;
+
+  protected ReentrantLock lock = new ReentrantLock();
+  protected Condition workAvailable = lock.newCondition();
+  protected Condition terminated = lock.newCondition();
+
+  // Guarded by lock
+  protected Map<String, TenantQueue> tenantQueues = new HashMap<String, TenantQueue>();
+  protected ArrayDeque<TenantQueue> activeQueues = new ArrayDeque<TenantQueue>();
+  protected int queuedCount;
+  protected int liveWorkerCount;
+  protected boolean shutdown;
+
+  protected List<Thread> workers = new ArrayList<Thread>();
+
+  public TenantFairExecutorService(int threadCount, int queueCapacity) {
+    this(threadCount, queueCapacity, new ConcurrentHashMap<String, Integer>(), new ConcurrentHashMap<String, Integer>());
+  }
+
+  /**
+   * The weight and concurrency maps are read on every scheduling decision, so changes to them apply immediately.
+   */
+  public TenantFairExecutorService(int threadCount, int queueCapacity, Map<String, Integer> tenantWeights, Map<String, Integer> tenantMaxConcurrency) {
+    this.queueCapacity = queueCapacity;
+    this.tenantWeights = tenantWeights;
+    this.tenantMaxConcurrency = tenantMaxConcurrency;
+
+    for (int i = 0; i < threadCount; i++) {
+      Thread worker = new Thread(new Worker(), "activiti-fair-executor-" + i);
+      workers.add(worker);
+    }
+    liveWorkerCount = threadCount;
+    for (Thread worker : workers) {
+      worker.start();
+    }
+  }
+
+  public void execute(Runnable runnable) {
+    String tenantId = runnable instanceof TenantAwareRunnable ? ((TenantAwareRunnable) runnable).getTenantId() : null;
+
+    lock.lock();
+    try {
+      if (shutdown) {
+        throw new RejectedExecutionException("Executor is shut down");
+      }
+      if (queuedCount >= queueCapacity) {
+        throw new RejectedExecutionException("Queue capacity of " + queueCapacity + " reached");
+      }
+
+      TenantQueue tenantQueue = tenantQueues.get(tenantId);
+      if (tenantQueue == null) {
+        tenantQueue = new TenantQueue(tenantId);
+        tenantQueues.put(tenantId, tenantQueue);
+      }
+      tenantQueue.runnables.add(new QueuedRunnable(runnable, System.nanoTime()));
+      queuedCount++;
+
+      activateIfRunnable(tenantQueue);
+      if (tenantQueue.active) {
+        workAvailable.signal(); // Also when the queue was already active: another worker can take this job
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Called with the lock held.
+   * 
+   * @return True if the queue became active.
+   */
+  protected boolean activateIfRunnable(TenantQueue tenantQueue) {
+    if (!tenantQueue.active && !tenantQueue.runnables.isEmpty() && !isAtConcurrencyLimit(tenantQueue)) {
+      tenantQueue.active = true;
+      activeQueues.addLast(tenantQueue);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Called with the lock held. Returns null if nothing can be executed right now.
+   */
+  protected QueuedRunnable next() {
+    TenantQueue tenantQueue = activeQueues.peekFirst();
+    if (tenantQueue == null) {
+      return null;
+    }
+
+    if (tenantQueue.deficit <= 0) {
+      tenantQueue.deficit = getWeight(tenantQueue.tenantId); // A new turn for this tenant
+    }
+
+    QueuedRunnable queuedRunnable = tenantQueue.runnables.pollFirst();
+    queuedCount--;
+    tenantQueue.deficit--;
+    tenantQueue.running++;
+
+    long waitTime = System.nanoTime() - queuedRunnable.queuedAt;
+    tenantQueue.dequeuedCount++;
+    tenantQueue.totalWaitTimeInNanos += waitTime;
+    if (waitTime > tenantQueue.maxWaitTimeInNanos) {
+      tenantQueue.maxWaitTimeInNanos = waitTime;
+    }
+
+    if (tenantQueue.runnables.isEmpty() || isAtConcurrencyLimit(tenantQueue)) {
+      activeQueues.pollFirst();
+      tenantQueue.active = false;
+      tenantQueue.deficit = 0;
+    } else if (tenantQueue.deficit <= 0) {
+      activeQueues.pollFirst();
+      activeQueues.addLast(tenantQueue);
+    }
+    
+    if (!activeQueues.isEmpty()) {
+      workAvailable.signal(); // Hands the remaining work to the next idle worker
+    }
+
+    return queuedRunnable;
+  }
+
+  protected void completed(String tenantId) {
+    lock.lock();
+    try {
+      TenantQueue tenantQueue = tenantQueues.get(tenantId);
+      tenantQueue.running--;
+      if (activateIfRunnable(tenantQueue)) {
+        workAvailable.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  protected boolean isAtConcurrencyLimit(TenantQueue tenantQueue) {
+    Integer maxConcurrency = tenantQueue.tenantId != null ? tenantMaxConcurrency.get(tenantQueue.tenantId) : null;
+    return maxConcurrency != null && tenantQueue.running >= maxConcurrency;
+  }
+
+  protected int getWeight(String tenantId) {
+    Integer weight = tenantId != null ? tenantWeights.get(tenantId) : null;
+    return weight != null && weight > 0 ? weight : defaultWeight;
+  }
+
+  protected class Worker implements Runnable {
+
+    public void run() {
+      try {
+        while (true) {
+          QueuedRunnable queuedRunnable = null;
+          lock.lock();
+          try {
+            while ((queuedRunnable = next()) == null) {
+              if (shutdown && queuedCount == 0) {
+                return;
+              }
+              workAvailable.await();
+            }
+          } finally {
+            lock.unlock();
+          }
+
+          try {
+            queuedRunnable.runnable.run();
+          } catch (Throwable e) {
+            logger.error("Exception while executing job", e);
+          } finally {
+            completed(queuedRunnable.tenantId);
+          }
+        }
+      } catch (InterruptedException e) {
+        logger.debug("Fair executor worker interrupted");
+      } finally {
+        workerStopped();
+      }
+    }
+
+  }
+
+  protected void workerStopped() {
+    lock.lock();
+    try {
+      liveWorkerCount--;
+      if (liveWorkerCount == 0) {
+        terminated.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void shutdown() {
+    lock.lock();
+    try {
+      shutdown = true;
+      workAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public List<Runnable> shutdownNow() {
+    List<Runnable> notExecuted = new ArrayList<Runnable>();
+    lock.lock();
+    try {
+      shutdown = true;
+      for (TenantQueue tenantQueue : tenantQueues.values()) {
+        for (QueuedRunnable queuedRunnable : tenantQueue.runnables) {
+          notExecuted.add(queuedRunnable.runnable);
+        }
+        tenantQueue.runnables.clear();
+        tenantQueue.active = false;
+      }
+      activeQueues.clear();
+      queuedCount = 0;
+      workAvailable.signalAll();
+    } finally {
+      lock.unlock();
+    }
+
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    return notExecuted;
+  }
+
+  /**
+   * Takes the queued jobs of the tenant out of the executor service, e.g. when the tenant is removed.
+   * 
+   * @return The jobs that were queued for the tenant.
+   */
+  public List<Runnable> removeQueuedJobs(String tenantId) {
+    List<Runnable> removed = new ArrayList<Runnable>();
+    lock.lock();
+    try {
+      TenantQueue tenantQueue = tenantQueues.get(tenantId);
+      if (tenantQueue != null) {
+        for (QueuedRunnable queuedRunnable : tenantQueue.runnables) {
+          removed.add(queuedRunnable.runnable);
+        }
+        queuedCount -= tenantQueue.runnables.size();
+        tenantQueue.runnables.clear();
+        if (tenantQueue.active) {
+          activeQueues.remove(tenantQueue);
+          tenantQueue.active = false;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return removed;
+  }
+
+  public boolean isShutdown() {
+    lock.lock();
+    try {
+      return shutdown;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isTerminated() {
+    lock.lock();
+    try {
+      return shutdown && liveWorkerCount == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lock();
+    try {
+      while (liveWorkerCount > 0) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = terminated.awaitNanos(nanos);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Metrics
+
+  public int getQueueDepth(String tenantId) {
+    lock.lock();
+    try {
+      TenantQueue tenantQueue = tenantQueues.get(tenantId);
+      return tenantQueue != null ? tenantQueue.runnables.size() : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getRunningCount(String tenantId) {
+    lock.lock();
+    try {
+      TenantQueue tenantQueue = tenantQueues.get(tenantId);
+      return tenantQueue != null ? tenantQueue.running : 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Average time the jobs of the tenant waited in the queue before being executed.
+   */
+  public long getAverageWaitTimeInMillis(String tenantId) {
+    lock.lock();
+    try {
+      TenantQueue tenantQueue = tenantQueues.get(tenantId);
+      if (tenantQueue == null || tenantQueue.dequeuedCount == 0) {
+        return 0L;
+      }
+      return TimeUnit.NANOSECONDS.toMillis(tenantQueue.totalWaitTimeInNanos / tenantQueue.dequeuedCount);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMaxWaitTimeInMillis(String tenantId) {
+    lock.lock();
+    try {
+      TenantQueue tenantQueue = tenantQueues.get(tenantId);
+      return tenantQueue != null ? TimeUnit.NANOSECONDS.toMillis(tenantQueue.maxWaitTimeInNanos) : 0L;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueuedCount() {
+    lock.lock();
+    try {
+      return queuedCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public int getDefaultWeight() {
+    return defaultWeight;
+  }
+
+  public void setDefaultWeight(int defaultWeight) {
+    this.defaultWeight = defaultWeight;
+  }
+
+  protected class TenantQueue {
+
+    protected final String tenantId;
+    protected ArrayDeque<QueuedRunnable> runnables = new ArrayDeque<QueuedRunnable>();
+    protected boolean active;
+    protected int deficit;
+    protected int running;
+
+    protected long dequeuedCount;
+    protected long totalWaitTimeInNanos;
+    protected long maxWaitTimeInNanos;
+
+    public TenantQueue(String tenantId) {
+      this.tenantId = tenantId;
+    }
+
+  }
+
+  protected static class QueuedRunnable {
+
+    protected final Runnable runnable;
+    protected final String tenantId;
+    protected final long queuedAt;
+
+    public QueuedRunnable(Runnable runnable, long queuedAt) {
+      this.runnable = runnable;
+      this.tenantId = runnable instanceof TenantAwareRunnable ? ((TenantAwareRunnable) runnable).getTenantId() : null;
+      this.queuedAt = queuedAt;
+    }
+
+  }
+
+}
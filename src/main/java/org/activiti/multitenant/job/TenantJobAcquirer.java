@@ -0,0 +1,153 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.Date;
+import java.util.List;
+
+import org.activiti.engine.ActivitiOptimisticLockingException;
+import org.activiti.engine.impl.JobQueryImpl;
+import org.activiti.engine.impl.asyncexecutor.AcquiredJobEntities;
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.engine.impl.cmd.AcquireAsyncJobsDueCmd;
+import org.activiti.engine.impl.cmd.AcquireTimerJobsCmd;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.runtime.Job;
+
+/**
+ * Executes one acquisition cycle (async jobs or timers) for the tenant that is currently set
+ * and hands the acquired jobs to the {@link AsyncExecutor}.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantJobAcquirer {
+  
+  protected AsyncExecutor asyncExecutor;
+  
+  public TenantJobAcquirer(AsyncExecutor asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+  }
+  
+  /**
+   * @return The number of acquired jobs.
+   */
+  public int acquireAsyncJobs() {
+    return acquireAsyncJobs(null);
+  }
+  
+  /**
+   * @param metrics The metrics of the tenant, in which the acquisition is recorded. Can be null.
+   * @return The number of acquired jobs.
+   */
+  public int acquireAsyncJobs(TenantJobMetrics metrics) {
+    long start = System.nanoTime();
+    AcquiredJobEntities acquiredJobs = null;
+    try {
+      acquiredJobs = asyncExecutor.getCommandExecutor().execute(new AcquireAsyncJobsDueCmd(asyncExecutor));
+    } catch (ActivitiOptimisticLockingException e) {
+      if (metrics != null) {
+        metrics.optimisticLockFailure();
+      }
+      throw e;
+    }
+    
+    if (metrics != null) {
+      metrics.jobsAcquired(acquiredJobs.size(), System.nanoTime() - start);
+    }
+    for (JobEntity job : acquiredJobs.getJobs()) {
+      asyncExecutor.executeAsyncJob(job);
+    }
+    return acquiredJobs.size();
+  }
+  
+  /**
+   * @return The number of acquired timers.
+   */
+  public int acquireTimerJobs() {
+    return acquireTimerJobs(null);
+  }
+  
+  /**
+   * @param metrics The metrics of the tenant, in which the acquisition is recorded. Can be null.
+   * @return The number of acquired timers.
+   */
+  public int acquireTimerJobs(TenantJobMetrics metrics) {
+    long start = System.nanoTime();
+    AcquiredJobEntities acquiredJobs = null;
+    try {
+      acquiredJobs = asyncExecutor.getCommandExecutor().execute(new AcquireTimerJobsCmd(
+          asyncExecutor.getLockOwner(), asyncExecutor.getTimerLockTimeInMillis(), asyncExecutor.getMaxTimerJobsPerAcquisition()));
+    } catch (ActivitiOptimisticLockingException e) {
+      if (metrics != null) {
+        metrics.optimisticLockFailure();
+      }
+      throw e;
+    }
+    
+    if (metrics != null) {
+      metrics.jobsAcquired(acquiredJobs.size(), System.nanoTime() - start);
+    }
+    for (JobEntity job : acquiredJobs.getJobs()) {
+      asyncExecutor.executeAsyncJob(job);
+    }
+    return acquiredJobs.size();
+  }
+  
+  /**
+   * Overdue timers are left out: they're picked up by the acquisition itself, or are locked or failed
+   * and not executable before their lock expires.
+   * 
+   * @return The timers with retries left that are due after the first and before the second time, earliest first.
+   */
+  public List<Job> findTimerJobsDueBetween(long fromTime, long toTime, int maxResults) {
+    return new JobQueryImpl(asyncExecutor.getCommandExecutor())
+      .timers()
+      .withRetriesLeft()
+      .duedateHigherThan(new Date(fromTime))
+      .duedateLowerThan(new Date(toTime))
+      .orderByJobDuedate().asc()
+      .listPage(0, maxResults);
+  }
+  
+  /**
+   * @return The due date of the first timer with retries left that is due after the given time, or null if there is none.
+   */
+  public Date findNextTimerDueDate(long time) {
+    List<Job> timers = new JobQueryImpl(asyncExecutor.getCommandExecutor())
+      .timers()
+      .withRetriesLeft()
+      .duedateHigherThan(new Date(time))
+      .orderByJobDuedate().asc()
+      .listPage(0, 1);
+    return timers.isEmpty() ? null : timers.get(0).getDuedate();
+  }
+  
+  /**
+   * Right after an acquisition, these are timers that are locked: being executed, or failed and waiting for the next retry.
+   * 
+   * @return True if there are timers with retries left that were due before the given time.
+   */
+  public boolean hasOverdueTimerJobs(long time) {
+    return !new JobQueryImpl(asyncExecutor.getCommandExecutor())
+      .timers()
+      .withRetriesLeft()
+      .duedateLowerThan(new Date(time))
+      .listPage(0, 1)
+      .isEmpty();
+  }
+  
+  public AsyncExecutor getAsyncExecutor() {
+    return asyncExecutor;
+  }
+
+}
@@ -0,0 +1,72 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.cfg.TransactionListener;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.tenant.TenantInfoHolder;
+
+/**
+ * Lets the {@link TenantAwareAsyncExecutor} know when a job is created in this engine, 
+ * for the tenant that is current at that moment, and when the transaction creating it is committed.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantJobCreatedListener implements ActivitiEventListener {
+  
+  protected ProcessEngineConfigurationImpl processEngineConfiguration;
+  protected TenantInfoHolder tenantInfoHolder;
+  
+  public TenantJobCreatedListener(ProcessEngineConfigurationImpl processEngineConfiguration, TenantInfoHolder tenantInfoHolder) {
+    this.processEngineConfiguration = processEngineConfiguration;
+    this.tenantInfoHolder = tenantInfoHolder;
+  }
+
+  public void onEvent(ActivitiEvent event) {
+    if (!(event instanceof ActivitiEntityEvent) || !(((ActivitiEntityEvent) event).getEntity() instanceof JobEntity)) {
+      return;
+    }
+    
+    AsyncExecutor asyncExecutor = processEngineConfiguration.getAsyncExecutor();
+    final String tenantId = tenantInfoHolder.getCurrentTenantId();
+    if (!(asyncExecutor instanceof TenantAwareAsyncExecutor) || tenantId == null) {
+      return;
+    }
+    
+    final TenantAwareAsyncExecutor tenantAwareAsyncExecutor = (TenantAwareAsyncExecutor) asyncExecutor;
+    final JobEntity job = (JobEntity) ((ActivitiEntityEvent) event).getEntity();
+    tenantAwareAsyncExecutor.jobCreated(tenantId, job);
+    
+    CommandContext commandContext = Context.getCommandContext();
+    if (commandContext != null) {
+      commandContext.getTransactionContext().addTransactionListener(TransactionState.COMMITTED, new TransactionListener() {
+        public void execute(CommandContext commandContext) {
+          tenantAwareAsyncExecutor.jobCommitted(tenantId, job);
+        }
+      });
+    }
+  }
+
+  public boolean isFailOnException() {
+    return false;
+  }
+
+}
@@ -0,0 +1,37 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+/**
+ * How a {@link TenantAwareDefaultAsyncJobExecutor} executes the acquired jobs.
+ * 
+ * @author Joram Barrez
+ */
+public enum TenantJobExecutionMode {
+  
+  /** One thread pool with one queue for all tenants (the default). */
+  THREAD_POOL,
+  
+  /** One thread pool, taking jobs from per-tenant queues in weighted round-robin (see {@link TenantFairExecutorService}). */
+  TENANT_FAIR_QUEUE,
+  
+  /** A (virtual, when available) thread per job, concurrency limited by semaphores (see {@link TenantThreadPerJobExecutorService}). */
+  THREAD_PER_JOB,
+  
+  /** 
+   * A thread pool per tenant, of which the idle threads execute jobs queued for other tenants (see {@link TenantWorkStealingExecutorService}).
+   * Only for the tenant executors of an {@link ExecutorPerTenantAsyncExecutor}, as they share a {@link TenantWorkStealingPool}.
+   */
+  WORK_STEALING
+
+}
@@ -0,0 +1,281 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Job acquisition and execution metrics of one tenant, exposed through JMX by the {@link TenantJobMetricsRegistry}.
+ * 
+ * Recording only updates atomic counters and fixed histogram buckets: nothing is allocated on the job execution path.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantJobMetrics implements TenantJobMetricsMBean {
+
+  protected static final long[] BUCKET_UPPER_BOUNDS_IN_MILLIS = new long[] { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000 };
+
+  protected String tenantId;
+
+  protected AtomicLong acquisitionCount = new AtomicLong();
+  protected AtomicLong acquiredJobCount = new AtomicLong();
+  protected AtomicInteger lastJobsPerAcquisition = new AtomicInteger();
+  protected AtomicLong totalAcquisitionTimeInNanos = new AtomicLong();
+  protected AtomicLong maxAcquisitionTimeInNanos = new AtomicLong();
+  protected AtomicLongArray acquisitionTimeHistogram = new AtomicLongArray(BUCKET_UPPER_BOUNDS_IN_MILLIS.length + 1);
+  protected AtomicLong optimisticLockFailureCount = new AtomicLong();
+
+  protected AtomicInteger queueDepth = new AtomicInteger();
+  protected AtomicInteger runningJobCount = new AtomicInteger();
+  protected AtomicLong executedJobCount = new AtomicLong();
+  protected AtomicLong totalExecutionTimeInNanos = new AtomicLong();
+  protected AtomicLong maxExecutionTimeInNanos = new AtomicLong();
+  protected AtomicLongArray executionTimeHistogram = new AtomicLongArray(BUCKET_UPPER_BOUNDS_IN_MILLIS.length + 1);
+  protected AtomicLongArray queueWaitTimeHistogram = new AtomicLongArray(BUCKET_UPPER_BOUNDS_IN_MILLIS.length + 1);
+  protected AtomicLong rejectedJobCount = new AtomicLong();
+  protected AtomicLong retriedJobCount = new AtomicLong();
+  protected AtomicInteger overflowDepth = new AtomicInteger();
+  protected AtomicLong overflowedJobCount = new AtomicLong();
+
+  public TenantJobMetrics(String tenantId) {
+    this.tenantId = tenantId;
+  }
+
+  // Recording
+
+  public void jobsAcquired(int nrOfJobs, long acquisitionTimeInNanos) {
+    acquisitionCount.incrementAndGet();
+    acquiredJobCount.addAndGet(nrOfJobs);
+    lastJobsPerAcquisition.set(nrOfJobs);
+    totalAcquisitionTimeInNanos.addAndGet(acquisitionTimeInNanos);
+    updateMax(maxAcquisitionTimeInNanos, acquisitionTimeInNanos);
+    acquisitionTimeHistogram.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(acquisitionTimeInNanos)));
+  }
+
+  public void optimisticLockFailure() {
+    optimisticLockFailureCount.incrementAndGet();
+  }
+
+  public void jobQueued() {
+    queueDepth.incrementAndGet();
+  }
+
+  /**
+   * A queued job was rejected by the executor service: it is unlocked and acquired again later.
+   */
+  public void jobRejected() {
+    queueDepth.decrementAndGet();
+    rejectedJobCount.incrementAndGet();
+  }
+
+  /**
+   * A queued job was rejected by the executor service and put in the {@link TenantOverflowBuffer}.
+   */
+  public void jobOverflowed() {
+    queueDepth.decrementAndGet();
+    overflowDepth.incrementAndGet();
+    overflowedJobCount.incrementAndGet();
+  }
+
+  /**
+   * A buffered job is handed to the executor service again.
+   */
+  public void jobRequeued() {
+    overflowDepth.decrementAndGet();
+    queueDepth.incrementAndGet();
+  }
+
+  /**
+   * A buffered job was rejected again and stays in the buffer.
+   */
+  public void jobRequeueRejected() {
+    queueDepth.decrementAndGet();
+    overflowDepth.incrementAndGet();
+  }
+
+  /**
+   * A buffered job was unlocked, to be acquired again later.
+   */
+  public void overflowedJobReleased() {
+    overflowDepth.decrementAndGet();
+    rejectedJobCount.incrementAndGet();
+  }
+
+  /**
+   * A queued job was taken back from the executor service without being started (shutdown): it is unlocked and acquired again later.
+   */
+  public void jobDrained() {
+    queueDepth.decrementAndGet();
+  }
+
+  public void jobStarted(long queueWaitTimeInMillis) {
+    queueDepth.decrementAndGet();
+    runningJobCount.incrementAndGet();
+    queueWaitTimeHistogram.incrementAndGet(bucket(queueWaitTimeInMillis));
+  }
+
+  public void jobFinished(long executionTimeInNanos) {
+    runningJobCount.decrementAndGet();
+    executedJobCount.incrementAndGet();
+    totalExecutionTimeInNanos.addAndGet(executionTimeInNanos);
+    updateMax(maxExecutionTimeInNanos, executionTimeInNanos);
+    executionTimeHistogram.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(executionTimeInNanos)));
+  }
+
+  /**
+   * The execution of a job failed: the engine retries it as long as the job has retries left.
+   */
+  public void jobFailed() {
+    retriedJobCount.incrementAndGet();
+  }
+
+  protected void updateMax(AtomicLong max, long value) {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  protected int bucket(long valueInMillis) {
+    for (int i = 0; i < BUCKET_UPPER_BOUNDS_IN_MILLIS.length; i++) {
+      if (valueInMillis <= BUCKET_UPPER_BOUNDS_IN_MILLIS[i]) {
+        return i;
+      }
+    }
+    return BUCKET_UPPER_BOUNDS_IN_MILLIS.length;
+  }
+
+  // MBean
+
+  public String getTenantId() {
+    return tenantId;
+  }
+
+  public long getAcquisitionCount() {
+    return acquisitionCount.get();
+  }
+
+  public long getAcquiredJobCount() {
+    return acquiredJobCount.get();
+  }
+
+  public double getAverageJobsPerAcquisition() {
+    long count = acquisitionCount.get();
+    return count > 0 ? (double) acquiredJobCount.get() / count : 0.0;
+  }
+
+  public int getLastJobsPerAcquisition() {
+    return lastJobsPerAcquisition.get();
+  }
+
+  public double getAverageAcquisitionTimeInMillis() {
+    long count = acquisitionCount.get();
+    return count > 0 ? totalAcquisitionTimeInNanos.get() / 1000000.0 / count : 0.0;
+  }
+
+  public long getMaxAcquisitionTimeInMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxAcquisitionTimeInNanos.get());
+  }
+
+  public long[] getAcquisitionTimeHistogram() {
+    return toArray(acquisitionTimeHistogram);
+  }
+
+  public long getOptimisticLockFailureCount() {
+    return optimisticLockFailureCount.get();
+  }
+
+  public int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  public int getRunningJobCount() {
+    return runningJobCount.get();
+  }
+
+  public long getExecutedJobCount() {
+    return executedJobCount.get();
+  }
+
+  public double getAverageExecutionTimeInMillis() {
+    long count = executedJobCount.get();
+    return count > 0 ? totalExecutionTimeInNanos.get() / 1000000.0 / count : 0.0;
+  }
+
+  public long getMaxExecutionTimeInMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxExecutionTimeInNanos.get());
+  }
+
+  public long[] getExecutionTimeHistogram() {
+    return toArray(executionTimeHistogram);
+  }
+
+  public long[] getQueueWaitTimeHistogram() {
+    return toArray(queueWaitTimeHistogram);
+  }
+
+  public long getRejectedJobCount() {
+    return rejectedJobCount.get();
+  }
+
+  public long getRetriedJobCount() {
+    return retriedJobCount.get();
+  }
+
+  public int getOverflowDepth() {
+    return overflowDepth.get();
+  }
+
+  public long getOverflowedJobCount() {
+    return overflowedJobCount.get();
+  }
+
+  public long[] getHistogramBucketUpperBoundsInMillis() {
+    return BUCKET_UPPER_BOUNDS_IN_MILLIS.clone();
+  }
+
+  /**
+   * Resets the counters and histograms. The queue depth, overflow depth and running jobs are gauges and are kept.
+   */
+  public void reset() {
+    acquisitionCount.set(0);
+    acquiredJobCount.set(0);
+    lastJobsPerAcquisition.set(0);
+    totalAcquisitionTimeInNanos.set(0);
+    maxAcquisitionTimeInNanos.set(0);
+    optimisticLockFailureCount.set(0);
+    executedJobCount.set(0);
+    totalExecutionTimeInNanos.set(0);
+    maxExecutionTimeInNanos.set(0);
+    rejectedJobCount.set(0);
+    retriedJobCount.set(0);
+    overflowedJobCount.set(0);
+    for (int i = 0; i < BUCKET_UPPER_BOUNDS_IN_MILLIS.length + 1; i++) {
+      acquisitionTimeHistogram.set(i, 0);
+      executionTimeHistogram.set(i, 0);
+      queueWaitTimeHistogram.set(i, 0);
+    }
+  }
+
+  protected long[] toArray(AtomicLongArray histogram) {
+    long[] values = new long[histogram.length()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = histogram.get(i);
+    }
+    return values;
+  }
+
+}
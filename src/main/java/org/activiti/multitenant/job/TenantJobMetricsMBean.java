@@ -0,0 +1,69 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+/**
+ * JMX view on the {@link TenantJobMetrics} of one tenant.
+ * 
+ * The histograms contain the number of measurements per bucket, 
+ * the upper bounds of the buckets are given by {@link #getHistogramBucketUpperBoundsInMillis()} (the last bucket has no upper bound).
+ * 
+ * @author Joram Barrez
+ */
+public interface TenantJobMetricsMBean {
+  
+  String getTenantId();
+  
+  long getAcquisitionCount();
+  
+  long getAcquiredJobCount();
+  
+  double getAverageJobsPerAcquisition();
+  
+  int getLastJobsPerAcquisition();
+  
+  double getAverageAcquisitionTimeInMillis();
+  
+  long getMaxAcquisitionTimeInMillis();
+  
+  long[] getAcquisitionTimeHistogram();
+  
+  long getOptimisticLockFailureCount();
+  
+  int getQueueDepth();
+  
+  int getRunningJobCount();
+  
+  long getExecutedJobCount();
+  
+  double getAverageExecutionTimeInMillis();
+  
+  long getMaxExecutionTimeInMillis();
+  
+  long[] getExecutionTimeHistogram();
+  
+  long[] getQueueWaitTimeHistogram();
+  
+  long getRejectedJobCount();
+  
+  long getRetriedJobCount();
+  
+  int getOverflowDepth();
+  
+  long getOverflowedJobCount();
+  
+  long[] getHistogramBucketUpperBoundsInMillis();
+  
+  void reset();
+
+}
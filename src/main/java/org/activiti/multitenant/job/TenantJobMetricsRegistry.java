@@ -0,0 +1,115 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link TenantJobMetrics} of every tenant of an async executor
+ * and registers them as MBeans, named org.activiti.multitenant:type=TenantJobMetrics,executor=[name],tenant=[tenantId].
+ * 
+ * The metrics of a tenant are kept in-memory when registering the MBean fails.
+ * Only the MBeans registered by this registry are unregistered by it.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantJobMetricsRegistry {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantJobMetricsRegistry.class);
+
+  public static final String DOMAIN = "org.activiti.multitenant";
+
+  protected String name;
+  protected MBeanServer mBeanServer;
+  protected Map<String, TenantJobMetrics> metrics = new ConcurrentHashMap<String, TenantJobMetrics>();
+  protected Set<String> mBeanTenantIds = new HashSet<String>(); // Guarded by the registry
+
+  public TenantJobMetricsRegistry(String name) {
+    this(name, ManagementFactory.getPlatformMBeanServer());
+  }
+
+  public TenantJobMetricsRegistry(String name, MBeanServer mBeanServer) {
+    this.name = name;
+    this.mBeanServer = mBeanServer;
+  }
+
+  public synchronized TenantJobMetrics registerTenant(String tenantId) {
+    TenantJobMetrics tenantMetrics = metrics.get(tenantId);
+    if (tenantMetrics != null) {
+      return tenantMetrics;
+    }
+
+    tenantMetrics = new TenantJobMetrics(tenantId);
+    metrics.put(tenantId, tenantMetrics);
+    try {
+      mBeanServer.registerMBean(tenantMetrics, getObjectName(tenantId));
+      mBeanTenantIds.add(tenantId);
+    } catch (Exception e) {
+      logger.warn("Could not register job metrics MBean for tenant " + tenantId, e);
+    }
+    return tenantMetrics;
+  }
+
+  public synchronized void unregisterTenant(String tenantId) {
+    metrics.remove(tenantId);
+    if (!mBeanTenantIds.remove(tenantId)) {
+      return; // Eg. the name was already taken by another registry
+    }
+
+    try {
+      ObjectName objectName = getObjectName(tenantId);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (Exception e) {
+      logger.warn("Could not unregister job metrics MBean for tenant " + tenantId, e);
+    }
+  }
+
+  public synchronized void unregisterAll() {
+    for (String tenantId : new ArrayList<String>(metrics.keySet())) {
+      unregisterTenant(tenantId);
+    }
+  }
+
+  /**
+   * @return The metrics of the tenant, or null if the tenant isn't registered.
+   */
+  public TenantJobMetrics getMetrics(String tenantId) {
+    return tenantId != null ? metrics.get(tenantId) : null;
+  }
+
+  public Map<String, TenantJobMetrics> getAllMetrics() {
+    return metrics;
+  }
+
+  protected ObjectName getObjectName(String tenantId) throws Exception {
+    return new ObjectName(DOMAIN + ":type=TenantJobMetrics,executor=" + ObjectName.quote(name) + ",tenant=" + ObjectName.quote(tenantId));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+}
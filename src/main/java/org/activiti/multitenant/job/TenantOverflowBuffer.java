@@ -0,0 +1,341 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded buffer, per tenant, for the jobs the executor service of a {@link TenantAwareDefaultAsyncJobExecutor} rejected 
+ * because its queue was full. A background thread hands the buffered jobs back to the executor service as capacity frees up: 
+ * in order per tenant and one job per tenant per round, so a tenant with a burst of jobs doesn't get all the freed capacity.
+ * 
+ * Only when the buffer of a tenant is full, jobs are unlocked right away for re-acquisition. Buffered jobs stay locked,
+ * so they are released as well when they are buffered longer than the max buffer time, well before their lock expires.
+ * On shutdown, the executor releases the jobs still in the buffer once the drain thread stopped.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantOverflowBuffer implements Runnable {
+  
+  private static final Logger logger = LoggerFactory.getLogger(TenantOverflowBuffer.class);
+  
+  protected TenantAwareDefaultAsyncJobExecutor asyncExecutor;
+  
+  protected int maxJobsPerTenant = 100;
+  protected long retryIntervalInMillis = 50L;
+  protected long maxBufferTimeInMillis = 60000L;
+  
+  protected Map<String, Deque<BufferedJob>> buffers = new LinkedHashMap<String, Deque<BufferedJob>>();
+  protected int bufferedJobCount;
+  
+  protected Thread drainThread;
+  protected volatile boolean isStopped = true;
+  
+  public TenantOverflowBuffer(TenantAwareDefaultAsyncJobExecutor asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+  }
+  
+  /**
+   * @return False when the buffer of the tenant is full: the job must be released by the caller.
+   */
+  public synchronized boolean offer(String tenantId, JobEntity job, Runnable runnable) {
+    Deque<BufferedJob> buffer = buffers.get(tenantId);
+    if (buffer == null) {
+      buffer = new ArrayDeque<BufferedJob>();
+      buffers.put(tenantId, buffer);
+    } else if (buffer.size() >= maxJobsPerTenant) {
+      return false;
+    }
+    
+    buffer.addLast(new BufferedJob(tenantId, job, runnable, System.currentTimeMillis()));
+    bufferedJobCount++;
+    TenantJobMetrics metrics = getMetrics(runnable);
+    if (metrics != null) {
+      metrics.jobOverflowed();
+    }
+    notifyAll();
+    return true;
+  }
+  
+  /**
+   * New jobs of a tenant with buffered jobs go to the buffer as well, behind the jobs that are already waiting.
+   */
+  public synchronized boolean hasBufferedJobs(String tenantId) {
+    return buffers.containsKey(tenantId);
+  }
+  
+  public synchronized void start() {
+    if (!isStopped) {
+      return;
+    }
+    isStopped = false;
+    drainThread = new Thread(this, "activiti-overflow-buffer");
+    drainThread.setDaemon(true);
+    drainThread.start();
+  }
+  
+  /**
+   * Stops handing jobs back to the executor service, without waiting for the drain thread.
+   * The jobs still in the buffer are released with {@link #releaseAll()}, once the drain thread stopped.
+   */
+  public synchronized void signalStop() {
+    isStopped = true;
+    notifyAll();
+  }
+  
+  /**
+   * Waits, no longer than the deadline, for the drain thread to stop.
+   */
+  public void awaitStop(long deadline) {
+    Thread thread = drainThread;
+    if (thread == null) {
+      return;
+    }
+    long millisToWait = deadline - System.currentTimeMillis();
+    if (millisToWait > 0) {
+      try {
+        thread.join(millisToWait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    drainThread = null;
+  }
+  
+  public void run() {
+    try {
+      while (!isStopped) {
+        synchronized (this) {
+          while (!isStopped && bufferedJobCount == 0) {
+            wait();
+          }
+        }
+        releaseExpired();
+        drain();
+        synchronized (this) {
+          if (!isStopped && bufferedJobCount > 0) {
+            wait(retryIntervalInMillis);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      logger.info("Overflow buffer interrupted");
+    }
+  }
+  
+  /**
+   * Hands the buffered jobs back to the executor service, round-robin over the tenants, until it rejects again.
+   */
+  protected void drain() {
+    boolean jobsLeft = true;
+    while (jobsLeft && !isStopped) {
+      jobsLeft = false;
+      for (String tenantId : getTenantIds()) {
+        if (!requeueFirst(tenantId)) {
+          return; // No capacity: retried after the retry interval
+        }
+        jobsLeft = true;
+      }
+    }
+  }
+  
+  protected synchronized List<String> getTenantIds() {
+    return new ArrayList<String>(buffers.keySet());
+  }
+  
+  /**
+   * Hands the first buffered job of the tenant to the executor service. The job only leaves the buffer once the executor service 
+   * took it, under the lock of the buffer: meanwhile, new jobs of the tenant keep going to the buffer, behind it.
+   * Handing over only queues the job, so the lock isn't held for long.
+   * 
+   * @return False when the executor service rejected the job.
+   */
+  protected synchronized boolean requeueFirst(String tenantId) {
+    Deque<BufferedJob> buffer = buffers.get(tenantId);
+    ExecutorService executorService = asyncExecutor.getExecutorService();
+    if (buffer == null) {
+      return true; // Released in the meantime
+    } else if (executorService == null) {
+      return false;
+    }
+    
+    BufferedJob bufferedJob = buffer.peekFirst();
+    TenantJobMetrics metrics = getMetrics(bufferedJob.runnable);
+    if (metrics != null) {
+      metrics.jobRequeued(); // Before handing it over, the job can start right away
+    }
+    try {
+      executorService.execute(bufferedJob.runnable);
+    } catch (RejectedExecutionException e) {
+      if (metrics != null) {
+        metrics.jobRequeueRejected();
+      }
+      return false;
+    }
+    
+    buffer.pollFirst();
+    bufferedJobCount--;
+    if (buffer.isEmpty()) {
+      buffers.remove(tenantId);
+    }
+    return true;
+  }
+  
+  protected void releaseExpired() {
+    long expiry = System.currentTimeMillis() - maxBufferTimeInMillis;
+    List<BufferedJob> expiredJobs = new ArrayList<BufferedJob>();
+    synchronized (this) {
+      Iterator<Deque<BufferedJob>> bufferIterator = buffers.values().iterator();
+      while (bufferIterator.hasNext()) {
+        Deque<BufferedJob> buffer = bufferIterator.next();
+        while (!buffer.isEmpty() && buffer.peekFirst().bufferedAt < expiry) {
+          expiredJobs.add(buffer.pollFirst());
+          bufferedJobCount--;
+        }
+        if (buffer.isEmpty()) {
+          bufferIterator.remove();
+        }
+      }
+    }
+    release(expiredJobs);
+  }
+  
+  /**
+   * Releases the buffered jobs of the tenant, when the tenant is removed.
+   */
+  public void releaseTenant(String tenantId) {
+    List<BufferedJob> tenantJobs = new ArrayList<BufferedJob>();
+    synchronized (this) {
+      Deque<BufferedJob> buffer = buffers.remove(tenantId);
+      if (buffer != null) {
+        tenantJobs.addAll(buffer);
+        bufferedJobCount -= buffer.size();
+      }
+    }
+    release(tenantJobs);
+  }
+  
+  public void releaseAll() {
+    List<BufferedJob> allJobs = new ArrayList<BufferedJob>();
+    synchronized (this) {
+      for (Deque<BufferedJob> buffer : buffers.values()) {
+        allJobs.addAll(buffer);
+      }
+      buffers.clear();
+      bufferedJobCount = 0;
+    }
+    release(allJobs);
+  }
+  
+  /**
+   * Unlocks the jobs with one command per tenant. Outside of a shutdown, the acquisition of the tenants is rescheduled
+   * for when capacity has likely freed up.
+   */
+  protected void release(List<BufferedJob> bufferedJobs) {
+    if (bufferedJobs.isEmpty()) {
+      return;
+    }
+    
+    Map<String, List<String>> jobIdsPerTenant = new LinkedHashMap<String, List<String>>();
+    for (BufferedJob bufferedJob : bufferedJobs) {
+      TenantJobMetrics metrics = getMetrics(bufferedJob.runnable);
+      if (metrics != null) {
+        metrics.overflowedJobReleased();
+      }
+      List<String> jobIds = jobIdsPerTenant.get(bufferedJob.tenantId);
+      if (jobIds == null) {
+        jobIds = new ArrayList<String>();
+        jobIdsPerTenant.put(bufferedJob.tenantId, jobIds);
+      }
+      jobIds.add(bufferedJob.job.getId());
+    }
+    
+    // Unlocking is a command against the database of the tenant, while this can be the drain thread
+    asyncExecutor.unlockJobIds(jobIdsPerTenant, asyncExecutor.shutdownReport);
+    if (!isStopped) {
+      long reacquireTime = System.currentTimeMillis() + asyncExecutor.getRejectedJobReacquireDelayInMillis();
+      for (String tenantId : jobIdsPerTenant.keySet()) {
+        asyncExecutor.scheduleAsyncJobAcquisition(tenantId, reacquireTime);
+      }
+    }
+  }
+  
+  protected TenantJobMetrics getMetrics(Runnable runnable) {
+    return runnable instanceof TenantAwareExecuteAsyncRunnable ? ((TenantAwareExecuteAsyncRunnable) runnable).getMetrics() : null;
+  }
+  
+  public synchronized int getDepth(String tenantId) {
+    Deque<BufferedJob> buffer = buffers.get(tenantId);
+    return buffer != null ? buffer.size() : 0;
+  }
+  
+  public synchronized int getTotalDepth() {
+    return bufferedJobCount;
+  }
+
+  public int getMaxJobsPerTenant() {
+    return maxJobsPerTenant;
+  }
+
+  public void setMaxJobsPerTenant(int maxJobsPerTenant) {
+    this.maxJobsPerTenant = maxJobsPerTenant;
+  }
+
+  public long getRetryIntervalInMillis() {
+    return retryIntervalInMillis;
+  }
+
+  public void setRetryIntervalInMillis(long retryIntervalInMillis) {
+    this.retryIntervalInMillis = retryIntervalInMillis;
+  }
+
+  public long getMaxBufferTimeInMillis() {
+    return maxBufferTimeInMillis;
+  }
+
+  /**
+   * Should be well below the async job lock time, so the job is released before another node can acquire it.
+   */
+  public void setMaxBufferTimeInMillis(long maxBufferTimeInMillis) {
+    this.maxBufferTimeInMillis = maxBufferTimeInMillis;
+  }
+  
+  protected static class BufferedJob {
+    
+    protected final String tenantId;
+    protected final JobEntity job;
+    protected final Runnable runnable;
+    protected final long bufferedAt;
+    
+    public BufferedJob(String tenantId, JobEntity job, Runnable runnable, long bufferedAt) {
+      this.tenantId = tenantId;
+      this.job = job;
+      this.runnable = runnable;
+      this.bufferedAt = bufferedAt;
+    }
+    
+  }
+
+}
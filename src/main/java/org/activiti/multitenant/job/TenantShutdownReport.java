@@ -0,0 +1,131 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Outcome of the shutdown of a tenant-aware async executor: per tenant, the jobs that were acquired but not
+ * started before the shutdown deadline (and were unlocked so another node can acquire them),
+ * and the tenants that still had jobs executing at the deadline.
+ * 
+ * Filled concurrently while the tenants are shut down in parallel.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantShutdownReport {
+
+  protected long startTime = System.currentTimeMillis();
+  protected long deadline;
+  protected volatile long endTime;
+
+  protected Map<String, List<String>> unlockedJobIds = new ConcurrentHashMap<String, List<String>>();
+  protected Set<String> timedOutTenantIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  protected volatile boolean completedInTime = true;
+
+  public TenantShutdownReport(long deadline) {
+    this.deadline = deadline;
+  }
+
+  public void jobUnlocked(String tenantId, String jobId) {
+    String key = getKey(tenantId);
+    List<String> jobIds = unlockedJobIds.get(key);
+    if (jobIds == null) {
+      synchronized (unlockedJobIds) {
+        jobIds = unlockedJobIds.get(key);
+        if (jobIds == null) {
+          jobIds = Collections.synchronizedList(new ArrayList<String>());
+          unlockedJobIds.put(key, jobIds);
+        }
+      }
+    }
+    jobIds.add(jobId);
+  }
+
+  /**
+   * Jobs were still executing at the deadline. The tenant id is null when it's not known which tenant's jobs they were.
+   */
+  public void timedOut(String tenantId) {
+    completedInTime = false;
+    if (tenantId != null) {
+      timedOutTenantIds.add(tenantId);
+    }
+  }
+
+  public void finished() {
+    endTime = System.currentTimeMillis();
+  }
+
+  /**
+   * Jobs without tenant are kept under the empty tenant id: the map doesn't allow null keys.
+   */
+  protected String getKey(String tenantId) {
+    return tenantId != null ? tenantId : "";
+  }
+
+  /**
+   * @return The ids of the jobs of the tenant that were unlocked for re-acquisition, never null.
+   */
+  public List<String> getUnlockedJobIds(String tenantId) {
+    List<String> jobIds = unlockedJobIds.get(getKey(tenantId));
+    return jobIds != null ? jobIds : Collections.<String>emptyList();
+  }
+
+  public Map<String, List<String>> getUnlockedJobIds() {
+    return unlockedJobIds;
+  }
+
+  public int getUnlockedJobCount() {
+    int count = 0;
+    for (List<String> jobIds : unlockedJobIds.values()) {
+      count += jobIds.size();
+    }
+    return count;
+  }
+
+  public Set<String> getTimedOutTenantIds() {
+    return timedOutTenantIds;
+  }
+
+  public boolean isCompletedInTime() {
+    return completedInTime;
+  }
+
+  public long getDeadline() {
+    return deadline;
+  }
+
+  public long getDurationInMillis() {
+    return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder strb = new StringBuilder();
+    strb.append("Shutdown ").append(completedInTime ? "completed" : "timed out").append(" in ").append(getDurationInMillis()).append(" ms");
+    if (!timedOutTenantIds.isEmpty()) {
+      strb.append(", tenants with jobs still executing: ").append(timedOutTenantIds);
+    }
+    strb.append(", unlocked jobs: ").append(getUnlockedJobCount());
+    for (Map.Entry<String, List<String>> entry : unlockedJobIds.entrySet()) {
+      strb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    return strb.toString();
+  }
+
+}
@@ -0,0 +1,427 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link java.util.concurrent.ExecutorService} that starts a new thread for every job.
+ * 
+ * On a JVM that supports virtual threads, these are used: a job that blocks on JDBC then doesn't hold a platform thread.
+ * On older JVMs, it falls back to (daemon) platform threads.
+ * 
+ * Concurrency is not limited by a pool size but by semaphores: a global one (which can be shared between
+ * multiple instances) and one per tenant. Jobs wait for their permits in a queue, which a single dispatcher thread works through
+ * while it isn't empty: the thread of a job is only started once the job has its permits.
+ * The number of jobs that are queued or executing is bounded by the max pending jobs, beyond which jobs are rejected.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantThreadPerJobExecutorService extends AbstractExecutorService {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantThreadPerJobExecutorService.class);
+
+  protected static final AtomicInteger threadCounter = new AtomicInteger();
+
+  protected ThreadFactory threadFactory;
+  protected boolean virtualThreads;
+
+  protected Semaphore globalPermits;
+  protected int maxPendingJobs;
+  protected Map<String, Integer> tenantMaxConcurrency;
+  protected int defaultTenantMaxConcurrency;
+  protected ConcurrentHashMap<String, Semaphore> tenantPermits = new ConcurrentHashMap<String, Semaphore>();
+
+  protected AtomicInteger pendingJobs = new AtomicInteger();
+  protected Map<Thread, Boolean> runningThreads = new ConcurrentHashMap<Thread, Boolean>();
+
+  protected final ReentrantLock lock = new ReentrantLock();
+  protected final Condition permitReleased = lock.newCondition();
+
+  // All below guarded by the lock
+  protected LinkedList<Runnable> queuedJobs = new LinkedList<Runnable>();
+  protected Runnable dispatchingJob; // Has its tenant permit, waiting for a global one
+  protected Thread dispatcherThread;
+
+  protected volatile boolean shutdown;
+  protected final Object terminationMonitor = new Object();
+
+  /**
+   * @param globalPermits Limits the number of concurrently executing jobs over all tenants.
+   * @param maxPendingJobs Maximum number of jobs queued for a permit or executing.
+   * @param tenantMaxConcurrency Per-tenant limits, read when a tenant executes its first job.
+   * @param defaultTenantMaxConcurrency Limit for tenants without entry in the map. 0 means no per-tenant limit.
+   */
+  public TenantThreadPerJobExecutorService(Semaphore globalPermits, int maxPendingJobs,
+      Map<String, Integer> tenantMaxConcurrency, int defaultTenantMaxConcurrency) {
+    this.globalPermits = globalPermits;
+    this.maxPendingJobs = maxPendingJobs;
+    this.tenantMaxConcurrency = tenantMaxConcurrency;
+    this.defaultTenantMaxConcurrency = defaultTenantMaxConcurrency;
+
+    this.threadFactory = createVirtualThreadFactory();
+    this.virtualThreads = threadFactory != null;
+    if (threadFactory == null) {
+      this.threadFactory = createPlatformThreadFactory();
+    }
+  }
+
+  /**
+   * Thread.ofVirtual().factory(), looked up reflectively so this class also works on JVMs without virtual threads.
+   */
+  protected ThreadFactory createVirtualThreadFactory() {
+    try {
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      Object builder = ofVirtual.invoke(null);
+      Method nameMethod = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class);
+      builder = nameMethod.invoke(builder, "activiti-job-", 0L);
+      Method factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+      return (ThreadFactory) factoryMethod.invoke(builder);
+    } catch (Exception e) {
+      logger.info("Virtual threads not available, using platform threads for job execution");
+      return null;
+    }
+  }
+
+  protected ThreadFactory createPlatformThreadFactory() {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "activiti-job-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  public void execute(Runnable runnable) {
+    if (shutdown) {
+      throw new RejectedExecutionException("Executor is shut down");
+    }
+    if (pendingJobs.incrementAndGet() > maxPendingJobs) {
+      pendingJobs.decrementAndGet();
+      throw new RejectedExecutionException("Maximum of " + maxPendingJobs + " pending jobs reached");
+    }
+
+    lock.lock();
+    try {
+      queuedJobs.add(runnable);
+      if (dispatcherThread != null) {
+        permitReleased.signal(); // The new job might be of a tenant that isn't at its limit
+        return;
+      }
+
+      dispatcherThread = threadFactory.newThread(new Runnable() {
+        public void run() {
+          dispatchJobs();
+        }
+      });
+      try {
+        dispatcherThread.start();
+      } catch (Throwable e) {
+        dispatcherThread = null;
+        queuedJobs.removeLastOccurrence(runnable);
+        jobDone();
+        throw new RejectedExecutionException("Could not start job dispatcher thread", e);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Runs on the dispatcher thread as long as jobs are queued: takes the first job of which the tenant
+   * has a permit left, waits for a global permit and only then starts the thread of the job.
+   */
+  protected void dispatchJobs() {
+    while (true) {
+      Runnable runnable = null;
+      lock.lock();
+      try {
+        while (runnable == null) {
+          if (queuedJobs.isEmpty()) {
+            dispatcherThread = null;
+            return;
+          }
+          runnable = pollStartableJob();
+          if (runnable == null) {
+            permitReleased.await();
+          }
+        }
+        dispatchingJob = runnable;
+      } catch (InterruptedException e) {
+        dispatcherThread = null; // Only done by shutdownNow(), which took the queued jobs
+        return;
+      } finally {
+        lock.unlock();
+      }
+
+      Semaphore tenantSemaphore = getTenantPermits(getTenantId(runnable));
+      boolean globalPermitAcquired = false;
+      try {
+        globalPermits.acquire();
+        globalPermitAcquired = true;
+      } catch (InterruptedException e) {
+        logger.debug("Job dispatcher interrupted while waiting for a permit");
+      }
+
+      boolean handedBack;
+      lock.lock();
+      try {
+        handedBack = dispatchingJob != runnable; // By shutdownNow()
+        dispatchingJob = null;
+        if (!globalPermitAcquired) {
+          if (!handedBack) {
+            queuedJobs.addFirst(runnable);
+          }
+          dispatcherThread = null;
+        }
+      } finally {
+        lock.unlock();
+      }
+
+      if (!globalPermitAcquired) {
+        if (tenantSemaphore != null) {
+          tenantSemaphore.release();
+        }
+        return;
+      }
+
+      if (handedBack) {
+        releasePermits(tenantSemaphore);
+      } else {
+        startJob(runnable, tenantSemaphore);
+      }
+    }
+  }
+
+  /**
+   * Removes the first queued job of which the tenant is below its limit, taking the tenant permit. Called with the lock held.
+   */
+  protected Runnable pollStartableJob() {
+    Iterator<Runnable> iterator = queuedJobs.iterator();
+    while (iterator.hasNext()) {
+      Runnable runnable = iterator.next();
+      Semaphore tenantSemaphore = getTenantPermits(getTenantId(runnable));
+      if (tenantSemaphore == null || tenantSemaphore.tryAcquire()) {
+        iterator.remove();
+        return runnable;
+      }
+    }
+    return null;
+  }
+
+  protected void startJob(final Runnable runnable, final Semaphore tenantSemaphore) {
+    try {
+      threadFactory.newThread(new Runnable() {
+        public void run() {
+          executeJob(runnable, tenantSemaphore);
+        }
+      }).start();
+    } catch (Throwable e) {
+      // The job stays locked and is picked up again when its lock expires
+      logger.error("Could not start job thread", e);
+      releasePermits(tenantSemaphore);
+      jobDone();
+    }
+  }
+
+  protected void executeJob(Runnable runnable, Semaphore tenantSemaphore) {
+    Thread thread = Thread.currentThread();
+    runningThreads.put(thread, Boolean.TRUE);
+    try {
+      runnable.run(); // The runnable sets and clears the tenant context itself
+    } catch (Throwable e) {
+      logger.error("Exception while executing job", e);
+    } finally {
+      runningThreads.remove(thread);
+      releasePermits(tenantSemaphore);
+      jobDone();
+    }
+  }
+
+  protected void releasePermits(Semaphore tenantSemaphore) {
+    globalPermits.release();
+    if (tenantSemaphore != null) {
+      tenantSemaphore.release();
+      lock.lock();
+      try {
+        permitReleased.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  protected String getTenantId(Runnable runnable) {
+    return runnable instanceof TenantAwareRunnable ? ((TenantAwareRunnable) runnable).getTenantId() : null;
+  }
+
+  protected void jobDone() {
+    if (pendingJobs.decrementAndGet() == 0 && shutdown) {
+      synchronized (terminationMonitor) {
+        terminationMonitor.notifyAll();
+      }
+    }
+  }
+
+  protected Semaphore getTenantPermits(String tenantId) {
+    if (tenantId == null) {
+      return null;
+    }
+
+    Semaphore semaphore = tenantPermits.get(tenantId);
+    if (semaphore == null) {
+      Integer maxConcurrency = tenantMaxConcurrency.get(tenantId);
+      int permits = maxConcurrency != null ? maxConcurrency : defaultTenantMaxConcurrency;
+      if (permits <= 0) {
+        return null;
+      }
+
+      Semaphore newSemaphore = new Semaphore(permits);
+      semaphore = tenantPermits.putIfAbsent(tenantId, newSemaphore);
+      if (semaphore == null) {
+        semaphore = newSemaphore;
+      }
+    }
+    return semaphore;
+  }
+
+  public void shutdown() {
+    shutdown = true;
+    if (pendingJobs.get() == 0) {
+      synchronized (terminationMonitor) {
+        terminationMonitor.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the jobs still waiting for a permit and interrupts the executing ones.
+   */
+  public List<Runnable> shutdownNow() {
+    shutdown();
+
+    List<Runnable> notExecuted = new ArrayList<Runnable>();
+    lock.lock();
+    try {
+      if (dispatchingJob != null) {
+        notExecuted.add(dispatchingJob);
+        dispatchingJob = null;
+      }
+      notExecuted.addAll(queuedJobs);
+      queuedJobs.clear();
+      if (dispatcherThread != null) {
+        dispatcherThread.interrupt();
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    for (int i = 0; i < notExecuted.size(); i++) {
+      jobDone();
+    }
+    for (Thread thread : runningThreads.keySet()) {
+      thread.interrupt();
+    }
+    return notExecuted;
+  }
+
+  /**
+   * Takes the queued jobs of the tenant out of the executor service, e.g. when the tenant is removed.
+   * A job that already has its tenant permit is started anyway.
+   * 
+   * @return The jobs that were queued for the tenant.
+   */
+  public List<Runnable> removeQueuedJobs(String tenantId) {
+    List<Runnable> removed = new ArrayList<Runnable>();
+    lock.lock();
+    try {
+      Iterator<Runnable> iterator = queuedJobs.iterator();
+      while (iterator.hasNext()) {
+        Runnable runnable = iterator.next();
+        if (tenantId.equals(getTenantId(runnable))) {
+          iterator.remove();
+          removed.add(runnable);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    for (int i = 0; i < removed.size(); i++) {
+      jobDone();
+    }
+    return removed;
+  }
+
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  public boolean isTerminated() {
+    return shutdown && pendingJobs.get() == 0;
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+    synchronized (terminationMonitor) {
+      while (!isTerminated()) {
+        long millisToWait = deadline - System.currentTimeMillis();
+        if (millisToWait <= 0) {
+          return false;
+        }
+        terminationMonitor.wait(millisToWait);
+      }
+      return true;
+    }
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public int getPendingJobs() {
+    return pendingJobs.get();
+  }
+
+  public int getRunningJobs() {
+    return runningThreads.size();
+  }
+
+  public int getQueuedJobs() {
+    lock.lock();
+    try {
+      return queuedJobs.size() + (dispatchingJob != null ? 1 : 0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
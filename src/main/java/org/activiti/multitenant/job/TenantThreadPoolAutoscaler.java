@@ -0,0 +1,204 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically resizes the thread pool of every tenant executor of an {@link ExecutorPerTenantAsyncExecutor},
+ * based on its queue depth, how long jobs waited in the queue and a global thread budget.
+ * 
+ * - A tenant with queued jobs that waited longer than the target wait time (or more queued jobs than threads)
+ *   doubles its number of threads, up to the maximum per tenant.
+ * - A tenant without queued jobs shrinks to the number of threads that are executing jobs, thus zero when idle.
+ * - Growth is granted within the global budget, tenants with the deepest queues first.
+ * 
+ * Only the tenant executors that use a {@link TenantThreadPoolExecutor} are scaled.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantThreadPoolAutoscaler {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantThreadPoolAutoscaler.class);
+
+  protected ExecutorPerTenantAsyncExecutor asyncExecutor;
+
+  protected int globalThreadBudget = 200;
+  protected int maxThreadsPerTenant = 20;
+  protected long targetQueueWaitTimeInMillis = 500L;
+  protected long intervalInMillis = 1000L;
+
+  protected ScheduledExecutorService scheduler;
+
+  public TenantThreadPoolAutoscaler(ExecutorPerTenantAsyncExecutor asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+  }
+
+  public synchronized void start() {
+    if (scheduler != null) {
+      return;
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "activiti-tenant-pool-autoscaler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          scale();
+        } catch (Throwable e) {
+          logger.warn("Exception while scaling tenant thread pools", e);
+        }
+      }
+    }, intervalInMillis, intervalInMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  public void scale() {
+    List<TenantPoolState> pools = new ArrayList<TenantPoolState>();
+    for (Map.Entry<String, AsyncExecutor> entry : asyncExecutor.getTenantExecutors().entrySet()) {
+      if (entry.getValue() instanceof TenantAwareDefaultAsyncJobExecutor
+          && ((TenantAwareDefaultAsyncJobExecutor) entry.getValue()).getExecutorService() instanceof TenantThreadPoolExecutor) {
+        TenantThreadPoolExecutor threadPool = (TenantThreadPoolExecutor) ((TenantAwareDefaultAsyncJobExecutor) entry.getValue()).getExecutorService();
+        pools.add(new TenantPoolState(entry.getKey(), threadPool));
+      }
+    }
+    scale(pools);
+  }
+
+  protected void scale(List<TenantPoolState> pools) {
+    // Shrinking first, frees budget for the growing tenants
+    int allocatedThreads = 0;
+    List<TenantPoolState> growingPools = new ArrayList<TenantPoolState>();
+    for (TenantPoolState pool : pools) {
+      int desiredThreads = determineDesiredThreads(pool);
+      if (desiredThreads > pool.currentThreads) {
+        pool.desiredThreads = desiredThreads;
+        growingPools.add(pool);
+        allocatedThreads += pool.currentThreads;
+      } else {
+        resize(pool, desiredThreads);
+        allocatedThreads += desiredThreads;
+      }
+    }
+
+    Collections.sort(growingPools, new Comparator<TenantPoolState>() {
+      public int compare(TenantPoolState pool1, TenantPoolState pool2) {
+        return pool2.queueDepth - pool1.queueDepth;
+      }
+    });
+    for (TenantPoolState pool : growingPools) {
+      int extraThreads = Math.min(pool.desiredThreads - pool.currentThreads, globalThreadBudget - allocatedThreads);
+      if (extraThreads > 0) {
+        resize(pool, pool.currentThreads + extraThreads);
+        allocatedThreads += extraThreads;
+      }
+    }
+  }
+
+  protected int determineDesiredThreads(TenantPoolState pool) {
+    if (pool.queueDepth == 0) {
+      return pool.activeThreads; // Idle threads aren't needed, down to zero
+    }
+
+    if (pool.maxQueueWaitTimeInMillis > targetQueueWaitTimeInMillis || pool.queueDepth > pool.currentThreads) {
+      return Math.min(maxThreadsPerTenant, Math.max(1, Math.max(pool.currentThreads * 2, pool.activeThreads + 1)));
+    }
+    return Math.max(1, pool.currentThreads);
+  }
+
+  protected void resize(TenantPoolState pool, int threads) {
+    if (threads != pool.currentThreads) {
+      logger.debug("Resizing thread pool of tenant {} from {} to {} threads", pool.tenantId, pool.currentThreads, threads);
+
+      // The maximum stays at least 1: a job queued with zero threads still gets a thread to execute it
+      pool.threadPool.resize(threads, Math.max(threads, 1));
+    }
+  }
+
+  public int getGlobalThreadBudget() {
+    return globalThreadBudget;
+  }
+
+  public void setGlobalThreadBudget(int globalThreadBudget) {
+    this.globalThreadBudget = globalThreadBudget;
+  }
+
+  public int getMaxThreadsPerTenant() {
+    return maxThreadsPerTenant;
+  }
+
+  public void setMaxThreadsPerTenant(int maxThreadsPerTenant) {
+    this.maxThreadsPerTenant = maxThreadsPerTenant;
+  }
+
+  public long getTargetQueueWaitTimeInMillis() {
+    return targetQueueWaitTimeInMillis;
+  }
+
+  public void setTargetQueueWaitTimeInMillis(long targetQueueWaitTimeInMillis) {
+    this.targetQueueWaitTimeInMillis = targetQueueWaitTimeInMillis;
+  }
+
+  public long getIntervalInMillis() {
+    return intervalInMillis;
+  }
+
+  public void setIntervalInMillis(long intervalInMillis) {
+    this.intervalInMillis = intervalInMillis;
+  }
+
+  protected static class TenantPoolState {
+
+    protected final String tenantId;
+    protected final TenantThreadPoolExecutor threadPool;
+    protected final int currentThreads;
+    protected final int activeThreads;
+    protected final int queueDepth;
+    protected final long maxQueueWaitTimeInMillis;
+    protected int desiredThreads;
+
+    public TenantPoolState(String tenantId, TenantThreadPoolExecutor threadPool) {
+      this.tenantId = tenantId;
+      this.threadPool = threadPool;
+      this.currentThreads = threadPool.getCorePoolSize();
+      this.activeThreads = threadPool.getActiveCount();
+      this.queueDepth = threadPool.getQueue().size();
+      this.maxQueueWaitTimeInMillis = threadPool.getAndResetMaxQueueWaitTimeInMillis();
+    }
+
+  }
+
+}
@@ -0,0 +1,133 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ThreadPoolExecutor} that keeps track of how long jobs waited in the queue before being executed.
+ * Used by the {@link TenantThreadPoolAutoscaler} to decide if a tenant needs more threads.
+ * 
+ * When the pool is shared by tenants, the running jobs are counted per tenant
+ * and the queued jobs of a tenant can be taken out (see {@link #removeQueuedJobs(String)}).
+ * 
+ * @author Joram Barrez
+ */
+public class TenantThreadPoolExecutor extends ThreadPoolExecutor {
+  
+  protected AtomicLong maxQueueWaitTimeInMillis = new AtomicLong();
+  protected ConcurrentHashMap<String, AtomicInteger> runningJobCounts = new ConcurrentHashMap<String, AtomicInteger>();
+  
+  public TenantThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, BlockingQueue<Runnable> workQueue) {
+    super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue);
+  }
+  
+  public TenantThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, 
+      BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory) {
+    super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
+  }
+  
+  @Override
+  protected void beforeExecute(Thread thread, Runnable runnable) {
+    super.beforeExecute(thread, runnable);
+    if (runnable instanceof TenantAwareExecuteAsyncRunnable) {
+      long waitTime = System.currentTimeMillis() - ((TenantAwareExecuteAsyncRunnable) runnable).getCreateTime();
+      long currentMax = maxQueueWaitTimeInMillis.get();
+      while (waitTime > currentMax && !maxQueueWaitTimeInMillis.compareAndSet(currentMax, waitTime)) {
+        currentMax = maxQueueWaitTimeInMillis.get();
+      }
+    }
+    
+    String tenantId = getTenantId(runnable);
+    if (tenantId != null) {
+      AtomicInteger runningJobCount = runningJobCounts.get(tenantId);
+      if (runningJobCount == null) {
+        runningJobCounts.putIfAbsent(tenantId, new AtomicInteger());
+        runningJobCount = runningJobCounts.get(tenantId);
+      }
+      runningJobCount.incrementAndGet();
+    }
+  }
+  
+  @Override
+  protected void afterExecute(Runnable runnable, Throwable throwable) {
+    String tenantId = getTenantId(runnable);
+    if (tenantId != null) {
+      runningJobCounts.get(tenantId).decrementAndGet();
+    }
+    super.afterExecute(runnable, throwable);
+  }
+  
+  protected String getTenantId(Runnable runnable) {
+    return runnable instanceof TenantAwareRunnable ? ((TenantAwareRunnable) runnable).getTenantId() : null;
+  }
+  
+  /**
+   * Takes the queued jobs of the tenant out of the queue, e.g. when the tenant is removed.
+   * 
+   * @return The jobs that were queued for the tenant.
+   */
+  public List<Runnable> removeQueuedJobs(String tenantId) {
+    List<Runnable> removed = new ArrayList<Runnable>();
+    for (Runnable runnable : getQueue().toArray(new Runnable[0])) {
+      if (tenantId.equals(getTenantId(runnable)) && remove(runnable)) {
+        removed.add(runnable);
+      }
+    }
+    return removed;
+  }
+  
+  public int getQueuedCount(String tenantId) {
+    int queuedCount = 0;
+    for (Runnable runnable : getQueue()) {
+      if (tenantId.equals(getTenantId(runnable))) {
+        queuedCount++;
+      }
+    }
+    return queuedCount;
+  }
+  
+  public int getRunningCount(String tenantId) {
+    AtomicInteger runningJobCount = runningJobCounts.get(tenantId);
+    return runningJobCount != null ? runningJobCount.get() : 0;
+  }
+  
+  /**
+   * @return The longest time a job waited in the queue since the previous call.
+   */
+  public long getAndResetMaxQueueWaitTimeInMillis() {
+    return maxQueueWaitTimeInMillis.getAndSet(0L);
+  }
+  
+  /**
+   * Changes both pool sizes, in the order that keeps the core size below the maximum size at all times.
+   */
+  public void resize(int corePoolSize, int maximumPoolSize) {
+    if (maximumPoolSize >= getMaximumPoolSize()) {
+      setMaximumPoolSize(maximumPoolSize);
+      setCorePoolSize(corePoolSize);
+    } else {
+      setCorePoolSize(corePoolSize);
+      setMaximumPoolSize(maximumPoolSize);
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the due date of the next timer of every tenant.
+ * 
+ * The timer acquisition of a tenant refreshes the entry of the tenant after every acquisition and then sleeps
+ * until that due date (see {@link #refresh(String, TenantJobAcquirer)}), instead of polling on a fixed interval.
+ * Timers created in this engine that are due sooner update the entry and wake up the acquisition of the tenant
+ * (see {@link #timerCreated(String, long)}).
+ * 
+ * Timers created by other engines sharing the database are not seen, which is why the sleep is capped
+ * by the max sleep time. Neither is a failing timer that gets locked for its next retry: as long as the tenant 
+ * has overdue timers with retries left, the sleep is capped by the default timer acquire wait time.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantTimerDueIndex {
+
+  protected long maxSleepInMillis = 5L * 60L * 1000L;
+
+  protected Map<String, Long> nextDueTimes = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Reads the due date of the next future timer of the tenant (which must be set as current tenant).
+   *
+   * @return Time the timer acquisition of the tenant can sleep: until the next timer, but no longer than the max sleep time
+   *         (or the default timer acquire wait time, when overdue timers are waiting for their lock to expire).
+   */
+  public long refresh(String tenantId, TenantJobAcquirer jobAcquirer) {
+    long now = System.currentTimeMillis();
+    long sleepTime = maxSleepInMillis;
+    Date nextDueDate = jobAcquirer.findNextTimerDueDate(now);
+    if (nextDueDate == null) {
+      removeTenant(tenantId);
+    } else {
+      setNextDueTime(tenantId, nextDueDate.getTime());
+      sleepTime = Math.max(0L, Math.min(nextDueDate.getTime() - now, maxSleepInMillis));
+    }
+    
+    if (sleepTime > 0L && jobAcquirer.hasOverdueTimerJobs(now)) {
+      // Locked (being executed, or failed and waiting for the retry): acquirable again once the lock expires
+      sleepTime = Math.min(sleepTime, jobAcquirer.getAsyncExecutor().getDefaultTimerJobAcquireWaitTimeInMillis());
+    }
+    return sleepTime;
+  }
+
+  /**
+   * @return True when the timer is due before the next timer known for the tenant,
+   *         meaning the timer acquisition of the tenant needs to run earlier than planned.
+   */
+  public synchronized boolean timerCreated(String tenantId, long dueTime) {
+    Long current = nextDueTimes.get(tenantId);
+    if (current != null && current <= dueTime) {
+      return false;
+    }
+    setNextDueTime(tenantId, dueTime);
+    return true;
+  }
+
+  protected synchronized void setNextDueTime(String tenantId, long dueTime) {
+    nextDueTimes.put(tenantId, dueTime);
+  }
+
+  public synchronized void removeTenant(String tenantId) {
+    nextDueTimes.remove(tenantId);
+  }
+
+  /**
+   * @return The due time of the next timer of the tenant, or null if the tenant has no timers (or wasn't refreshed yet).
+   */
+  public Long getNextDueTime(String tenantId) {
+    return nextDueTimes.get(tenantId);
+  }
+
+  public long getMaxSleepInMillis() {
+    return maxSleepInMillis;
+  }
+
+  public void setMaxSleepInMillis(long maxSleepInMillis) {
+    this.maxSleepInMillis = maxSleepInMillis;
+  }
+
+}
@@ -0,0 +1,206 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.activiti.engine.runtime.Job;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps, per tenant, a {@link HierarchicalTimerWheel} with the timers that are due within the lookahead window.
+ * When a timer of a tenant is due, the timer acquisition of that tenant is triggered right away.
+ * 
+ * The wheels are filled by the timer acquisition, which reads the timers due within the lookahead window 
+ * after every acquisition (and, with a wheel, only acquires every lookahead window by itself), 
+ * and by timers created in this engine.
+ * 
+ * Due dates are compared with the system time, so this assumes the engine clock isn't changed.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantTimerWheel implements Runnable {
+  
+  private static final Logger logger = LoggerFactory.getLogger(TenantTimerWheel.class);
+  
+  protected TenantAwareAsyncExecutor asyncExecutor;
+  
+  protected long tickInMillis = 50L;
+  protected long lookaheadWindowInMillis = 5L * 60L * 1000L;
+  protected int maxTimersPerLookahead = 1000;
+  
+  protected Map<String, HierarchicalTimerWheel> wheels = new ConcurrentHashMap<String, HierarchicalTimerWheel>();
+  
+  protected Thread thread;
+  protected volatile boolean isStopped;
+  
+  public TenantTimerWheel(TenantAwareAsyncExecutor asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+  }
+  
+  /**
+   * Reads the timers of the tenant that become due within the lookahead window into its wheel.
+   * Only future timers with retries left are read: overdue ones would be due on the next tick and trigger
+   * an acquisition (and thus a lookahead) over and over while they're locked.
+   * 
+   * @return Time until the timer acquisition of the tenant needs to run by itself again: the lookahead window,
+   *         or up to the last timer read when there were more than the max timers per lookahead (at least one tick).
+   *         Capped by the default timer acquire wait time while overdue timers are locked.
+   */
+  public long lookahead(String tenantId, TenantJobAcquirer jobAcquirer) {
+    long now = System.currentTimeMillis();
+    List<Job> timers = jobAcquirer.findTimerJobsDueBetween(now, now + lookaheadWindowInMillis, maxTimersPerLookahead);
+    addTimers(tenantId, timers);
+    
+    long waitTime = lookaheadWindowInMillis;
+    if (timers.size() >= maxTimersPerLookahead) {
+      waitTime = Math.max(tickInMillis, timers.get(timers.size() - 1).getDuedate().getTime() - now);
+    }
+    if (jobAcquirer.hasOverdueTimerJobs(now)) {
+      // Not in the wheel: acquirable again when their lock (execution or retry) expires
+      waitTime = Math.min(waitTime, jobAcquirer.getAsyncExecutor().getDefaultTimerJobAcquireWaitTimeInMillis());
+    }
+    return waitTime;
+  }
+  
+  public void addTimers(String tenantId, Collection<? extends Job> timers) {
+    for (Job timer : timers) {
+      addTimer(tenantId, timer.getId(), timer.getDuedate());
+    }
+  }
+  
+  /**
+   * Ignored when the due date is beyond the lookahead window: the timer will be read with one of the next lookahead windows.
+   */
+  public void addTimer(String tenantId, String jobId, Date dueDate) {
+    if (dueDate == null || dueDate.getTime() > System.currentTimeMillis() + lookaheadWindowInMillis) {
+      return;
+    }
+    
+    HierarchicalTimerWheel wheel = getWheel(tenantId);
+    synchronized (wheel) {
+      wheel.add(jobId, dueDate.getTime());
+    }
+  }
+  
+  protected HierarchicalTimerWheel getWheel(String tenantId) {
+    HierarchicalTimerWheel wheel = wheels.get(tenantId);
+    if (wheel == null) {
+      synchronized (wheels) {
+        wheel = wheels.get(tenantId);
+        if (wheel == null) {
+          wheel = new HierarchicalTimerWheel(System.currentTimeMillis(), tickInMillis);
+          wheels.put(tenantId, wheel);
+        }
+      }
+    }
+    return wheel;
+  }
+  
+  public void removeTenant(String tenantId) {
+    wheels.remove(tenantId);
+  }
+  
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    isStopped = false;
+    thread = new Thread(this, "activiti-timer-wheel");
+    thread.setDaemon(true);
+    thread.start();
+  }
+  
+  public synchronized void stop() {
+    isStopped = true;
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while waiting for the timer wheel thread to terminate", e);
+      }
+      thread = null;
+    }
+  }
+  
+  public void run() {
+    while (!isStopped) {
+      try {
+        Thread.sleep(tickInMillis);
+      } catch (InterruptedException e) {
+        break;
+      }
+      
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, HierarchicalTimerWheel> entry : wheels.entrySet()) {
+        List<String> dueJobIds = null;
+        HierarchicalTimerWheel wheel = entry.getValue();
+        synchronized (wheel) {
+          dueJobIds = wheel.advance(now);
+        }
+        
+        if (!dueJobIds.isEmpty()) {
+          try {
+            asyncExecutor.scheduleTimerJobAcquisition(entry.getKey(), now);
+          } catch (Throwable e) {
+            logger.warn("Could not trigger timer acquisition for tenant " + entry.getKey(), e);
+          }
+        }
+      }
+    }
+  }
+  
+  public int getTimerCount(String tenantId) {
+    HierarchicalTimerWheel wheel = wheels.get(tenantId);
+    if (wheel == null) {
+      return 0;
+    }
+    synchronized (wheel) {
+      return wheel.size();
+    }
+  }
+
+  public long getTickInMillis() {
+    return tickInMillis;
+  }
+
+  /**
+   * Must be set before timers are added.
+   */
+  public void setTickInMillis(long tickInMillis) {
+    this.tickInMillis = tickInMillis;
+  }
+
+  public long getLookaheadWindowInMillis() {
+    return lookaheadWindowInMillis;
+  }
+
+  public void setLookaheadWindowInMillis(long lookaheadWindowInMillis) {
+    this.lookaheadWindowInMillis = lookaheadWindowInMillis;
+  }
+
+  public int getMaxTimersPerLookahead() {
+    return maxTimersPerLookahead;
+  }
+
+  public void setMaxTimersPerLookahead(int maxTimersPerLookahead) {
+    this.maxTimersPerLookahead = maxTimersPerLookahead;
+  }
+
+}
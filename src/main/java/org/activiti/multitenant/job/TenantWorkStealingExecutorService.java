@@ -0,0 +1,306 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded number of workers and a bounded queue for the jobs of one tenant, like a thread pool,
+ * but a worker without jobs of its own tenant takes jobs queued for the other tenants of its {@link TenantWorkStealingPool}.
+ * This way, the backlog of one tenant is worked off by the idle workers of the quiet tenants.
+ * 
+ * Workers are created when jobs are queued and no idle worker is left, up to the thread count.
+ * Idle workers park until the pool signals a newly queued job, of their own tenant or another one.
+ * 
+ * Only {@link TenantAwareRunnable}s are stolen, as they set their own tenant as current tenant when executed.
+ * The reserved workers of a tenant never execute jobs of other tenants, so a tenant always has them available 
+ * for its own jobs, no matter how busy the other tenants are.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantWorkStealingExecutorService extends AbstractExecutorService {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantWorkStealingExecutorService.class);
+
+  protected TenantWorkStealingPool pool;
+  protected String tenantId;
+  protected int threadCount;
+  protected int reservedThreadCount;
+
+  protected LinkedBlockingDeque<Runnable> queue;
+  protected List<Thread> workers = new ArrayList<Thread>();
+  protected AtomicInteger liveWorkerCount = new AtomicInteger();
+  protected AtomicInteger idleWorkerCount = new AtomicInteger();
+  protected volatile boolean shutdown;
+
+  protected AtomicInteger runningCount = new AtomicInteger();
+  protected AtomicInteger stolenRunningCount = new AtomicInteger();
+  protected AtomicInteger stealingThreadCount = new AtomicInteger();
+  protected AtomicLong stolenJobCount = new AtomicLong();
+  protected AtomicLong jobsStolenFromOthersCount = new AtomicLong();
+
+  public TenantWorkStealingExecutorService(TenantWorkStealingPool pool, String tenantId, int threadCount, int queueSize, int reservedThreadCount) {
+    this.pool = pool;
+    this.tenantId = tenantId;
+    this.threadCount = threadCount;
+    this.reservedThreadCount = Math.min(reservedThreadCount, threadCount);
+    this.queue = new LinkedBlockingDeque<Runnable>(queueSize);
+  }
+
+  public void execute(Runnable runnable) {
+    if (shutdown) {
+      throw new RejectedExecutionException("Executor service of tenant " + tenantId + " is shut down");
+    }
+    if (!queue.offerLast(runnable)) {
+      throw new RejectedExecutionException("Queue of tenant " + tenantId + " is full");
+    }
+    pool.jobQueued(); // Wakes up an idle worker
+    if (queue.size() > idleWorkerCount.get()) {
+      addWorker();
+    }
+  }
+
+  /**
+   * Adds a worker, unless the thread count is reached.
+   */
+  protected void addWorker() {
+    synchronized (workers) {
+      if (shutdown || workers.size() >= threadCount) {
+        return;
+      }
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          work();
+        }
+      }, "activiti-" + tenantId + "-worker-" + workers.size());
+      worker.setDaemon(true);
+      workers.add(worker);
+      liveWorkerCount.incrementAndGet();
+      worker.start();
+    }
+  }
+
+  protected void work() {
+    try {
+      boolean woken = false;
+      while (true) {
+        long totalQueuedJobCount = pool.getTotalQueuedJobCount(); // Before looking: a job queued after this keeps the worker from parking
+        Runnable runnable = queue.pollFirst();
+        if (runnable != null) {
+          pool.jobDequeued();
+          runningCount.incrementAndGet();
+          try {
+            executeJob(runnable);
+          } finally {
+            runningCount.decrementAndGet();
+          }
+        } else if (shutdown) {
+          break; // Own queue is empty: no stealing once shut down
+        } else if (!steal()) {
+          if (woken) {
+            pool.passOnJobQueued(); // The job this worker was woken up for is for a worker that can take it
+          }
+          idleWorkerCount.incrementAndGet();
+          try {
+            woken = pool.awaitJobQueued(totalQueuedJobCount, this);
+          } finally {
+            idleWorkerCount.decrementAndGet();
+          }
+          continue;
+        }
+        woken = false;
+      }
+    } catch (InterruptedException e) {
+      logger.debug("Worker of tenant {} interrupted", tenantId);
+    } finally {
+      liveWorkerCount.decrementAndGet();
+      checkTerminated();
+    }
+  }
+
+  /**
+   * @return True when a job of another tenant was executed.
+   */
+  protected boolean steal() {
+    if (pool.getQueuedJobCount() <= 0) {
+      return false;
+    }
+    
+    // The reserved workers stay available for the own tenant
+    if (stealingThreadCount.incrementAndGet() > threadCount - reservedThreadCount) {
+      stealingThreadCount.decrementAndGet();
+      return false;
+    }
+    try {
+      TenantWorkStealingExecutorService victim = pool.findVictim(this);
+      Runnable stolen = victim != null ? victim.pollForThief() : null;
+      if (stolen == null) {
+        return false;
+      }
+      jobsStolenFromOthersCount.incrementAndGet();
+      try {
+        executeJob(stolen);
+      } finally {
+        victim.stolenJobFinished();
+      }
+      return true;
+    } finally {
+      stealingThreadCount.decrementAndGet();
+    }
+  }
+
+  protected void executeJob(Runnable runnable) {
+    try {
+      runnable.run();
+    } catch (Throwable e) {
+      logger.error("Exception while executing job on worker of tenant " + tenantId, e);
+    }
+  }
+
+  /**
+   * Takes the first queued job for a worker of another tenant, if that job sets its own tenant.
+   * The job counts as running for this tenant until {@link #stolenJobFinished()}, so this executor service 
+   * only terminates when its stolen jobs are done too.
+   */
+  protected Runnable pollForThief() {
+    Runnable runnable = queue.peekFirst();
+    if (!(runnable instanceof TenantAwareRunnable)) {
+      return null;
+    }
+    stolenRunningCount.incrementAndGet();
+    if (!queue.remove(runnable)) {
+      stolenJobFinished(); // Taken by one of the own workers in the meantime
+      return null;
+    }
+    pool.jobDequeued();
+    stolenJobCount.incrementAndGet();
+    return runnable;
+  }
+
+  protected void stolenJobFinished() {
+    stolenRunningCount.decrementAndGet();
+    checkTerminated();
+  }
+
+  protected void checkTerminated() {
+    if (isTerminated()) {
+      pool.terminated(this);
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+
+  public void shutdown() {
+    shutdown = true;
+    pool.wakeUpWorkers(); // Parked workers of this tenant stop
+    checkTerminated(); // Never had a worker
+  }
+
+  /**
+   * Returns the queued jobs and interrupts the workers.
+   */
+  public List<Runnable> shutdownNow() {
+    shutdown();
+    List<Runnable> notExecuted = new ArrayList<Runnable>();
+    queue.drainTo(notExecuted);
+    for (int i = 0; i < notExecuted.size(); i++) {
+      pool.jobDequeued();
+    }
+    synchronized (workers) {
+      for (Thread worker : workers) {
+        worker.interrupt();
+      }
+    }
+    return notExecuted;
+  }
+
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  public boolean isTerminated() {
+    return shutdown && liveWorkerCount.get() == 0 && stolenRunningCount.get() == 0;
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+    synchronized (this) {
+      while (!isTerminated()) {
+        long millisToWait = deadline - System.currentTimeMillis();
+        if (millisToWait <= 0) {
+          return false;
+        }
+        wait(millisToWait);
+      }
+    }
+    return true;
+  }
+
+  public String getTenantId() {
+    return tenantId;
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  /**
+   * @return The executing jobs of this tenant, on its own workers or on the workers of other tenants.
+   */
+  public int getRunningCount() {
+    return runningCount.get() + stolenRunningCount.get();
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * @return The workers created so far: workers are only created when jobs are queued.
+   */
+  public int getWorkerCount() {
+    synchronized (workers) {
+      return workers.size();
+    }
+  }
+
+  public int getReservedThreadCount() {
+    return reservedThreadCount;
+  }
+
+  /**
+   * @return The jobs of this tenant executed by workers of other tenants.
+   */
+  public long getStolenJobCount() {
+    return stolenJobCount.get();
+  }
+
+  /**
+   * @return The jobs of other tenants executed by the workers of this tenant.
+   */
+  public long getJobsStolenFromOthersCount() {
+    return jobsStolenFromOthersCount.get();
+  }
+
+}
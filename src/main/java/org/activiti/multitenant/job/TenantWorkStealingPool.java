@@ -0,0 +1,149 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group of {@link TenantWorkStealingExecutorService}s, one per tenant, of which the idle workers take over
+ * jobs queued for the other tenants of the group.
+ * 
+ * Keeps the number of jobs queued over all tenants, so idle workers only look for jobs to steal when there are any.
+ * Idle workers of all tenants park on one condition of the pool, signalled when a job is queued for any tenant.
+ * A woken worker that can't take the job (a reserved worker, for a job of another tenant) passes the signal on.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantWorkStealingPool {
+
+  protected ConcurrentMap<String, TenantWorkStealingExecutorService> executorServices = new ConcurrentHashMap<String, TenantWorkStealingExecutorService>();
+  protected AtomicInteger queuedJobCount = new AtomicInteger();
+
+  protected final ReentrantLock lock = new ReentrantLock();
+  protected final Condition jobQueuedCondition = lock.newCondition();
+  
+  /** The jobs ever queued: a worker parks only when no job was queued since it last looked. */
+  protected volatile long totalQueuedJobCount;
+
+  /**
+   * @param threadCount The maximum number of workers of the tenant, created when jobs are queued.
+   * @param queueSize The maximum number of jobs queued for the tenant.
+   * @param reservedThreadCount The workers that only execute jobs of the tenant: they're never busy with jobs of other tenants.
+   */
+  public TenantWorkStealingExecutorService createExecutorService(String tenantId, int threadCount, int queueSize, int reservedThreadCount) {
+    TenantWorkStealingExecutorService executorService = new TenantWorkStealingExecutorService(this, tenantId, threadCount, queueSize, reservedThreadCount);
+    executorServices.put(tenantId, executorService);
+    return executorService;
+  }
+
+  /**
+   * @return The other tenant with the most queued jobs, or null if no other tenant has queued jobs.
+   */
+  protected TenantWorkStealingExecutorService findVictim(TenantWorkStealingExecutorService thief) {
+    if (queuedJobCount.get() <= 0) {
+      return null;
+    }
+
+    TenantWorkStealingExecutorService victim = null;
+    int victimQueueSize = 0;
+    for (TenantWorkStealingExecutorService executorService : executorServices.values()) {
+      int queueSize = executorService.getQueueSize();
+      if (executorService != thief && queueSize > victimQueueSize) {
+        victim = executorService;
+        victimQueueSize = queueSize;
+      }
+    }
+    return victim;
+  }
+
+  /**
+   * Called after the job is queued: wakes up one idle worker.
+   */
+  protected void jobQueued() {
+    queuedJobCount.incrementAndGet();
+    lock.lock();
+    try {
+      totalQueuedJobCount++;
+      jobQueuedCondition.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up another idle worker, for a queued job the calling worker couldn't take.
+   */
+  protected void passOnJobQueued() {
+    lock.lock();
+    try {
+      jobQueuedCondition.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up all idle workers, so the workers of a shut down executor service stop.
+   */
+  protected void wakeUpWorkers() {
+    lock.lock();
+    try {
+      jobQueuedCondition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Parks the calling worker until a job is queued after the worker read the given total, or its executor service is shut down.
+   * 
+   * @return True when a job was queued.
+   */
+  protected boolean awaitJobQueued(long lastTotalQueuedJobCount, TenantWorkStealingExecutorService executorService) throws InterruptedException {
+    lock.lock();
+    try {
+      while (totalQueuedJobCount == lastTotalQueuedJobCount && !executorService.isShutdown()) {
+        jobQueuedCondition.await();
+      }
+      return totalQueuedJobCount != lastTotalQueuedJobCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  protected void jobDequeued() {
+    queuedJobCount.decrementAndGet();
+  }
+
+  protected void terminated(TenantWorkStealingExecutorService executorService) {
+    executorServices.remove(executorService.getTenantId(), executorService); // Not a newer one of the same tenant
+  }
+
+  public int getQueuedJobCount() {
+    return queuedJobCount.get();
+  }
+
+  public Map<String, TenantWorkStealingExecutorService> getExecutorServices() {
+    return executorServices;
+  }
+
+  public long getTotalQueuedJobCount() {
+    return totalQueuedJobCount;
+  }
+
+}
@@ -0,0 +1,148 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.tenant;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.engine.ActivitiException;
+
+/**
+ * Keeps track of which tenants can be used.
+ * 
+ * A tenant is not ready while its database schema is being created or validated.
+ * Tenants that were never marked as initializing are considered to be ready.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantReadinessRegistry {
+  
+  protected Map<String, TenantReadiness> tenants = new ConcurrentHashMap<String, TenantReadiness>();
+  
+  /** Number of tenants that are not ready, allows to skip the lookup when everything is ready */
+  protected final AtomicInteger notReadyCount = new AtomicInteger();
+  
+  public void markInitializing(String tenantId) {
+    TenantReadiness previous = tenants.put(tenantId, new TenantReadiness());
+    if (previous == null || previous.isReady()) {
+      notReadyCount.incrementAndGet();
+    }
+  }
+  
+  public void markReady(String tenantId) {
+    TenantReadiness readiness = tenants.get(tenantId);
+    if (readiness != null && readiness.ready()) {
+      notReadyCount.decrementAndGet();
+    }
+  }
+  
+  public void markFailed(String tenantId, Throwable failure) {
+    TenantReadiness readiness = tenants.get(tenantId);
+    if (readiness != null) {
+      readiness.fail(failure);
+    }
+  }
+  
+  public void remove(String tenantId) {
+    TenantReadiness readiness = tenants.remove(tenantId);
+    if (readiness != null && !readiness.isReady()) {
+      notReadyCount.decrementAndGet();
+      readiness.fail(new ActivitiException("Tenant " + tenantId + " was removed"));
+    }
+  }
+  
+  public boolean isReady(String tenantId) {
+    if (notReadyCount.get() == 0 || tenantId == null) {
+      return true;
+    }
+    TenantReadiness readiness = tenants.get(tenantId);
+    return readiness == null || readiness.isReady();
+  }
+  
+  /**
+   * Waits until the tenant is ready. A wait time of zero or less fails immediately when the tenant is not ready.
+   * 
+   * @throws ActivitiException when the tenant is not ready in time, or when its initialization failed.
+   */
+  public void awaitReady(String tenantId, long waitTimeInMillis) {
+    if (isReady(tenantId)) {
+      return;
+    }
+    
+    TenantReadiness readiness = tenants.get(tenantId);
+    if (readiness == null) {
+      return;
+    }
+    
+    if (readiness.getFailure() == null && waitTimeInMillis > 0) {
+      try {
+        readiness.await(waitTimeInMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ActivitiException("Interrupted while waiting for tenant " + tenantId + " to become ready", e);
+      }
+    }
+    
+    if (readiness.getFailure() != null) {
+      throw new ActivitiException("Tenant " + tenantId + " could not be initialized: " + readiness.getFailure().getMessage(), readiness.getFailure());
+    }
+    if (!readiness.isReady()) {
+      throw new ActivitiException("Tenant " + tenantId + " is not ready yet: its database schema is still being initialized");
+    }
+  }
+  
+  public int getNotReadyCount() {
+    return notReadyCount.get();
+  }
+  
+  protected static class TenantReadiness {
+    
+    protected final CountDownLatch latch = new CountDownLatch(1);
+    protected volatile boolean ready;
+    protected volatile Throwable failure;
+    
+    /**
+     * @return true if the state was changed.
+     */
+    public synchronized boolean ready() {
+      if (ready) {
+        return false;
+      }
+      ready = true;
+      latch.countDown();
+      return true;
+    }
+    
+    public void fail(Throwable failure) {
+      this.failure = failure;
+      latch.countDown();
+    }
+    
+    public void await(long waitTimeInMillis) throws InterruptedException {
+      latch.await(waitTimeInMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public boolean isReady() {
+      return ready;
+    }
+    
+    public Throwable getFailure() {
+      return failure;
+    }
+    
+  }
+
+}
@@ -138,6 +138,24 @@ public class MultiTenantProcessEngineTest {
     
   }
   
+  @Test
+  public void testUnregisterTenant() throws Exception {
+    startProcessInstances("tony");
+    startProcessInstances("raphael");
+    
+    HikariDataSource starkDataSource = (HikariDataSource) config.getTenantAwareDataSource().getRoutingTable().getRoute("starkindustries").getDataSource();
+    config.unregisterTenant("starkindustries");
+    tenantInfoHolder.removeTenant("starkindustries");
+    
+    Assert.assertTrue(starkDataSource.isClosed());
+    Assert.assertNull(config.getTenantAwareDataSource().getRoutingTable().getRoute("starkindustries"));
+    
+    // Other tenants are not affected
+    assertData("raphael", 2, 1);
+    startProcessInstances("raphael");
+    assertData("raphael", 4, 2);
+  }
+  
   private void startProcessInstances(String userId) {
     
     System.out.println();
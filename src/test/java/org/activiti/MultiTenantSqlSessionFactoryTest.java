@@ -0,0 +1,110 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class MultiTenantSqlSessionFactoryTest {
+  
+  private static final int NR_OF_TENANTS = 20;
+  
+  private ProcessEngine processEngine;
+  
+  @After
+  public void close() {
+    if (processEngine != null) {
+      processEngine.close();
+    }
+  }
+  
+  @Test
+  public void testConfigurationSharedPerDatabaseType() {
+    DummyTenantInfoHolder tenantInfoHolder = createTenantInfoHolder();
+    DeprecateMultiTenantProcessEngineConfiguration config = createConfiguration(tenantInfoHolder, "shared", true);
+    processEngine = config.buildProcessEngine();
+    
+    // All tenants are on H2: only one parsed configuration should exist
+    Assert.assertEquals(1, config.getMultiTenantSqlSessionFactory().getConfigurationCount());
+    
+    // But the sessions should still go to the database of the tenant
+    for (int i = 0; i < 2; i++) {
+      tenantInfoHolder.setCurrentTenantId("tenant-" + i);
+      processEngine.getRepositoryService().createDeployment().addClasspathResource("oneTaskProcess.bpmn20.xml").deploy();
+      Assert.assertEquals(1L, processEngine.getRepositoryService().createDeploymentQuery().count());
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+  }
+  
+  @Test
+  public void testSharedConfigurationUsesLessHeap() {
+    long usedHeapBefore = usedHeap();
+    DeprecateMultiTenantProcessEngineConfiguration perTenantConfig = createConfiguration(createTenantInfoHolder(), "pertenant", false);
+    processEngine = perTenantConfig.buildProcessEngine();
+    long perTenantHeap = usedHeap() - usedHeapBefore;
+    Assert.assertEquals(NR_OF_TENANTS, perTenantConfig.getMultiTenantSqlSessionFactory().getConfigurationCount());
+    processEngine.close();
+    processEngine = null;
+    perTenantConfig = null;
+    
+    usedHeapBefore = usedHeap();
+    DeprecateMultiTenantProcessEngineConfiguration sharedConfig = createConfiguration(createTenantInfoHolder(), "sharedheap", true);
+    processEngine = sharedConfig.buildProcessEngine();
+    long sharedHeap = usedHeap() - usedHeapBefore;
+    Assert.assertEquals(1, sharedConfig.getMultiTenantSqlSessionFactory().getConfigurationCount());
+    
+    // The engines only differ in the parsed configurations: NR_OF_TENANTS - 1 of them are saved
+    Assert.assertTrue("Shared: " + (sharedHeap / 1024) + " kb, per tenant: " + (perTenantHeap / 1024) + " kb", sharedHeap < perTenantHeap);
+  }
+  
+  private DummyTenantInfoHolder createTenantInfoHolder() {
+    DummyTenantInfoHolder tenantInfoHolder = new DummyTenantInfoHolder();
+    for (int i = 0; i < NR_OF_TENANTS; i++) {
+      tenantInfoHolder.addTenant("tenant-" + i);
+    }
+    return tenantInfoHolder;
+  }
+  
+  private DeprecateMultiTenantProcessEngineConfiguration createConfiguration(DummyTenantInfoHolder tenantInfoHolder, String databasePrefix, boolean shared) {
+    List<MultiTenantDataSourceConfiguration> dataSourceConfigurations = new ArrayList<MultiTenantDataSourceConfiguration>();
+    for (String tenantId : tenantInfoHolder.getAllTenants()) {
+      dataSourceConfigurations.add(new MybatisMultiTenantDatasourceConfiguration(tenantId, ProcessEngineConfigurationImpl.DATABASE_TYPE_H2, 
+          "jdbc:h2:mem:sqlsession-" + databasePrefix + "-" + tenantId + ";DB_CLOSE_DELAY=1000", "sa", "", "org.h2.Driver"));
+    }
+    
+    DeprecateMultiTenantProcessEngineConfiguration config = new DeprecateMultiTenantProcessEngineConfiguration();
+    config.setDatabaseSchemaUpdate(DeprecateMultiTenantProcessEngineConfiguration.DB_SCHEMA_UPDATE_DROP_CREATE);
+    config.setDataSourceConfigurations(dataSourceConfigurations);
+    config.setTenantInfoHolder(tenantInfoHolder);
+    config.setShareMybatisConfigurationPerDatabaseType(shared);
+    return config;
+  }
+  
+  private long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+}
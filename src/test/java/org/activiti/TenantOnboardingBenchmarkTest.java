@@ -0,0 +1,107 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti;
+
+import javax.sql.DataSource;
+
+import org.activiti.engine.ProcessEngine;
+import org.activiti.impl.db.H2ScriptTenantSchemaCloner;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares onboarding a tenant by executing the engine DDL with cloning the schema of a template tenant.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantOnboardingBenchmarkTest {
+  
+  private static final int NR_OF_TENANTS = 10;
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private MultiTenantProcessEngineConfiguration config;
+  private ProcessEngine processEngine;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("alfresco");
+    
+    config = new MultiTenantProcessEngineConfiguration(tenantInfoHolder);
+    config.setDatabaseType(MultiTenantProcessEngineConfiguration.DATABASE_TYPE_H2);
+    config.setDatabaseSchemaUpdate(MultiTenantProcessEngineConfiguration.DB_SCHEMA_UPDATE_DROP_CREATE);
+    config.setAsyncExecutorEnabled(false);
+    config.setAsyncExecutorActivate(false);
+    config.registerTenant("alfresco", createDataSource("onboarding-alfresco"));
+    
+    processEngine = config.buildProcessEngine();
+  }
+  
+  @After
+  public void close() {
+    processEngine.close();
+  }
+  
+  @Test
+  public void testOnboardingDdlVersusClone() {
+    long ddlTime = onboardTenants("ddl");
+    
+    config.setTemplateTenantDataSource(createDataSource("onboarding-template"));
+    config.setTenantSchemaCloner(new H2ScriptTenantSchemaCloner());
+    onboardTenant("clone-warmup"); // Creates and exports the template
+    long cloneTime = onboardTenants("clone");
+    
+    System.out.println("Onboarding " + NR_OF_TENANTS + " tenants: DDL " + ddlTime + " ms, clone " + cloneTime + " ms");
+    
+    assertTenantUsable("ddl-0");
+    assertTenantUsable("clone-0");
+  }
+  
+  private long onboardTenants(String prefix) {
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < NR_OF_TENANTS; i++) {
+      onboardTenant(prefix + "-" + i);
+    }
+    return System.currentTimeMillis() - start;
+  }
+  
+  private void onboardTenant(String tenantId) {
+    tenantInfoHolder.addTenant(tenantId);
+    config.registerTenant(tenantId, createDataSource("onboarding-" + tenantId));
+  }
+  
+  private void assertTenantUsable(String tenantId) {
+    tenantInfoHolder.setCurrentTenantId(tenantId);
+    try {
+      processEngine.getRepositoryService().createDeployment().addClasspathResource("oneTaskProcess.bpmn20.xml").deploy();
+      processEngine.getRuntimeService().startProcessInstanceByKey("oneTaskProcess");
+      Assert.assertEquals(1L, processEngine.getTaskService().createTaskQuery().count());
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private DataSource createDataSource(String databaseName) {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + databaseName + ";DB_CLOSE_DELAY=-1");
+    dataSource.setUser("sa");
+    dataSource.setPassword("");
+    return dataSource;
+  }
+
+}
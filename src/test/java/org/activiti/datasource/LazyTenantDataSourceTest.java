@@ -0,0 +1,317 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.activiti.MultiTenantDataSourceConfiguration;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class LazyTenantDataSourceTest {
+  
+  private TenantDataSourcePoolManager poolManager;
+  private AtomicInteger createdPoolCount;
+  
+  @Before
+  public void setup() {
+    poolManager = new TenantDataSourcePoolManager();
+    createdPoolCount = new AtomicInteger();
+  }
+  
+  @After
+  public void shutdown() {
+    poolManager.shutdown();
+  }
+  
+  @Test
+  public void testPoolIsCreatedOnFirstUse() throws Exception {
+    LazyTenantDataSource dataSource = createDataSource("alfresco");
+    Assert.assertFalse(dataSource.isMaterialized());
+    Assert.assertEquals(0, createdPoolCount.get());
+    
+    Connection connection = dataSource.getConnection();
+    Assert.assertTrue(dataSource.isMaterialized());
+    Assert.assertEquals(1, dataSource.getActiveConnections());
+    Assert.assertEquals(1, poolManager.getOpenPoolCount());
+    
+    connection.close();
+    Assert.assertEquals(0, dataSource.getActiveConnections());
+    Assert.assertEquals(1, createdPoolCount.get());
+  }
+  
+  @Test
+  public void testOnlyIdlePoolIsClosed() throws Exception {
+    LazyTenantDataSource dataSource = createDataSource("alfresco");
+    Connection connection = dataSource.getConnection();
+    Assert.assertFalse(dataSource.closeIfIdle());
+    Assert.assertTrue(dataSource.isMaterialized());
+    
+    connection.close();
+    Assert.assertTrue(dataSource.closeIfIdle());
+    Assert.assertFalse(dataSource.isMaterialized());
+    Assert.assertEquals(0, poolManager.getOpenPoolCount());
+    
+    // Recreated on the next use
+    dataSource.getConnection().close();
+    Assert.assertTrue(dataSource.isMaterialized());
+    Assert.assertEquals(2, createdPoolCount.get());
+  }
+  
+  @Test
+  public void testClosedDataSourceCantBeUsed() throws Exception {
+    LazyTenantDataSource dataSource = createDataSource("alfresco");
+    dataSource.getConnection().close();
+    dataSource.close();
+    try {
+      dataSource.getConnection();
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    Assert.assertEquals(0, dataSource.getActiveConnections());
+  }
+  
+  @Test
+  public void testLeastRecentlyUsedPoolIsEvicted() throws Exception {
+    poolManager.setMaxOpenPools(2);
+    LazyTenantDataSource alfresco = createDataSource("alfresco");
+    LazyTenantDataSource acme = createDataSource("acme");
+    LazyTenantDataSource wayne = createDataSource("wayne");
+    
+    alfresco.getConnection().close();
+    Thread.sleep(5L);
+    acme.getConnection().close();
+    Thread.sleep(5L);
+    wayne.getConnection().close();
+    
+    Assert.assertFalse(alfresco.isMaterialized());
+    Assert.assertTrue(acme.isMaterialized());
+    Assert.assertTrue(wayne.isMaterialized());
+    Assert.assertEquals(2, poolManager.getOpenPoolCount());
+  }
+  
+  @Test
+  public void testPoolInUseIsNotEvicted() throws Exception {
+    poolManager.setMaxOpenPools(1);
+    LazyTenantDataSource alfresco = createDataSource("alfresco");
+    LazyTenantDataSource acme = createDataSource("acme");
+    
+    Connection connection = alfresco.getConnection();
+    acme.getConnection().close();
+    
+    Assert.assertTrue(alfresco.isMaterialized());
+    Assert.assertEquals(2, poolManager.getOpenPoolCount());
+    connection.close();
+  }
+  
+  @Test
+  public void testIdlePoolIsEvicted() throws Exception {
+    poolManager.setMaxIdleTimeInMillis(0L);
+    LazyTenantDataSource dataSource = createDataSource("alfresco");
+    dataSource.getConnection().close();
+    Thread.sleep(5L);
+    
+    poolManager.evictIdlePools();
+    Assert.assertFalse(dataSource.isMaterialized());
+  }
+  
+  @Test
+  public void testConcurrentUseWhileClosing() throws Exception {
+    final LazyTenantDataSource dataSource = createDataSource("alfresco");
+    final AtomicBoolean done = new AtomicBoolean();
+    
+    Thread closer = new Thread(new Runnable() {
+      public void run() {
+        while (!done.get()) {
+          dataSource.closeIfIdle();
+        }
+      }
+    });
+    closer.start();
+    
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 4; i++) {
+      futures.add(executorService.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          for (int j = 0; j < 200; j++) {
+            Connection connection = dataSource.getConnection();
+            Assert.assertTrue(connection.isValid(1)); // Never handed out from a pool that's being closed
+            connection.close();
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get(); // Rethrows failures of the workers
+    }
+    done.set(true);
+    closer.join();
+    executorService.shutdown();
+    
+    Assert.assertEquals(0, dataSource.getActiveConnections());
+  }
+  
+  @Test
+  public void testFailingPoolCreationReleasesConnection() throws Exception {
+    final AtomicBoolean failing = new AtomicBoolean(true);
+    LazyTenantDataSource dataSource = poolManager.createDataSource(new H2DataSourceConfiguration("alfresco") {
+      public DataSource getDataSource() {
+        if (failing.get()) {
+          throw new RuntimeException("database down");
+        }
+        return super.getDataSource();
+      }
+    });
+    
+    try {
+      dataSource.getConnection();
+      Assert.fail();
+    } catch (RuntimeException e) {
+      Assert.assertEquals("database down", e.getMessage());
+    }
+    Assert.assertEquals(0, dataSource.getActiveConnections());
+    Assert.assertFalse(dataSource.isMaterialized());
+    
+    // Nothing was left behind that keeps the pool from being created or closed later on
+    failing.set(false);
+    dataSource.getConnection().close();
+    Assert.assertTrue(dataSource.closeIfIdle());
+  }
+  
+  @Test
+  public void testFailingEvictionDoesNotFailCheckout() throws Exception {
+    TenantDataSourcePoolManager failingPoolManager = new TenantDataSourcePoolManager() {
+      protected void evictLeastRecentlyUsed(LazyTenantDataSource justOpened) {
+        throw new IllegalArgumentException("Comparison method violates its general contract!");
+      }
+    };
+    failingPoolManager.setMaxOpenPools(1);
+    try {
+      LazyTenantDataSource alfresco = failingPoolManager.createDataSource(new H2DataSourceConfiguration("alfresco"));
+      LazyTenantDataSource acme = failingPoolManager.createDataSource(new H2DataSourceConfiguration("acme"));
+      alfresco.getConnection().close();
+      
+      Connection connection = acme.getConnection();
+      Assert.assertTrue(connection.isValid(1));
+      Assert.assertEquals(1, acme.getActiveConnections());
+      connection.close();
+      Assert.assertEquals(0, acme.getActiveConnections());
+    } finally {
+      failingPoolManager.shutdown();
+    }
+  }
+  
+  @Test
+  public void testEvictionWhileLastUsedChanges() throws Exception {
+    poolManager.setMaxOpenPools(2);
+    final List<LazyTenantDataSource> dataSources = new ArrayList<LazyTenantDataSource>();
+    for (int i = 0; i < 20; i++) {
+      dataSources.add(createDataSource("tenant" + i));
+    }
+    
+    // Every checkout updates the last used time while other threads sort the open pools to evict one
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 4; i++) {
+      final int offset = i;
+      futures.add(executorService.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          for (int j = 0; j < 500; j++) {
+            dataSources.get((j * 7 + offset) % dataSources.size()).getConnection().close();
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executorService.shutdown();
+    
+    for (LazyTenantDataSource dataSource : dataSources) {
+      Assert.assertEquals(0, dataSource.getActiveConnections());
+    }
+  }
+  
+  @Test
+  public void testShutdownStopsEvictionThread() throws Exception {
+    createDataSource("alfresco");
+    Assert.assertTrue(isEvictionThreadAlive());
+    
+    poolManager.shutdown();
+    Thread.sleep(100L);
+    Assert.assertFalse(isEvictionThreadAlive());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected LazyTenantDataSource createDataSource(String tenantId) {
+    return poolManager.createDataSource(new H2DataSourceConfiguration(tenantId));
+  }
+  
+  protected boolean isEvictionThreadAlive() {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if ("activiti-tenant-pool-eviction".equals(thread.getName()) && thread.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private class H2DataSourceConfiguration implements MultiTenantDataSourceConfiguration {
+    
+    private String tenantId;
+    
+    public H2DataSourceConfiguration(String tenantId) {
+      this.tenantId = tenantId;
+    }
+    
+    public String getTenantId() {
+      return tenantId;
+    }
+    
+    public String getDatabaseType() {
+      return "h2";
+    }
+    
+    public DataSource getDataSource() {
+      createdPoolCount.incrementAndGet();
+      JdbcDataSource dataSource = new JdbcDataSource();
+      dataSource.setURL("jdbc:h2:mem:lazy-" + tenantId + ";DB_CLOSE_DELAY=-1");
+      dataSource.setUser("sa");
+      dataSource.setPassword("");
+      return dataSource;
+    }
+    
+  }
+
+}
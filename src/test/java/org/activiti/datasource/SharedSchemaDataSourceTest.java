@@ -0,0 +1,185 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.ActivitiException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * @author Joram Barrez
+ */
+public class SharedSchemaDataSourceTest {
+  
+  private HikariDataSource pool;
+  private SharedSchemaDataSource sharedSchemaDataSource;
+  
+  @Before
+  public void setup() throws Exception {
+    pool = new HikariDataSource();
+    pool.setJdbcUrl("jdbc:h2:mem:shared-schema;DB_CLOSE_DELAY=-1");
+    pool.setUsername("sa");
+    pool.setPassword("");
+    pool.setMaximumPoolSize(1); // Every checkout gets the same physical connection
+    pool.setConnectionTimeout(1000L);
+    
+    sharedSchemaDataSource = new SharedSchemaDataSource(pool, "h2");
+    for (String schema : new String[] { "ALFRESCO", "ACME" }) {
+      sharedSchemaDataSource.createSchema(schema);
+      Connection connection = sharedSchemaDataSource.forSchema(schema).getConnection();
+      execute(connection, "CREATE TABLE IF NOT EXISTS " + schema + ".TENANT (NAME VARCHAR(64))");
+      execute(connection, "DELETE FROM " + schema + ".TENANT");
+      execute(connection, "INSERT INTO " + schema + ".TENANT VALUES ('" + schema + "')");
+      connection.close();
+    }
+  }
+  
+  @After
+  public void shutdown() {
+    pool.close();
+  }
+  
+  @Test
+  public void testSchemaIsSwitchedOnCheckout() throws Exception {
+    Assert.assertEquals("ALFRESCO", queryTenantName(sharedSchemaDataSource.forSchema("ALFRESCO")));
+    Assert.assertEquals("ACME", queryTenantName(sharedSchemaDataSource.forSchema("ACME")));
+    Assert.assertEquals("ALFRESCO", queryTenantName(sharedSchemaDataSource.forSchema("ALFRESCO")));
+  }
+  
+  @Test
+  public void testPooledConnectionIsReusedAcrossTenants() throws Exception {
+    TenantSchemaDataSource alfresco = sharedSchemaDataSource.forSchema("ALFRESCO");
+    TenantSchemaDataSource acme = sharedSchemaDataSource.forSchema("ACME");
+    alfresco.getConnection().close();
+    long switchCount = sharedSchemaDataSource.getSchemaSwitchCount();
+    long hitCount = sharedSchemaDataSource.getSchemaAffinityHitCount();
+    
+    // Same physical connection behind a new wrapper: already on the right schema
+    Connection connection = alfresco.getConnection();
+    Assert.assertEquals("ALFRESCO", queryCurrentSchema(connection));
+    connection.close();
+    Assert.assertEquals(switchCount, sharedSchemaDataSource.getSchemaSwitchCount());
+    Assert.assertEquals(hitCount + 1, sharedSchemaDataSource.getSchemaAffinityHitCount());
+    
+    // Handed to another tenant: switched
+    connection = acme.getConnection();
+    Assert.assertEquals("ACME", queryCurrentSchema(connection));
+    connection.close();
+    Assert.assertEquals(switchCount + 1, sharedSchemaDataSource.getSchemaSwitchCount());
+    
+    // And back
+    connection = alfresco.getConnection();
+    Assert.assertEquals("ALFRESCO", queryCurrentSchema(connection));
+    connection.close();
+    Assert.assertEquals(switchCount + 2, sharedSchemaDataSource.getSchemaSwitchCount());
+    Assert.assertEquals(1, sharedSchemaDataSource.currentSchemas.size());
+  }
+  
+  @Test
+  public void testUnknownSchema() throws Exception {
+    sharedSchemaDataSource.forSchema("ACME").getConnection().close();
+    try {
+      sharedSchemaDataSource.forSchema("WAYNE").getConnection();
+      Assert.fail();
+    } catch (SQLException e) {
+      // expected
+    }
+    
+    // The connection went back to the pool and isn't assumed to be on any schema anymore
+    Assert.assertTrue(sharedSchemaDataSource.currentSchemas.isEmpty());
+    Assert.assertEquals("ACME", queryTenantName(sharedSchemaDataSource.forSchema("ACME")));
+  }
+  
+  @Test
+  public void testInvalidSchemaName() {
+    try {
+      sharedSchemaDataSource.forSchema("ACME; DROP ALL OBJECTS");
+      Assert.fail();
+    } catch (ActivitiException e) {
+      // expected
+    }
+  }
+  
+  @Test
+  public void testUnknownTenant() throws Exception {
+    DummyTenantInfoHolder tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("alfresco");
+    TenantAwareDataSource tenantAwareDataSource = new TenantAwareDataSource(tenantInfoHolder);
+    tenantAwareDataSource.addDataSource("alfresco", sharedSchemaDataSource.forSchema("ALFRESCO"));
+    
+    tenantInfoHolder.setCurrentTenantId("acme");
+    try {
+      tenantAwareDataSource.getConnection();
+      Assert.fail();
+    } catch (UnknownTenantException e) {
+      Assert.assertEquals("acme", e.getTenantId());
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+    
+    tenantInfoHolder.setCurrentTenantId("alfresco");
+    try {
+      Assert.assertEquals("ALFRESCO", queryTenantName(tenantAwareDataSource));
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected String queryTenantName(DataSource dataSource) throws SQLException {
+    Connection connection = dataSource.getConnection();
+    try {
+      return queryString(connection, "SELECT NAME FROM TENANT"); // Unqualified: resolved in the current schema
+    } finally {
+      connection.close();
+    }
+  }
+  
+  protected String queryCurrentSchema(Connection connection) throws SQLException {
+    return queryString(connection, "SELECT SCHEMA()");
+  }
+  
+  protected String queryString(Connection connection, String sql) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      ResultSet resultSet = statement.executeQuery(sql);
+      resultSet.next();
+      return resultSet.getString(1);
+    } finally {
+      statement.close();
+    }
+  }
+  
+  protected void execute(Connection connection, String sql) throws SQLException {
+    Statement statement = connection.createStatement();
+    try {
+      statement.execute(sql);
+    } finally {
+      statement.close();
+    }
+  }
+
+}
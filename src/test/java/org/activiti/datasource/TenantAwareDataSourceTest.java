@@ -0,0 +1,157 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.datasource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantAwareDataSourceTest {
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private TenantAwareDataSource tenantAwareDataSource;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("alfresco");
+    tenantInfoHolder.addTenant("acme");
+    
+    tenantAwareDataSource = new TenantAwareDataSource(tenantInfoHolder);
+    tenantAwareDataSource.addDataSource("alfresco", createDataSource("jdbc:h2:mem:routing-alfresco"));
+    tenantAwareDataSource.addDataSource("acme", createDataSource("jdbc:h2:mem:routing-acme"));
+  }
+  
+  @Test
+  public void testRouting() throws Exception {
+    tenantInfoHolder.setCurrentTenantId("alfresco");
+    Connection connection = tenantAwareDataSource.getConnection();
+    Assert.assertTrue(connection.getMetaData().getURL().contains("routing-alfresco"));
+    connection.close();
+    tenantInfoHolder.clearCurrentTenantId();
+    
+    Assert.assertEquals(1L, tenantAwareDataSource.getHitCount("alfresco"));
+    Assert.assertEquals(0L, tenantAwareDataSource.getHitCount("acme"));
+  }
+  
+  @Test
+  public void testUnknownTenant() throws Exception {
+    tenantInfoHolder.setCurrentTenantId("starkindustries");
+    try {
+      tenantAwareDataSource.getConnection();
+      Assert.fail();
+    } catch (UnknownTenantException e) {
+      Assert.assertEquals("starkindustries", e.getTenantId());
+      Assert.assertTrue(e.getMessage().contains("starkindustries"));
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+    Assert.assertEquals(1L, tenantAwareDataSource.getUnknownTenantLookupCount());
+  }
+  
+  @Test
+  public void testSnapshotIsNotAffectedByChanges() {
+    TenantRoutingTable snapshot = tenantAwareDataSource.getRoutingTable();
+    tenantAwareDataSource.removeDataSource("acme");
+    
+    Assert.assertEquals(2, snapshot.size());
+    Assert.assertNotNull(snapshot.getRoute("acme"));
+    Assert.assertNull(tenantAwareDataSource.getRoutingTable().getRoute("acme"));
+  }
+  
+  @Test
+  public void testConnectionBudget() throws Exception {
+    TenantConnectionBudget budget = new TenantConnectionBudget(3, 1);
+    budget.setMaxWaitTimeInMillis(100L);
+    tenantAwareDataSource.setConnectionBudget(budget);
+    
+    // alfresco can borrow one connection above its guaranteed one, the last one is reserved for acme
+    tenantInfoHolder.setCurrentTenantId("alfresco");
+    Connection first = tenantAwareDataSource.getConnection();
+    Connection second = tenantAwareDataSource.getConnection();
+    try {
+      tenantAwareDataSource.getConnection();
+      Assert.fail();
+    } catch (SQLException e) {
+      // expected
+    }
+    Assert.assertEquals(1L, budget.getTimeoutCount("alfresco"));
+    Assert.assertEquals(1L, budget.getWaitCount("alfresco"));
+    
+    tenantInfoHolder.setCurrentTenantId("acme");
+    Connection acmeConnection = tenantAwareDataSource.getConnection();
+    Assert.assertEquals(3, budget.getTotalInUse());
+    
+    acmeConnection.close();
+    acmeConnection.close(); // Closing twice should only give back one connection
+    first.close();
+    second.close();
+    Assert.assertEquals(0, budget.getTotalInUse());
+    tenantInfoHolder.clearCurrentTenantId();
+  }
+  
+  @Test
+  public void testConnectionBudgetLimitsPools() throws Exception {
+    TenantConnectionBudget budget = new TenantConnectionBudget(10, 2);
+    budget.setGuaranteedConnections("acme", 4);
+    tenantAwareDataSource.setConnectionBudget(budget);
+    
+    HikariDataSource pool = new HikariDataSource(); // Not started: only the settings are checked
+    pool.setJdbcUrl("jdbc:h2:mem:routing-wayne");
+    pool.setMaximumPoolSize(20);
+    pool.setMinimumIdle(20);
+    tenantAwareDataSource.addDataSource("wayne", pool);
+    
+    // Can't check out more than what isn't reserved for alfresco (2) and acme (4), nor keep more idle than its guarantee
+    Assert.assertEquals(4, pool.getMaximumPoolSize());
+    Assert.assertEquals(2, pool.getMinimumIdle());
+  }
+  
+  @Test
+  public void testAddingTenantLimitsExistingPools() throws Exception {
+    TenantConnectionBudget budget = new TenantConnectionBudget(10, 2);
+    tenantAwareDataSource.setConnectionBudget(budget);
+    
+    HikariDataSource pool = new HikariDataSource(); // Not started: only the settings are checked
+    pool.setJdbcUrl("jdbc:h2:mem:routing-wayne");
+    pool.setMaximumPoolSize(20);
+    tenantAwareDataSource.addDataSource("wayne", pool);
+    Assert.assertEquals(6, pool.getMaximumPoolSize());
+    
+    // The reservation of the new tenant is no longer available to the pool of wayne
+    budget.setGuaranteedConnections("stark", 3);
+    tenantAwareDataSource.addDataSource("stark", createDataSource("jdbc:h2:mem:routing-stark"));
+    Assert.assertEquals(3, pool.getMaximumPoolSize());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected JdbcDataSource createDataSource(String jdbcUrl) {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL(jdbcUrl);
+    dataSource.setUser("sa");
+    dataSource.setPassword("");
+    return dataSource;
+  }
+
+}
@@ -0,0 +1,164 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.activiti.datasource.SharedSchemaDataSource;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class SchemaFingerprintStoreTest {
+  
+  private static final String VALIDATE = ProcessEngineConfiguration.DB_SCHEMA_UPDATE_FALSE;
+  
+  private File file;
+  private String alfrescoDatabase;
+  
+  @Before
+  public void setup() throws Exception {
+    file = File.createTempFile("activiti-fingerprints", ".properties");
+    file.delete();
+    alfrescoDatabase = SchemaFingerprintStore.getDatabaseIdentity(createDataSource("fingerprint-alfresco"));
+  }
+  
+  @After
+  public void cleanup() {
+    file.delete();
+  }
+  
+  @Test
+  public void testSkipAfterValidation() {
+    SchemaFingerprintStore store = new SchemaFingerprintStore(file);
+    Assert.assertFalse(store.canSkip("alfresco", alfrescoDatabase, VALIDATE));
+    
+    store.recordValidated("alfresco", alfrescoDatabase);
+    Assert.assertTrue(store.canSkip("alfresco", alfrescoDatabase, VALIDATE));
+    Assert.assertTrue(store.canSkip("alfresco", alfrescoDatabase, ProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE));
+    Assert.assertFalse(store.canSkip("acme", alfrescoDatabase, VALIDATE));
+    
+    // Creating the schema is never skipped
+    Assert.assertFalse(store.canSkip("alfresco", alfrescoDatabase, ProcessEngineConfiguration.DB_SCHEMA_UPDATE_CREATE_DROP));
+    
+    // Survives a restart
+    store.flush();
+    Assert.assertTrue(new SchemaFingerprintStore(file).canSkip("alfresco", alfrescoDatabase, VALIDATE));
+    
+    store.remove("alfresco");
+    store.flush();
+    Assert.assertFalse(new SchemaFingerprintStore(file).canSkip("alfresco", alfrescoDatabase, VALIDATE));
+  }
+  
+  @Test
+  public void testOtherDatabaseIsNotSkipped() throws Exception {
+    SchemaFingerprintStore store = new SchemaFingerprintStore(file);
+    store.recordValidated("alfresco", alfrescoDatabase);
+    
+    String otherDatabase = SchemaFingerprintStore.getDatabaseIdentity(createDataSource("fingerprint-other"));
+    Assert.assertFalse(store.canSkip("alfresco", otherDatabase, VALIDATE));
+    Assert.assertFalse(store.canSkip("alfresco", null, VALIDATE));
+    
+    // Same database, other schema
+    JdbcDataSource dataSource = createDataSource("fingerprint-shared");
+    SharedSchemaDataSource sharedSchemaDataSource = new SharedSchemaDataSource(dataSource, ProcessEngineConfiguration.DATABASE_TYPE_H2);
+    sharedSchemaDataSource.createSchema("ALFRESCO");
+    sharedSchemaDataSource.createSchema("ACME");
+    String alfrescoSchema = SchemaFingerprintStore.getDatabaseIdentity(sharedSchemaDataSource.forSchema("ALFRESCO"));
+    String acmeSchema = SchemaFingerprintStore.getDatabaseIdentity(sharedSchemaDataSource.forSchema("ACME"));
+    Assert.assertFalse(alfrescoSchema.equals(acmeSchema));
+    
+    store.recordValidated("alfresco", alfrescoSchema);
+    Assert.assertTrue(store.canSkip("alfresco", alfrescoSchema, VALIDATE));
+    Assert.assertFalse(store.canSkip("alfresco", acmeSchema, VALIDATE));
+  }
+  
+  @Test
+  public void testExpiry() throws Exception {
+    SchemaFingerprintStore store = new SchemaFingerprintStore(file);
+    store.recordValidated("alfresco", alfrescoDatabase);
+    Thread.sleep(20L);
+    
+    store.setMaxAgeInMillis(10L);
+    Assert.assertFalse(store.canSkip("alfresco", alfrescoDatabase, VALIDATE));
+    store.setMaxAgeInMillis(60 * 1000L);
+    Assert.assertTrue(store.canSkip("alfresco", alfrescoDatabase, VALIDATE));
+  }
+  
+  @Test
+  public void testVersionChange() throws Exception {
+    long now = System.currentTimeMillis();
+    Properties properties = new Properties();
+    properties.put("alfresco", "5.22.0.0|" + alfrescoDatabase + "|" + now);
+    properties.put("acme", ProcessEngine.VERSION + "|" + alfrescoDatabase + "|" + now);
+    properties.put("wayne", ProcessEngine.VERSION + "|" + now); // Written before the database was part of the fingerprint
+    writeFile(properties);
+    
+    SchemaFingerprintStore store = new SchemaFingerprintStore(file);
+    Assert.assertFalse(store.canSkip("alfresco", alfrescoDatabase, VALIDATE));
+    Assert.assertTrue(store.canSkip("acme", alfrescoDatabase, VALIDATE));
+    Assert.assertFalse(store.canSkip("wayne", alfrescoDatabase, VALIDATE));
+  }
+  
+  @Test
+  public void testCorruptFile() throws Exception {
+    OutputStream outputStream = new FileOutputStream(file);
+    outputStream.write("alfresco=\\u00zz\n".getBytes("ISO-8859-1")); // Malformed escape
+    outputStream.close();
+    
+    // Not fatal: everything is validated again, and the file is rewritten on the next flush
+    SchemaFingerprintStore store = new SchemaFingerprintStore(file);
+    Assert.assertFalse(store.canSkip("alfresco", alfrescoDatabase, VALIDATE));
+    store.recordValidated("alfresco", alfrescoDatabase);
+    store.flush();
+    Assert.assertTrue(new SchemaFingerprintStore(file).canSkip("alfresco", alfrescoDatabase, VALIDATE));
+    
+    Properties properties = new Properties();
+    properties.put("alfresco", "garbage");
+    properties.put("acme", ProcessEngine.VERSION + "|" + alfrescoDatabase + "|yesterday");
+    writeFile(properties);
+    store = new SchemaFingerprintStore(file);
+    Assert.assertFalse(store.canSkip("alfresco", alfrescoDatabase, VALIDATE));
+    Assert.assertFalse(store.canSkip("acme", alfrescoDatabase, VALIDATE));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected JdbcDataSource createDataSource(String name) {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    dataSource.setUser("sa");
+    dataSource.setPassword("");
+    return dataSource;
+  }
+  
+  protected void writeFile(Properties properties) throws Exception {
+    OutputStream outputStream = new FileOutputStream(file);
+    try {
+      properties.store(outputStream, null);
+    } finally {
+      outputStream.close();
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.engine.ActivitiException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantSchemaOperationExecutorTest {
+  
+  @Test
+  public void testSequentialOnCallingThread() {
+    final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    TenantSchemaOperationReport report = new TenantSchemaOperationExecutor(1).execute(tenants(3), new TenantSchemaOperation() {
+      public void execute(String tenantId) {
+        threads.add(Thread.currentThread());
+      }
+    });
+    
+    Assert.assertEquals(Collections.singleton(Thread.currentThread()), threads);
+    Assert.assertEquals(tenants(3), new ArrayList<String>(report.getDurations().keySet()));
+    Assert.assertTrue(report.getFailures().isEmpty());
+    report.throwIfFailed(); // Nothing to throw
+  }
+  
+  @Test
+  public void testParallelExecution() {
+    final CountDownLatch allStarted = new CountDownLatch(3);
+    TenantSchemaOperationReport report = new TenantSchemaOperationExecutor(3).execute(tenants(3), new TenantSchemaOperation() {
+      public void execute(String tenantId) {
+        allStarted.countDown();
+        try {
+          // Only completes when the three tenants are handled at the same time
+          if (!allStarted.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Tenants were not handled in parallel");
+          }
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    
+    Assert.assertTrue(report.getFailures().toString(), report.getFailures().isEmpty());
+    Assert.assertEquals(3, report.getDurations().size());
+  }
+  
+  @Test
+  public void testFailuresDontStopOtherTenants() {
+    for (int parallelism : new int[] { 1, 4 }) {
+      final Set<String> executed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      TenantSchemaOperationReport report = new TenantSchemaOperationExecutor(parallelism).execute(tenants(6), new TenantSchemaOperation() {
+        public void execute(String tenantId) {
+          executed.add(tenantId);
+          if (tenantId.equals("tenant1") || tenantId.equals("tenant4")) {
+            throw new RuntimeException("schema of " + tenantId + " is broken");
+          }
+        }
+      });
+      
+      Assert.assertEquals(6, executed.size());
+      Assert.assertEquals(6, report.getDurations().size());
+      Assert.assertEquals(2, report.getFailures().size());
+      Assert.assertEquals("schema of tenant4 is broken", report.getFailures().get("tenant4").getMessage());
+    }
+  }
+  
+  @Test
+  public void testThrowIfFailedListsAllFailedTenants() {
+    TenantSchemaOperationReport report = new TenantSchemaOperationReport();
+    RuntimeException firstFailure = new RuntimeException("table missing");
+    report.addResult("alfresco", 10L, null);
+    report.addResult("acme", 20L, firstFailure);
+    report.addResult("wayne", 30L, new RuntimeException("column missing"));
+    
+    try {
+      report.throwIfFailed();
+      Assert.fail();
+    } catch (ActivitiException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("[acme, wayne]"));
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("table missing"));
+      Assert.assertSame(firstFailure, e.getCause());
+    }
+  }
+  
+  @Test
+  public void testLogSlowestTenantsFirst() {
+    TenantSchemaOperationReport report = new TenantSchemaOperationReport();
+    for (int i = 0; i < 12; i++) {
+      report.addResult("tenant" + i, i, i == 11 ? new RuntimeException() : null);
+    }
+    report.setTotalDuration(100L);
+    
+    RecordingLogger recordingLogger = new RecordingLogger();
+    report.log(recordingLogger.getLogger());
+    
+    Assert.assertEquals(11, recordingLogger.infoMessages.size()); // The summary and the 10 slowest
+    Assert.assertEquals("Schema operation executed for 12 tenants in 100 ms (1 failed)", recordingLogger.infoMessages.get(0));
+    Assert.assertEquals("Schema operation for tenant tenant11 took 11 ms (failed)", recordingLogger.infoMessages.get(1));
+    Assert.assertEquals(Arrays.asList("Schema operation for tenant tenant1 took 1 ms", "Schema operation for tenant tenant0 took 0 ms"), 
+        recordingLogger.debugMessages);
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected List<String> tenants(int count) {
+    List<String> tenantIds = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      tenantIds.add("tenant" + i);
+    }
+    return tenantIds;
+  }
+  
+  private static class RecordingLogger implements InvocationHandler {
+    
+    private List<String> infoMessages = new ArrayList<String>();
+    private List<String> debugMessages = new ArrayList<String>();
+    
+    public Logger getLogger() {
+      return (Logger) Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[] { Logger.class }, this);
+    }
+    
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      if (method.getName().equals("info")) {
+        infoMessages.add((String) args[0]);
+      } else if (method.getName().equals("debug")) {
+        debugMessages.add((String) args[0]);
+      }
+      return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+    }
+    
+  }
+
+}
@@ -0,0 +1,192 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.interceptor;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.datasource.TenantAwareDataSource;
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.impl.ExecutionQueryImpl;
+import org.activiti.engine.impl.JobQueryImpl;
+import org.activiti.engine.impl.interceptor.AbstractCommandInterceptor;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandConfig;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.interceptor.CommandInterceptor;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class ReadReplicaRoutingInterceptorTest {
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private TenantAwareDataSource tenantAwareDataSource;
+  private ReadReplicaRoutingInterceptor interceptor;
+  private ConnectionUrlInterceptor connectionUrlInterceptor;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("alfresco");
+    tenantInfoHolder.addTenant("acme");
+    
+    tenantAwareDataSource = new TenantAwareDataSource(tenantInfoHolder);
+    tenantAwareDataSource.addDataSource("alfresco", createDataSource("replica-alfresco-primary"), createDataSource("replica-alfresco-replica"));
+    tenantAwareDataSource.addDataSource("acme", createDataSource("replica-acme-primary")); // No replica
+    
+    interceptor = new ReadReplicaRoutingInterceptor(tenantAwareDataSource);
+    connectionUrlInterceptor = new ConnectionUrlInterceptor(tenantAwareDataSource);
+    interceptor.setNext(connectionUrlInterceptor);
+    tenantInfoHolder.setCurrentTenantId("alfresco");
+  }
+  
+  @After
+  public void cleanup() {
+    tenantInfoHolder.clearCurrentTenantId();
+  }
+  
+  @Test
+  public void testQueryIsRoutedToReplica() {
+    Assert.assertTrue(execute(new ExecutionQueryImpl()).contains("replica-alfresco-replica"));
+    Assert.assertEquals(1L, tenantAwareDataSource.getReadReplicaHitCount("alfresco"));
+    Assert.assertNull(tenantAwareDataSource.getCurrentReadOnly());
+  }
+  
+  @Test
+  public void testOtherCommandStaysOnPrimary() {
+    Assert.assertTrue(execute(new NoopCommand()).contains("replica-alfresco-primary"));
+    Assert.assertEquals(0L, tenantAwareDataSource.getReadReplicaHitCount("alfresco"));
+  }
+  
+  @Test
+  public void testReadOnlyCommandClassIsRoutedToReplica() {
+    interceptor.getReadOnlyCommandClasses().add(NoopCommand.class);
+    Assert.assertTrue(execute(new NoopCommand()).contains("replica-alfresco-replica"));
+  }
+  
+  @Test
+  public void testJobQueryStaysOnPrimary() {
+    // Used by the async executor to decide what to acquire, must not see lagging data
+    Assert.assertTrue(execute(new JobQueryImpl()).contains("replica-alfresco-primary"));
+    Assert.assertEquals(0L, tenantAwareDataSource.getReadReplicaHitCount("alfresco"));
+  }
+  
+  @Test
+  public void testFallbackToPrimaryWithoutReplica() {
+    tenantInfoHolder.setCurrentTenantId("acme");
+    Assert.assertTrue(execute(new ExecutionQueryImpl()).contains("replica-acme-primary"));
+    Assert.assertEquals(1L, tenantAwareDataSource.getHitCount("acme"));
+  }
+  
+  @Test
+  public void testNestedQueryFollowsOuterCommand() {
+    connectionUrlInterceptor.nestedCommand = new ExecutionQueryImpl();
+    connectionUrlInterceptor.chain = interceptor;
+    Assert.assertTrue(execute(new NoopCommand()).contains("replica-alfresco-primary"));
+    Assert.assertTrue(connectionUrlInterceptor.nestedUrl.contains("replica-alfresco-primary"));
+  }
+  
+  @Test
+  public void testReadOnlyIsClearedAfterException() {
+    connectionUrlInterceptor.exception = new ActivitiException("failing query");
+    try {
+      execute(new ExecutionQueryImpl());
+      Assert.fail();
+    } catch (ActivitiException e) {
+      Assert.assertEquals("failing query", e.getMessage());
+    }
+    Assert.assertNull(tenantAwareDataSource.getCurrentReadOnly());
+    
+    // The next command on this thread decides again
+    connectionUrlInterceptor.exception = null;
+    Assert.assertTrue(execute(new NoopCommand()).contains("replica-alfresco-primary"));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  @SuppressWarnings("unchecked")
+  protected String execute(Command<?> command) {
+    interceptor.execute(new CommandConfig(), (Command<Object>) command);
+    return connectionUrlInterceptor.url;
+  }
+  
+  protected JdbcDataSource createDataSource(String name) {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name);
+    dataSource.setUser("sa");
+    dataSource.setPassword("");
+    return dataSource;
+  }
+  
+  /**
+   * Stands in for the rest of the interceptor chain: fetches a connection like the command context would.
+   */
+  private static class ConnectionUrlInterceptor extends AbstractCommandInterceptor {
+    
+    private TenantAwareDataSource tenantAwareDataSource;
+    private CommandInterceptor chain;
+    private Command<?> nestedCommand;
+    private RuntimeException exception;
+    private String url;
+    private String nestedUrl;
+    
+    public ConnectionUrlInterceptor(TenantAwareDataSource tenantAwareDataSource) {
+      this.tenantAwareDataSource = tenantAwareDataSource;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public <T> T execute(CommandConfig config, Command<T> command) {
+      if (exception != null) {
+        throw exception;
+      }
+      url = fetchConnectionUrl();
+      if (nestedCommand != null && command != nestedCommand) {
+        String outerUrl = url;
+        chain.execute(config, (Command<Object>) nestedCommand);
+        nestedUrl = url;
+        url = outerUrl;
+      }
+      return null;
+    }
+    
+    protected String fetchConnectionUrl() {
+      try {
+        Connection connection = tenantAwareDataSource.getConnection();
+        try {
+          return connection.getMetaData().getURL();
+        } finally {
+          connection.close();
+        }
+      } catch (SQLException e) {
+        throw new ActivitiException("Could not fetch connection", e);
+      }
+    }
+    
+  }
+  
+  private static class NoopCommand implements Command<Void> {
+    
+    public Void execute(CommandContext commandContext) {
+      return null;
+    }
+    
+  }
+
+}
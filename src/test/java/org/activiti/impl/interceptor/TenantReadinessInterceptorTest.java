@@ -0,0 +1,160 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.impl.interceptor;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.activiti.engine.impl.interceptor.AbstractCommandInterceptor;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandConfig;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.impl.cmd.UnlockJobsCommand;
+import org.activiti.impl.db.ExecuteSchemaOperationCommand;
+import org.activiti.tenant.TenantReadinessRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantReadinessInterceptorTest {
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private TenantReadinessRegistry registry;
+  private CountingInterceptor countingInterceptor;
+  private ExecutorService executorService;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("alfresco");
+    tenantInfoHolder.addTenant("acme");
+    registry = new TenantReadinessRegistry();
+    countingInterceptor = new CountingInterceptor();
+    executorService = Executors.newCachedThreadPool();
+  }
+  
+  @After
+  public void shutdown() {
+    executorService.shutdownNow();
+  }
+  
+  @Test
+  public void testReadyTenantIsNotBlocked() {
+    registry.markInitializing("acme");
+    executeAs("alfresco", createInterceptor(0L), new NoopCommand());
+    Assert.assertEquals(1, countingInterceptor.count.get());
+  }
+  
+  @Test
+  public void testInitializingTenantFailsWithoutWaitTime() {
+    registry.markInitializing("alfresco");
+    try {
+      executeAs("alfresco", createInterceptor(0L), new NoopCommand());
+      Assert.fail();
+    } catch (ActivitiException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("alfresco"));
+    }
+    Assert.assertEquals(0, countingInterceptor.count.get());
+  }
+  
+  @Test
+  public void testInitializingTenantWaitsUntilReady() throws Exception {
+    registry.markInitializing("alfresco");
+    final TenantReadinessInterceptor interceptor = createInterceptor(5000L);
+    Future<Void> command = executorService.submit(new Callable<Void>() {
+      public Void call() {
+        executeAs("alfresco", interceptor, new NoopCommand());
+        return null;
+      }
+    });
+    Thread.sleep(50L);
+    Assert.assertEquals(0, countingInterceptor.count.get());
+    
+    registry.markReady("alfresco");
+    command.get(1, TimeUnit.SECONDS);
+    Assert.assertEquals(1, countingInterceptor.count.get());
+  }
+  
+  @Test
+  public void testSchemaOperationIsNotBlocked() {
+    // The schema operation itself is what makes the tenant ready
+    registry.markInitializing("alfresco");
+    executeAs("alfresco", createInterceptor(0L), new ExecuteSchemaOperationCommand(ProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE));
+    Assert.assertEquals(1, countingInterceptor.count.get());
+  }
+  
+  @Test
+  public void testUnlockingJobsOfUnregisteredTenantIsNotBlocked() {
+    // The jobs of a tenant that is being unregistered are unlocked after it is marked failed
+    registry.markInitializing("alfresco");
+    registry.markFailed("alfresco", new ActivitiException("Tenant alfresco is being unregistered"));
+    executeAs("alfresco", createInterceptor(0L), new UnlockJobsCommand("job-1"));
+    Assert.assertEquals(1, countingInterceptor.count.get());
+    
+    try {
+      executeAs("alfresco", createInterceptor(0L), new NoopCommand());
+      Assert.fail();
+    } catch (ActivitiException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("unregistered"));
+    }
+    Assert.assertEquals(1, countingInterceptor.count.get());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected TenantReadinessInterceptor createInterceptor(long waitTimeInMillis) {
+    TenantReadinessInterceptor interceptor = new TenantReadinessInterceptor(tenantInfoHolder, registry, waitTimeInMillis);
+    interceptor.setNext(countingInterceptor);
+    return interceptor;
+  }
+  
+  protected void executeAs(String tenantId, TenantReadinessInterceptor interceptor, Command<Void> command) {
+    tenantInfoHolder.setCurrentTenantId(tenantId);
+    try {
+      interceptor.execute(new CommandConfig(), command);
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+  }
+  
+  private static class CountingInterceptor extends AbstractCommandInterceptor {
+    
+    private AtomicInteger count = new AtomicInteger();
+    
+    public <T> T execute(CommandConfig config, Command<T> command) {
+      count.incrementAndGet();
+      return null;
+    }
+    
+  }
+  
+  private static class NoopCommand implements Command<Void> {
+    
+    public Void execute(CommandContext commandContext) {
+      return null;
+    }
+    
+  }
+
+}
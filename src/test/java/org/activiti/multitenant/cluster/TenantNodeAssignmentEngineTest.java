@@ -0,0 +1,179 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.MultiTenantProcessEngineConfiguration;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.multitenant.job.SharedExecutorServiceAsyncExecutor;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Two engines in one JVM on the same tenant databases, each acquiring only the jobs of the tenants assigned to its node.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantNodeAssignmentEngineTest {
+  
+  private static final int NR_OF_TENANTS = 10;
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private JdbcDataSource membershipDataSource;
+  private List<ProcessEngine> processEngines = new ArrayList<ProcessEngine>();
+  private MultiTenantProcessEngineConfiguration config1;
+  private MultiTenantProcessEngineConfiguration config2;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    for (int i = 0; i < NR_OF_TENANTS; i++) {
+      tenantInfoHolder.addTenant("tenant-" + i);
+    }
+    
+    membershipDataSource = new JdbcDataSource();
+    membershipDataSource.setURL("jdbc:h2:mem:engine-membership;DB_CLOSE_DELAY=-1");
+    membershipDataSource.setUser("sa");
+  }
+  
+  @After
+  public void close() {
+    for (ProcessEngine processEngine : processEngines) {
+      processEngine.close();
+    }
+    if (config1 != null) {
+      config1.getClock().reset();
+    }
+  }
+  
+  @Test
+  public void testEachEngineExecutesOnlyItsShare() throws Exception {
+    config1 = createConfiguration("node-1", MultiTenantProcessEngineConfiguration.DB_SCHEMA_UPDATE_DROP_CREATE);
+    ProcessEngine processEngine1 = buildProcessEngine(config1);
+    config2 = createConfiguration("node-2", MultiTenantProcessEngineConfiguration.DB_SCHEMA_UPDATE_TRUE);
+    ProcessEngine processEngine2 = buildProcessEngine(config2);
+    
+    // Node 1 started alone: it sees node 2 at its next heartbeat
+    TenantNodeAssignment node1 = getNodeAssignment(config1);
+    TenantNodeAssignment node2 = getNodeAssignment(config2);
+    node1.refresh();
+    node2.refresh();
+    Assert.assertEquals(2, node1.getNodeIds().size());
+    Assert.assertFalse(node1.getAssignedTenantIds().isEmpty());
+    Assert.assertFalse(node2.getAssignedTenantIds().isEmpty());
+    
+    ExecutedJobsListener executedJobs1 = new ExecutedJobsListener();
+    processEngine1.getRuntimeService().addEventListener(executedJobs1, ActivitiEventType.JOB_EXECUTION_SUCCESS);
+    ExecutedJobsListener executedJobs2 = new ExecutedJobsListener();
+    processEngine2.getRuntimeService().addEventListener(executedJobs2, ActivitiEventType.JOB_EXECUTION_SUCCESS);
+    
+    // Every tenant gets a timer, all created through engine 1
+    for (String tenantId : tenantInfoHolder.getAllTenants()) {
+      tenantInfoHolder.setCurrentTenantId(tenantId);
+      processEngine1.getRepositoryService().createDeployment().addClasspathResource("jobTest.bpmn20.xml").deploy();
+      processEngine1.getRuntimeService().startProcessInstanceByKey("jobTest");
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+    
+    // Move the clock 2 hours (the timers fire in one hour)
+    config1.getClock().setCurrentTime(new Date(config1.getClock().getCurrentTime().getTime() + (2 * 60 * 60 * 1000)));
+    long waitUntil = System.currentTimeMillis() + 30000L;
+    while (executedJobs1.getTenantIds().size() + executedJobs2.getTenantIds().size() < NR_OF_TENANTS && System.currentTimeMillis() < waitUntil) {
+      Thread.sleep(500L);
+    }
+    
+    Assert.assertEquals(new HashSet<String>(node1.getAssignedTenantIds()), executedJobs1.getTenantIds());
+    Assert.assertEquals(new HashSet<String>(node2.getAssignedTenantIds()), executedJobs2.getTenantIds());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private MultiTenantProcessEngineConfiguration createConfiguration(String nodeId, String databaseSchemaUpdate) {
+    MultiTenantProcessEngineConfiguration config = new MultiTenantProcessEngineConfiguration(tenantInfoHolder);
+    config.setDatabaseType(MultiTenantProcessEngineConfiguration.DATABASE_TYPE_H2);
+    config.setDatabaseSchemaUpdate(databaseSchemaUpdate);
+    
+    config.setAsyncExecutorEnabled(true);
+    config.setAsyncExecutorActivate(true);
+    
+    SharedExecutorServiceAsyncExecutor asyncExecutor = new SharedExecutorServiceAsyncExecutor(tenantInfoHolder);
+    asyncExecutor.enableNodeAssignment(nodeId, membershipDataSource);
+    config.setAsyncExecutor(asyncExecutor);
+    
+    // Both engines use the same tenant databases, each through its own connection pool
+    for (String tenantId : tenantInfoHolder.getAllTenants()) {
+      config.registerTenant(tenantId, createDataSource("jdbc:h2:mem:assignment-" + tenantId + ";DB_CLOSE_DELAY=1000"));
+    }
+    return config;
+  }
+  
+  private ProcessEngine buildProcessEngine(MultiTenantProcessEngineConfiguration config) {
+    ProcessEngine processEngine = config.buildProcessEngine();
+    processEngines.add(processEngine);
+    return processEngine;
+  }
+  
+  private TenantNodeAssignment getNodeAssignment(MultiTenantProcessEngineConfiguration config) {
+    return ((SharedExecutorServiceAsyncExecutor) config.getAsyncExecutor()).getNodeAssignment();
+  }
+  
+  private DataSource createDataSource(String jdbcUrl) {
+    HikariConfig config = new HikariConfig();
+    config.setJdbcUrl(jdbcUrl);
+    config.setUsername("sa");
+    config.setPassword("");
+    return new HikariDataSource(config);
+  }
+  
+  /**
+   * Records the tenants of which a job was executed by the engine it is registered on.
+   */
+  private class ExecutedJobsListener implements ActivitiEventListener {
+    
+    private Set<String> tenantIds = Collections.synchronizedSet(new HashSet<String>());
+    
+    public void onEvent(ActivitiEvent event) {
+      tenantIds.add(tenantInfoHolder.getCurrentTenantId());
+    }
+    
+    public boolean isFailOnException() {
+      return false;
+    }
+    
+    public Set<String> getTenantIds() {
+      synchronized (tenantIds) {
+        return new HashSet<String>(tenantIds);
+      }
+    }
+    
+  }
+
+}
@@ -0,0 +1,230 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.cluster;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.ActivitiException;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Several nodes in one JVM, sharing a membership table in H2.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantNodeAssignmentTest {
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private JdbcDataSource membershipDataSource;
+  private List<TenantNodeAssignment> assignments = new ArrayList<TenantNodeAssignment>();
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    for (int i = 0; i < 50; i++) {
+      tenantInfoHolder.addTenant("tenant-" + i);
+    }
+    
+    membershipDataSource = new JdbcDataSource();
+    membershipDataSource.setURL("jdbc:h2:mem:membership;DB_CLOSE_DELAY=-1");
+    membershipDataSource.setUser("sa");
+  }
+  
+  @After
+  public void close() {
+    for (TenantNodeAssignment assignment : assignments) {
+      assignment.stop();
+    }
+  }
+  
+  @Test
+  public void testEveryTenantAssignedToOneNode() {
+    TenantNodeAssignment node1 = startNode("node-1");
+    TenantNodeAssignment node2 = startNode("node-2");
+    TenantNodeAssignment node3 = startNode("node-3");
+    refreshAll();
+    
+    for (TenantNodeAssignment assignment : assignments) {
+      Assert.assertEquals(3, assignment.getNodeIds().size());
+      Assert.assertFalse(assignment.getAssignedTenantIds().isEmpty());
+    }
+    Assert.assertEquals(50, node1.getAssignedTenantIds().size() + node2.getAssignedTenantIds().size() + node3.getAssignedTenantIds().size());
+    assertAssignedOnce();
+  }
+  
+  @Test
+  public void testRebalanceWhenNodeLeaves() {
+    TenantNodeAssignment node1 = startNode("node-1");
+    TenantNodeAssignment node2 = startNode("node-2");
+    TenantNodeAssignment node3 = startNode("node-3");
+    refreshAll();
+    
+    List<String> node1Tenants = node1.getAssignedTenantIds();
+    node3.stop();
+    assignments.remove(node3);
+    refreshAll();
+    
+    Assert.assertEquals(2, node1.getNodeIds().size());
+    Assert.assertEquals(50, node1.getAssignedTenantIds().size() + node2.getAssignedTenantIds().size());
+    assertAssignedOnce();
+    
+    // Only the tenants of the node that left move
+    Assert.assertTrue(node1.getAssignedTenantIds().containsAll(node1Tenants));
+  }
+  
+  @Test
+  public void testNoTenantsAssignedOnceHeartbeatExpired() throws Exception {
+    FailingMembership membership = new FailingMembership(membershipDataSource);
+    TenantNodeAssignment node1 = startNode("node-1", membership, 500L);
+    Assert.assertEquals(50, node1.getAssignedTenantIds().size());
+    
+    // The membership table can't be reached: the assignment is kept until the heartbeat expires
+    membership.failing = true;
+    node1.refresh();
+    Assert.assertEquals(50, node1.getAssignedTenantIds().size());
+    
+    Thread.sleep(600L);
+    node1.refresh();
+    Assert.assertTrue(node1.isHeartbeatExpired(System.currentTimeMillis()));
+    Assert.assertTrue(node1.getAssignedTenantIds().isEmpty());
+    
+    // The tenants come back with the next heartbeat
+    membership.failing = false;
+    node1.refresh();
+    Assert.assertEquals(50, node1.getAssignedTenantIds().size());
+  }
+  
+  @Test
+  public void testNodesCreateTableAtTheSameTime() throws Exception {
+    executeStatement("drop table if exists " + TenantNodeMembership.TABLE_NAME);
+    
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(4);
+    final AtomicInteger failureCount = new AtomicInteger();
+    for (int i = 0; i < 4; i++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            new TenantNodeMembership(membershipDataSource).createTableIfMissing();
+          } catch (Exception e) {
+            failureCount.incrementAndGet();
+          }
+          done.countDown();
+        }
+      }).start();
+    }
+    start.countDown();
+    
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(0, failureCount.get());
+    Assert.assertTrue(tableExists(TenantNodeMembership.TABLE_NAME));
+  }
+  
+  @Test
+  public void testLowerCaseTableIsFound() throws Exception {
+    // Like PostgreSQL, which stores unquoted names in lower case
+    membershipDataSource.setURL("jdbc:h2:mem:membership-lowercase;DB_CLOSE_DELAY=-1");
+    executeStatement("create table \"act_mt_node\" (NODE_ID_ varchar(255) not null, HEARTBEAT_TIME_ bigint not null, primary key (NODE_ID_))");
+    
+    new TenantNodeMembership(membershipDataSource).createTableIfMissing();
+    Assert.assertFalse(tableExists(TenantNodeMembership.TABLE_NAME));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private TenantNodeAssignment startNode(String nodeId) {
+    return startNode(nodeId, new TenantNodeMembership(membershipDataSource), 30000L);
+  }
+  
+  private TenantNodeAssignment startNode(String nodeId, TenantNodeMembership membership, long nodeExpiryInMillis) {
+    TenantNodeAssignment assignment = new TenantNodeAssignment(nodeId, membership, tenantInfoHolder);
+    assignment.setHeartbeatIntervalInMillis(60000L); // Refreshed by the test
+    assignment.setNodeExpiryInMillis(nodeExpiryInMillis);
+    assignment.start();
+    assignments.add(assignment);
+    return assignment;
+  }
+  
+  private void refreshAll() {
+    for (TenantNodeAssignment assignment : assignments) {
+      assignment.refresh();
+    }
+  }
+  
+  private void assertAssignedOnce() {
+    for (String tenantId : tenantInfoHolder.getAllTenants()) {
+      int assignedCount = 0;
+      for (TenantNodeAssignment assignment : assignments) {
+        if (assignment.isAssigned(tenantId)) {
+          assignedCount++;
+        }
+      }
+      Assert.assertEquals(tenantId, 1, assignedCount);
+    }
+  }
+  
+  private void executeStatement(String sql) throws Exception {
+    Connection connection = membershipDataSource.getConnection();
+    try {
+      Statement statement = connection.createStatement();
+      statement.execute(sql);
+      statement.close();
+    } finally {
+      connection.close();
+    }
+  }
+  
+  private boolean tableExists(String tableName) throws Exception {
+    Connection connection = membershipDataSource.getConnection();
+    try {
+      ResultSet resultSet = connection.getMetaData().getTables(null, null, tableName, null);
+      boolean tableExists = resultSet.next();
+      resultSet.close();
+      return tableExists;
+    } finally {
+      connection.close();
+    }
+  }
+  
+  private static class FailingMembership extends TenantNodeMembership {
+    
+    private volatile boolean failing;
+    
+    public FailingMembership(JdbcDataSource dataSource) {
+      super(dataSource);
+    }
+    
+    @Override
+    public void heartbeat(String nodeId, long time) {
+      if (failing) {
+        throw new ActivitiException("Membership table not reachable");
+      }
+      super.heartbeat(nodeId, time);
+    }
+    
+  }
+
+}
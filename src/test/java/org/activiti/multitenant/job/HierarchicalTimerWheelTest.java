@@ -0,0 +1,143 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class HierarchicalTimerWheelTest {
+  
+  private static final long TICK = 10L;
+  
+  private HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(0L, TICK);
+  
+  @Test
+  public void testTimerDueInCurrentRevolution() {
+    Assert.assertTrue(wheel.add("job", 5 * TICK));
+    
+    Assert.assertEquals(Collections.emptyList(), wheel.advance(4 * TICK));
+    Assert.assertEquals(Arrays.asList("job"), wheel.advance(5 * TICK));
+    Assert.assertEquals(0, wheel.size());
+  }
+  
+  @Test
+  public void testDueTimeIsRoundedUpToTheNextTick() {
+    wheel.add("job", 5 * TICK + 1);
+    
+    Assert.assertEquals(Collections.emptyList(), wheel.advance(5 * TICK + 5));
+    Assert.assertEquals(Arrays.asList("job"), wheel.advance(6 * TICK));
+  }
+  
+  @Test
+  public void testCascadingThroughAllLevels() {
+    long[] dueTicks = new long[] { 63L, 64L, 100L, 4095L, 4096L, 5000L, 262143L, 262144L, 300000L };
+    for (long dueTick : dueTicks) {
+      Assert.assertTrue(wheel.add("job-" + dueTick, dueTick * TICK));
+    }
+    
+    // Every timer comes out at its own tick: not earlier when it moves down a level, not later
+    for (long dueTick : dueTicks) {
+      Assert.assertEquals(Collections.emptyList(), wheel.advance((dueTick - 1) * TICK));
+      Assert.assertEquals(Arrays.asList("job-" + dueTick), wheel.advance(dueTick * TICK));
+    }
+    Assert.assertEquals(0, wheel.size());
+  }
+  
+  @Test
+  public void testCascadingFromLaterPosition() {
+    wheel.add("first", 1000L * TICK);
+    Assert.assertEquals(Arrays.asList("first"), wheel.advance(1000L * TICK));
+    
+    // Added while the wheel is halfway a revolution of the higher levels
+    wheel.add("second", 5000L * TICK);
+    wheel.add("third", 1100L * TICK);
+    Assert.assertEquals(Arrays.asList("third"), wheel.advance(4999L * TICK));
+    Assert.assertEquals(Arrays.asList("second"), wheel.advance(5000L * TICK));
+  }
+  
+  @Test
+  public void testAdvanceOverManyTicksReturnsAllDueTimers() {
+    wheel.add("job1", 10L * TICK);
+    wheel.add("job2", 200L * TICK);
+    wheel.add("job3", 5000L * TICK);
+    wheel.add("job4", 6000L * TICK);
+    
+    List<String> dueKeys = wheel.advance(5500L * TICK);
+    Assert.assertEquals(Arrays.asList("job1", "job2", "job3"), dueKeys);
+    Assert.assertTrue(wheel.contains("job4"));
+  }
+  
+  @Test
+  public void testRemovedTimerIsNotDue() {
+    wheel.add("job1", 5000L * TICK);
+    wheel.add("job2", 5000L * TICK);
+    wheel.remove("job1");
+    
+    Assert.assertFalse(wheel.contains("job1"));
+    Assert.assertEquals(1, wheel.size());
+    Assert.assertEquals(Arrays.asList("job2"), wheel.advance(5000L * TICK));
+  }
+  
+  @Test
+  public void testAddingKeyAgainKeepsLastDueTime() {
+    wheel.add("job", 100L * TICK);
+    wheel.add("job", 300L * TICK);
+    Assert.assertEquals(1, wheel.size());
+    
+    Assert.assertEquals(Collections.emptyList(), wheel.advance(299L * TICK));
+    Assert.assertEquals(Arrays.asList("job"), wheel.advance(300L * TICK));
+    
+    // Moved forward as well
+    wheel.add("job", 1000L * TICK);
+    wheel.add("job", 400L * TICK);
+    Assert.assertEquals(Arrays.asList("job"), wheel.advance(400L * TICK));
+    Assert.assertEquals(Collections.emptyList(), wheel.advance(1000L * TICK));
+  }
+  
+  @Test
+  public void testOverdueTimerIsDueOnNextTick() {
+    wheel.advance(100L * TICK);
+    
+    Assert.assertTrue(wheel.add("job", 50L * TICK));
+    Assert.assertEquals(Collections.emptyList(), wheel.advance(100L * TICK));
+    Assert.assertEquals(Arrays.asList("job"), wheel.advance(101L * TICK));
+  }
+  
+  @Test
+  public void testTimerBeyondRangeIsNotAdded() {
+    long range = 1L << (6 * HierarchicalTimerWheel.LEVELS);
+    Assert.assertFalse(wheel.add("job", range * TICK));
+    Assert.assertEquals(0, wheel.size());
+    Assert.assertTrue(wheel.add("job", (range - 1) * TICK));
+  }
+  
+  @Test
+  public void testEmptyWheelSkipsTicks() {
+    wheel.add("job", 10L * TICK);
+    wheel.remove("job");
+    Assert.assertEquals(Collections.emptyList(), wheel.advance(1000000L * TICK));
+    
+    // Relative to the new position
+    wheel.add("job", 1000100L * TICK);
+    Assert.assertEquals(Collections.emptyList(), wheel.advance(1000099L * TICK));
+    Assert.assertEquals(Arrays.asList("job"), wheel.advance(1000100L * TICK));
+  }
+
+}
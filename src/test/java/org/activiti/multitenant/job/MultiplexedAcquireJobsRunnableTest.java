@@ -0,0 +1,200 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.ActivitiOptimisticLockingException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The acquisition itself is replaced by a {@link TenantJobAcquirer} that returns a preset number of jobs.
+ * 
+ * @author Joram Barrez
+ */
+public class MultiplexedAcquireJobsRunnableTest {
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private TenantAwareDefaultAsyncJobExecutor asyncExecutor;
+  private TenantAcquisitionScheduler scheduler;
+  private MultiplexedAcquireJobsRunnable runnable;
+  private FakeJobAcquirer jobAcquirer;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("alfresco");
+    tenantInfoHolder.addTenant("acme");
+    
+    asyncExecutor = new TenantAwareDefaultAsyncJobExecutor(tenantInfoHolder);
+    asyncExecutor.setMaxAsyncJobsDuePerAcquisition(10);
+    asyncExecutor.setDefaultAsyncJobAcquireWaitTimeInMillis(100);
+    asyncExecutor.setMaxTimerJobsPerAcquisition(10);
+    asyncExecutor.setDefaultTimerJobAcquireWaitTimeInMillis(100);
+    
+    scheduler = new TenantAcquisitionScheduler();
+    runnable = new MultiplexedAcquireJobsRunnable(asyncExecutor, tenantInfoHolder, scheduler);
+    runnable.setPollTimeoutInMillis(10L);
+    jobAcquirer = new FakeJobAcquirer(asyncExecutor, tenantInfoHolder);
+    runnable.jobAcquirer = jobAcquirer;
+  }
+  
+  @Test
+  public void testAcquiresForAllTenants() throws Exception {
+    scheduler.addTenant("alfresco");
+    scheduler.addTenant("acme");
+    
+    Thread thread = new Thread(runnable);
+    thread.start();
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (!(jobAcquirer.asyncTenantIds.contains("alfresco") && jobAcquirer.asyncTenantIds.contains("acme")) 
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    runnable.stop();
+    thread.join(5000L);
+    
+    // Each acquisition ran with its tenant set as current tenant, and was followed by the timers of the same tenant
+    Assert.assertTrue(jobAcquirer.asyncTenantIds.contains("alfresco"));
+    Assert.assertTrue(jobAcquirer.asyncTenantIds.contains("acme"));
+    Assert.assertTrue(jobAcquirer.timerTenantIds.containsAll(jobAcquirer.asyncTenantIds));
+    Assert.assertFalse(thread.isAlive());
+    Assert.assertNull(tenantInfoHolder.getCurrentTenantId());
+    
+    // Both are back in the scheduler
+    Assert.assertNotNull(scheduler.poll(5, TimeUnit.SECONDS));
+    Assert.assertNotNull(scheduler.poll(5, TimeUnit.SECONDS));
+  }
+  
+  @Test
+  public void testEmptyAcquisitionsBackOff() {
+    runnable.setMaxBackoffInMillis(1000L);
+    TenantAcquisitionState state = new TenantAcquisitionState("acme");
+    
+    acquire(state);
+    long firstWaitTime = state.getNextAsyncJobAcquisitionTime() - System.currentTimeMillis();
+    state.scheduleAsyncJobAcquisition(0L);
+    state.scheduleTimerJobAcquisition(0L);
+    acquire(state);
+    long secondWaitTime = state.getNextAsyncJobAcquisitionTime() - System.currentTimeMillis();
+    
+    Assert.assertTrue(firstWaitTime + " " + secondWaitTime, firstWaitTime <= 100L && secondWaitTime > 100L);
+    Assert.assertEquals(2, state.getEmptyAsyncJobAcquisitionCount());
+    Assert.assertEquals(2, state.getEmptyTimerJobAcquisitionCount());
+  }
+  
+  @Test
+  public void testFullBatchAcquiresAgainImmediately() {
+    TenantAcquisitionState state = new TenantAcquisitionState("acme");
+    jobAcquirer.asyncJobResults.add(10);
+    long before = System.currentTimeMillis();
+    acquire(state);
+    
+    Assert.assertTrue(state.getNextAsyncJobAcquisitionTime() <= System.currentTimeMillis());
+    Assert.assertTrue(state.getNextTimerJobAcquisitionTime() >= before + 100L);
+  }
+  
+  @Test
+  public void testOptimisticLockingRetriesImmediately() {
+    TenantAcquisitionState state = new TenantAcquisitionState("acme");
+    jobAcquirer.asyncJobFailure = new ActivitiOptimisticLockingException("acquired by another node");
+    acquire(state);
+    Assert.assertTrue(state.getNextAsyncJobAcquisitionTime() <= System.currentTimeMillis());
+  }
+  
+  @Test
+  public void testFailureWaitsDefaultWaitTime() {
+    TenantAcquisitionState state = new TenantAcquisitionState("acme");
+    jobAcquirer.asyncJobFailure = new RuntimeException("database down");
+    long before = System.currentTimeMillis();
+    acquire(state);
+    
+    Assert.assertTrue(state.getNextAsyncJobAcquisitionTime() >= before + 100L);
+    Assert.assertEquals(1, jobAcquirer.timerTenantIds.size()); // Timers are still acquired
+  }
+  
+  @Test
+  public void testOnlyDueAcquisitionsRun() {
+    TenantAcquisitionState state = new TenantAcquisitionState("acme");
+    state.scheduleTimerJobAcquisition(System.currentTimeMillis() + 60000L);
+    acquire(state);
+    
+    Assert.assertEquals(1, jobAcquirer.asyncTenantIds.size());
+    Assert.assertTrue(jobAcquirer.timerTenantIds.isEmpty());
+  }
+  
+  @Test
+  public void testWakeUpDuringAcquisitionIsNotLost() throws Exception {
+    scheduler.addTenant("acme");
+    final TenantAcquisitionState state = scheduler.poll(0, TimeUnit.MILLISECONDS);
+    jobAcquirer.duringAcquisition = new Runnable() {
+      public void run() {
+        scheduler.wakeUp("acme"); // eg. a job created by another thread
+      }
+    };
+    
+    acquire(state);
+    scheduler.reschedule(state);
+    Assert.assertSame(state, scheduler.poll(0, TimeUnit.MILLISECONDS));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected void acquire(TenantAcquisitionState state) {
+    tenantInfoHolder.setCurrentTenantId(state.getTenantId());
+    try {
+      runnable.acquireJobs(state);
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+  }
+  
+  private static class FakeJobAcquirer extends TenantJobAcquirer {
+    
+    private DummyTenantInfoHolder tenantInfoHolder;
+    private List<Integer> asyncJobResults = Collections.synchronizedList(new ArrayList<Integer>());
+    private RuntimeException asyncJobFailure;
+    private Runnable duringAcquisition;
+    private List<String> asyncTenantIds = Collections.synchronizedList(new ArrayList<String>());
+    private List<String> timerTenantIds = Collections.synchronizedList(new ArrayList<String>());
+    
+    public FakeJobAcquirer(TenantAwareDefaultAsyncJobExecutor asyncExecutor, DummyTenantInfoHolder tenantInfoHolder) {
+      super(asyncExecutor);
+      this.tenantInfoHolder = tenantInfoHolder;
+    }
+    
+    public int acquireAsyncJobs(TenantJobMetrics metrics) {
+      asyncTenantIds.add(tenantInfoHolder.getCurrentTenantId());
+      if (duringAcquisition != null) {
+        duringAcquisition.run();
+      }
+      if (asyncJobFailure != null) {
+        throw asyncJobFailure;
+      }
+      return asyncJobResults.isEmpty() ? 0 : asyncJobResults.remove(0);
+    }
+    
+    public int acquireTimerJobs(TenantJobMetrics metrics) {
+      timerTenantIds.add(tenantInfoHolder.getCurrentTenantId());
+      return 0;
+    }
+    
+  }
+
+}
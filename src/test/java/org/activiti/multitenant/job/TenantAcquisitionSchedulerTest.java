@@ -0,0 +1,175 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantAcquisitionSchedulerTest {
+  
+  private TenantAcquisitionScheduler scheduler;
+  
+  @Before
+  public void setup() {
+    scheduler = new TenantAcquisitionScheduler();
+  }
+  
+  @Test
+  public void testNewTenantIsDueImmediately() throws Exception {
+    scheduler.addTenant("acme");
+    Assert.assertSame(scheduler.addTenant("acme"), scheduler.getState("acme")); // Added once
+    
+    TenantAcquisitionState state = scheduler.poll(0, TimeUnit.MILLISECONDS);
+    Assert.assertEquals("acme", state.getTenantId());
+    Assert.assertNull(scheduler.poll(0, TimeUnit.MILLISECONDS)); // Being handled: not queued anymore
+  }
+  
+  @Test
+  public void testTenantDueFirstIsPolledFirst() throws Exception {
+    long now = System.currentTimeMillis();
+    schedule("alfresco", now + 60000L);
+    schedule("wayne", now + 30000L);
+    schedule("acme", now - 10L);
+    
+    Assert.assertEquals("acme", scheduler.poll(0, TimeUnit.MILLISECONDS).getTenantId());
+    Assert.assertNull(scheduler.poll(0, TimeUnit.MILLISECONDS)); // The others aren't due yet
+  }
+  
+  @Test
+  public void testPollWaitsUntilDue() throws Exception {
+    schedule("acme", System.currentTimeMillis() + 100L);
+    
+    long start = System.currentTimeMillis();
+    TenantAcquisitionState state = scheduler.poll(5, TimeUnit.SECONDS);
+    Assert.assertEquals("acme", state.getTenantId());
+    Assert.assertTrue(System.currentTimeMillis() - start >= 90L);
+  }
+  
+  @Test
+  public void testWakeUpWhileQueued() throws Exception {
+    schedule("acme", System.currentTimeMillis() + 60000L);
+    scheduler.wakeUp("acme");
+    Assert.assertEquals("acme", scheduler.poll(0, TimeUnit.MILLISECONDS).getTenantId());
+  }
+  
+  @Test
+  public void testWakeUpWhileBeingHandled() throws Exception {
+    scheduler.addTenant("acme");
+    TenantAcquisitionState state = scheduler.poll(0, TimeUnit.MILLISECONDS);
+    
+    // The acquisition comes back empty after the wake up: the wake up must not be lost
+    long now = System.currentTimeMillis();
+    scheduler.wakeUp("acme");
+    state.asyncJobsAcquired(0, 10, 60000L, 0L, now);
+    state.timerJobsAcquired(0, 10, 60000L, 0L, now);
+    scheduler.reschedule(state);
+    
+    Assert.assertSame(state, scheduler.poll(0, TimeUnit.MILLISECONDS));
+  }
+  
+  @Test
+  public void testRemovedTenant() throws Exception {
+    scheduler.addTenant("acme");
+    scheduler.addTenant("alfresco");
+    TenantAcquisitionState state = scheduler.poll(0, TimeUnit.MILLISECONDS);
+    String otherTenantId = state.getTenantId().equals("acme") ? "alfresco" : "acme";
+    
+    // Removed while queued
+    scheduler.removeTenant(otherTenantId);
+    Assert.assertNull(scheduler.poll(0, TimeUnit.MILLISECONDS));
+    
+    // Removed while being handled: not put back
+    scheduler.removeTenant(state.getTenantId());
+    scheduler.reschedule(state);
+    Assert.assertNull(scheduler.poll(0, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(scheduler.getStates().isEmpty());
+  }
+  
+  @Test
+  public void testEmptyAcquisitionsBackOff() {
+    TenantAcquisitionState state = new TenantAcquisitionState("acme");
+    long now = System.currentTimeMillis();
+    
+    state.asyncJobsAcquired(0, 10, 100L, 1000L, now);
+    Assert.assertEquals(now + 100L, state.getNextAsyncJobAcquisitionTime());
+    state.asyncJobsAcquired(0, 10, 100L, 1000L, now);
+    Assert.assertEquals(now + 200L, state.getNextAsyncJobAcquisitionTime());
+    state.asyncJobsAcquired(0, 10, 100L, 1000L, now);
+    Assert.assertEquals(now + 400L, state.getNextAsyncJobAcquisitionTime());
+    for (int i = 0; i < 40; i++) {
+      state.asyncJobsAcquired(0, 10, 100L, 1000L, now);
+    }
+    Assert.assertEquals(now + 1000L, state.getNextAsyncJobAcquisitionTime()); // Capped, also when the shift overflows
+    
+    // Some jobs: default wait time, a full batch: immediately
+    state.asyncJobsAcquired(3, 10, 100L, 1000L, now);
+    Assert.assertEquals(now + 100L, state.getNextAsyncJobAcquisitionTime());
+    Assert.assertEquals(0, state.getEmptyAsyncJobAcquisitionCount());
+    state.asyncJobsAcquired(10, 10, 100L, 1000L, now);
+    Assert.assertEquals(now, state.getNextAsyncJobAcquisitionTime());
+    
+    // Timers back off independently
+    state.timerJobsAcquired(0, 10, 100L, 1000L, now);
+    state.timerJobsAcquired(0, 10, 100L, 1000L, now);
+    Assert.assertEquals(now + 200L, state.getNextTimerJobAcquisitionTime());
+    Assert.assertEquals(now, state.getNextAcquisitionTime());
+  }
+  
+  @Test
+  public void testNoBackoffWithoutMaxBackoff() {
+    TenantAcquisitionState state = new TenantAcquisitionState("acme");
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 3; i++) {
+      state.asyncJobsAcquired(0, 10, 100L, 0L, now);
+    }
+    Assert.assertEquals(now + 100L, state.getNextAsyncJobAcquisitionTime());
+  }
+  
+  @Test
+  public void testResetBackoff() {
+    TenantAcquisitionState state = new TenantAcquisitionState("acme");
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 3; i++) {
+      state.asyncJobsAcquired(0, 10, 100L, 1000L, now);
+      state.timerJobsAcquired(0, 10, 100L, 1000L, now);
+    }
+    
+    state.resetBackoff(now + 50L);
+    Assert.assertEquals(now + 50L, state.getNextAsyncJobAcquisitionTime());
+    Assert.assertEquals(now + 50L, state.getNextTimerJobAcquisitionTime());
+    Assert.assertEquals(0, state.getEmptyAsyncJobAcquisitionCount());
+    
+    // Never postpones
+    state.resetBackoff(now + 5000L);
+    Assert.assertEquals(now + 50L, state.getNextAsyncJobAcquisitionTime());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected void schedule(String tenantId, long time) throws Exception {
+    TenantAcquisitionState state = scheduler.addTenant(tenantId);
+    while (scheduler.poll(0, TimeUnit.MILLISECONDS) != state) {
+      // A new tenant is due before all others: take it out to change its times
+    }
+    state.scheduleAsyncJobAcquisition(time);
+    state.scheduleTimerJobAcquisition(time);
+    scheduler.reschedule(state);
+  }
+
+}
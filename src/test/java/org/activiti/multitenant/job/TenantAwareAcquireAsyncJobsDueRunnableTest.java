@@ -0,0 +1,132 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The acquisition itself is replaced by a {@link TenantJobAcquirer} that returns a preset number of jobs.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantAwareAcquireAsyncJobsDueRunnableTest {
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private TenantAwareAcquireAsyncJobsDueRunnable runnable;
+  private FakeJobAcquirer jobAcquirer;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("acme");
+    
+    TenantAwareDefaultAsyncJobExecutor asyncExecutor = new TenantAwareDefaultAsyncJobExecutor(tenantInfoHolder);
+    asyncExecutor.setMaxAsyncJobsDuePerAcquisition(10);
+    asyncExecutor.setDefaultAsyncJobAcquireWaitTimeInMillis(60000);
+    
+    runnable = new TenantAwareAcquireAsyncJobsDueRunnable(asyncExecutor, tenantInfoHolder, "acme");
+    jobAcquirer = new FakeJobAcquirer(asyncExecutor);
+    runnable.jobAcquirer = jobAcquirer;
+  }
+  
+  @Test
+  public void testEmptyAcquisitionWaitsDefaultWaitTime() {
+    long before = System.currentTimeMillis();
+    runnable.acquireJobs();
+    Assert.assertTrue(runnable.getAcquisitionState().getNextAsyncJobAcquisitionTime() >= before + 60000L);
+  }
+  
+  @Test
+  public void testScheduleDuringAcquisitionIsNotOverwritten() {
+    final long requestedTime = System.currentTimeMillis();
+    jobAcquirer.duringAcquisition = new Runnable() {
+      public void run() {
+        runnable.scheduleAcquisition(requestedTime); // eg. a job created by another thread
+      }
+    };
+    
+    runnable.acquireJobs();
+    Assert.assertEquals(requestedTime, runnable.getAcquisitionState().getNextAsyncJobAcquisitionTime());
+    
+    // Only applies to the acquisition it happened during
+    jobAcquirer.duringAcquisition = null;
+    long before = System.currentTimeMillis();
+    runnable.acquireJobs();
+    Assert.assertTrue(runnable.getAcquisitionState().getNextAsyncJobAcquisitionTime() >= before + 60000L);
+  }
+  
+  @Test
+  public void testScheduleBeforeAcquisitionIsCovered() {
+    runnable.scheduleAcquisition(System.currentTimeMillis());
+    
+    long before = System.currentTimeMillis();
+    runnable.acquireJobs();
+    Assert.assertTrue(runnable.getAcquisitionState().getNextAsyncJobAcquisitionTime() >= before + 60000L);
+  }
+  
+  @Test
+  public void testScheduleWakesUpWaitingAcquisition() throws Exception {
+    Thread thread = new Thread(runnable);
+    thread.start();
+    waitForAcquisitionCount(1);
+    
+    // Waiting for the default wait time of a minute
+    Thread.sleep(50L);
+    Assert.assertEquals(1, jobAcquirer.acquisitionCount.get());
+    
+    runnable.scheduleAcquisition(System.currentTimeMillis());
+    waitForAcquisitionCount(2);
+    Assert.assertEquals("acme", jobAcquirer.tenantId);
+    
+    runnable.stop();
+    thread.join(5000L);
+    Assert.assertFalse(thread.isAlive());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected void waitForAcquisitionCount(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (jobAcquirer.acquisitionCount.get() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5L);
+    }
+    Assert.assertEquals(count, jobAcquirer.acquisitionCount.get());
+  }
+  
+  private class FakeJobAcquirer extends TenantJobAcquirer {
+    
+    private AtomicInteger acquisitionCount = new AtomicInteger();
+    private volatile Runnable duringAcquisition;
+    private volatile String tenantId;
+    
+    public FakeJobAcquirer(TenantAwareDefaultAsyncJobExecutor asyncExecutor) {
+      super(asyncExecutor);
+    }
+    
+    public int acquireAsyncJobs(TenantJobMetrics metrics) {
+      tenantId = tenantInfoHolder.getCurrentTenantId();
+      if (duringAcquisition != null) {
+        duringAcquisition.run();
+      }
+      acquisitionCount.incrementAndGet();
+      return 0;
+    }
+    
+  }
+
+}
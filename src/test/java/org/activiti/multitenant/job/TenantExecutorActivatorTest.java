@@ -0,0 +1,192 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The tenant executors are created but never started: the probe of the database is replaced by a set of tenants with pending jobs.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantExecutorActivatorTest {
+  
+  private ExecutorPerTenantAsyncExecutor asyncExecutor;
+  private TestExecutorActivator executorActivator;
+  
+  @Before
+  public void setup() {
+    asyncExecutor = new ExecutorPerTenantAsyncExecutor(new DummyTenantInfoHolder());
+    executorActivator = new TestExecutorActivator(asyncExecutor);
+    executorActivator.setIdleTimeoutInMillis(50L);
+    asyncExecutor.setExecutorActivator(executorActivator);
+    
+    asyncExecutor.addTenantAsyncExecutor("acme", false);
+    asyncExecutor.addTenantAsyncExecutor("alfresco", false);
+  }
+  
+  @Test
+  public void testNoExecutorsUntilActivated() {
+    Assert.assertTrue(asyncExecutor.getTenantExecutors().isEmpty());
+    
+    executorActivator.check();
+    Assert.assertTrue(asyncExecutor.getTenantExecutors().isEmpty());
+  }
+  
+  @Test
+  public void testActivatesTenantWithPendingJobs() {
+    executorActivator.pendingTenantIds.add("acme");
+    
+    executorActivator.check();
+    Assert.assertEquals(Collections.singleton("acme"), asyncExecutor.getTenantExecutors().keySet());
+  }
+  
+  @Test
+  public void testActivatesTenantCreatingJob() {
+    Assert.assertNotNull(asyncExecutor.activateTenant("alfresco"));
+    Assert.assertSame(asyncExecutor.getTenantExecutors().get("alfresco"), asyncExecutor.activateTenant("alfresco"));
+    Assert.assertNull(asyncExecutor.activateTenant("unknown"));
+    Assert.assertEquals(Collections.singleton("alfresco"), asyncExecutor.getTenantExecutors().keySet());
+  }
+  
+  @Test
+  public void testDeactivatesIdleTenant() throws Exception {
+    asyncExecutor.activateTenant("acme");
+    
+    // Active within the idle timeout
+    executorActivator.check();
+    Assert.assertTrue(asyncExecutor.getTenantExecutors().containsKey("acme"));
+    
+    Thread.sleep(100L);
+    executorActivator.check();
+    Assert.assertFalse(asyncExecutor.getTenantExecutors().containsKey("acme"));
+  }
+  
+  @Test
+  public void testKeepsTenantWithPendingJobs() throws Exception {
+    asyncExecutor.activateTenant("acme");
+    executorActivator.pendingTenantIds.add("acme");
+    
+    Thread.sleep(100L);
+    executorActivator.check();
+    Assert.assertTrue(asyncExecutor.getTenantExecutors().containsKey("acme"));
+  }
+  
+  @Test
+  public void testJobCreatedWhileDeactivatingKeepsExecutor() throws Exception {
+    AsyncExecutor tenantExecutor = asyncExecutor.activateTenant("acme");
+    Thread.sleep(100L);
+    
+    // The tenant is found idle, then a job is handed to its executor before the executor is taken out
+    executorActivator.activatedAfterIdleCheck = "acme";
+    executorActivator.check();
+    Assert.assertSame(tenantExecutor, asyncExecutor.getTenantExecutors().get("acme"));
+  }
+  
+  @Test
+  public void testJobCreatedAfterDeactivationActivatesNewExecutor() throws Exception {
+    AsyncExecutor tenantExecutor = asyncExecutor.activateTenant("acme");
+    Thread.sleep(100L);
+    executorActivator.check();
+    Assert.assertFalse(asyncExecutor.getTenantExecutors().containsKey("acme"));
+    
+    AsyncExecutor newTenantExecutor = asyncExecutor.activateTenant("acme");
+    Assert.assertNotNull(newTenantExecutor);
+    Assert.assertNotSame(tenantExecutor, newTenantExecutor);
+    
+    // Recent activity: not deactivated at the next check
+    executorActivator.check();
+    Assert.assertSame(newTenantExecutor, asyncExecutor.getTenantExecutors().get("acme"));
+  }
+  
+  @Test
+  public void testRemovedTenantIsNotActivated() {
+    asyncExecutor.activateTenant("acme");
+    asyncExecutor.removeTenantAsyncExecutor("acme");
+    Assert.assertFalse(asyncExecutor.getTenantExecutors().containsKey("acme"));
+    
+    Assert.assertNull(asyncExecutor.activateTenant("acme"));
+    Assert.assertFalse(asyncExecutor.getTenantExecutors().containsKey("acme"));
+  }
+  
+  @Test
+  public void testTenantRemovedWhileActivatingIsNotActivated() throws Exception {
+    ActivatingThread activatingThread = new ActivatingThread(asyncExecutor, "acme");
+    synchronized (asyncExecutor.activationLock) {
+      // The activation saw the tenant registered and waits for the lock
+      activatingThread.start();
+      while (activatingThread.getState() != Thread.State.BLOCKED) {
+        Thread.sleep(10L);
+      }
+      asyncExecutor.removeTenantAsyncExecutor("acme");
+    }
+    activatingThread.join(5000L);
+    
+    Assert.assertNull(activatingThread.tenantExecutor);
+    Assert.assertFalse(asyncExecutor.getTenantExecutors().containsKey("acme"));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private static class TestExecutorActivator extends TenantExecutorActivator {
+    
+    private Set<String> pendingTenantIds = Collections.synchronizedSet(new HashSet<String>());
+    private String activatedAfterIdleCheck;
+    
+    public TestExecutorActivator(ExecutorPerTenantAsyncExecutor asyncExecutor) {
+      super(asyncExecutor);
+    }
+    
+    @Override
+    protected boolean hasPendingJobs(String tenantId, long now) {
+      return pendingTenantIds.contains(tenantId);
+    }
+    
+    @Override
+    protected boolean isIdle(String tenantId, long now) {
+      boolean idle = super.isIdle(tenantId, now);
+      if (tenantId.equals(activatedAfterIdleCheck)) {
+        asyncExecutor.activateTenant(tenantId); // Like a job created by another thread at this moment
+      }
+      return idle;
+    }
+    
+  }
+  
+  private static class ActivatingThread extends Thread {
+    
+    private final ExecutorPerTenantAsyncExecutor asyncExecutor;
+    private final String tenantId;
+    private volatile AsyncExecutor tenantExecutor;
+    
+    public ActivatingThread(ExecutorPerTenantAsyncExecutor asyncExecutor, String tenantId) {
+      this.asyncExecutor = asyncExecutor;
+      this.tenantId = tenantId;
+    }
+    
+    @Override
+    public void run() {
+      tenantExecutor = asyncExecutor.activateTenant(tenantId);
+    }
+    
+  }
+
+}
@@ -0,0 +1,201 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantFairExecutorServiceTest {
+  
+  private TenantFairExecutorService executorService;
+  
+  @After
+  public void shutdown() {
+    if (executorService != null) {
+      executorService.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testBurstOfOneTenantUsesAllWorkers() throws Exception {
+    executorService = new TenantFairExecutorService(4, 100);
+    
+    // Every job waits until 4 jobs run at the same time: only possible when all workers take jobs of the one tenant
+    CountDownLatch allRunning = new CountDownLatch(4);
+    AtomicInteger inTimeCount = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(8);
+    for (int i = 0; i < 8; i++) {
+      executorService.execute(new WaitingRunnable("acme", allRunning, inTimeCount, done));
+    }
+    
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(8, inTimeCount.get());
+  }
+  
+  @Test
+  public void testTenantMaxConcurrency() throws Exception {
+    executorService = new TenantFairExecutorService(4, 100);
+    executorService.tenantMaxConcurrency.put("acme", 2);
+    
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(8);
+    for (int i = 0; i < 8; i++) {
+      executorService.execute(new TestRunnable("acme") {
+        public void run() {
+          int current = running.incrementAndGet();
+          synchronized (maxRunning) {
+            maxRunning.set(Math.max(maxRunning.get(), current));
+          }
+          sleep(50L);
+          running.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+    
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(2, maxRunning.get());
+  }
+  
+  @Test
+  public void testOtherTenantIsNotStarvedByBurst() throws Exception {
+    executorService = new TenantFairExecutorService(1, 100);
+    
+    final StringBuffer order = new StringBuffer();
+    final CountDownLatch done = new CountDownLatch(6);
+    for (int i = 0; i < 5; i++) {
+      executorService.execute(new AppendingRunnable("acme", "a", order, done));
+    }
+    executorService.execute(new AppendingRunnable("alfresco", "b", order, done));
+    
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    // The first acme job may have started before the alfresco job was queued: it gets the next turn at the latest
+    Assert.assertTrue(order.toString(), order.indexOf("b") <= 2);
+  }
+  
+  @Test
+  public void testRemoveQueuedJobsOfTenant() throws Exception {
+    executorService = new TenantFairExecutorService(1, 100);
+    
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final StringBuffer order = new StringBuffer();
+    final CountDownLatch done = new CountDownLatch(2);
+    executorService.execute(new TestRunnable("alfresco") {
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        done.countDown();
+      }
+    });
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 3; i++) {
+      executorService.execute(new AppendingRunnable("acme", "a", order, done));
+    }
+    executorService.execute(new AppendingRunnable("alfresco", "b", order, done));
+    
+    Assert.assertEquals(3, executorService.removeQueuedJobs("acme").size());
+    Assert.assertEquals(0, executorService.getQueueDepth("acme"));
+    Assert.assertEquals(1, executorService.getQueuedCount());
+    
+    release.countDown();
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals("b", order.toString());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  protected abstract static class TestRunnable implements TenantAwareRunnable {
+    
+    protected String tenantId;
+    
+    public TestRunnable(String tenantId) {
+      this.tenantId = tenantId;
+    }
+    
+    public String getTenantId() {
+      return tenantId;
+    }
+    
+  }
+  
+  protected static class WaitingRunnable extends TestRunnable {
+    
+    protected CountDownLatch allRunning;
+    protected AtomicInteger inTimeCount;
+    protected CountDownLatch done;
+    
+    public WaitingRunnable(String tenantId, CountDownLatch allRunning, AtomicInteger inTimeCount, CountDownLatch done) {
+      super(tenantId);
+      this.allRunning = allRunning;
+      this.inTimeCount = inTimeCount;
+      this.done = done;
+    }
+    
+    public void run() {
+      allRunning.countDown();
+      try {
+        if (allRunning.await(2, TimeUnit.SECONDS)) {
+          inTimeCount.incrementAndGet();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      done.countDown();
+    }
+    
+  }
+  
+  protected static class AppendingRunnable extends TestRunnable {
+    
+    protected String value;
+    protected StringBuffer order;
+    protected CountDownLatch done;
+    
+    public AppendingRunnable(String tenantId, String value, StringBuffer order, CountDownLatch done) {
+      super(tenantId);
+      this.value = value;
+      this.order = order;
+      this.done = done;
+    }
+    
+    public void run() {
+      order.append(value);
+      sleep(10L);
+      done.countDown();
+    }
+    
+  }
+
+}
@@ -0,0 +1,180 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandConfig;
+import org.activiti.engine.impl.interceptor.CommandExecutor;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.impl.persistence.entity.JobEntityImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares the executor services of the {@link TenantJobExecutionMode}s when executing blocking jobs of many tenants,
+ * together with a thread pool per tenant (as the {@link ExecutorPerTenantAsyncExecutor} creates by default).
+ * 
+ * The jobs are {@link TenantAwareExecuteAsyncRunnable}s, but their command executor sleeps instead of doing JDBC calls, 
+ * so only the executors are measured.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantJobExecutionBenchmarkTest {
+
+  private static final int NR_OF_TENANTS = 200;
+  private static final int NR_OF_JOBS_PER_TENANT = 20;
+  private static final int JOB_DURATION_IN_MILLIS = 10;
+
+  private static final int THREADS_PER_TENANT = 2;
+  private static final int MAX_CONCURRENT_JOBS = 200;
+
+  private DummyTenantInfoHolder tenantInfoHolder = new DummyTenantInfoHolder();
+  private ConcurrentHashMap<String, AtomicInteger> executedJobCounts = new ConcurrentHashMap<String, AtomicInteger>();
+  private CountDownLatch jobsDone;
+
+  @Test
+  public void testExecutorsAtHighTenantCount() throws Exception {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    System.out.println(NR_OF_TENANTS + " tenants x " + NR_OF_JOBS_PER_TENANT + " jobs of " + JOB_DURATION_IN_MILLIS + " ms:");
+
+    // Thread pool per tenant
+    List<ExecutorService> tenantExecutors = new ArrayList<ExecutorService>();
+    for (int i = 0; i < NR_OF_TENANTS; i++) {
+      tenantExecutors.add(createExecutorService(TenantJobExecutionMode.THREAD_POOL, THREADS_PER_TENANT));
+    }
+    benchmark("pool per tenant", tenantExecutors, threadMXBean);
+
+    // Shared executors
+    for (TenantJobExecutionMode mode : new TenantJobExecutionMode[] { TenantJobExecutionMode.THREAD_POOL, 
+        TenantJobExecutionMode.TENANT_FAIR_QUEUE, TenantJobExecutionMode.THREAD_PER_JOB }) {
+      List<ExecutorService> sharedExecutor = new ArrayList<ExecutorService>();
+      sharedExecutor.add(createExecutorService(mode, MAX_CONCURRENT_JOBS));
+      benchmark("shared " + mode, sharedExecutor, threadMXBean);
+    }
+
+    // Work stealing between the tenant pools
+    TenantWorkStealingPool workStealingPool = new TenantWorkStealingPool();
+    List<ExecutorService> workStealingExecutors = new ArrayList<ExecutorService>();
+    for (int i = 0; i < NR_OF_TENANTS; i++) {
+      TenantAwareDefaultAsyncJobExecutor asyncExecutor = createAsyncExecutor(TenantJobExecutionMode.WORK_STEALING, THREADS_PER_TENANT);
+      asyncExecutor.joinWorkStealingPool(workStealingPool, "tenant" + i, 1);
+      workStealingExecutors.add(asyncExecutor.createExecutorService());
+    }
+    benchmark("work stealing", workStealingExecutors, threadMXBean);
+  }
+
+  protected void benchmark(String name, List<ExecutorService> executors, ThreadMXBean threadMXBean) throws InterruptedException {
+    threadMXBean.resetPeakThreadCount();
+    executedJobCounts.clear();
+    long time = executeJobs(executors);
+    int peakThreads = threadMXBean.getPeakThreadCount();
+    shutdown(executors);
+
+    System.out.println("  " + name + ": " + time + " ms, peak " + peakThreads + " platform threads");
+    Assert.assertEquals(NR_OF_TENANTS, executedJobCounts.size());
+    for (AtomicInteger executedJobCount : executedJobCounts.values()) {
+      Assert.assertEquals(NR_OF_JOBS_PER_TENANT, executedJobCount.get());
+    }
+  }
+
+  /**
+   * With one executor, all jobs go to that executor. Otherwise, each tenant has its own.
+   */
+  protected long executeJobs(List<ExecutorService> executors) throws InterruptedException {
+    jobsDone = new CountDownLatch(NR_OF_TENANTS * NR_OF_JOBS_PER_TENANT);
+    CommandExecutor commandExecutor = new SleepingCommandExecutor();
+    long start = System.currentTimeMillis();
+    for (int job = 0; job < NR_OF_JOBS_PER_TENANT; job++) {
+      for (int tenant = 0; tenant < NR_OF_TENANTS; tenant++) {
+        ExecutorService executor = executors.size() == 1 ? executors.get(0) : executors.get(tenant);
+        String tenantId = "tenant" + tenant;
+        executor.execute(new TenantAwareExecuteAsyncRunnable(createJob(tenantId), commandExecutor, tenantInfoHolder, tenantId));
+      }
+    }
+    Assert.assertTrue(jobsDone.await(5, TimeUnit.MINUTES));
+    return System.currentTimeMillis() - start;
+  }
+
+  protected ExecutorService createExecutorService(TenantJobExecutionMode mode, int threadCount) {
+    return createAsyncExecutor(mode, threadCount).createExecutorService();
+  }
+
+  protected TenantAwareDefaultAsyncJobExecutor createAsyncExecutor(TenantJobExecutionMode mode, int threadCount) {
+    TenantAwareDefaultAsyncJobExecutor asyncExecutor = new TenantAwareDefaultAsyncJobExecutor(tenantInfoHolder);
+    asyncExecutor.setJobExecutionMode(mode);
+    asyncExecutor.setCorePoolSize(threadCount);
+    asyncExecutor.setMaxPoolSize(threadCount);
+    asyncExecutor.setQueueSize(NR_OF_TENANTS * NR_OF_JOBS_PER_TENANT); // Nothing is rejected, only the execution is compared
+    return asyncExecutor;
+  }
+
+  protected JobEntity createJob(String tenantId) {
+    JobEntityImpl job = new JobEntityImpl();
+    job.setTenantId(tenantId);
+    job.setExclusive(false); // No lock command
+    return job;
+  }
+
+  protected void shutdown(List<ExecutorService> executors) throws InterruptedException {
+    for (ExecutorService executor : executors) {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  /**
+   * Stands in for the execution of the job: checks the tenant the runnable has set and blocks like a JDBC call would.
+   */
+  protected class SleepingCommandExecutor implements CommandExecutor {
+
+    public CommandConfig getDefaultConfig() {
+      return new CommandConfig();
+    }
+
+    public <T> T execute(Command<T> command) {
+      return execute(getDefaultConfig(), command);
+    }
+
+    public <T> T execute(CommandConfig config, Command<T> command) {
+      String tenantId = tenantInfoHolder.getCurrentTenantId();
+      try {
+        Thread.sleep(JOB_DURATION_IN_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (tenantId != null && tenantId.equals(tenantInfoHolder.getCurrentTenantId())) {
+        AtomicInteger executedJobCount = executedJobCounts.get(tenantId);
+        if (executedJobCount == null) {
+          executedJobCounts.putIfAbsent(tenantId, new AtomicInteger());
+          executedJobCount = executedJobCounts.get(tenantId);
+        }
+        executedJobCount.incrementAndGet();
+      }
+      jobsDone.countDown();
+      return null;
+    }
+
+  }
+
+}
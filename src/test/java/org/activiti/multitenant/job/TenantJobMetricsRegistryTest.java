@@ -0,0 +1,148 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Every test uses its own MBean server, not the platform one.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantJobMetricsRegistryTest {
+  
+  private MBeanServer mBeanServer;
+  private TenantJobMetricsRegistry registry;
+  
+  @Before
+  public void setup() {
+    mBeanServer = MBeanServerFactory.newMBeanServer();
+    registry = new TenantJobMetricsRegistry("executor", mBeanServer);
+  }
+  
+  @Test
+  public void testRegisterTenantExposesMBean() throws Exception {
+    TenantJobMetrics metrics = registry.registerTenant("acme");
+    metrics.jobQueued();
+    metrics.jobsAcquired(3, 1000L);
+    
+    ObjectName objectName = getObjectName("executor", "acme");
+    Assert.assertTrue(mBeanServer.isRegistered(objectName));
+    Assert.assertEquals("acme", mBeanServer.getAttribute(objectName, "TenantId"));
+    Assert.assertEquals(1, mBeanServer.getAttribute(objectName, "QueueDepth"));
+    Assert.assertEquals(3L, mBeanServer.getAttribute(objectName, "AcquiredJobCount"));
+    
+    mBeanServer.invoke(objectName, "reset", new Object[0], new String[0]);
+    Assert.assertEquals(0L, metrics.getAcquiredJobCount());
+  }
+  
+  @Test
+  public void testRegisterTenantTwiceKeepsMetrics() {
+    TenantJobMetrics metrics = registry.registerTenant("acme");
+    metrics.jobQueued();
+    
+    Assert.assertSame(metrics, registry.registerTenant("acme"));
+    Assert.assertSame(metrics, registry.getMetrics("acme"));
+    Assert.assertEquals(1, registry.getAllMetrics().size());
+    Assert.assertNull(registry.getMetrics("alfresco"));
+    Assert.assertNull(registry.getMetrics(null));
+  }
+  
+  @Test
+  public void testUnregisterTenant() throws Exception {
+    registry.registerTenant("acme");
+    registry.registerTenant("alfresco");
+    
+    registry.unregisterTenant("acme");
+    Assert.assertNull(registry.getMetrics("acme"));
+    Assert.assertFalse(mBeanServer.isRegistered(getObjectName("executor", "acme")));
+    Assert.assertTrue(mBeanServer.isRegistered(getObjectName("executor", "alfresco")));
+    
+    registry.unregisterTenant("acme"); // No-op
+    registry.unregisterTenant("unknown");
+    
+    // Registered again with fresh metrics
+    Assert.assertEquals(0, registry.registerTenant("acme").getQueueDepth());
+    Assert.assertTrue(mBeanServer.isRegistered(getObjectName("executor", "acme")));
+  }
+  
+  @Test
+  public void testUnregisterAll() throws Exception {
+    registry.registerTenant("acme");
+    registry.registerTenant("alfresco");
+    
+    registry.unregisterAll();
+    Assert.assertTrue(registry.getAllMetrics().isEmpty());
+    Assert.assertTrue(mBeanServer.queryNames(new ObjectName(TenantJobMetricsRegistry.DOMAIN + ":*"), null).isEmpty());
+  }
+  
+  @Test
+  public void testQuotedNames() throws Exception {
+    TenantJobMetricsRegistry otherRegistry = new TenantJobMetricsRegistry("executor,type=other", mBeanServer);
+    otherRegistry.registerTenant("acme:1");
+    
+    Assert.assertTrue(mBeanServer.isRegistered(getObjectName("executor,type=other", "acme:1")));
+  }
+  
+  @Test
+  public void testMetricsKeptWhenNameAlreadyTaken() throws Exception {
+    TenantJobMetrics metrics = registry.registerTenant("acme");
+    TenantJobMetricsRegistry sameNameRegistry = new TenantJobMetricsRegistry("executor", mBeanServer);
+    
+    // Can't be registered as MBean, but still recorded
+    TenantJobMetrics otherMetrics = sameNameRegistry.registerTenant("acme");
+    Assert.assertNotSame(metrics, otherMetrics);
+    Assert.assertSame(otherMetrics, sameNameRegistry.getMetrics("acme"));
+    
+    // Doesn't unregister the MBean of the other registry
+    sameNameRegistry.unregisterTenant("acme");
+    Assert.assertNull(sameNameRegistry.getMetrics("acme"));
+    Assert.assertTrue(mBeanServer.isRegistered(getObjectName("executor", "acme")));
+    Assert.assertSame(metrics, registry.getMetrics("acme"));
+  }
+  
+  @Test
+  public void testExecutorLifecycle() throws Exception {
+    SharedExecutorServiceAsyncExecutor asyncExecutor = new SharedExecutorServiceAsyncExecutor(new DummyTenantInfoHolder());
+    asyncExecutor.setMetricsRegistry(registry);
+    
+    asyncExecutor.addTenantAsyncExecutor("acme", false);
+    asyncExecutor.addTenantAsyncExecutor("alfresco", false);
+    Assert.assertNotNull(registry.getMetrics("acme"));
+    Assert.assertTrue(mBeanServer.isRegistered(getObjectName("executor", "alfresco")));
+    
+    asyncExecutor.removeTenantAsyncExecutor("acme");
+    Assert.assertNull(registry.getMetrics("acme"));
+    Assert.assertFalse(mBeanServer.isRegistered(getObjectName("executor", "acme")));
+    Assert.assertNotNull(registry.getMetrics("alfresco"));
+    
+    asyncExecutor.shutdown();
+    Assert.assertTrue(registry.getAllMetrics().isEmpty());
+    Assert.assertFalse(mBeanServer.isRegistered(getObjectName("executor", "alfresco")));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private ObjectName getObjectName(String executorName, String tenantId) throws Exception {
+    return new ObjectName(TenantJobMetricsRegistry.DOMAIN + ":type=TenantJobMetrics,executor=" 
+        + ObjectName.quote(executorName) + ",tenant=" + ObjectName.quote(tenantId));
+  }
+
+}
@@ -0,0 +1,202 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantJobMetricsTest {
+  
+  private TenantJobMetrics metrics = new TenantJobMetrics("acme");
+  
+  @Test
+  public void testAcquisitionMetrics() {
+    metrics.jobsAcquired(3, TimeUnit.MILLISECONDS.toNanos(2L));
+    metrics.jobsAcquired(0, TimeUnit.MILLISECONDS.toNanos(30L));
+    metrics.optimisticLockFailure();
+    
+    Assert.assertEquals("acme", metrics.getTenantId());
+    Assert.assertEquals(2, metrics.getAcquisitionCount());
+    Assert.assertEquals(3, metrics.getAcquiredJobCount());
+    Assert.assertEquals(0, metrics.getLastJobsPerAcquisition());
+    Assert.assertEquals(1.5, metrics.getAverageJobsPerAcquisition(), 0.001);
+    Assert.assertEquals(16.0, metrics.getAverageAcquisitionTimeInMillis(), 0.001);
+    Assert.assertEquals(30L, metrics.getMaxAcquisitionTimeInMillis());
+    Assert.assertEquals(1, metrics.getOptimisticLockFailureCount());
+    
+    long[] histogram = metrics.getAcquisitionTimeHistogram();
+    Assert.assertEquals(1, histogram[bucketOf(2L)]);
+    Assert.assertEquals(1, histogram[bucketOf(50L)]); // 30 ms: in the bucket up to 50 ms
+  }
+  
+  @Test
+  public void testNoMeasurementsAverageZero() {
+    Assert.assertEquals(0.0, metrics.getAverageJobsPerAcquisition(), 0.0);
+    Assert.assertEquals(0.0, metrics.getAverageAcquisitionTimeInMillis(), 0.0);
+    Assert.assertEquals(0.0, metrics.getAverageExecutionTimeInMillis(), 0.0);
+  }
+  
+  @Test
+  public void testExecutionLifecycle() {
+    metrics.jobQueued();
+    metrics.jobQueued();
+    metrics.jobQueued();
+    metrics.jobQueued();
+    Assert.assertEquals(4, metrics.getQueueDepth());
+    
+    metrics.jobStarted(3L);
+    Assert.assertEquals(3, metrics.getQueueDepth());
+    Assert.assertEquals(1, metrics.getRunningJobCount());
+    
+    metrics.jobFailed();
+    metrics.jobFinished(TimeUnit.MILLISECONDS.toNanos(100L));
+    metrics.jobRejected();
+    metrics.jobDrained();
+    
+    Assert.assertEquals(1, metrics.getQueueDepth());
+    Assert.assertEquals(0, metrics.getRunningJobCount());
+    Assert.assertEquals(1, metrics.getExecutedJobCount());
+    Assert.assertEquals(1, metrics.getRetriedJobCount());
+    Assert.assertEquals(1, metrics.getRejectedJobCount());
+    Assert.assertEquals(100.0, metrics.getAverageExecutionTimeInMillis(), 0.001);
+    Assert.assertEquals(100L, metrics.getMaxExecutionTimeInMillis());
+    Assert.assertEquals(1, metrics.getExecutionTimeHistogram()[bucketOf(100L)]);
+    Assert.assertEquals(1, metrics.getQueueWaitTimeHistogram()[bucketOf(5L)]);
+  }
+  
+  @Test
+  public void testOverflowLifecycle() {
+    metrics.jobQueued();
+    metrics.jobQueued();
+    metrics.jobOverflowed();
+    metrics.jobOverflowed();
+    Assert.assertEquals(0, metrics.getQueueDepth());
+    Assert.assertEquals(2, metrics.getOverflowDepth());
+    Assert.assertEquals(2, metrics.getOverflowedJobCount());
+    
+    // Requeued, rejected again and back in the buffer
+    metrics.jobRequeued();
+    metrics.jobRequeueRejected();
+    Assert.assertEquals(0, metrics.getQueueDepth());
+    Assert.assertEquals(2, metrics.getOverflowDepth());
+    
+    metrics.jobRequeued();
+    metrics.overflowedJobReleased();
+    Assert.assertEquals(1, metrics.getQueueDepth());
+    Assert.assertEquals(0, metrics.getOverflowDepth());
+    Assert.assertEquals(1, metrics.getRejectedJobCount());
+    Assert.assertEquals(2, metrics.getOverflowedJobCount());
+  }
+  
+  @Test
+  public void testHistogramBuckets() {
+    long[] upperBounds = metrics.getHistogramBucketUpperBoundsInMillis();
+    Assert.assertEquals(upperBounds.length + 1, metrics.getExecutionTimeHistogram().length);
+    
+    metrics.jobFinished(0L);
+    metrics.jobFinished(TimeUnit.MILLISECONDS.toNanos(1L));
+    metrics.jobFinished(TimeUnit.MILLISECONDS.toNanos(3L));
+    metrics.jobFinished(TimeUnit.MILLISECONDS.toNanos(upperBounds[upperBounds.length - 1] + 1L));
+    
+    long[] histogram = metrics.getExecutionTimeHistogram();
+    Assert.assertEquals(2, histogram[0]);
+    Assert.assertEquals(1, histogram[2]); // Up to 5 ms
+    Assert.assertEquals(1, histogram[upperBounds.length]); // No upper bound
+    
+    // A copy: changing it doesn't change the buckets
+    upperBounds[0] = 1000L;
+    Assert.assertEquals(1L, metrics.getHistogramBucketUpperBoundsInMillis()[0]);
+  }
+  
+  @Test
+  public void testResetKeepsGauges() {
+    metrics.jobsAcquired(2, 1000L);
+    metrics.jobQueued();
+    metrics.jobQueued();
+    metrics.jobQueued();
+    metrics.jobStarted(1L);
+    metrics.jobOverflowed();
+    metrics.jobFailed();
+    
+    metrics.reset();
+    Assert.assertEquals(0, metrics.getAcquisitionCount());
+    Assert.assertEquals(0, metrics.getAcquiredJobCount());
+    Assert.assertEquals(0, metrics.getRetriedJobCount());
+    Assert.assertEquals(0, metrics.getOverflowedJobCount());
+    Assert.assertEquals(0, metrics.getQueueWaitTimeHistogram()[bucketOf(1L)]);
+    Assert.assertEquals(1, metrics.getQueueDepth());
+    Assert.assertEquals(1, metrics.getRunningJobCount());
+    Assert.assertEquals(1, metrics.getOverflowDepth());
+  }
+  
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    final int nrOfThreads = 8;
+    final int nrOfJobs = 10000;
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[nrOfThreads];
+    for (int i = 0; i < nrOfThreads; i++) {
+      final long executionTime = TimeUnit.MILLISECONDS.toNanos(i);
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < nrOfJobs; j++) {
+            metrics.jobQueued();
+            metrics.jobStarted(0L);
+            metrics.jobFinished(executionTime);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    
+    Assert.assertEquals(nrOfThreads * nrOfJobs, metrics.getExecutedJobCount());
+    Assert.assertEquals(0, metrics.getQueueDepth());
+    Assert.assertEquals(0, metrics.getRunningJobCount());
+    Assert.assertEquals(nrOfThreads - 1, metrics.getMaxExecutionTimeInMillis());
+    
+    long total = 0;
+    for (long count : metrics.getExecutionTimeHistogram()) {
+      total += count;
+    }
+    Assert.assertEquals(nrOfThreads * nrOfJobs, total);
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private int bucketOf(long upperBoundInMillis) {
+    long[] upperBounds = metrics.getHistogramBucketUpperBoundsInMillis();
+    for (int i = 0; i < upperBounds.length; i++) {
+      if (upperBounds[i] == upperBoundInMillis) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("No bucket with upper bound " + upperBoundInMillis);
+  }
+
+}
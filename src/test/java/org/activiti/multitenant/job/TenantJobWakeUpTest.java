@@ -0,0 +1,229 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.delegate.event.impl.ActivitiEventBuilder;
+import org.activiti.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.impl.persistence.entity.JobEntityImpl;
+import org.activiti.engine.impl.persistence.entity.TimerEntityImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The acquisitions are replaced by recording which tenant is scheduled for when.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantJobWakeUpTest {
+  
+  private static final long ONE_HOUR = 60L * 60L * 1000L;
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private RecordingAsyncExecutor asyncExecutor;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("acme");
+    tenantInfoHolder.addTenant("alfresco");
+    
+    asyncExecutor = new RecordingAsyncExecutor(tenantInfoHolder);
+    asyncExecutor.setDefaultAsyncJobAcquireWaitTimeInMillis(10000);
+    asyncExecutor.setDefaultTimerJobAcquireWaitTimeInMillis(20000);
+  }
+  
+  @Test
+  public void testUnlockedJobWakesUpAsyncAcquisition() {
+    long before = System.currentTimeMillis();
+    asyncExecutor.jobCommitted("acme", createJob("job-1", null));
+    
+    Assert.assertEquals(1, asyncExecutor.asyncSchedules.size());
+    assertSchedule(asyncExecutor.asyncSchedules.get(0), "acme", before, System.currentTimeMillis());
+    Assert.assertTrue(asyncExecutor.timerSchedules.isEmpty());
+  }
+  
+  @Test
+  public void testLockedJobDoesNotWakeUpAcquisition() {
+    asyncExecutor.jobCommitted("acme", createJob("job-1", "engine-1")); // Handed over in-memory
+    
+    Assert.assertTrue(asyncExecutor.asyncSchedules.isEmpty());
+    Assert.assertTrue(asyncExecutor.timerSchedules.isEmpty());
+  }
+  
+  @Test
+  public void testDueTimerWakesUpTimerAcquisition() {
+    long before = System.currentTimeMillis();
+    asyncExecutor.jobCommitted("acme", createTimer("timer-1", new Date(before - 1000L)));
+    asyncExecutor.jobCommitted("alfresco", createTimer("timer-2", null));
+    
+    Assert.assertEquals(2, asyncExecutor.timerSchedules.size());
+    assertSchedule(asyncExecutor.timerSchedules.get(0), "acme", before, System.currentTimeMillis());
+    assertSchedule(asyncExecutor.timerSchedules.get(1), "alfresco", before, System.currentTimeMillis());
+    Assert.assertTrue(asyncExecutor.asyncSchedules.isEmpty());
+  }
+  
+  @Test
+  public void testFutureTimerWithoutIndexOrWheelIsLeftToAcquisition() {
+    asyncExecutor.jobCommitted("acme", createTimer("timer-1", new Date(System.currentTimeMillis() + ONE_HOUR)));
+    
+    Assert.assertTrue(asyncExecutor.timerSchedules.isEmpty());
+    Assert.assertTrue(asyncExecutor.asyncSchedules.isEmpty());
+  }
+  
+  @Test
+  public void testFutureTimerSoonerThanIndexedWakesUpAtDueTime() {
+    TenantTimerDueIndex timerDueIndex = new TenantTimerDueIndex();
+    asyncExecutor.setTimerDueIndex(timerDueIndex);
+    long dueTime = System.currentTimeMillis() + ONE_HOUR;
+    
+    asyncExecutor.jobCommitted("acme", createTimer("timer-1", new Date(dueTime)));
+    Assert.assertEquals(1, asyncExecutor.timerSchedules.size());
+    assertSchedule(asyncExecutor.timerSchedules.get(0), "acme", dueTime, dueTime);
+    Assert.assertEquals(Long.valueOf(dueTime), timerDueIndex.getNextDueTime("acme"));
+    
+    // Later than the known next timer: the acquisition already wakes up earlier
+    asyncExecutor.jobCommitted("acme", createTimer("timer-2", new Date(dueTime + ONE_HOUR)));
+    Assert.assertEquals(1, asyncExecutor.timerSchedules.size());
+    Assert.assertEquals(Long.valueOf(dueTime), timerDueIndex.getNextDueTime("acme"));
+    
+    // Sooner than the known next timer
+    asyncExecutor.jobCommitted("acme", createTimer("timer-3", new Date(dueTime - 1000L)));
+    Assert.assertEquals(2, asyncExecutor.timerSchedules.size());
+    assertSchedule(asyncExecutor.timerSchedules.get(1), "acme", dueTime - 1000L, dueTime - 1000L);
+    Assert.assertNull(timerDueIndex.getNextDueTime("alfresco"));
+  }
+  
+  @Test
+  public void testFutureTimerIsAddedToWheel() {
+    TenantTimerWheel timerWheel = new TenantTimerWheel(asyncExecutor);
+    asyncExecutor.setTimerWheel(timerWheel);
+    
+    asyncExecutor.jobCommitted("acme", createTimer("timer-1", new Date(System.currentTimeMillis() + 60000L)));
+    asyncExecutor.jobCommitted("acme", createTimer("timer-2", new Date(System.currentTimeMillis() + 120000L)));
+    asyncExecutor.jobCommitted("acme", createTimer("timer-3", new Date(System.currentTimeMillis() + ONE_HOUR))); // Beyond the lookahead window
+    asyncExecutor.jobCommitted("acme", createTimer("timer-4", new Date(System.currentTimeMillis() - 1000L))); // Due: acquired right away
+    
+    Assert.assertEquals(2, timerWheel.getTimerCount("acme"));
+    Assert.assertEquals(0, timerWheel.getTimerCount("alfresco"));
+    Assert.assertEquals(1, asyncExecutor.timerSchedules.size());
+  }
+  
+  @Test
+  public void testJobCreatedResetsBackoff() {
+    long before = System.currentTimeMillis();
+    asyncExecutor.jobCreated("acme", createJob("job-1", "engine-1"));
+    asyncExecutor.jobCreated("alfresco", createTimer("timer-1", new Date(before + ONE_HOUR)));
+    long after = System.currentTimeMillis();
+    
+    Assert.assertEquals(1, asyncExecutor.asyncSchedules.size());
+    assertSchedule(asyncExecutor.asyncSchedules.get(0), "acme", before + 10000L, after + 10000L);
+    Assert.assertEquals(1, asyncExecutor.timerSchedules.size());
+    assertSchedule(asyncExecutor.timerSchedules.get(0), "alfresco", before + 20000L, after + 20000L);
+  }
+  
+  @Test
+  public void testListenerNotifiesExecutorForCurrentTenant() {
+    TenantJobCreatedListener listener = createListener();
+    
+    tenantInfoHolder.setCurrentTenantId("alfresco");
+    long before = System.currentTimeMillis();
+    listener.onEvent(ActivitiEventBuilder.createEntityEvent(ActivitiEventType.ENTITY_CREATED, createJob("job-1", null)));
+    tenantInfoHolder.clearCurrentTenantId();
+    
+    Assert.assertEquals(1, asyncExecutor.asyncSchedules.size());
+    assertSchedule(asyncExecutor.asyncSchedules.get(0), "alfresco", before + 10000L, System.currentTimeMillis() + 10000L);
+  }
+  
+  @Test
+  public void testListenerIgnoresOtherEntitiesAndMissingTenant() {
+    TenantJobCreatedListener listener = createListener();
+    
+    tenantInfoHolder.setCurrentTenantId("acme");
+    listener.onEvent(ActivitiEventBuilder.createEntityEvent(ActivitiEventType.ENTITY_CREATED, "not a job"));
+    tenantInfoHolder.clearCurrentTenantId();
+    
+    listener.onEvent(ActivitiEventBuilder.createEntityEvent(ActivitiEventType.ENTITY_CREATED, createJob("job-1", null)));
+    
+    Assert.assertTrue(asyncExecutor.asyncSchedules.isEmpty());
+    Assert.assertTrue(asyncExecutor.timerSchedules.isEmpty());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private TenantJobCreatedListener createListener() {
+    StandaloneInMemProcessEngineConfiguration processEngineConfiguration = new StandaloneInMemProcessEngineConfiguration();
+    processEngineConfiguration.setAsyncExecutor(asyncExecutor);
+    return new TenantJobCreatedListener(processEngineConfiguration, tenantInfoHolder);
+  }
+  
+  private JobEntity createJob(String jobId, String lockOwner) {
+    JobEntityImpl job = new JobEntityImpl();
+    job.setId(jobId);
+    job.setLockOwner(lockOwner);
+    return job;
+  }
+  
+  private JobEntity createTimer(String jobId, Date dueDate) {
+    TimerEntityImpl timer = new TimerEntityImpl();
+    timer.setId(jobId);
+    timer.setDuedate(dueDate);
+    return timer;
+  }
+  
+  private void assertSchedule(Schedule schedule, String tenantId, long from, long to) {
+    Assert.assertEquals(tenantId, schedule.tenantId);
+    Assert.assertTrue(schedule.time >= from && schedule.time <= to);
+  }
+  
+  private static class Schedule {
+    
+    private String tenantId;
+    private long time;
+    
+    public Schedule(String tenantId, long time) {
+      this.tenantId = tenantId;
+      this.time = time;
+    }
+    
+  }
+  
+  private static class RecordingAsyncExecutor extends SharedExecutorServiceAsyncExecutor {
+    
+    private List<Schedule> asyncSchedules = new ArrayList<Schedule>();
+    private List<Schedule> timerSchedules = new ArrayList<Schedule>();
+    
+    public RecordingAsyncExecutor(DummyTenantInfoHolder tenantInfoHolder) {
+      super(tenantInfoHolder);
+    }
+    
+    @Override
+    public void scheduleAsyncJobAcquisition(String tenantId, long time) {
+      asyncSchedules.add(new Schedule(tenantId, time));
+    }
+    
+    @Override
+    public void scheduleTimerJobAcquisition(String tenantId, long time) {
+      timerSchedules.add(new Schedule(tenantId, time));
+    }
+    
+  }
+
+}
@@ -0,0 +1,232 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.impl.persistence.entity.JobEntityImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantOverflowBufferTest {
+  
+  private RecordingAsyncExecutor asyncExecutor;
+  private RecordingExecutorService executorService;
+  private TenantOverflowBuffer overflowBuffer;
+  
+  @Before
+  public void setup() {
+    asyncExecutor = new RecordingAsyncExecutor();
+    executorService = new RecordingExecutorService();
+    asyncExecutor.setExecutorService(executorService);
+    overflowBuffer = new TenantOverflowBuffer(asyncExecutor);
+  }
+  
+  @After
+  public void close() {
+    overflowBuffer.signalStop();
+    overflowBuffer.awaitStop(System.currentTimeMillis() + 1000L);
+  }
+  
+  @Test
+  public void testDrainRoundRobinInOrderPerTenant() throws Exception {
+    startRejecting();
+    offer("acme", "a1");
+    offer("acme", "a2");
+    offer("acme", "a3");
+    offer("alfresco", "b1");
+    
+    executorService.rejecting = false;
+    waitUntilDrained();
+    Assert.assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), executorService.executedJobIds);
+    Assert.assertFalse(overflowBuffer.hasBufferedJobs("acme"));
+  }
+  
+  @Test
+  public void testJobStaysBufferedUntilHandedOver() throws Exception {
+    startRejecting();
+    offer("acme", "a1");
+    
+    // A new job of the tenant that checks the buffer while its last job is handed over must still queue behind it
+    executorService.checkedTenantId = "acme";
+    executorService.rejecting = false;
+    waitUntilDrained();
+    Assert.assertEquals(Arrays.asList(Boolean.TRUE), executorService.hadBufferedJobs);
+    Assert.assertFalse(overflowBuffer.hasBufferedJobs("acme"));
+  }
+  
+  @Test
+  public void testFullBufferRefusesJob() {
+    overflowBuffer.setMaxJobsPerTenant(2);
+    Assert.assertTrue(offer("acme", "a1"));
+    Assert.assertTrue(offer("acme", "a2"));
+    Assert.assertFalse(offer("acme", "a3"));
+    Assert.assertTrue(offer("alfresco", "b1"));
+  }
+  
+  @Test
+  public void testStopKeepsJobsUntilReleased() {
+    startRejecting();
+    offer("acme", "a1");
+    offer("acme", "a2");
+    offer("alfresco", "b1");
+    
+    overflowBuffer.signalStop();
+    overflowBuffer.awaitStop(System.currentTimeMillis() + 1000L);
+    Assert.assertEquals(3, overflowBuffer.getTotalDepth());
+    Assert.assertTrue(asyncExecutor.unlockedJobIds.isEmpty());
+    
+    // One unlock per tenant, and no re-acquisition while stopped
+    overflowBuffer.releaseAll();
+    Assert.assertEquals(2, asyncExecutor.unlockedJobIds.size());
+    Assert.assertEquals(Arrays.asList("a1", "a2"), asyncExecutor.unlockedJobIds.get("acme"));
+    Assert.assertEquals(Arrays.asList("b1"), asyncExecutor.unlockedJobIds.get("alfresco"));
+    Assert.assertEquals(0, overflowBuffer.getTotalDepth());
+    Assert.assertTrue(asyncExecutor.scheduledTenantIds.isEmpty());
+  }
+  
+  @Test
+  public void testReleaseTenant() {
+    offer("acme", "a1");
+    offer("alfresco", "b1");
+    
+    overflowBuffer.releaseTenant("acme");
+    Assert.assertEquals(Arrays.asList("a1"), asyncExecutor.unlockedJobIds.get("acme"));
+    Assert.assertEquals(0, overflowBuffer.getDepth("acme"));
+    Assert.assertEquals(1, overflowBuffer.getDepth("alfresco"));
+  }
+  
+  @Test
+  public void testExpiredJobsReleased() throws Exception {
+    overflowBuffer.setMaxBufferTimeInMillis(10L);
+    offer("acme", "a1");
+    Thread.sleep(20L);
+    offer("acme", "a2");
+    
+    overflowBuffer.releaseExpired();
+    Assert.assertEquals(Arrays.asList("a1"), asyncExecutor.unlockedJobIds.get("acme"));
+    Assert.assertEquals(1, overflowBuffer.getDepth("acme"));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private void startRejecting() {
+    overflowBuffer.setRetryIntervalInMillis(10L);
+    executorService.rejecting = true;
+    overflowBuffer.start();
+  }
+  
+  private void waitUntilDrained() throws InterruptedException {
+    long waitUntil = System.currentTimeMillis() + 10000L;
+    while (overflowBuffer.getTotalDepth() > 0 && System.currentTimeMillis() < waitUntil) {
+      Thread.sleep(10L);
+    }
+    Assert.assertEquals(0, overflowBuffer.getTotalDepth());
+  }
+  
+  private boolean offer(String tenantId, final String jobId) {
+    JobEntityImpl job = new JobEntityImpl();
+    job.setId(jobId);
+    return overflowBuffer.offer(tenantId, job, new JobRunnable(jobId));
+  }
+  
+  private static class JobRunnable implements Runnable {
+    
+    private String jobId;
+    
+    public JobRunnable(String jobId) {
+      this.jobId = jobId;
+    }
+    
+    public void run() {
+    }
+    
+  }
+  
+  private static class RecordingAsyncExecutor extends TenantAwareDefaultAsyncJobExecutor {
+    
+    private Map<String, List<String>> unlockedJobIds = new LinkedHashMap<String, List<String>>();
+    private List<String> scheduledTenantIds = new ArrayList<String>();
+    
+    public RecordingAsyncExecutor() {
+      super(new DummyTenantInfoHolder());
+    }
+    
+    @Override
+    protected void unlockJobIds(Map<String, List<String>> jobIdsPerTenant, TenantShutdownReport report) {
+      unlockedJobIds.putAll(jobIdsPerTenant);
+    }
+    
+    @Override
+    public void scheduleAsyncJobAcquisition(String tenantId, long time) {
+      scheduledTenantIds.add(tenantId);
+    }
+    
+  }
+  
+  /**
+   * Runs the jobs in the calling thread, or rejects them.
+   */
+  private class RecordingExecutorService extends AbstractExecutorService {
+    
+    private volatile boolean rejecting;
+    private volatile String checkedTenantId;
+    private List<String> executedJobIds = new Vector<String>();
+    private List<Boolean> hadBufferedJobs = new Vector<Boolean>();
+    
+    public void execute(Runnable runnable) {
+      if (rejecting) {
+        throw new RejectedExecutionException();
+      }
+      if (checkedTenantId != null) {
+        hadBufferedJobs.add(overflowBuffer.hasBufferedJobs(checkedTenantId));
+      }
+      executedJobIds.add(((JobRunnable) runnable).jobId);
+    }
+    
+    public void shutdown() {
+    }
+    
+    public List<Runnable> shutdownNow() {
+      return new ArrayList<Runnable>();
+    }
+    
+    public boolean isShutdown() {
+      return false;
+    }
+    
+    public boolean isTerminated() {
+      return false;
+    }
+    
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+    
+  }
+
+}
@@ -0,0 +1,270 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandConfig;
+import org.activiti.engine.impl.interceptor.CommandExecutor;
+import org.activiti.engine.impl.persistence.entity.JobEntityImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The executors under test are made active without starting their acquisition, 
+ * and unlocking a job only records the tenant it is unlocked for.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantShutdownReportTest {
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private RecordingCommandExecutor commandExecutor;
+  private CountDownLatch blockedJobsDone;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("acme");
+    tenantInfoHolder.addTenant("alfresco");
+    commandExecutor = new RecordingCommandExecutor();
+    blockedJobsDone = new CountDownLatch(1);
+  }
+  
+  @After
+  public void close() {
+    blockedJobsDone.countDown();
+  }
+  
+  @Test
+  public void testUnlockedJobsPerTenant() {
+    TenantShutdownReport report = new TenantShutdownReport(System.currentTimeMillis() + 1000L);
+    report.jobUnlocked("acme", "job-1");
+    report.jobUnlocked("alfresco", "job-2");
+    report.jobUnlocked("acme", "job-3");
+    report.finished();
+    
+    Assert.assertEquals(Arrays.asList("job-1", "job-3"), report.getUnlockedJobIds("acme"));
+    Assert.assertEquals(Arrays.asList("job-2"), report.getUnlockedJobIds("alfresco"));
+    Assert.assertTrue(report.getUnlockedJobIds("unknown").isEmpty());
+    Assert.assertEquals(3, report.getUnlockedJobCount());
+    Assert.assertEquals(2, report.getUnlockedJobIds().size());
+    Assert.assertTrue(report.isCompletedInTime());
+    
+    String description = report.toString();
+    Assert.assertTrue(description, description.startsWith("Shutdown completed in "));
+    Assert.assertTrue(description, description.contains("unlocked jobs: 3"));
+    Assert.assertTrue(description, description.contains("acme: [job-1, job-3]"));
+  }
+  
+  @Test
+  public void testJobsWithoutTenant() {
+    TenantShutdownReport report = new TenantShutdownReport(System.currentTimeMillis() + 1000L);
+    report.jobUnlocked(null, "job-1");
+    
+    Assert.assertEquals(Arrays.asList("job-1"), report.getUnlockedJobIds(null));
+    Assert.assertEquals(1, report.getUnlockedJobCount());
+  }
+  
+  @Test
+  public void testTimedOut() {
+    TenantShutdownReport report = new TenantShutdownReport(System.currentTimeMillis());
+    report.timedOut("acme");
+    report.timedOut(null); // Not known which tenant
+    
+    Assert.assertFalse(report.isCompletedInTime());
+    Assert.assertEquals(Collections.singleton("acme"), report.getTimedOutTenantIds());
+    Assert.assertTrue(report.toString(), report.toString().contains("timed out"));
+    Assert.assertTrue(report.toString(), report.toString().contains("tenants with jobs still executing: [acme]"));
+  }
+  
+  @Test
+  public void testDurationFixedWhenFinished() throws Exception {
+    TenantShutdownReport report = new TenantShutdownReport(System.currentTimeMillis() + 1000L);
+    Thread.sleep(20L);
+    report.finished();
+    long duration = report.getDurationInMillis();
+    Assert.assertTrue(duration >= 20L);
+    
+    Thread.sleep(20L);
+    Assert.assertEquals(duration, report.getDurationInMillis());
+  }
+  
+  @Test
+  public void testConcurrentRecording() throws Exception {
+    final TenantShutdownReport report = new TenantShutdownReport(System.currentTimeMillis() + 1000L);
+    final int nrOfThreads = 8;
+    final int nrOfJobs = 1000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < nrOfThreads; i++) {
+      final String tenantId = "tenant-" + (i % 2);
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int j = 0; j < nrOfJobs; j++) {
+            report.jobUnlocked(tenantId, getName() + "-" + j);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(nrOfThreads * nrOfJobs, report.getUnlockedJobCount());
+    Assert.assertEquals(nrOfThreads * nrOfJobs / 2, report.getUnlockedJobIds("tenant-0").size());
+  }
+  
+  @Test
+  public void testShutdownUnlocksJobsThatDidNotStart() throws Exception {
+    ActiveAsyncExecutor asyncExecutor = new ActiveAsyncExecutor();
+    asyncExecutor.setSecondsToWaitOnShutdown(1L);
+    asyncExecutor.blockThread();
+    asyncExecutor.queueJob("acme", "job-1");
+    asyncExecutor.queueJob("alfresco", "job-2");
+    
+    asyncExecutor.shutdown();
+    
+    TenantShutdownReport report = asyncExecutor.getLastShutdownReport();
+    Assert.assertFalse(report.isCompletedInTime());
+    Assert.assertTrue(report.getTimedOutTenantIds().isEmpty()); // One executor for all tenants
+    Assert.assertEquals(Arrays.asList("job-1"), report.getUnlockedJobIds("acme"));
+    Assert.assertEquals(Arrays.asList("job-2"), report.getUnlockedJobIds("alfresco"));
+    Assert.assertEquals(new HashSet<String>(Arrays.asList("acme", "alfresco")), new HashSet<String>(commandExecutor.tenantIds));
+    Assert.assertFalse(asyncExecutor.isActive());
+  }
+  
+  @Test
+  public void testShutdownCompletedInTime() {
+    ActiveAsyncExecutor asyncExecutor = new ActiveAsyncExecutor();
+    asyncExecutor.shutdown();
+    
+    TenantShutdownReport report = asyncExecutor.getLastShutdownReport();
+    Assert.assertTrue(report.isCompletedInTime());
+    Assert.assertEquals(0, report.getUnlockedJobCount());
+    Assert.assertTrue(commandExecutor.tenantIds.isEmpty());
+  }
+  
+  @Test
+  public void testTenantExecutorsShareDeadline() throws Exception {
+    ExecutorPerTenantAsyncExecutor asyncExecutor = new ExecutorPerTenantAsyncExecutor(tenantInfoHolder);
+    asyncExecutor.setShutdownTimeoutInMillis(500L);
+    
+    ActiveAsyncExecutor acmeExecutor = new ActiveAsyncExecutor();
+    acmeExecutor.blockThread();
+    acmeExecutor.queueJob("acme", "job-1");
+    asyncExecutor.tenantExecutors.put("acme", acmeExecutor);
+    
+    ActiveAsyncExecutor alfrescoExecutor = new ActiveAsyncExecutor();
+    alfrescoExecutor.blockThread();
+    asyncExecutor.tenantExecutors.put("alfresco", alfrescoExecutor);
+    
+    asyncExecutor.tenantExecutors.put("idle", new ActiveAsyncExecutor());
+    
+    long start = System.currentTimeMillis();
+    asyncExecutor.shutdown();
+    Assert.assertTrue(System.currentTimeMillis() - start < 1500L); // Drained in parallel, not 500 ms per tenant
+    
+    TenantShutdownReport report = asyncExecutor.getLastShutdownReport();
+    Assert.assertFalse(report.isCompletedInTime());
+    Assert.assertEquals(new HashSet<String>(Arrays.asList("acme", "alfresco")), report.getTimedOutTenantIds());
+    Assert.assertEquals(Arrays.asList("job-1"), report.getUnlockedJobIds("acme"));
+    Assert.assertEquals(1, report.getUnlockedJobCount());
+    Assert.assertSame(report, acmeExecutor.getLastShutdownReport());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  /**
+   * Executes the jobs with a single thread, active without job acquisition.
+   */
+  private class ActiveAsyncExecutor extends TenantAwareDefaultAsyncJobExecutor {
+    
+    public ActiveAsyncExecutor() {
+      super(TenantShutdownReportTest.this.tenantInfoHolder);
+      setCommandExecutor(TenantShutdownReportTest.this.commandExecutor);
+      setExecutorService(new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()));
+      isActive = true;
+    }
+    
+    /**
+     * Keeps the thread busy until the test is done, even when interrupted.
+     */
+    public void blockThread() throws InterruptedException {
+      final CountDownLatch started = new CountDownLatch(1);
+      getExecutorService().execute(new Runnable() {
+        public void run() {
+          started.countDown();
+          while (blockedJobsDone.getCount() > 0) {
+            try {
+              blockedJobsDone.await();
+            } catch (InterruptedException e) {
+              // Ignored: stays busy past the deadline
+            }
+          }
+        }
+      });
+      started.await();
+    }
+    
+    public void queueJob(String tenantId, String jobId) {
+      JobEntityImpl job = new JobEntityImpl();
+      job.setId(jobId);
+      getExecutorService().execute(new TenantAwareExecuteAsyncRunnable(job, commandExecutor, tenantInfoHolder, tenantId));
+    }
+    
+  }
+  
+  /**
+   * Records the current tenant of every command instead of executing it.
+   */
+  private class RecordingCommandExecutor implements CommandExecutor {
+    
+    private List<String> tenantIds = Collections.synchronizedList(new ArrayList<String>());
+    
+    public CommandConfig getDefaultConfig() {
+      return new CommandConfig();
+    }
+    
+    public <T> T execute(Command<T> command) {
+      return execute(getDefaultConfig(), command);
+    }
+    
+    public <T> T execute(CommandConfig config, Command<T> command) {
+      tenantIds.add(tenantInfoHolder.getCurrentTenantId());
+      return null;
+    }
+    
+  }
+
+}
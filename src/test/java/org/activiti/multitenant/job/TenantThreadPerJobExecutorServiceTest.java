@@ -0,0 +1,224 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantThreadPerJobExecutorServiceTest {
+  
+  private TenantThreadPerJobExecutorService executorService;
+  private AtomicInteger createdThreadCount = new AtomicInteger();
+  private CountDownLatch release = new CountDownLatch(1);
+  
+  @After
+  public void shutdown() {
+    release.countDown();
+    if (executorService != null) {
+      executorService.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testThreadOnlyStartedWithPermits() throws Exception {
+    executorService = createExecutorService(new Semaphore(2), new HashMap<String, Integer>(), 0);
+    
+    CountDownLatch started = new CountDownLatch(2);
+    CountDownLatch done = new CountDownLatch(50);
+    for (int i = 0; i < 50; i++) {
+      executorService.execute(new BlockingRunnable("acme", started, done));
+    }
+    
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    Thread.sleep(100L);
+    Assert.assertEquals(2, executorService.getRunningJobs());
+    Assert.assertEquals(48, executorService.getQueuedJobs());
+    Assert.assertEquals(3, createdThreadCount.get()); // The running jobs and the dispatcher
+    
+    release.countDown();
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(51, createdThreadCount.get());
+  }
+  
+  @Test
+  public void testTenantAtLimitDoesNotBlockOtherTenants() throws Exception {
+    Map<String, Integer> tenantMaxConcurrency = new HashMap<String, Integer>();
+    tenantMaxConcurrency.put("acme", 1);
+    executorService = createExecutorService(new Semaphore(4), tenantMaxConcurrency, 0);
+    
+    CountDownLatch acmeStarted = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(5);
+    for (int i = 0; i < 3; i++) {
+      executorService.execute(new BlockingRunnable("acme", acmeStarted, done));
+    }
+    CountDownLatch alfrescoStarted = new CountDownLatch(2);
+    for (int i = 0; i < 2; i++) {
+      executorService.execute(new BlockingRunnable("alfresco", alfrescoStarted, done));
+    }
+    
+    Assert.assertTrue(acmeStarted.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(alfrescoStarted.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(3, executorService.getRunningJobs());
+    Assert.assertEquals(2, executorService.getQueuedJobs());
+    
+    release.countDown();
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+  
+  @Test
+  public void testGlobalPermitsSharedBetweenExecutors() throws Exception {
+    Semaphore globalPermits = new Semaphore(1);
+    executorService = createExecutorService(globalPermits, new HashMap<String, Integer>(), 0);
+    TenantThreadPerJobExecutorService otherExecutorService = createExecutorService(globalPermits, new HashMap<String, Integer>(), 0);
+    try {
+      CountDownLatch started = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(2);
+      executorService.execute(new BlockingRunnable("acme", started, done));
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      
+      CountDownLatch otherStarted = new CountDownLatch(1);
+      otherExecutorService.execute(new BlockingRunnable("alfresco", otherStarted, done));
+      Assert.assertFalse(otherStarted.await(200, TimeUnit.MILLISECONDS));
+      
+      // The permit given back by the first executor wakes up the dispatcher of the other one
+      release.countDown();
+      Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    } finally {
+      otherExecutorService.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testMaxPendingJobs() throws Exception {
+    executorService = new TenantThreadPerJobExecutorService(new Semaphore(1), 3, new HashMap<String, Integer>(), 0);
+    
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      executorService.execute(new BlockingRunnable("acme", started, done));
+    }
+    try {
+      executorService.execute(new BlockingRunnable("acme", started, done));
+      Assert.fail();
+    } catch (java.util.concurrent.RejectedExecutionException e) {
+      // Expected
+    }
+    
+    release.countDown();
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+  
+  @Test
+  public void testShutdownNowReturnsQueuedJobs() throws Exception {
+    executorService = createExecutorService(new Semaphore(1), new HashMap<String, Integer>(), 0);
+    
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(5);
+    for (int i = 0; i < 5; i++) {
+      executorService.execute(new BlockingRunnable("acme", started, done));
+    }
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    
+    List<Runnable> notExecuted = executorService.shutdownNow();
+    Assert.assertEquals(4, notExecuted.size());
+    Assert.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(0, executorService.getPendingJobs());
+    Assert.assertEquals(5, done.getCount()); // The running job was interrupted, the others never ran
+  }
+  
+  @Test
+  public void testRemoveQueuedJobsOfTenant() throws Exception {
+    executorService = createExecutorService(new Semaphore(1), new HashMap<String, Integer>(), 0);
+    
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+    executorService.execute(new BlockingRunnable("alfresco", started, done));
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 3; i++) {
+      executorService.execute(new BlockingRunnable("acme", new CountDownLatch(1), done));
+    }
+    executorService.execute(new BlockingRunnable("alfresco", new CountDownLatch(1), done));
+    
+    // One job can be waiting for the global permit with its tenant permit: that one isn't in the queue anymore
+    int removed = executorService.removeQueuedJobs("acme").size();
+    Assert.assertTrue(removed >= 2);
+    Assert.assertEquals(5 - removed, executorService.getPendingJobs());
+    
+    release.countDown();
+    executorService.shutdown();
+    Assert.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private TenantThreadPerJobExecutorService createExecutorService(Semaphore globalPermits, 
+      Map<String, Integer> tenantMaxConcurrency, int defaultTenantMaxConcurrency) {
+    return new TenantThreadPerJobExecutorService(globalPermits, 1000, tenantMaxConcurrency, defaultTenantMaxConcurrency) {
+      
+      @Override
+      protected ThreadFactory createVirtualThreadFactory() {
+        final ThreadFactory platformThreadFactory = createPlatformThreadFactory();
+        return new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            createdThreadCount.incrementAndGet();
+            return platformThreadFactory.newThread(runnable);
+          }
+        };
+      }
+      
+    };
+  }
+  
+  private class BlockingRunnable implements TenantAwareRunnable {
+    
+    private String tenantId;
+    private CountDownLatch started;
+    private CountDownLatch done;
+    
+    public BlockingRunnable(String tenantId, CountDownLatch started, CountDownLatch done) {
+      this.tenantId = tenantId;
+      this.started = started;
+      this.done = done;
+    }
+    
+    public String getTenantId() {
+      return tenantId;
+    }
+    
+    public void run() {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      done.countDown();
+    }
+    
+  }
+
+}
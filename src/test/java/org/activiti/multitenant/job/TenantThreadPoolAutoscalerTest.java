@@ -0,0 +1,144 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.multitenant.job.TenantThreadPoolAutoscaler.TenantPoolState;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantThreadPoolAutoscalerTest {
+  
+  private TenantThreadPoolAutoscaler autoscaler = new TenantThreadPoolAutoscaler(null);
+  private List<TenantThreadPoolExecutor> threadPools = new ArrayList<TenantThreadPoolExecutor>();
+  private CountDownLatch release = new CountDownLatch(1);
+  
+  @After
+  public void shutdown() {
+    release.countDown();
+    for (TenantThreadPoolExecutor threadPool : threadPools) {
+      threadPool.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testGrowsWithinGlobalBudget() throws Exception {
+    autoscaler.setGlobalThreadBudget(5);
+    TenantThreadPoolExecutor threadPool = createBusyThreadPool(1, 10);
+    
+    // 1 -> 2 -> 4 -> 5: doubling, but the budget has only 5 threads
+    for (int i = 0; i < 3; i++) {
+      scale(new TenantPoolState("acme", threadPool));
+    }
+    Assert.assertEquals(5, threadPool.getCorePoolSize());
+  }
+  
+  @Test
+  public void testGrowsUpToMaxThreadsPerTenant() throws Exception {
+    autoscaler.setMaxThreadsPerTenant(3);
+    TenantThreadPoolExecutor threadPool = createBusyThreadPool(2, 10);
+    
+    scale(new TenantPoolState("acme", threadPool));
+    Assert.assertEquals(3, threadPool.getCorePoolSize());
+    Assert.assertEquals(3, threadPool.getMaximumPoolSize());
+  }
+  
+  @Test
+  public void testIdlePoolShrinksToZero() throws Exception {
+    TenantThreadPoolExecutor threadPool = createThreadPool(3);
+    
+    scale(new TenantPoolState("acme", threadPool));
+    Assert.assertEquals(0, threadPool.getCorePoolSize());
+    Assert.assertEquals(1, threadPool.getMaximumPoolSize()); // A new job still gets a thread
+  }
+  
+  @Test
+  public void testBusyPoolWithoutQueueKeepsActiveThreads() throws Exception {
+    TenantThreadPoolExecutor threadPool = createBusyThreadPool(4, 0);
+    threadPool.resize(6, 6);
+    
+    scale(new TenantPoolState("acme", threadPool));
+    Assert.assertEquals(4, threadPool.getCorePoolSize());
+  }
+  
+  @Test
+  public void testDeepestQueueGrowsFirst() throws Exception {
+    autoscaler.setGlobalThreadBudget(3);
+    TenantThreadPoolExecutor shallowThreadPool = createBusyThreadPool(1, 2);
+    TenantThreadPoolExecutor deepThreadPool = createBusyThreadPool(1, 5);
+    
+    // Both want 2 threads, only one extra thread is left in the budget
+    scale(new TenantPoolState("acme", shallowThreadPool), new TenantPoolState("alfresco", deepThreadPool));
+    Assert.assertEquals(2, deepThreadPool.getCorePoolSize());
+    Assert.assertEquals(1, shallowThreadPool.getCorePoolSize());
+  }
+  
+  @Test
+  public void testShrinkingFreesBudgetForGrowth() throws Exception {
+    autoscaler.setGlobalThreadBudget(4);
+    TenantThreadPoolExecutor idleThreadPool = createThreadPool(3);
+    TenantThreadPoolExecutor busyThreadPool = createBusyThreadPool(1, 5);
+    
+    scale(new TenantPoolState("acme", busyThreadPool), new TenantPoolState("alfresco", idleThreadPool));
+    Assert.assertEquals(0, idleThreadPool.getCorePoolSize());
+    Assert.assertEquals(2, busyThreadPool.getCorePoolSize());
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private void scale(TenantPoolState... pools) {
+    List<TenantPoolState> poolList = new ArrayList<TenantPoolState>();
+    for (TenantPoolState pool : pools) {
+      poolList.add(pool);
+    }
+    autoscaler.scale(poolList);
+  }
+  
+  private TenantThreadPoolExecutor createThreadPool(int threads) {
+    TenantThreadPoolExecutor threadPool = new TenantThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    threadPools.add(threadPool);
+    return threadPool;
+  }
+  
+  /**
+   * All threads execute a job that blocks until the end of the test, with queuedJobs more jobs waiting.
+   */
+  private TenantThreadPoolExecutor createBusyThreadPool(int threads, int queuedJobs) throws InterruptedException {
+    TenantThreadPoolExecutor threadPool = createThreadPool(threads);
+    final CountDownLatch started = new CountDownLatch(threads);
+    for (int i = 0; i < threads + queuedJobs; i++) {
+      threadPool.execute(new Runnable() {
+        public void run() {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    return threadPool;
+  }
+
+}
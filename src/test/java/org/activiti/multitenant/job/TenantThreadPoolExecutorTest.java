@@ -0,0 +1,100 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantThreadPoolExecutorTest {
+  
+  private TenantThreadPoolExecutor threadPool = new TenantThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+  private CountDownLatch release = new CountDownLatch(1);
+  
+  @After
+  public void shutdown() {
+    release.countDown();
+    threadPool.shutdownNow();
+  }
+  
+  @Test
+  public void testJobsCountedPerTenant() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    threadPool.execute(new BlockingRunnable("acme", started));
+    threadPool.execute(new BlockingRunnable("acme", new CountDownLatch(1)));
+    threadPool.execute(new BlockingRunnable("alfresco", new CountDownLatch(1)));
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    
+    Assert.assertEquals(1, threadPool.getRunningCount("acme"));
+    Assert.assertEquals(1, threadPool.getQueuedCount("acme"));
+    Assert.assertEquals(0, threadPool.getRunningCount("alfresco"));
+    Assert.assertEquals(1, threadPool.getQueuedCount("alfresco"));
+    
+    release.countDown();
+    threadPool.shutdown();
+    Assert.assertTrue(threadPool.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(0, threadPool.getRunningCount("acme"));
+    Assert.assertEquals(0, threadPool.getRunningCount("alfresco"));
+  }
+  
+  @Test
+  public void testRemoveQueuedJobsOfTenant() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    threadPool.execute(new BlockingRunnable("acme", started));
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    
+    BlockingRunnable queuedAcmeJob = new BlockingRunnable("acme", new CountDownLatch(1));
+    threadPool.execute(queuedAcmeJob);
+    threadPool.execute(new BlockingRunnable("alfresco", new CountDownLatch(1)));
+    
+    List<Runnable> removed = threadPool.removeQueuedJobs("acme");
+    Assert.assertEquals(1, removed.size());
+    Assert.assertSame(queuedAcmeJob, removed.get(0));
+    Assert.assertEquals(0, threadPool.getQueuedCount("acme"));
+    Assert.assertEquals(1, threadPool.getQueue().size());
+  }
+  
+  private class BlockingRunnable implements TenantAwareRunnable {
+    
+    private String tenantId;
+    private CountDownLatch started;
+    
+    public BlockingRunnable(String tenantId, CountDownLatch started) {
+      this.tenantId = tenantId;
+      this.started = started;
+    }
+    
+    public String getTenantId() {
+      return tenantId;
+    }
+    
+    public void run() {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    
+  }
+
+}
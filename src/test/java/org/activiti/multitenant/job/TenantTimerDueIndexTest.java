@@ -0,0 +1,180 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.Date;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The timer queries are replaced by a {@link TenantJobAcquirer} that returns a preset next due date.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantTimerDueIndexTest {
+  
+  private static final long MAX_SLEEP = 120000L;
+  private static final int DEFAULT_WAIT = 20000;
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private TenantAwareDefaultAsyncJobExecutor asyncExecutor;
+  private FakeJobAcquirer jobAcquirer;
+  private TenantTimerDueIndex timerDueIndex;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("acme");
+    
+    asyncExecutor = new TenantAwareDefaultAsyncJobExecutor(tenantInfoHolder);
+    asyncExecutor.setMaxTimerJobsPerAcquisition(10);
+    asyncExecutor.setDefaultTimerJobAcquireWaitTimeInMillis(DEFAULT_WAIT);
+    jobAcquirer = new FakeJobAcquirer(asyncExecutor);
+    
+    timerDueIndex = new TenantTimerDueIndex();
+    timerDueIndex.setMaxSleepInMillis(MAX_SLEEP);
+  }
+  
+  @Test
+  public void testRefreshSleepsUntilNextTimer() {
+    long dueTime = System.currentTimeMillis() + 60000L;
+    jobAcquirer.nextDueDate = new Date(dueTime);
+    
+    long sleepTime = timerDueIndex.refresh("acme", jobAcquirer);
+    Assert.assertTrue(sleepTime > 50000L && sleepTime <= 60000L);
+    Assert.assertEquals(Long.valueOf(dueTime), timerDueIndex.getNextDueTime("acme"));
+  }
+  
+  @Test
+  public void testRefreshWithoutTimersSleepsMaxAndForgetsTenant() {
+    timerDueIndex.timerCreated("acme", System.currentTimeMillis() + 60000L);
+    
+    Assert.assertEquals(MAX_SLEEP, timerDueIndex.refresh("acme", jobAcquirer));
+    Assert.assertNull(timerDueIndex.getNextDueTime("acme"));
+  }
+  
+  @Test
+  public void testSleepCappedByMaxSleep() {
+    long dueTime = System.currentTimeMillis() + 60L * 60L * 1000L;
+    jobAcquirer.nextDueDate = new Date(dueTime);
+    
+    Assert.assertEquals(MAX_SLEEP, timerDueIndex.refresh("acme", jobAcquirer));
+    Assert.assertEquals(Long.valueOf(dueTime), timerDueIndex.getNextDueTime("acme")); // Still known when it's created sooner
+  }
+  
+  @Test
+  public void testOverdueTimersCapSleepByDefaultWaitTime() {
+    jobAcquirer.nextDueDate = new Date(System.currentTimeMillis() + 60000L);
+    jobAcquirer.overdueTimers = true; // Locked, eg. waiting for a retry
+    
+    Assert.assertEquals(DEFAULT_WAIT, timerDueIndex.refresh("acme", jobAcquirer));
+    
+    jobAcquirer.nextDueDate = null;
+    Assert.assertEquals(DEFAULT_WAIT, timerDueIndex.refresh("acme", jobAcquirer));
+  }
+  
+  @Test
+  public void testTimerCreatedOnlyWhenSoonerThanKnownTimer() {
+    Assert.assertTrue(timerDueIndex.timerCreated("acme", 5000L));
+    Assert.assertFalse(timerDueIndex.timerCreated("acme", 5000L));
+    Assert.assertFalse(timerDueIndex.timerCreated("acme", 6000L));
+    Assert.assertTrue(timerDueIndex.timerCreated("acme", 4000L));
+    Assert.assertEquals(Long.valueOf(4000L), timerDueIndex.getNextDueTime("acme"));
+    
+    // Per tenant
+    Assert.assertTrue(timerDueIndex.timerCreated("alfresco", 6000L));
+    
+    timerDueIndex.removeTenant("acme");
+    Assert.assertNull(timerDueIndex.getNextDueTime("acme"));
+    Assert.assertTrue(timerDueIndex.timerCreated("acme", 6000L));
+  }
+  
+  @Test
+  public void testAcquisitionSleepsUntilNextTimer() {
+    TenantAwareAcquireTimerJobsRunnable runnable = createRunnable();
+    runnable.setMaxBackoffInMillis(10L * MAX_SLEEP);
+    long dueTime = System.currentTimeMillis() + 60000L;
+    jobAcquirer.nextDueDate = new Date(dueTime);
+    
+    // Empty acquisitions don't back off: the wait time is known
+    acquireJobs(runnable);
+    acquireJobs(runnable);
+    Assert.assertTrue(runnable.getAcquisitionState().getNextTimerJobAcquisitionTime() <= dueTime);
+    Assert.assertTrue(runnable.getAcquisitionState().getNextTimerJobAcquisitionTime() > dueTime - 10000L);
+    
+    // Full acquisition: acquire again right away
+    jobAcquirer.nrOfTimers = 10;
+    long before = System.currentTimeMillis();
+    acquireJobs(runnable);
+    Assert.assertTrue(runnable.getAcquisitionState().getNextTimerJobAcquisitionTime() <= System.currentTimeMillis());
+    Assert.assertTrue(runnable.getAcquisitionState().getNextTimerJobAcquisitionTime() >= before);
+  }
+  
+  @Test
+  public void testAcquisitionWithoutTimersSleepsMax() {
+    TenantAwareAcquireTimerJobsRunnable runnable = createRunnable();
+    
+    long before = System.currentTimeMillis();
+    acquireJobs(runnable);
+    Assert.assertTrue(runnable.getAcquisitionState().getNextTimerJobAcquisitionTime() >= before + MAX_SLEEP);
+    Assert.assertEquals(1, jobAcquirer.acquisitionCount);
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private TenantAwareAcquireTimerJobsRunnable createRunnable() {
+    TenantAwareAcquireTimerJobsRunnable runnable = new TenantAwareAcquireTimerJobsRunnable(asyncExecutor, tenantInfoHolder, "acme");
+    runnable.jobAcquirer = jobAcquirer;
+    runnable.setTimerDueIndex(timerDueIndex);
+    return runnable;
+  }
+  
+  private void acquireJobs(TenantAwareAcquireTimerJobsRunnable runnable) {
+    tenantInfoHolder.setCurrentTenantId("acme");
+    try {
+      runnable.acquireJobs();
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+  }
+  
+  private static class FakeJobAcquirer extends TenantJobAcquirer {
+    
+    private Date nextDueDate;
+    private boolean overdueTimers;
+    private int nrOfTimers;
+    private int acquisitionCount;
+    
+    public FakeJobAcquirer(TenantAwareDefaultAsyncJobExecutor asyncExecutor) {
+      super(asyncExecutor);
+    }
+    
+    public int acquireTimerJobs(TenantJobMetrics metrics) {
+      acquisitionCount++;
+      return nrOfTimers;
+    }
+    
+    public Date findNextTimerDueDate(long time) {
+      return nextDueDate;
+    }
+    
+    public boolean hasOverdueTimerJobs(long time) {
+      return overdueTimers;
+    }
+    
+  }
+
+}
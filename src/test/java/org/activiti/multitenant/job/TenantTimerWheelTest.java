@@ -0,0 +1,235 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.activiti.DummyTenantInfoHolder;
+import org.activiti.engine.impl.persistence.entity.TimerEntityImpl;
+import org.activiti.engine.runtime.Job;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The timer queries are replaced by a {@link TenantJobAcquirer} that returns preset timers,
+ * the timer acquisitions by recording which tenant the wheel wakes up.
+ * 
+ * @author Joram Barrez
+ */
+public class TenantTimerWheelTest {
+  
+  private static final long LOOKAHEAD_WINDOW = 60000L;
+  private static final int DEFAULT_WAIT = 20000;
+  
+  private DummyTenantInfoHolder tenantInfoHolder;
+  private RecordingAsyncExecutor asyncExecutor;
+  private FakeJobAcquirer jobAcquirer;
+  private TenantTimerWheel timerWheel;
+  
+  @Before
+  public void setup() {
+    tenantInfoHolder = new DummyTenantInfoHolder();
+    tenantInfoHolder.addTenant("acme");
+    tenantInfoHolder.addTenant("alfresco");
+    
+    asyncExecutor = new RecordingAsyncExecutor(tenantInfoHolder);
+    asyncExecutor.setMaxTimerJobsPerAcquisition(10);
+    asyncExecutor.setDefaultTimerJobAcquireWaitTimeInMillis(DEFAULT_WAIT);
+    jobAcquirer = new FakeJobAcquirer(asyncExecutor);
+    
+    timerWheel = new TenantTimerWheel(asyncExecutor);
+    timerWheel.setTickInMillis(10L);
+    timerWheel.setLookaheadWindowInMillis(LOOKAHEAD_WINDOW);
+  }
+  
+  @After
+  public void close() {
+    timerWheel.stop();
+  }
+  
+  @Test
+  public void testLookaheadReadsTimersWithinWindow() {
+    long now = System.currentTimeMillis();
+    jobAcquirer.timers.add(createTimer("timer-1", now + 1000L));
+    jobAcquirer.timers.add(createTimer("timer-2", now + 30000L));
+    
+    Assert.assertEquals(LOOKAHEAD_WINDOW, timerWheel.lookahead("acme", jobAcquirer));
+    Assert.assertEquals(2, timerWheel.getTimerCount("acme"));
+    Assert.assertEquals(0, timerWheel.getTimerCount("alfresco"));
+    Assert.assertTrue(jobAcquirer.fromTime >= now);
+    Assert.assertEquals(LOOKAHEAD_WINDOW, jobAcquirer.toTime - jobAcquirer.fromTime);
+  }
+  
+  @Test
+  public void testFullLookaheadWaitsUntilLastTimerRead() {
+    timerWheel.setMaxTimersPerLookahead(2);
+    long now = System.currentTimeMillis();
+    jobAcquirer.timers.add(createTimer("timer-1", now + 1000L));
+    jobAcquirer.timers.add(createTimer("timer-2", now + 5000L));
+    
+    long waitTime = timerWheel.lookahead("acme", jobAcquirer);
+    Assert.assertTrue(waitTime > 4000L && waitTime <= 5000L);
+    Assert.assertEquals(2, jobAcquirer.maxResults);
+  }
+  
+  @Test
+  public void testOverdueTimersCapLookaheadWait() {
+    jobAcquirer.overdueTimers = true;
+    
+    Assert.assertEquals(DEFAULT_WAIT, timerWheel.lookahead("acme", jobAcquirer));
+  }
+  
+  @Test
+  public void testTimersBeyondWindowOrWithoutDueDateIgnored() {
+    long now = System.currentTimeMillis();
+    timerWheel.addTimer("acme", "timer-1", new Date(now + 1000L));
+    timerWheel.addTimer("acme", "timer-2", new Date(now + 2 * LOOKAHEAD_WINDOW));
+    timerWheel.addTimer("acme", "timer-3", null);
+    
+    Assert.assertEquals(1, timerWheel.getTimerCount("acme"));
+    
+    timerWheel.removeTenant("acme");
+    Assert.assertEquals(0, timerWheel.getTimerCount("acme"));
+  }
+  
+  @Test
+  public void testDueTimerWakesUpAcquisitionOfItsTenant() throws Exception {
+    timerWheel.start();
+    long dueTime = System.currentTimeMillis() + 100L;
+    timerWheel.addTimer("alfresco", "timer-1", new Date(dueTime));
+    timerWheel.addTimer("acme", "timer-2", new Date(dueTime + LOOKAHEAD_WINDOW / 2));
+    
+    long waitUntil = System.currentTimeMillis() + 10000L;
+    while (asyncExecutor.scheduledTenantIds.isEmpty() && System.currentTimeMillis() < waitUntil) {
+      Thread.sleep(10L);
+    }
+    
+    Assert.assertEquals(Collections.singletonList("alfresco"), new ArrayList<String>(asyncExecutor.scheduledTenantIds));
+    Assert.assertTrue(System.currentTimeMillis() >= dueTime);
+    Assert.assertEquals(0, timerWheel.getTimerCount("alfresco"));
+    Assert.assertEquals(1, timerWheel.getTimerCount("acme"));
+  }
+  
+  @Test
+  public void testStoppedWheelDoesNotWakeUpAcquisition() throws Exception {
+    timerWheel.start();
+    timerWheel.stop();
+    timerWheel.addTimer("acme", "timer-1", new Date(System.currentTimeMillis() + 20L));
+    
+    Thread.sleep(200L);
+    Assert.assertTrue(asyncExecutor.scheduledTenantIds.isEmpty());
+  }
+  
+  @Test
+  public void testAcquisitionWaitsForLookaheadWindow() {
+    TenantAwareAcquireTimerJobsRunnable runnable = createRunnable();
+    jobAcquirer.timers.add(createTimer("timer-1", System.currentTimeMillis() + 1000L));
+    
+    long before = System.currentTimeMillis();
+    acquireJobs(runnable);
+    Assert.assertTrue(runnable.getAcquisitionState().getNextTimerJobAcquisitionTime() >= before + LOOKAHEAD_WINDOW);
+    Assert.assertEquals(1, timerWheel.getTimerCount("acme"));
+  }
+  
+  @Test
+  public void testAcquisitionWithDueIndexWaitsForEarliest() {
+    TenantAwareAcquireTimerJobsRunnable runnable = createRunnable();
+    runnable.setTimerDueIndex(new TenantTimerDueIndex());
+    long dueTime = System.currentTimeMillis() + 10000L;
+    jobAcquirer.nextDueDate = new Date(dueTime);
+    
+    acquireJobs(runnable);
+    Assert.assertTrue(runnable.getAcquisitionState().getNextTimerJobAcquisitionTime() <= dueTime);
+    Assert.assertTrue(runnable.getAcquisitionState().getNextTimerJobAcquisitionTime() > dueTime - 5000L);
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  private TenantAwareAcquireTimerJobsRunnable createRunnable() {
+    TenantAwareAcquireTimerJobsRunnable runnable = new TenantAwareAcquireTimerJobsRunnable(asyncExecutor, tenantInfoHolder, "acme");
+    runnable.jobAcquirer = jobAcquirer;
+    runnable.setTimerWheel(timerWheel);
+    return runnable;
+  }
+  
+  private void acquireJobs(TenantAwareAcquireTimerJobsRunnable runnable) {
+    tenantInfoHolder.setCurrentTenantId("acme");
+    try {
+      runnable.acquireJobs();
+    } finally {
+      tenantInfoHolder.clearCurrentTenantId();
+    }
+  }
+  
+  private Job createTimer(String jobId, long dueTime) {
+    TimerEntityImpl timer = new TimerEntityImpl();
+    timer.setId(jobId);
+    timer.setDuedate(new Date(dueTime));
+    return timer;
+  }
+  
+  private static class FakeJobAcquirer extends TenantJobAcquirer {
+    
+    private List<Job> timers = new ArrayList<Job>();
+    private Date nextDueDate;
+    private boolean overdueTimers;
+    private long fromTime;
+    private long toTime;
+    private int maxResults;
+    
+    public FakeJobAcquirer(TenantAwareDefaultAsyncJobExecutor asyncExecutor) {
+      super(asyncExecutor);
+    }
+    
+    public int acquireTimerJobs(TenantJobMetrics metrics) {
+      return 0;
+    }
+    
+    public List<Job> findTimerJobsDueBetween(long fromTime, long toTime, int maxResults) {
+      this.fromTime = fromTime;
+      this.toTime = toTime;
+      this.maxResults = maxResults;
+      return timers;
+    }
+    
+    public Date findNextTimerDueDate(long time) {
+      return nextDueDate;
+    }
+    
+    public boolean hasOverdueTimerJobs(long time) {
+      return overdueTimers;
+    }
+    
+  }
+  
+  private static class RecordingAsyncExecutor extends SharedExecutorServiceAsyncExecutor {
+    
+    private List<String> scheduledTenantIds = Collections.synchronizedList(new ArrayList<String>());
+    
+    public RecordingAsyncExecutor(DummyTenantInfoHolder tenantInfoHolder) {
+      super(tenantInfoHolder);
+    }
+    
+    @Override
+    public void scheduleTimerJobAcquisition(String tenantId, long time) {
+      scheduledTenantIds.add(tenantId);
+    }
+    
+  }
+
+}
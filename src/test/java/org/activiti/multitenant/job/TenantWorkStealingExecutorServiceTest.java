@@ -0,0 +1,237 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.multitenant.job;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantWorkStealingExecutorServiceTest {
+  
+  private TenantWorkStealingPool pool = new TenantWorkStealingPool();
+  private CountDownLatch release = new CountDownLatch(1);
+  
+  @After
+  public void shutdown() {
+    release.countDown();
+    for (TenantWorkStealingExecutorService executorService : pool.getExecutorServices().values()) {
+      executorService.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void testWorkersCreatedWhenJobsQueued() throws Exception {
+    TenantWorkStealingExecutorService executorService = pool.createExecutorService("acme", 4, 100, 1);
+    Assert.assertEquals(0, executorService.getWorkerCount());
+    
+    runJob(executorService, "acme");
+    waitUntilIdle(executorService, 1);
+    Assert.assertEquals(1, executorService.getWorkerCount());
+    
+    // The idle worker takes the next job, it is parked without a timeout until then
+    Thread worker = executorService.workers.get(0);
+    long waitUntil = System.currentTimeMillis() + 10000L;
+    while (worker.getState() != Thread.State.WAITING && System.currentTimeMillis() < waitUntil) {
+      Thread.sleep(10L);
+    }
+    Assert.assertEquals(Thread.State.WAITING, worker.getState());
+    runJob(executorService, "acme");
+    Assert.assertEquals(1, executorService.getWorkerCount());
+  }
+  
+  @Test
+  public void testIdleWorkerStealsJobOfOtherTenant() throws Exception {
+    TenantWorkStealingExecutorService acme = createIdleExecutorService("acme", 1, 0);
+    TenantWorkStealingExecutorService alfresco = pool.createExecutorService("alfresco", 1, 100, 1);
+    
+    CountDownLatch started = new CountDownLatch(1);
+    alfresco.execute(new BlockingRunnable("alfresco", started));
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    
+    // The only worker of alfresco is busy: the worker of acme takes the next job
+    runJob(alfresco, "alfresco");
+    Assert.assertEquals(1, acme.getJobsStolenFromOthersCount());
+    Assert.assertEquals(1, alfresco.getStolenJobCount());
+  }
+  
+  @Test
+  public void testReservedWorkerDoesntSteal() throws Exception {
+    TenantWorkStealingExecutorService acme = createIdleExecutorService("acme", 1, 1);
+    TenantWorkStealingExecutorService alfresco = pool.createExecutorService("alfresco", 1, 100, 1);
+    
+    CountDownLatch started = new CountDownLatch(1);
+    alfresco.execute(new BlockingRunnable("alfresco", started));
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    
+    CountDownLatch done = new CountDownLatch(1);
+    alfresco.execute(new CountingRunnable("alfresco", done));
+    Assert.assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+    Assert.assertEquals(0, acme.getJobsStolenFromOthersCount());
+    
+    release.countDown();
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+  
+  @Test
+  public void testReservedWorkerAvailableWhileOthersSteal() throws Exception {
+    TenantWorkStealingExecutorService acme = createIdleExecutorService("acme", 2, 1);
+    TenantWorkStealingExecutorService alfresco = pool.createExecutorService("alfresco", 1, 100, 1);
+    
+    // Alfresco has a backlog of blocking jobs: only one of the two acme workers may take one
+    CountDownLatch started = new CountDownLatch(2);
+    for (int i = 0; i < 4; i++) {
+      alfresco.execute(new BlockingRunnable("alfresco", started));
+    }
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    Thread.sleep(100L);
+    Assert.assertEquals(1, acme.getJobsStolenFromOthersCount());
+    Assert.assertEquals(2, alfresco.getQueueSize());
+    
+    // The reserved worker executes the own job right away
+    runJob(acme, "acme");
+  }
+  
+  @Test
+  public void testShutdownStopsParkedWorkers() throws Exception {
+    TenantWorkStealingExecutorService acme = createIdleExecutorService("acme", 1, 1);
+    
+    acme.shutdown();
+    Assert.assertTrue(acme.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertFalse(pool.getExecutorServices().containsKey("acme"));
+  }
+  
+  @Test
+  public void testShutdownWithoutWorkers() throws Exception {
+    TenantWorkStealingExecutorService acme = pool.createExecutorService("acme", 1, 100, 1);
+    
+    acme.shutdown();
+    Assert.assertTrue(acme.isTerminated());
+    Assert.assertTrue(acme.awaitTermination(0, TimeUnit.SECONDS));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  /**
+   * An executor service with all its workers created and idle.
+   */
+  private TenantWorkStealingExecutorService createIdleExecutorService(String tenantId, int threadCount, int reservedThreadCount) throws Exception {
+    TenantWorkStealingExecutorService executorService = pool.createExecutorService(tenantId, threadCount, 100, reservedThreadCount);
+    CountDownLatch allRunning = new CountDownLatch(threadCount);
+    CountDownLatch done = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      executorService.execute(new WaitingRunnable(tenantId, allRunning, done));
+    }
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    waitUntilIdle(executorService, threadCount);
+    return executorService;
+  }
+  
+  private void runJob(TenantWorkStealingExecutorService executorService, String tenantId) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(1);
+    executorService.execute(new CountingRunnable(tenantId, done));
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+  }
+  
+  private void waitUntilIdle(TenantWorkStealingExecutorService executorService, int idleWorkerCount) throws InterruptedException {
+    long waitUntil = System.currentTimeMillis() + 10000L;
+    while (executorService.idleWorkerCount.get() < idleWorkerCount && System.currentTimeMillis() < waitUntil) {
+      Thread.sleep(10L);
+    }
+    Assert.assertEquals(idleWorkerCount, executorService.idleWorkerCount.get());
+  }
+  
+  private abstract static class TestRunnable implements TenantAwareRunnable {
+    
+    protected String tenantId;
+    
+    public TestRunnable(String tenantId) {
+      this.tenantId = tenantId;
+    }
+    
+    public String getTenantId() {
+      return tenantId;
+    }
+    
+  }
+  
+  private static class CountingRunnable extends TestRunnable {
+    
+    private CountDownLatch done;
+    
+    public CountingRunnable(String tenantId, CountDownLatch done) {
+      super(tenantId);
+      this.done = done;
+    }
+    
+    public void run() {
+      done.countDown();
+    }
+    
+  }
+  
+  /**
+   * Waits until all given jobs run at the same time, so every worker gets one.
+   */
+  private static class WaitingRunnable extends TestRunnable {
+    
+    private CountDownLatch allRunning;
+    private CountDownLatch done;
+    
+    public WaitingRunnable(String tenantId, CountDownLatch allRunning, CountDownLatch done) {
+      super(tenantId);
+      this.allRunning = allRunning;
+      this.done = done;
+    }
+    
+    public void run() {
+      allRunning.countDown();
+      try {
+        allRunning.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      done.countDown();
+    }
+    
+  }
+  
+  /**
+   * Blocks until the end of the test.
+   */
+  private class BlockingRunnable extends TestRunnable {
+    
+    private CountDownLatch started;
+    
+    public BlockingRunnable(String tenantId, CountDownLatch started) {
+      super(tenantId);
+      this.started = started;
+    }
+    
+    public void run() {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    
+  }
+
+}
@@ -0,0 +1,173 @@
+/* Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.activiti.tenant;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.engine.ActivitiException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Joram Barrez
+ */
+public class TenantReadinessRegistryTest {
+  
+  private TenantReadinessRegistry registry;
+  private ExecutorService executorService;
+  
+  @Before
+  public void setup() {
+    registry = new TenantReadinessRegistry();
+    executorService = Executors.newCachedThreadPool();
+  }
+  
+  @After
+  public void shutdown() {
+    executorService.shutdownNow();
+  }
+  
+  @Test
+  public void testUnknownTenantIsReady() {
+    Assert.assertTrue(registry.isReady("alfresco"));
+    Assert.assertTrue(registry.isReady(null));
+    registry.awaitReady("alfresco", 0L);
+  }
+  
+  @Test
+  public void testProgressiveReadiness() {
+    registry.markInitializing("alfresco");
+    registry.markInitializing("acme");
+    Assert.assertFalse(registry.isReady("alfresco"));
+    Assert.assertFalse(registry.isReady("acme"));
+    Assert.assertTrue(registry.isReady("wayne"));
+    Assert.assertEquals(2, registry.getNotReadyCount());
+    
+    // Tenants become usable one by one, as their schema is done
+    registry.markReady("acme");
+    Assert.assertFalse(registry.isReady("alfresco"));
+    Assert.assertTrue(registry.isReady("acme"));
+    Assert.assertEquals(1, registry.getNotReadyCount());
+    
+    registry.markReady("alfresco");
+    registry.markReady("alfresco"); // Counted once
+    Assert.assertEquals(0, registry.getNotReadyCount());
+  }
+  
+  @Test
+  public void testReinitializingCountsOnce() {
+    registry.markInitializing("alfresco");
+    registry.markInitializing("alfresco");
+    Assert.assertEquals(1, registry.getNotReadyCount());
+    
+    registry.markReady("alfresco");
+    registry.markInitializing("alfresco");
+    Assert.assertEquals(1, registry.getNotReadyCount());
+    Assert.assertFalse(registry.isReady("alfresco"));
+  }
+  
+  @Test
+  public void testAwaitReady() throws Exception {
+    registry.markInitializing("alfresco");
+    Future<Void> waiter = awaitReadyAsync("alfresco", 5000L);
+    Thread.sleep(50L);
+    Assert.assertFalse(waiter.isDone());
+    
+    registry.markReady("alfresco");
+    waiter.get(1, TimeUnit.SECONDS);
+  }
+  
+  @Test
+  public void testAwaitReadyWithoutWaitTimeFailsImmediately() {
+    registry.markInitializing("alfresco");
+    try {
+      registry.awaitReady("alfresco", 0L);
+      Assert.fail();
+    } catch (ActivitiException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("not ready yet"));
+    }
+  }
+  
+  @Test
+  public void testAwaitReadyTimesOut() {
+    registry.markInitializing("alfresco");
+    long start = System.currentTimeMillis();
+    try {
+      registry.awaitReady("alfresco", 100L);
+      Assert.fail();
+    } catch (ActivitiException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("not ready yet"));
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start >= 100L);
+  }
+  
+  @Test
+  public void testFailureWakesUpWaiters() throws Exception {
+    registry.markInitializing("alfresco");
+    Future<Void> waiter = awaitReadyAsync("alfresco", 5000L);
+    Thread.sleep(50L);
+    
+    RuntimeException failure = new RuntimeException("schema version mismatch");
+    registry.markFailed("alfresco", failure);
+    assertFailedWith(waiter, "schema version mismatch");
+    Assert.assertFalse(registry.isReady("alfresco"));
+    
+    try {
+      registry.awaitReady("alfresco", 5000L); // Fails without waiting
+      Assert.fail();
+    } catch (ActivitiException e) {
+      Assert.assertSame(failure, e.getCause());
+    }
+  }
+  
+  @Test
+  public void testRemoveWakesUpWaiters() throws Exception {
+    registry.markInitializing("alfresco");
+    Future<Void> waiter = awaitReadyAsync("alfresco", 5000L);
+    Thread.sleep(50L);
+    
+    registry.remove("alfresco");
+    assertFailedWith(waiter, "was removed");
+    Assert.assertEquals(0, registry.getNotReadyCount());
+    Assert.assertTrue(registry.isReady("alfresco"));
+  }
+  
+  // Helper //////////////////////////////////////////
+  
+  protected Future<Void> awaitReadyAsync(final String tenantId, final long waitTimeInMillis) {
+    return executorService.submit(new Callable<Void>() {
+      public Void call() {
+        registry.awaitReady(tenantId, waitTimeInMillis);
+        return null;
+      }
+    });
+  }
+  
+  protected void assertFailedWith(Future<Void> waiter, String message) throws Exception {
+    try {
+      waiter.get(1, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof ActivitiException);
+      Assert.assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains(message));
+    }
+  }
+
+}